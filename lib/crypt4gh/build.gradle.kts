@@ -9,6 +9,7 @@ plugins {
     id("signing")
     id("com.gradleup.shadow") version "9.4.3"
     id("org.jreleaser") version "1.24.0"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "no.elixir"
@@ -40,6 +41,15 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// JMH benchmarks in src/jmh/java, run with "./gradlew lib:crypt4gh:jmh" (results in build/results/jmh).
+// A subset can be run by passing a regular expression, e.g. "-Pjmh.includes=SegmentBenchmark"
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    (project.findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+}
+
 java {
     toolchain {
         languageVersion.set(JavaLanguageVersion.of(javaVersion))
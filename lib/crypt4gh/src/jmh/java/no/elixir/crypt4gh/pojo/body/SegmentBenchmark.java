@@ -0,0 +1,193 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.MAC_SIZE;
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.NONCE_SIZE;
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks encryption, decryption and verification of single full-size segments, with the
+ * reusable SegmentCryptor and with the Segment API that allocates new objects for every segment.
+ * The SegmentCryptor benchmarks are run with each {@link SegmentCipher} implementation, and
+ * compared with creating a new cipher and a strong SecureRandom for every segment, as segments used
+ * to be encrypted.
+ *
+ * <p>Segments are decrypted from a small rotating set of pre-encrypted segments, since some JDKs
+ * refuse to initialize a cipher with the same key and nonce twice in a row.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SegmentBenchmark {
+
+  /** The number of pre-encrypted segments rotated through by the decryption benchmarks */
+  private static final int SEGMENTS = 16;
+
+  private static final int ENCRYPTED_SEGMENT_SIZE =
+      NONCE_SIZE + UNENCRYPTED_DATA_SEGMENT_SIZE + MAC_SIZE;
+
+  /** The SegmentCipher implementation used by the SegmentCryptor */
+  @Param({SegmentCipher.JDK, SegmentCipher.JAVA})
+  private String segmentCipher;
+
+  private SecretKey dataKey;
+  private List<DataEncryptionParameters> dataEncryptionParametersList;
+  private SegmentCryptor segmentCryptor;
+  private byte[] unencryptedData;
+  private byte[] encryptedSegment;
+  private byte[] decryptedData;
+  private byte[][] encryptedSegments;
+  private ByteBuffer[] encryptedBuffers;
+  private ByteBuffer decryptedBuffer;
+  private int next;
+
+  /**
+   * Generates a data key and encrypts the segments to decrypt.
+   *
+   * @throws GeneralSecurityException In case the key can't be generated or a segment can't be
+   *     encrypted.
+   */
+  @Setup
+  public void setup() throws GeneralSecurityException {
+    dataKey = KeyUtils.getInstance().generateSessionKey();
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    dataEncryptionParametersList = List.of(dataEncryptionParameters);
+    segmentCryptor =
+        new SegmentCryptor(
+            null,
+            SegmentCipher.JAVA.equals(segmentCipher)
+                ? new JavaSegmentCipher()
+                : new JdkSegmentCipher());
+    unencryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new Random(1).nextBytes(unencryptedData);
+    encryptedSegment = new byte[ENCRYPTED_SEGMENT_SIZE];
+    decryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    encryptedSegments = new byte[SEGMENTS][ENCRYPTED_SEGMENT_SIZE];
+    encryptedBuffers = new ByteBuffer[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segmentCryptor.encrypt(
+          unencryptedData,
+          0,
+          unencryptedData.length,
+          encryptedSegments[i],
+          0,
+          dataEncryptionParameters);
+      encryptedBuffers[i] =
+          ByteBuffer.allocateDirect(ENCRYPTED_SEGMENT_SIZE).put(encryptedSegments[i]).flip();
+    }
+    decryptedBuffer = ByteBuffer.allocateDirect(UNENCRYPTED_DATA_SEGMENT_SIZE);
+  }
+
+  /**
+   * Encrypts a segment between byte arrays with a reused SegmentCryptor.
+   *
+   * @return the length of the encrypted segment
+   * @throws GeneralSecurityException In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public int encrypt() throws GeneralSecurityException {
+    return segmentCryptor.encrypt(
+        unencryptedData,
+        0,
+        unencryptedData.length,
+        encryptedSegment,
+        0,
+        dataEncryptionParametersList.get(0));
+  }
+
+  /**
+   * Decrypts a segment between byte arrays with a reused SegmentCryptor.
+   *
+   * @return the length of the decrypted data
+   * @throws GeneralSecurityException In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public int decrypt() throws GeneralSecurityException {
+    byte[] segment = encryptedSegments[next++ % SEGMENTS];
+    return segmentCryptor.decrypt(
+        segment, 0, segment.length, decryptedData, 0, dataEncryptionParametersList);
+  }
+
+  /**
+   * Decrypts a segment between direct buffers with a reused SegmentCryptor.
+   *
+   * @return the length of the decrypted data
+   * @throws GeneralSecurityException In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public int decryptDirect() throws GeneralSecurityException {
+    ByteBuffer segment = encryptedBuffers[next++ % SEGMENTS];
+    segment.rewind();
+    decryptedBuffer.clear();
+    return segmentCryptor.decrypt(segment, decryptedBuffer, dataEncryptionParametersList);
+  }
+
+  /**
+   * Verifies the MAC of a segment in a direct buffer without decrypting it.
+   *
+   * @return whether the segment is authentic
+   * @throws GeneralSecurityException In case the segment can't be verified.
+   */
+  @Benchmark
+  public boolean verify() throws GeneralSecurityException {
+    return segmentCryptor.verify(
+        encryptedBuffers[next++ % SEGMENTS], dataEncryptionParametersList);
+  }
+
+  /**
+   * Decrypts a segment with the Segment API, which creates a new cipher and copies the data for
+   * every segment.
+   *
+   * @return the decrypted segment
+   * @throws GeneralSecurityException In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public Segment decryptWithSegment() throws GeneralSecurityException {
+    return Segment.create(encryptedSegments[next++ % SEGMENTS], dataEncryptionParametersList);
+  }
+
+  /**
+   * Encrypts a segment with a new JDK cipher and a nonce from a strong SecureRandom looked up for
+   * the segment, as a baseline for the reused SegmentCryptor.
+   *
+   * @return the length of the encrypted segment
+   * @throws GeneralSecurityException In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public int encryptWithNewCipher() throws GeneralSecurityException {
+    byte[] nonce = new byte[NONCE_SIZE];
+    SecureRandom.getInstanceStrong().nextBytes(nonce);
+    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+    cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(nonce));
+    return cipher.doFinal(
+        unencryptedData, 0, unencryptedData.length, encryptedSegment, NONCE_SIZE);
+  }
+}
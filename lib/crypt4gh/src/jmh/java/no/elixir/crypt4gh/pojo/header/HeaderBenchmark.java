@@ -0,0 +1,120 @@
+package no.elixir.crypt4gh.pojo.header;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing headers with 1, 10 and 100 recipient packets. The reader's packet is the last
+ * one in the header, so decrypting the header has to try (and fail on) all the other packets first.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HeaderBenchmark {
+
+  /** The number of header packets, one for each recipient */
+  @Param({"1", "10", "100"})
+  private int recipients;
+
+  private byte[] serializedHeader;
+  private PrivateKey readerPrivateKey;
+
+  /**
+   * Creates a header with a packet for each recipient.
+   *
+   * @throws IOException In case the header can't be serialized.
+   * @throws GeneralSecurityException In case the keys can't be generated or the packets can't be
+   *     encrypted.
+   */
+  @Setup
+  public void setup() throws IOException, GeneralSecurityException {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    for (int i = 0; i < recipients; i++) {
+      KeyPair readerKeyPair = keyUtils.generateKeyPair();
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEncryptionParameters, writerKeyPair.getPrivate(), readerKeyPair.getPublic()));
+      readerPrivateKey = readerKeyPair.getPrivate();
+    }
+    serializedHeader = new Header(headerPackets).serialize();
+  }
+
+  /**
+   * Reads the unencrypted framing of the header only.
+   *
+   * @return the header descriptor
+   * @throws IOException In case the header can't be read.
+   * @throws GeneralSecurityException In case the header is malformed.
+   */
+  @Benchmark
+  public HeaderDescriptor readDescriptor() throws IOException, GeneralSecurityException {
+    return HeaderDescriptor.read(new ByteArrayInputStream(serializedHeader));
+  }
+
+  /**
+   * Parses the header and decrypts its packets, with the shared keys cached from earlier
+   * invocations.
+   *
+   * @return the Data Encryption Parameters
+   * @throws IOException In case the header can't be read.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  @Benchmark
+  public Collection<DataEncryptionParameters> decrypt()
+      throws IOException, GeneralSecurityException {
+    return new Header(new ByteArrayInputStream(serializedHeader), readerPrivateKey)
+        .getDataEncryptionParametersList();
+  }
+
+  /**
+   * Parses the header and decrypts its packets, deriving all the shared keys from scratch.
+   *
+   * @param coldKeys clears the key caches before each invocation
+   * @return the Data Encryption Parameters
+   * @throws IOException In case the header can't be read.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  @Benchmark
+  public Collection<DataEncryptionParameters> decryptWithColdKeys(ColdKeys coldKeys)
+      throws IOException, GeneralSecurityException {
+    return decrypt();
+  }
+
+  /** Clears the key caches in KeyUtils before each invocation of a benchmark. */
+  @State(Scope.Thread)
+  public static class ColdKeys {
+
+    /** Clears the key caches. */
+    @Setup(Level.Invocation)
+    public void clearKeyCaches() {
+      KeyUtils.getInstance().clearKeyCaches();
+    }
+  }
+}
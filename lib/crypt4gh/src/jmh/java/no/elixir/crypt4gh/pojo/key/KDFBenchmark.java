@@ -0,0 +1,68 @@
+package no.elixir.crypt4gh.pojo.key;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the Key Derivation Functions used to unlock password-protected Crypt4GH private keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KDFBenchmark {
+
+  /** The number of rounds used for bcrypt */
+  private static final int BCRYPT_ROUNDS = 16;
+
+  /** The number of iterations used for PBKDF2 */
+  private static final int PBKDF2_ROUNDS = 20000;
+
+  private final char[] password = "password".toCharArray();
+  private final byte[] salt = new byte[] {1, 2, 3, 4, 1, 2, 3, 4, 1, 2, 3, 4, 1, 2, 3, 4};
+
+  /**
+   * Derives a key with scrypt (N = 2^14, r = 8, p = 1), as used for the keys written by this
+   * library.
+   *
+   * @return the derived key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public byte[] scrypt() throws GeneralSecurityException {
+    return KDF.SCRYPT.derive(0, password, salt);
+  }
+
+  /**
+   * Derives a key with bcrypt.
+   *
+   * @return the derived key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public byte[] bcrypt() throws GeneralSecurityException {
+    return KDF.BCRYPT.derive(BCRYPT_ROUNDS, password, salt);
+  }
+
+  /**
+   * Derives a key with PBKDF2-HMAC-SHA256.
+   *
+   * @return the derived key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public byte[] pbkdf2() throws GeneralSecurityException {
+    return KDF.PBKDF2_HMAC_SHA256.derive(PBKDF2_ROUNDS, password, salt);
+  }
+}
@@ -0,0 +1,148 @@
+package no.elixir.crypt4gh.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks encrypting and decrypting whole payloads of several sizes through Crypt4GHOutputStream
+ * and Crypt4GHInputStream, in memory. Each operation includes creating or parsing the header, so
+ * the small payloads mostly measure the per-stream overhead and the large ones the throughput of
+ * the segment processing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamBenchmark {
+
+  /** The size of the plaintext payload, in bytes */
+  @Param({"1024", "65536", "1048576", "67108864"})
+  private int payloadSize;
+
+  private KeyPair writerKeyPair;
+  private KeyPair readerKeyPair;
+  private byte[] unencryptedData;
+  private byte[] encryptedData;
+  private byte[] buffer;
+
+  /**
+   * Generates the keys and the payload, and encrypts the payload to decrypt.
+   *
+   * @throws IOException In case the payload can't be encrypted.
+   * @throws GeneralSecurityException In case the keys can't be generated.
+   */
+  @Setup
+  public void setup() throws IOException, GeneralSecurityException {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    writerKeyPair = keyUtils.generateKeyPair();
+    readerKeyPair = keyUtils.generateKeyPair();
+    unencryptedData = new byte[payloadSize];
+    new Random(1).nextBytes(unencryptedData);
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            encrypted, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    encryptedData = encrypted.toByteArray();
+    buffer = new byte[64 * 1024];
+  }
+
+  /**
+   * Encrypts the payload with a single write to a Crypt4GHOutputStream.
+   *
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be created.
+   */
+  @Benchmark
+  public void encrypt() throws IOException, GeneralSecurityException {
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            OutputStream.nullOutputStream(),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+  }
+
+  /**
+   * Decrypts the payload by reading a Crypt4GHInputStream into a 64 KiB buffer.
+   *
+   * @return the number of bytes decrypted
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  @Benchmark
+  public long decrypt() throws IOException, GeneralSecurityException {
+    long total = 0;
+    try (InputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      int read;
+      while ((read = crypt4GHInputStream.read(buffer)) != -1) {
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Decrypts the payload by draining a Crypt4GHInputStream with transferTo, which takes the bulk
+   * read path.
+   *
+   * @return the number of bytes decrypted
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  @Benchmark
+  public long decryptTransferTo() throws IOException, GeneralSecurityException {
+    try (InputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      return crypt4GHInputStream.transferTo(OutputStream.nullOutputStream());
+    }
+  }
+
+  /**
+   * Decrypts the payload by reading a Crypt4GHInputStream one byte at a time, as a baseline for the
+   * bulk read paths.
+   *
+   * @return the sum of the bytes decrypted
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  @Benchmark
+  public long decryptByteByByte() throws IOException, GeneralSecurityException {
+    long checksum = 0;
+    try (InputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      int b;
+      while ((b = crypt4GHInputStream.read()) != -1) {
+        checksum += b;
+      }
+    }
+    return checksum;
+  }
+}
@@ -0,0 +1,116 @@
+package no.elixir.crypt4gh.util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the X25519 key derivations in KeyUtils, both served from the key caches and derived
+ * from scratch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KeyUtilsBenchmark {
+
+  private final KeyUtils keyUtils = KeyUtils.getInstance();
+  private KeyPair writerKeyPair;
+  private KeyPair readerKeyPair;
+
+  /**
+   * Generates the writer and reader key pairs.
+   *
+   * @throws GeneralSecurityException In case the keys can't be generated.
+   */
+  @Setup
+  public void setup() throws GeneralSecurityException {
+    writerKeyPair = keyUtils.generateKeyPair();
+    readerKeyPair = keyUtils.generateKeyPair();
+  }
+
+  /**
+   * Derives the writer's shared key, as done for every header packet written.
+   *
+   * @return the shared key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public SecretKey writerSharedKey() throws GeneralSecurityException {
+    return keyUtils.generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+  }
+
+  /**
+   * Derives the reader's shared key, as done for every header packet read.
+   *
+   * @return the shared key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public SecretKey readerSharedKey() throws GeneralSecurityException {
+    return keyUtils.generateReaderSharedKey(readerKeyPair.getPrivate(), writerKeyPair.getPublic());
+  }
+
+  /**
+   * Derives the writer's shared key from scratch.
+   *
+   * @param coldKeys clears the key caches before each invocation
+   * @return the shared key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public SecretKey writerSharedKeyWithColdKeys(ColdKeys coldKeys) throws GeneralSecurityException {
+    return writerSharedKey();
+  }
+
+  /**
+   * Derives the reader's shared key from scratch.
+   *
+   * @param coldKeys clears the key caches before each invocation
+   * @return the shared key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public SecretKey readerSharedKeyWithColdKeys(ColdKeys coldKeys) throws GeneralSecurityException {
+    return readerSharedKey();
+  }
+
+  /**
+   * Derives the public key from a private key from scratch.
+   *
+   * @param coldKeys clears the key caches before each invocation
+   * @return the public key
+   * @throws GeneralSecurityException In case the key can't be derived.
+   */
+  @Benchmark
+  public PublicKey derivePublicKeyWithColdKeys(ColdKeys coldKeys)
+      throws GeneralSecurityException {
+    return keyUtils.derivePublicKey(readerKeyPair.getPrivate());
+  }
+
+  /** Clears the key caches in KeyUtils before each invocation of a benchmark. */
+  @State(Scope.Thread)
+  public static class ColdKeys {
+
+    /** Clears the key caches. */
+    @Setup(Level.Invocation)
+    public void clearKeyCaches() {
+      KeyUtils.getInstance().clearKeyCaches();
+    }
+  }
+}
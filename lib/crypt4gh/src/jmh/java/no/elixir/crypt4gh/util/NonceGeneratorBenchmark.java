@@ -0,0 +1,66 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.NONCE_SIZE;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the generation of segment nonces with a reused NonceGenerator, against looking up
+ * {@code SecureRandom.getInstanceStrong()} for every nonce, as segments used to be encrypted.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NonceGeneratorBenchmark {
+
+  private NonceGenerator nonceGenerator;
+  private final byte[] nonce = new byte[NONCE_SIZE];
+
+  /**
+   * Creates the NonceGenerator.
+   *
+   * @throws GeneralSecurityException In case the DRBG can't be instantiated.
+   */
+  @Setup
+  public void setup() throws GeneralSecurityException {
+    nonceGenerator = new NonceGenerator();
+  }
+
+  /**
+   * Generates a nonce with a reused NonceGenerator.
+   *
+   * @return the nonce
+   */
+  @Benchmark
+  public byte[] nextNonce() {
+    nonceGenerator.nextNonce(nonce);
+    return nonce;
+  }
+
+  /**
+   * Generates a nonce with a strong SecureRandom looked up for the nonce.
+   *
+   * @return the nonce
+   * @throws GeneralSecurityException In case no strong SecureRandom is available.
+   */
+  @Benchmark
+  public byte[] strongSecureRandom() throws GeneralSecurityException {
+    SecureRandom.getInstanceStrong().nextBytes(nonce);
+    return nonce;
+  }
+}
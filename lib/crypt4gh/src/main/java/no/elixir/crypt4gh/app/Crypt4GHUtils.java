@@ -1,19 +1,28 @@
 package no.elixir.crypt4gh.app;
 
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import no.elixir.crypt4gh.pojo.key.Format;
-import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
-import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHFileCryptor;
 import no.elixir.crypt4gh.util.KeyUtils;
-import org.apache.commons.io.IOUtils;
 
 /** Encryption/decryption utility class, not a public API. */
 class Crypt4GHUtils {
@@ -31,6 +40,8 @@ class Crypt4GHUtils {
 
   private KeyUtils keyUtils = KeyUtils.getInstance();
   private ConsoleUtils consoleUtils = ConsoleUtils.getInstance();
+  private Crypt4GHFileCryptor fileCryptor =
+      new Crypt4GHFileCryptor(Runtime.getRuntime().availableProcessors());
 
   /** The required minimum length for passwords protecting the private key file */
   private int minPwdLength = 8;
@@ -105,30 +116,16 @@ class Crypt4GHUtils {
             .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
       return;
     }
-    PrivateKey privateKey = null;
-    try {
-      privateKey = readPrivateKey(privateKeyFilePath);
-    } catch (java.nio.file.NoSuchFileException missingFileEx) {
-      throw new IllegalArgumentException(
-          "ERROR: Private key file not found: " + privateKeyFilePath);
-    } catch (javax.crypto.AEADBadTagException badTagEx) {
-      throw new IllegalArgumentException(
-          "ERROR: Unable to decrypt private key file. The password is probably wrong!");
+    PrivateKey privateKey = unlockPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = unlockPublicKey(publicKeyFilePath);
+    if (!dataInFile.exists() || dataInFile.isDirectory()) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
     }
-    PublicKey publicKey = null;
     try {
-      publicKey = keyUtils.readPublicKey(new File(publicKeyFilePath));
-    } catch (java.nio.file.NoSuchFileException missingFileEx) {
-      throw new IllegalArgumentException("ERROR: Public key file not found: " + publicKeyFilePath);
-    }
-    try (InputStream inputStream = new FileInputStream(dataInFile);
-        OutputStream outputStream = new FileOutputStream(dataOutFile);
-        Crypt4GHOutputStream crypt4GHOutputStream =
-            new Crypt4GHOutputStream(outputStream, privateKey, publicKey)) {
       System.out.println("Encryption initialized...");
-      IOUtils.copyLarge(inputStream, crypt4GHOutputStream);
+      fileCryptor.encrypt(dataInFile.toPath(), dataOutFile.toPath(), privateKey, publicKey);
       System.out.println("Done: " + dataOutFile.getAbsolutePath());
-    } catch (FileNotFoundException fileNotFoundEx) {
+    } catch (java.nio.file.NoSuchFileException fileNotFoundEx) {
       throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
     } catch (GeneralSecurityException e) {
       System.err.println(e.getMessage());
@@ -155,9 +152,336 @@ class Crypt4GHUtils {
             .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
       return;
     }
-    PrivateKey privateKey = null;
+    PrivateKey privateKey = unlockPrivateKey(privateKeyFilePath);
+    if (!dataInFile.exists() || dataInFile.isDirectory()) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    }
+    System.out.println("Decryption initialized...");
+    try {
+      fileCryptor.decrypt(dataInFile.toPath(), dataOutFile.toPath(), privateKey);
+      System.out.println("Done: " + dataOutFile.getAbsolutePath());
+    } catch (java.nio.file.NoSuchFileException fileNotFoundEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      dataOutFile.delete();
+    }
+  }
+
+  /**
+   * Verifies the integrity of the specified file in Crypt4GH format by checking the MAC of every
+   * segment, without decrypting the file. The result is printed to the console.
+   *
+   * @param dataFilePath the path to the file that should be verified
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @return {@code true} if all the segments of the file passed verification
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the private key file cannot be found or cannot be decrypted
+   */
+  boolean verifyFile(String dataFilePath, String privateKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    File dataInFile = new File(dataFilePath);
+    PrivateKey privateKey = unlockPrivateKey(privateKeyFilePath);
+    if (!dataInFile.exists() || dataInFile.isDirectory()) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    }
+    System.out.println("Verification initialized...");
+    Crypt4GHFileCryptor.VerificationResult result;
+    try {
+      result = fileCryptor.verify(dataInFile.toPath(), privateKey);
+    } catch (java.nio.file.NoSuchFileException fileNotFoundEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      return false;
+    }
+    if (!result.isValid()) {
+      System.err.println(
+          "ERROR: Segment "
+              + result.getFirstBadSegment()
+              + " at offset "
+              + result.getFirstBadSegmentOffset()
+              + " failed verification: "
+              + dataInFile.getAbsolutePath());
+      return false;
+    }
+    System.out.println(
+        "OK: " + result.getSegments() + " segments verified: " + dataInFile.getAbsolutePath());
+    return true;
+  }
+
+  /**
+   * Encrypts several files (or all the files in directories) in Crypt4GH format, saving each result
+   * to a new file named after the original with the suffix ".enc". The keys are read only once, and
+   * the files are processed concurrently on a pool of worker threads. Files in directories that
+   * already have the suffix ".enc" are skipped, and files whose output file already exists fail
+   * instead of being overwritten.
+   *
+   * @param dataFilePaths the paths to the files or directories that should be encrypted
+   * @param privateKeyFilePath the path to the sender's private key file
+   * @param publicKeyFilePath the path to the recipient's public key file
+   * @param threads the number of files to process at the same time
+   * @return {@code true} if all the files were encrypted
+   * @throws GeneralSecurityException In case the keys are malformed
+   * @throws IOException if an I/O error occurs while reading the keys or listing the files
+   * @throws IllegalArgumentException if the public or private key file or one of the input paths
+   *     cannot be found, or if the private key cannot be decrypted
+   */
+  boolean encryptFiles(
+      String[] dataFilePaths, String privateKeyFilePath, String publicKeyFilePath, int threads)
+      throws IOException, GeneralSecurityException {
+    PrivateKey privateKey = unlockPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = unlockPublicKey(publicKeyFilePath);
+    List<File> dataInFiles = listInputFiles(dataFilePaths, ".enc");
+    Crypt4GHFileCryptor batchCryptor = newBatchCryptor(threads);
+    return processFiles(
+        "Encryption",
+        dataInFiles,
+        threads,
+        dataInFile -> {
+          File dataOutFile = new File(dataInFile.getPath() + ".enc");
+          createOutputFile(dataOutFile);
+          try {
+            batchCryptor.encrypt(dataInFile.toPath(), dataOutFile.toPath(), privateKey, publicKey);
+          } catch (Exception | Error e) {
+            dataOutFile.delete();
+            throw e;
+          }
+          return dataOutFile;
+        });
+  }
+
+  /**
+   * Decrypts several files (or all the files in directories) in Crypt4GH format, saving each result
+   * to a new file named after the original with the suffix ".dec". The private key is read only
+   * once, and the files are processed concurrently on a pool of worker threads. Files in
+   * directories that already have the suffix ".dec" are skipped, and files whose output file
+   * already exists fail instead of being overwritten.
+   *
+   * @param dataFilePaths the paths to the files or directories that should be decrypted
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param threads the number of files to process at the same time
+   * @return {@code true} if all the files were decrypted
+   * @throws GeneralSecurityException In case the private key is malformed
+   * @throws IOException if an I/O error occurs while reading the key or listing the files
+   * @throws IllegalArgumentException if the private key file or one of the input paths cannot be
+   *     found, or if the private key cannot be decrypted
+   */
+  boolean decryptFiles(String[] dataFilePaths, String privateKeyFilePath, int threads)
+      throws IOException, GeneralSecurityException {
+    PrivateKey privateKey = unlockPrivateKey(privateKeyFilePath);
+    List<File> dataInFiles = listInputFiles(dataFilePaths, ".dec");
+    Crypt4GHFileCryptor batchCryptor = newBatchCryptor(threads);
+    return processFiles(
+        "Decryption",
+        dataInFiles,
+        threads,
+        dataInFile -> {
+          File dataOutFile = new File(dataInFile.getPath() + ".dec");
+          createOutputFile(dataOutFile);
+          try {
+            batchCryptor.decrypt(dataInFile.toPath(), dataOutFile.toPath(), privateKey);
+          } catch (Exception | Error e) {
+            dataOutFile.delete();
+            throw e;
+          }
+          return dataOutFile;
+        });
+  }
+
+  /**
+   * Verifies the integrity of several files (or all the files in directories) in Crypt4GH format
+   * without decrypting them. The private key is read only once, and the files are processed
+   * concurrently on a pool of worker threads.
+   *
+   * @param dataFilePaths the paths to the files or directories that should be verified
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param threads the number of files to process at the same time
+   * @return {@code true} if all the files passed verification
+   * @throws GeneralSecurityException In case the private key is malformed
+   * @throws IOException if an I/O error occurs while reading the key or listing the files
+   * @throws IllegalArgumentException if the private key file or one of the input paths cannot be
+   *     found, or if the private key cannot be decrypted
+   */
+  boolean verifyFiles(String[] dataFilePaths, String privateKeyFilePath, int threads)
+      throws IOException, GeneralSecurityException {
+    PrivateKey privateKey = unlockPrivateKey(privateKeyFilePath);
+    List<File> dataInFiles = listInputFiles(dataFilePaths, null);
+    Crypt4GHFileCryptor batchCryptor = newBatchCryptor(threads);
+    return processFiles(
+        "Verification",
+        dataInFiles,
+        threads,
+        dataInFile -> {
+          Crypt4GHFileCryptor.VerificationResult result =
+              batchCryptor.verify(dataInFile.toPath(), privateKey);
+          if (!result.isValid()) {
+            throw new GeneralSecurityException(
+                "Segment "
+                    + result.getFirstBadSegment()
+                    + " at offset "
+                    + result.getFirstBadSegmentOffset()
+                    + " failed verification");
+          }
+          return dataInFile;
+        });
+  }
+
+  /**
+   * Processes files concurrently on a pool of worker threads, printing the throughput for each
+   * file as it completes, and a summary with the aggregate throughput and the failed files at the
+   * end.
+   *
+   * @param operation the name of the operation, used in the messages
+   * @param dataInFiles the files to process
+   * @param threads the number of files to process at the same time
+   * @param task processes a single file
+   * @return {@code true} if all the files were processed successfully
+   */
+  private boolean processFiles(
+      String operation, List<File> dataInFiles, int threads, FileTask task) {
+    System.out.println(operation + " of " + dataInFiles.size() + " files initialized...");
+    Map<File, String> failures = new ConcurrentSkipListMap<>();
+    AtomicLong totalBytes = new AtomicLong();
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (File dataInFile : dataInFiles) {
+        executor.execute(
+            () -> {
+              long fileStart = System.nanoTime();
+              try {
+                File result = task.process(dataInFile);
+                long bytes = dataInFile.length();
+                totalBytes.addAndGet(bytes);
+                System.out.println(
+                    "Done: "
+                        + result.getAbsolutePath()
+                        + " ("
+                        + formatThroughput(bytes, System.nanoTime() - fileStart)
+                        + ")");
+              } catch (Exception | Error e) {
+                failures.put(dataInFile, String.valueOf(e.getMessage()));
+                System.err.println(
+                    "ERROR: " + dataInFile.getAbsolutePath() + ": " + e.getMessage());
+              }
+            });
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        // keep waiting for the remaining files
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+      System.err.println("ERROR: " + operation + " interrupted");
+      return false;
+    }
+    int succeeded = dataInFiles.size() - failures.size();
+    System.out.println(
+        operation
+            + " finished: "
+            + succeeded
+            + " of "
+            + dataInFiles.size()
+            + " files succeeded ("
+            + formatThroughput(totalBytes.get(), System.nanoTime() - start)
+            + ")");
+    if (!failures.isEmpty()) {
+      System.err.println("ERROR: " + failures.size() + " files failed:");
+      failures.forEach(
+          (dataInFile, message) ->
+              System.err.println("  " + dataInFile.getAbsolutePath() + ": " + message));
+    }
+    return failures.isEmpty();
+  }
+
+  /**
+   * Lists the files to process from a list of files and directories. Directories are searched
+   * recursively, and the files found are sorted by path.
+   *
+   * @param dataFilePaths the paths to files and directories
+   * @param outputSuffix the suffix of output files to skip in directories (or {@code null})
+   * @return the files to process
+   * @throws IOException if a directory can't be listed
+   * @throws IllegalArgumentException if one of the paths cannot be found
+   */
+  private List<File> listInputFiles(String[] dataFilePaths, String outputSuffix)
+      throws IOException {
+    List<File> dataInFiles = new ArrayList<>();
+    for (String dataFilePath : dataFilePaths) {
+      File dataInFile = new File(dataFilePath);
+      if (dataInFile.isDirectory()) {
+        try (Stream<Path> paths = Files.walk(dataInFile.toPath())) {
+          paths
+              .filter(Files::isRegularFile)
+              .filter(path -> outputSuffix == null || !path.toString().endsWith(outputSuffix))
+              .sorted()
+              .map(Path::toFile)
+              .forEach(dataInFiles::add);
+        }
+      } else if (dataInFile.exists()) {
+        dataInFiles.add(dataInFile);
+      } else {
+        throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+      }
+    }
+    return dataInFiles;
+  }
+
+  /**
+   * Creates a file cryptor for batch processing, sharing the available processors between the
+   * files processed at the same time.
+   *
+   * @param threads the number of files to process at the same time
+   * @return a file cryptor
+   */
+  private Crypt4GHFileCryptor newBatchCryptor(int threads) {
+    return new Crypt4GHFileCryptor(
+        Math.max(1, Runtime.getRuntime().availableProcessors() / threads));
+  }
+
+  /**
+   * Creates an empty output file, failing if it already exists.
+   *
+   * @param dataOutFile the output file
+   * @throws IOException if the file already exists or can't be created
+   */
+  private static void createOutputFile(File dataOutFile) throws IOException {
     try {
-      privateKey = readPrivateKey(privateKeyFilePath);
+      Files.createFile(dataOutFile.toPath());
+    } catch (FileAlreadyExistsException e) {
+      throw new FileAlreadyExistsException(dataOutFile.getAbsolutePath() + " already exists");
+    }
+  }
+
+  /**
+   * Formats the number of bytes processed and the throughput for the console.
+   *
+   * @param bytes the number of bytes processed
+   * @param nanos the time it took, in nanoseconds
+   * @return the formatted throughput
+   */
+  private static String formatThroughput(long bytes, long nanos) {
+    double seconds = Math.max(nanos, 1) / 1e9;
+    return String.format(
+        "%d bytes in %.2f s, %.1f MB/s", bytes, seconds, bytes / seconds / (1024 * 1024));
+  }
+
+  /**
+   * Reads the private key from a file, prompting for the password if needed.
+   *
+   * @param privateKeyFilePath path to the private key file
+   * @return private key
+   * @throws IOException If the file can't be read
+   * @throws GeneralSecurityException If the key can't be constructed from the given file
+   * @throws IllegalArgumentException if the file cannot be found or the key cannot be decrypted
+   */
+  private PrivateKey unlockPrivateKey(String privateKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    try {
+      return readPrivateKey(privateKeyFilePath);
     } catch (java.nio.file.NoSuchFileException missingFileEx) {
       throw new IllegalArgumentException(
           "ERROR: Private key file not found: " + privateKeyFilePath);
@@ -165,18 +489,23 @@ class Crypt4GHUtils {
       throw new IllegalArgumentException(
           "ERROR: Unable to decrypt private key file. The password is probably wrong!");
     }
-    System.out.println("Decryption initialized...");
-    try (FileInputStream inputStream = new FileInputStream(dataInFile);
-        OutputStream outputStream = new FileOutputStream(dataOutFile);
-        Crypt4GHInputStream crypt4GHInputStream =
-            new Crypt4GHInputStream(inputStream, privateKey)) {
-      IOUtils.copyLarge(crypt4GHInputStream, outputStream);
-      System.out.println("Done: " + dataOutFile.getAbsolutePath());
-    } catch (FileNotFoundException fileNotFoundEx) {
-      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
-    } catch (GeneralSecurityException e) {
-      System.err.println(e.getMessage());
-      dataOutFile.delete();
+  }
+
+  /**
+   * Reads the public key from a file.
+   *
+   * @param publicKeyFilePath path to the public key file
+   * @return public key
+   * @throws IOException If the file can't be read
+   * @throws GeneralSecurityException If the key can't be constructed from the given file
+   * @throws IllegalArgumentException if the file cannot be found
+   */
+  private PublicKey unlockPublicKey(String publicKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    try {
+      return keyUtils.readPublicKey(new File(publicKeyFilePath));
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Public key file not found: " + publicKeyFilePath);
     }
   }
 
@@ -199,4 +528,18 @@ class Crypt4GHUtils {
     }
     return privateKey;
   }
+
+  /** Processes a single file in batch mode. */
+  @FunctionalInterface
+  private interface FileTask {
+
+    /**
+     * Processes a file.
+     *
+     * @param dataInFile the file to process
+     * @return the file the result was written to (or the input file if there is none)
+     * @throws Exception In case the file can't be processed.
+     */
+    File process(File dataInFile) throws Exception;
+  }
 }
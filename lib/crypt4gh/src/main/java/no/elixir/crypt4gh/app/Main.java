@@ -1,5 +1,6 @@
 package no.elixir.crypt4gh.app;
 
+import java.io.File;
 import no.elixir.crypt4gh.pojo.key.Format;
 import org.apache.commons.cli.*;
 
@@ -15,6 +16,12 @@ public class Main {
   /** Command-line option for decrypting a file */
   public static final String DECRYPT = "d";
 
+  /** Command-line option for verifying the integrity of an encrypted file */
+  public static final String VERIFY = "vf";
+
+  /** Command-line option for specifying the number of files to process at the same time */
+  public static final String THREADS = "t";
+
   /** Command-line option for specifying the key format (OpenSSL or Crypt4GH) */
   public static final String KEY_FORMAT = "kf";
 
@@ -46,10 +53,31 @@ public class Main {
     Option generateKeyOption =
         new Option(GENERATE, "generate", true, "generate key pair (specify desired key name)");
     mainOptions.addOption(generateKeyOption);
-    mainOptions.addOption(
-        new Option(ENCRYPT, "encrypt", true, "encrypt the file (specify file to encrypt)"));
-    mainOptions.addOption(
-        new Option(DECRYPT, "decrypt", true, "decrypt the file (specify file to decrypt)"));
+    Option encryptOption =
+        new Option(
+            ENCRYPT,
+            "encrypt",
+            true,
+            "encrypt the files (specify files or directories to encrypt)");
+    encryptOption.setArgs(Option.UNLIMITED_VALUES);
+    mainOptions.addOption(encryptOption);
+    Option decryptOption =
+        new Option(
+            DECRYPT,
+            "decrypt",
+            true,
+            "decrypt the files (specify files or directories to decrypt)");
+    decryptOption.setArgs(Option.UNLIMITED_VALUES);
+    mainOptions.addOption(decryptOption);
+    Option verifyOption =
+        new Option(
+            VERIFY,
+            "verify",
+            true,
+            "verify the integrity of the files without decrypting them (specify files or"
+                + " directories to verify)");
+    verifyOption.setArgs(Option.UNLIMITED_VALUES);
+    mainOptions.addOption(verifyOption);
     mainOptions.addOption(new Option(VERSION, "version", false, "print application's version"));
     mainOptions.addOption(new Option(HELP, "help", false, "print this message"));
     options.addOptionGroup(mainOptions);
@@ -70,6 +98,13 @@ public class Main {
         new Option(PUBLIC_KEY, "pubkey", true, "public key to use (specify key file)"));
     options.addOption(
         new Option(SECRET_KEY, "seckey", true, "secret key to use (specify key file)"));
+    options.addOption(
+        new Option(
+            THREADS,
+            "threads",
+            true,
+            "number of files to process at the same time when processing several files"
+                + " (defaults to the number of processors)"));
 
     CommandLineParser parser = new DefaultParser();
     Crypt4GHUtils crypt4GHUtils = Crypt4GHUtils.getInstance();
@@ -94,6 +129,18 @@ public class Main {
         crypt4GHUtils.generateX25519KeyPair(
             line.getOptionValue(GENERATE), keyformat, line.getOptionValue(KEY_PASSWORD));
       } else {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (line.hasOption(THREADS)) {
+          try {
+            threads = Integer.parseInt(line.getOptionValue(THREADS));
+          } catch (NumberFormatException e) {
+            threads = 0;
+          }
+          if (threads < 1) {
+            System.err.println("Number of threads must be a positive integer");
+            return;
+          }
+        }
         if (line.hasOption(ENCRYPT)) {
           if (!line.hasOption(PUBLIC_KEY)) {
             System.err.println("Missing argument for option: " + PUBLIC_KEY);
@@ -103,16 +150,43 @@ public class Main {
             System.err.println("Missing argument for option: " + SECRET_KEY);
             return;
           }
-          crypt4GHUtils.encryptFile(
-              line.getOptionValue(ENCRYPT),
+          String[] dataFilePaths = line.getOptionValues(ENCRYPT);
+          if (isSingleFile(dataFilePaths)) {
+            crypt4GHUtils.encryptFile(
+                dataFilePaths[0], line.getOptionValue(SECRET_KEY), line.getOptionValue(PUBLIC_KEY));
+          } else if (!crypt4GHUtils.encryptFiles(
+              dataFilePaths,
               line.getOptionValue(SECRET_KEY),
-              line.getOptionValue(PUBLIC_KEY));
+              line.getOptionValue(PUBLIC_KEY),
+              threads)) {
+            System.exit(1);
+          }
         } else if (line.hasOption(DECRYPT)) {
           if (!line.hasOption(SECRET_KEY)) {
             System.err.println("Missing argument for option: " + SECRET_KEY);
             return;
           }
-          crypt4GHUtils.decryptFile(line.getOptionValue(DECRYPT), line.getOptionValue(SECRET_KEY));
+          String[] dataFilePaths = line.getOptionValues(DECRYPT);
+          if (isSingleFile(dataFilePaths)) {
+            crypt4GHUtils.decryptFile(dataFilePaths[0], line.getOptionValue(SECRET_KEY));
+          } else if (!crypt4GHUtils.decryptFiles(
+              dataFilePaths, line.getOptionValue(SECRET_KEY), threads)) {
+            System.exit(1);
+          }
+        } else if (line.hasOption(VERIFY)) {
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          String[] dataFilePaths = line.getOptionValues(VERIFY);
+          boolean verified =
+              isSingleFile(dataFilePaths)
+                  ? crypt4GHUtils.verifyFile(dataFilePaths[0], line.getOptionValue(SECRET_KEY))
+                  : crypt4GHUtils.verifyFiles(
+                      dataFilePaths, line.getOptionValue(SECRET_KEY), threads);
+          if (!verified) {
+            System.exit(1);
+          }
         }
       }
     } catch (ParseException exp) {
@@ -122,6 +196,17 @@ public class Main {
     }
   }
 
+  /**
+   * Tells whether the command line names a single file (rather than several files or a directory),
+   * which is processed in the interactive single file mode.
+   *
+   * @param dataFilePaths the files and directories given on the command line
+   * @return {@code true} if a single file was given
+   */
+  private static boolean isSingleFile(String[] dataFilePaths) {
+    return dataFilePaths.length == 1 && !new File(dataFilePaths[0]).isDirectory();
+  }
+
   /**
    * Prints out the version number for this release of Crypt4GH. The version is read from the
    * Manifest file.
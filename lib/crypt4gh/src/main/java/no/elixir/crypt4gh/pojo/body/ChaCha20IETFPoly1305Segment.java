@@ -1,23 +1,17 @@
 package no.elixir.crypt4gh.pojo.body;
 
-import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
 import java.util.Arrays;
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.EncryptableEntity;
 import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
-import org.apache.commons.lang3.ArrayUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
 
 /** Data segment, ChaCha20 encrypted, 65564 bytes long (according to the current spec). */
 @EqualsAndHashCode(callSuper = true)
@@ -79,26 +73,28 @@ public class ChaCha20IETFPoly1305Segment extends Segment implements EncryptableE
    */
   @Override
   public byte[] serialize() throws IOException {
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    byteArrayOutputStream.write(
-        ByteBuffer.allocate(NONCE_SIZE).order(ByteOrder.LITTLE_ENDIAN).put(nonce).array());
-    byteArrayOutputStream.write(
-        ByteBuffer.allocate(encryptedData.length)
-            .order(ByteOrder.LITTLE_ENDIAN)
-            .put(encryptedData)
-            .array());
-    byteArrayOutputStream.write(
-        ByteBuffer.allocate(MAC_SIZE).order(ByteOrder.LITTLE_ENDIAN).put(mac).array());
-    return byteArrayOutputStream.toByteArray();
+    return ByteBuffer.allocate(NONCE_SIZE + encryptedData.length + MAC_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .put(nonce)
+        .put(encryptedData)
+        .put(mac)
+        .array();
   }
 
   /** {@inheritDoc} */
   @Override
   public void encrypt(byte[] unencryptedData, SecretKey sharedKey) throws GeneralSecurityException {
-    SecureRandom.getInstanceStrong().nextBytes(nonce);
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.ENCRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
-    byte[] encryptedPayloadWithMAC = cipher.doFinal(unencryptedData);
+    NonceGenerator.getInstance().nextNonce(nonce);
+    byte[] encryptedPayloadWithMAC = new byte[unencryptedData.length + MAC_SIZE];
+    SegmentCipher.newInstance()
+        .encrypt(
+            sharedKey,
+            nonce,
+            unencryptedData,
+            0,
+            unencryptedData.length,
+            encryptedPayloadWithMAC,
+            0);
     encryptedData =
         Arrays.copyOfRange(encryptedPayloadWithMAC, 0, encryptedPayloadWithMAC.length - MAC_SIZE);
     mac =
@@ -108,11 +104,171 @@ public class ChaCha20IETFPoly1305Segment extends Segment implements EncryptableE
             encryptedPayloadWithMAC.length);
   }
 
+  /**
+   * Encrypts a block of data with a randomly generated nonce and writes the serialized segment
+   * (nonce, encrypted data and MAC) straight into an output array.
+   *
+   * @param unencryptedData an array holding the data to encrypt
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt
+   * @param output the array to write the serialized segment to
+   * @param outputOffset the position in the output array to start writing at
+   * @param sharedKey the data key to encrypt with
+   * @param cipher the segment cipher to encrypt with
+   * @param nonceGenerator the generator to take the nonce from
+   * @return the number of bytes written to the output array
+   * @throws GeneralSecurityException in case of encryption error
+   */
+  static int encrypt(
+      byte[] unencryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      SecretKey sharedKey,
+      SegmentCipher cipher,
+      NonceGenerator nonceGenerator)
+      throws GeneralSecurityException {
+    byte[] nonce = nonceGenerator.nextNonce(NONCE_SIZE);
+    System.arraycopy(nonce, 0, output, outputOffset, NONCE_SIZE);
+    return NONCE_SIZE
+        + cipher.encrypt(
+            sharedKey, nonce, unencryptedData, offset, length, output, outputOffset + NONCE_SIZE);
+  }
+
+  /**
+   * Decrypts a serialized segment (nonce, encrypted data and MAC) straight into an output array.
+   *
+   * @param encryptedData an array holding the serialized encrypted segment
+   * @param offset the position of the segment in the array
+   * @param length the length of the serialized segment (including nonce and MAC)
+   * @param output the array to write the decrypted data to
+   * @param outputOffset the position in the output array to start writing at
+   * @param sharedKey the data key to decrypt with
+   * @param cipher the segment cipher to decrypt with
+   * @return the number of decrypted bytes written to the output array
+   * @throws GeneralSecurityException if the segment is malformed or cannot be decrypted with the
+   *     given key
+   */
+  static int decrypt(
+      byte[] encryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      SecretKey sharedKey,
+      SegmentCipher cipher)
+      throws GeneralSecurityException {
+    if (length < NONCE_SIZE + MAC_SIZE) {
+      throw new GeneralSecurityException("Encrypted segment is too short: " + length);
+    }
+    byte[] nonce = Arrays.copyOfRange(encryptedData, offset, offset + NONCE_SIZE);
+    return cipher.decrypt(
+        sharedKey,
+        nonce,
+        encryptedData,
+        offset + NONCE_SIZE,
+        length - NONCE_SIZE,
+        output,
+        outputOffset);
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer with a randomly generated nonce and writes the
+   * serialized segment (nonce, encrypted data and MAC) into an output buffer. Both buffers may be
+   * heap or direct buffers. The position of the source buffer is advanced to its limit, and the
+   * position of the output buffer is advanced past the serialized segment.
+   *
+   * @param unencryptedData a buffer holding the data to encrypt
+   * @param output the buffer to write the serialized segment to
+   * @param sharedKey the data key to encrypt with
+   * @param cipher the segment cipher to encrypt with
+   * @param nonceGenerator the generator to take the nonce from
+   * @return the number of bytes written to the output buffer
+   * @throws GeneralSecurityException in case of encryption error
+   */
+  static int encrypt(
+      ByteBuffer unencryptedData,
+      ByteBuffer output,
+      SecretKey sharedKey,
+      SegmentCipher cipher,
+      NonceGenerator nonceGenerator)
+      throws GeneralSecurityException {
+    byte[] nonce = nonceGenerator.nextNonce(NONCE_SIZE);
+    output.put(nonce);
+    return NONCE_SIZE + cipher.encrypt(sharedKey, nonce, unencryptedData, output);
+  }
+
+  /**
+   * Decrypts the serialized segment (nonce, encrypted data and MAC) held in the remaining bytes of
+   * a buffer into an output buffer. Both buffers may be heap or direct buffers. On success, the
+   * position of the source buffer is advanced to its limit and the position of the output buffer
+   * is advanced past the decrypted data. On failure, neither buffer is modified.
+   *
+   * @param encryptedData a buffer holding the serialized encrypted segment
+   * @param output the buffer to write the decrypted data to
+   * @param sharedKey the data key to decrypt with
+   * @param cipher the segment cipher to decrypt with
+   * @return the number of decrypted bytes written to the output buffer
+   * @throws GeneralSecurityException if the segment is malformed or cannot be decrypted with the
+   *     given key
+   */
+  static int decrypt(
+      ByteBuffer encryptedData, ByteBuffer output, SecretKey sharedKey, SegmentCipher cipher)
+      throws GeneralSecurityException {
+    int length = encryptedData.remaining();
+    if (length < NONCE_SIZE + MAC_SIZE) {
+      throw new GeneralSecurityException("Encrypted segment is too short: " + length);
+    }
+    byte[] nonce = new byte[NONCE_SIZE];
+    encryptedData.get(encryptedData.position(), nonce);
+    ByteBuffer payload = encryptedData.duplicate();
+    payload.position(encryptedData.position() + NONCE_SIZE);
+    int decryptedLength = cipher.decrypt(sharedKey, nonce, payload, output);
+    encryptedData.position(encryptedData.limit());
+    return decryptedLength;
+  }
+
+  /**
+   * Checks the MAC of the serialized segment (nonce, encrypted data and MAC) held in the remaining
+   * bytes of a buffer, without decrypting the encrypted data. The position of the buffer is not
+   * changed.
+   *
+   * @param encryptedData a buffer holding the serialized encrypted segment
+   * @param sharedKey the data key the segment was encrypted with
+   * @param cipher the segment cipher to verify with
+   * @return {@code true} if the MAC is valid for the given key
+   * @throws GeneralSecurityException if the verification can't be performed
+   */
+  static boolean verify(ByteBuffer encryptedData, SecretKey sharedKey, SegmentCipher cipher)
+      throws GeneralSecurityException {
+    int length = encryptedData.remaining();
+    if (length < NONCE_SIZE + MAC_SIZE) {
+      return false;
+    }
+    int start = encryptedData.position();
+    byte[] nonce = new byte[NONCE_SIZE];
+    encryptedData.get(start, nonce);
+    return cipher.verify(
+        sharedKey, nonce, encryptedData.slice(start + NONCE_SIZE, length - NONCE_SIZE));
+  }
+
   /** {@inheritDoc} */
   @Override
   public byte[] decrypt(SecretKey sharedKey) throws GeneralSecurityException {
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.DECRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
-    return cipher.doFinal(ArrayUtils.addAll(encryptedData, mac));
+    byte[] encryptedPayloadWithMAC = new byte[encryptedData.length + MAC_SIZE];
+    System.arraycopy(encryptedData, 0, encryptedPayloadWithMAC, 0, encryptedData.length);
+    System.arraycopy(mac, 0, encryptedPayloadWithMAC, encryptedData.length, MAC_SIZE);
+    byte[] decryptedData = new byte[encryptedData.length];
+    SegmentCipher.newInstance()
+        .decrypt(
+            sharedKey,
+            nonce,
+            encryptedPayloadWithMAC,
+            0,
+            encryptedPayloadWithMAC.length,
+            decryptedData,
+            0);
+    return decryptedData;
   }
 }
@@ -0,0 +1,252 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.MAC_SIZE;
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.NONCE_SIZE;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Pure-Java {@link SegmentCipher}, implementing ChaCha20 (RFC 8439, section 2.4) and the
+ * ChaCha20-Poly1305 construction (section 2.8) without any JCE provider.
+ *
+ * <p>The key stream is generated {@value #LANES} blocks at a time. The state of the blocks is kept
+ * with one array per state word, holding that word for each of the blocks, so every step of a
+ * quarter round is a loop over the blocks with no dependency between them, which the JIT can
+ * unroll and vectorize. The key stream is then XORed with the data in chunks of {@value #LANES}
+ * blocks.
+ */
+public class JavaSegmentCipher implements SegmentCipher {
+
+  /** The number of ChaCha20 blocks generated at a time */
+  static final int LANES = 8;
+
+  /** The size of a ChaCha20 block, in bytes */
+  private static final int BLOCK_SIZE = 64;
+
+  /** The size of a ChaCha20 key, in bytes */
+  private static final int KEY_SIZE = 32;
+
+  /** Reads and writes little-endian ints in byte arrays */
+  private static final VarHandle INT_LE =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  /** The initial state: constants, key, block counter and nonce */
+  private final int[] state = new int[16];
+
+  /** The working state, one array per state word holding that word for each block */
+  private final int[][] working = new int[16][LANES];
+
+  /** The key stream of the last blocks generated */
+  private final byte[] keyStream = new byte[LANES * BLOCK_SIZE];
+
+  /** The position of the next unused byte in the key stream */
+  private int keyStreamPosition;
+
+  /** Holds data copied out of buffers that are not backed by an array */
+  private final byte[] chunk = new byte[LANES * BLOCK_SIZE];
+
+  /** The one-time Poly1305 key of the current message */
+  private final byte[] polyKey = new byte[Poly1305.KEY_SIZE];
+
+  /** The Poly1305 authenticator */
+  private final Poly1305 poly1305 = new Poly1305();
+
+  /** {@inheritDoc} */
+  @Override
+  public int encrypt(SecretKey key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+      throws GeneralSecurityException {
+    int length = input.remaining();
+    if (output.remaining() < length + MAC_SIZE) {
+      throw new ShortBufferException("Output buffer too small: " + output.remaining());
+    }
+    init(key, nonce);
+    ByteBuffer encrypted = output.slice(output.position(), length);
+    xor(input, output);
+    output.put(poly1305.aeadTag(polyKey, encrypted));
+    Arrays.fill(polyKey, (byte) 0);
+    return length + MAC_SIZE;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int decrypt(SecretKey key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+      throws GeneralSecurityException {
+    int length = input.remaining() - MAC_SIZE;
+    if (length < 0) {
+      throw new AEADBadTagException("Input too short: " + input.remaining());
+    }
+    if (output.remaining() < length) {
+      throw new ShortBufferException("Output buffer too small: " + output.remaining());
+    }
+    if (!verify(key, nonce, input)) {
+      throw new AEADBadTagException("Tag mismatch");
+    }
+    int limit = input.limit();
+    input.limit(limit - MAC_SIZE);
+    xor(input, output);
+    input.limit(limit).position(limit);
+    return length;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean verify(SecretKey key, byte[] nonce, ByteBuffer input)
+      throws GeneralSecurityException {
+    int length = input.remaining() - MAC_SIZE;
+    if (length < 0) {
+      return false;
+    }
+    init(key, nonce);
+    byte[] expectedMac = poly1305.aeadTag(polyKey, input.slice(input.position(), length));
+    Arrays.fill(polyKey, (byte) 0);
+    byte[] mac = new byte[MAC_SIZE];
+    input.get(input.position() + length, mac);
+    return MessageDigest.isEqual(expectedMac, mac);
+  }
+
+  /**
+   * Sets up the state for a new message, and derives its one-time Poly1305 key from the first
+   * block. The key stream of the message starts with the second block.
+   *
+   * @param key the 256-bit key
+   * @param nonce the 96-bit nonce
+   * @throws InvalidKeyException if the key is not 256 bits
+   * @throws InvalidAlgorithmParameterException if the nonce is not 96 bits
+   */
+  private void init(SecretKey key, byte[] nonce)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    byte[] keyBytes = key.getEncoded();
+    if (keyBytes == null || keyBytes.length != KEY_SIZE) {
+      throw new InvalidKeyException("ChaCha20 key must be " + KEY_SIZE + " bytes");
+    }
+    if (nonce.length != NONCE_SIZE) {
+      throw new InvalidAlgorithmParameterException("Nonce must be " + NONCE_SIZE + " bytes");
+    }
+    setState(keyBytes, nonce, 0);
+    Arrays.fill(keyBytes, (byte) 0);
+    generateKeyStream();
+    System.arraycopy(keyStream, 0, polyKey, 0, Poly1305.KEY_SIZE);
+    keyStreamPosition = BLOCK_SIZE;
+  }
+
+  /**
+   * Sets the initial state: the constants, the key, the block counter and the nonce.
+   *
+   * @param key the 32 byte key
+   * @param nonce the 12 byte nonce
+   * @param counter the counter of the first block
+   */
+  void setState(byte[] key, byte[] nonce, int counter) {
+    state[0] = 0x61707865;
+    state[1] = 0x3320646e;
+    state[2] = 0x79622d32;
+    state[3] = 0x6b206574;
+    for (int i = 0; i < 8; i++) {
+      state[4 + i] = (int) INT_LE.get(key, 4 * i);
+    }
+    state[12] = counter;
+    for (int i = 0; i < 3; i++) {
+      state[13 + i] = (int) INT_LE.get(nonce, 4 * i);
+    }
+  }
+
+  /**
+   * Generates the key stream of the next {@value #LANES} blocks, and advances the block counter.
+   *
+   * @return the key stream
+   */
+  byte[] generateKeyStream() {
+    int[][] x = working;
+    for (int word = 0; word < 16; word++) {
+      Arrays.fill(x[word], state[word]);
+    }
+    for (int lane = 0; lane < LANES; lane++) {
+      x[12][lane] += lane;
+    }
+    for (int round = 0; round < 10; round++) {
+      quarterRound(x[0], x[4], x[8], x[12]);
+      quarterRound(x[1], x[5], x[9], x[13]);
+      quarterRound(x[2], x[6], x[10], x[14]);
+      quarterRound(x[3], x[7], x[11], x[15]);
+      quarterRound(x[0], x[5], x[10], x[15]);
+      quarterRound(x[1], x[6], x[11], x[12]);
+      quarterRound(x[2], x[7], x[8], x[13]);
+      quarterRound(x[3], x[4], x[9], x[14]);
+    }
+    for (int word = 0; word < 16; word++) {
+      int[] lanes = x[word];
+      for (int lane = 0; lane < LANES; lane++) {
+        int initial = word == 12 ? state[12] + lane : state[word];
+        INT_LE.set(keyStream, lane * BLOCK_SIZE + 4 * word, lanes[lane] + initial);
+      }
+    }
+    state[12] += LANES;
+    return keyStream;
+  }
+
+  /** Applies the ChaCha20 quarter round to the given state words of every block. */
+  private static void quarterRound(int[] a, int[] b, int[] c, int[] d) {
+    for (int i = 0; i < LANES; i++) {
+      a[i] += b[i];
+      d[i] = Integer.rotateLeft(d[i] ^ a[i], 16);
+    }
+    for (int i = 0; i < LANES; i++) {
+      c[i] += d[i];
+      b[i] = Integer.rotateLeft(b[i] ^ c[i], 12);
+    }
+    for (int i = 0; i < LANES; i++) {
+      a[i] += b[i];
+      d[i] = Integer.rotateLeft(d[i] ^ a[i], 8);
+    }
+    for (int i = 0; i < LANES; i++) {
+      c[i] += d[i];
+      b[i] = Integer.rotateLeft(b[i] ^ c[i], 7);
+    }
+  }
+
+  /**
+   * XORs the remaining bytes of a buffer with the key stream into an output buffer, generating
+   * more key stream as needed. The positions of both buffers are advanced.
+   *
+   * @param input the buffer to read from
+   * @param output the buffer to write to
+   */
+  private void xor(ByteBuffer input, ByteBuffer output) {
+    while (input.hasRemaining()) {
+      if (keyStreamPosition == keyStream.length) {
+        generateKeyStream();
+        keyStreamPosition = 0;
+      }
+      int length = Math.min(input.remaining(), keyStream.length - keyStreamPosition);
+      if (input.hasArray() && output.hasArray()) {
+        byte[] in = input.array();
+        int inOffset = input.arrayOffset() + input.position();
+        byte[] out = output.array();
+        int outOffset = output.arrayOffset() + output.position();
+        for (int i = 0; i < length; i++) {
+          out[outOffset + i] = (byte) (in[inOffset + i] ^ keyStream[keyStreamPosition + i]);
+        }
+        input.position(input.position() + length);
+        output.position(output.position() + length);
+      } else {
+        input.get(chunk, 0, length);
+        for (int i = 0; i < length; i++) {
+          chunk[i] ^= keyStream[keyStreamPosition + i];
+        }
+        output.put(chunk, 0, length);
+      }
+      keyStreamPosition += length;
+    }
+  }
+}
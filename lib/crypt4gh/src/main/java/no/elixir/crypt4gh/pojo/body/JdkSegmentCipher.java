@@ -0,0 +1,166 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.MAC_SIZE;
+import static no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters.CHA_CHA_20;
+import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.ChaCha20ParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * {@link SegmentCipher} backed by the ChaCha20-Poly1305 cipher of the JDK provider, which recent
+ * JDKs accelerate with SIMD intrinsics. The cipher instances are created once and re-initialized
+ * for every segment. The JDK refuses to encrypt twice with the same key and nonce, and that check
+ * is passed on to the caller as an {@link InvalidKeyException}.
+ */
+public class JdkSegmentCipher implements SegmentCipher {
+
+  /** The ChaCha20-Poly1305 cipher used for encryption */
+  private final Cipher encryptor;
+
+  /** The ChaCha20-Poly1305 cipher used for decryption */
+  private Cipher decryptor;
+
+  /** The ChaCha20 cipher used to derive Poly1305 keys for verification, created on first use */
+  private Cipher chaCha20;
+
+  /** The Poly1305 authenticator used for verification, created on first use */
+  private Poly1305 poly1305;
+
+  /**
+   * Creates a new JdkSegmentCipher.
+   *
+   * @throws GeneralSecurityException if the JDK does not provide ChaCha20-Poly1305
+   */
+  public JdkSegmentCipher() throws GeneralSecurityException {
+    this.encryptor = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+    this.decryptor = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int encrypt(SecretKey key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+      throws GeneralSecurityException {
+    encryptor.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+    return encryptor.doFinal(input, output);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int decrypt(SecretKey key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+      throws GeneralSecurityException {
+    decryptor =
+        reinit(
+            decryptor, CHA_CHA_20_POLY_1305, Cipher.DECRYPT_MODE, key, new IvParameterSpec(nonce));
+    int inputPosition = input.position();
+    int outputPosition = output.position();
+    try {
+      return decryptor.doFinal(input, output);
+    } catch (GeneralSecurityException e) {
+      input.position(inputPosition);
+      output.position(outputPosition);
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Only the first ChaCha20 block is generated, to derive the one-time Poly1305 key, and the MAC
+   * is then computed over the encrypted data, since the JCE only checks the MAC while decrypting.
+   */
+  @Override
+  public boolean verify(SecretKey key, byte[] nonce, ByteBuffer input)
+      throws GeneralSecurityException {
+    int length = input.remaining() - MAC_SIZE;
+    if (length < 0) {
+      return false;
+    }
+    if (poly1305 == null) {
+      chaCha20 = Cipher.getInstance(CHA_CHA_20);
+      poly1305 = new Poly1305();
+    }
+    // only the key stream is used, to derive the Poly1305 key, so nothing is encrypted here
+    chaCha20 =
+        reinit(chaCha20, CHA_CHA_20, Cipher.ENCRYPT_MODE, key, new ChaCha20ParameterSpec(nonce, 0));
+    byte[] polyKey = chaCha20.doFinal(new byte[Poly1305.KEY_SIZE]);
+    byte[] expectedMac = poly1305.aeadTag(polyKey, input.slice(input.position(), length));
+    Arrays.fill(polyKey, (byte) 0);
+    byte[] mac = new byte[MAC_SIZE];
+    input.get(input.position() + length, mac);
+    return MessageDigest.isEqual(expectedMac, mac);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int encrypt(
+      SecretKey key,
+      byte[] nonce,
+      byte[] input,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset)
+      throws GeneralSecurityException {
+    encryptor.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+    return encryptor.doFinal(input, offset, length, output, outputOffset);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int decrypt(
+      SecretKey key,
+      byte[] nonce,
+      byte[] input,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset)
+      throws GeneralSecurityException {
+    decryptor =
+        reinit(
+            decryptor, CHA_CHA_20_POLY_1305, Cipher.DECRYPT_MODE, key, new IvParameterSpec(nonce));
+    return decryptor.doFinal(input, offset, length, output, outputOffset);
+  }
+
+  /**
+   * Initializes a cipher to decrypt or verify with, replacing it with a new instance if it refuses
+   * to be re-initialized. Must not be used to encrypt: reusing a key and nonce to encrypt is an
+   * error that the JDK rightly rejects.
+   *
+   * @param cipher the cipher to initialize
+   * @param transformation the transformation to create a new instance with
+   * @param mode the mode to initialize the cipher in
+   * @param key the key to initialize the cipher with
+   * @param parameters the parameters (nonce) to initialize the cipher with
+   * @return the initialized cipher, which is either the given one or a new instance
+   * @throws GeneralSecurityException if the cipher can't be initialized
+   */
+  private static Cipher reinit(
+      Cipher cipher,
+      String transformation,
+      int mode,
+      SecretKey key,
+      AlgorithmParameterSpec parameters)
+      throws GeneralSecurityException {
+    try {
+      cipher.init(mode, key, parameters);
+      return cipher;
+    } catch (InvalidKeyException e) {
+      // Some JDKs refuse to re-initialize a ChaCha20 cipher with the key and nonce it was last
+      // initialized with, which happens when the same segment is decrypted or verified twice in a
+      // row. The data is only read, so a new instance can safely be used.
+      Cipher newCipher = Cipher.getInstance(transformation);
+      newCipher.init(mode, key, parameters);
+      return newCipher;
+    }
+  }
+}
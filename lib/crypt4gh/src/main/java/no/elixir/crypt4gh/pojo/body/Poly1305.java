@@ -0,0 +1,265 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Poly1305 one-time authenticator (RFC 8439, section 2.5), computed with 26-bit limbs.
+ *
+ * <p>The JCE only exposes Poly1305 as part of the ChaCha20-Poly1305 AEAD cipher, which always
+ * decrypts the ciphertext while checking the tag. This class makes it possible to authenticate an
+ * encrypted segment without producing any plaintext. An instance can be reused for any number of
+ * messages by calling {@link #init(byte[])} before each of them, and is not thread-safe.
+ */
+class Poly1305 {
+
+  /** Size of the one-time key (r and s), in bytes */
+  static final int KEY_SIZE = 32;
+
+  /** Size of the authentication tag, in bytes */
+  static final int TAG_SIZE = 16;
+
+  /** Size of the blocks the message is processed in, in bytes */
+  private static final int BLOCK_SIZE = 16;
+
+  /** Mask selecting the lower 26 bits of a limb */
+  private static final int MASK = 0x3ffffff;
+
+  /** The clamped r part of the key, in 26-bit limbs */
+  private int r0, r1, r2, r3, r4;
+
+  /** The r limbs multiplied by 5, used for the reduction modulo 2^130 - 5 */
+  private int s1, s2, s3, s4;
+
+  /** The s part of the key, added to the accumulator at the end */
+  private int pad0, pad1, pad2, pad3;
+
+  /** The accumulator, in 26-bit limbs */
+  private int h0, h1, h2, h3, h4;
+
+  /** Buffer holding a partial block until it is filled or the tag is computed */
+  private final byte[] block = new byte[BLOCK_SIZE];
+
+  /** The number of bytes in the partial block */
+  private int blockLength;
+
+  /**
+   * Starts a new message with the given one-time key.
+   *
+   * @param key the 32 byte one-time key
+   */
+  void init(byte[] key) {
+    if (key.length != KEY_SIZE) {
+      throw new IllegalArgumentException("Poly1305 key must be " + KEY_SIZE + " bytes");
+    }
+    r0 = getInt(key, 0) & 0x3ffffff;
+    r1 = (getInt(key, 3) >>> 2) & 0x3ffff03;
+    r2 = (getInt(key, 6) >>> 4) & 0x3ffc0ff;
+    r3 = (getInt(key, 9) >>> 6) & 0x3f03fff;
+    r4 = (getInt(key, 12) >>> 8) & 0x00fffff;
+    s1 = r1 * 5;
+    s2 = r2 * 5;
+    s3 = r3 * 5;
+    s4 = r4 * 5;
+    pad0 = getInt(key, 16);
+    pad1 = getInt(key, 20);
+    pad2 = getInt(key, 24);
+    pad3 = getInt(key, 28);
+    h0 = h1 = h2 = h3 = h4 = 0;
+    blockLength = 0;
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to the message. The position of the buffer is advanced to
+   * its limit.
+   *
+   * @param data a buffer holding the message bytes, heap or direct
+   */
+  void update(ByteBuffer data) {
+    if (blockLength > 0) {
+      int count = Math.min(BLOCK_SIZE - blockLength, data.remaining());
+      data.get(block, blockLength, count);
+      blockLength += count;
+      if (blockLength < BLOCK_SIZE) {
+        return;
+      }
+      processBlock(block, 0, 1 << 24);
+      blockLength = 0;
+    }
+    if (data.hasArray()) {
+      byte[] array = data.array();
+      int offset = data.arrayOffset() + data.position();
+      int end = offset + data.remaining() - data.remaining() % BLOCK_SIZE;
+      for (; offset < end; offset += BLOCK_SIZE) {
+        processBlock(array, offset, 1 << 24);
+      }
+      data.position(end - data.arrayOffset());
+    } else {
+      while (data.remaining() >= BLOCK_SIZE) {
+        data.get(block);
+        processBlock(block, 0, 1 << 24);
+      }
+    }
+    blockLength = data.remaining();
+    data.get(block, 0, blockLength);
+  }
+
+  /**
+   * Adds zero bytes to the message until its length is a multiple of 16, as required between the
+   * fields of the AEAD construction.
+   */
+  void pad() {
+    if (blockLength > 0) {
+      Arrays.fill(block, blockLength, BLOCK_SIZE, (byte) 0);
+      processBlock(block, 0, 1 << 24);
+      blockLength = 0;
+    }
+  }
+
+  /**
+   * Computes the tag of the message.
+   *
+   * @return the 16 byte tag
+   */
+  byte[] finish() {
+    if (blockLength > 0) {
+      block[blockLength] = 1;
+      Arrays.fill(block, blockLength + 1, BLOCK_SIZE, (byte) 0);
+      processBlock(block, 0, 0);
+      blockLength = 0;
+    }
+
+    // fully carry h
+    int c = h1 >>> 26;
+    h1 &= MASK;
+    h2 += c;
+    c = h2 >>> 26;
+    h2 &= MASK;
+    h3 += c;
+    c = h3 >>> 26;
+    h3 &= MASK;
+    h4 += c;
+    c = h4 >>> 26;
+    h4 &= MASK;
+    h0 += c * 5;
+    c = h0 >>> 26;
+    h0 &= MASK;
+    h1 += c;
+
+    // compute h - p = h + 5 - 2^130, and select it if it is not negative
+    int g0 = h0 + 5;
+    c = g0 >>> 26;
+    g0 &= MASK;
+    int g1 = h1 + c;
+    c = g1 >>> 26;
+    g1 &= MASK;
+    int g2 = h2 + c;
+    c = g2 >>> 26;
+    g2 &= MASK;
+    int g3 = h3 + c;
+    c = g3 >>> 26;
+    g3 &= MASK;
+    int g4 = h4 + c - (1 << 26);
+    int select = (g4 >>> 31) - 1;
+    h0 = (h0 & ~select) | (g0 & select);
+    h1 = (h1 & ~select) | (g1 & select);
+    h2 = (h2 & ~select) | (g2 & select);
+    h3 = (h3 & ~select) | (g3 & select);
+    h4 = (h4 & ~select) | (g4 & select);
+
+    // h = (h + s) mod 2^128
+    long f = ((h0 | (h1 << 26)) & 0xffffffffL) + (pad0 & 0xffffffffL);
+    int t0 = (int) f;
+    f = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (pad1 & 0xffffffffL) + (f >>> 32);
+    int t1 = (int) f;
+    f = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (pad2 & 0xffffffffL) + (f >>> 32);
+    int t2 = (int) f;
+    f = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (pad3 & 0xffffffffL) + (f >>> 32);
+    int t3 = (int) f;
+
+    byte[] tag = new byte[TAG_SIZE];
+    putInt(tag, 0, t0);
+    putInt(tag, 4, t1);
+    putInt(tag, 8, t2);
+    putInt(tag, 12, t3);
+    clear();
+    return tag;
+  }
+
+  /**
+   * Computes the tag of a ChaCha20-Poly1305 ciphertext without additional authenticated data, as
+   * specified by RFC 8439 (section 2.8): the ciphertext, padded to a multiple of 16 bytes, followed
+   * by the lengths of the (empty) additional data and of the ciphertext.
+   *
+   * @param key the 32 byte one-time key, derived from the first ChaCha20 block
+   * @param ciphertext a buffer holding the ciphertext, whose position is not changed
+   * @return the 16 byte tag
+   */
+  byte[] aeadTag(byte[] key, ByteBuffer ciphertext) {
+    init(key);
+    update(ciphertext.duplicate());
+    pad();
+    update(
+        ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(8, ciphertext.remaining()));
+    return finish();
+  }
+
+  /** Forgets the key and the state of the current message. */
+  void clear() {
+    r0 = r1 = r2 = r3 = r4 = 0;
+    s1 = s2 = s3 = s4 = 0;
+    pad0 = pad1 = pad2 = pad3 = 0;
+    h0 = h1 = h2 = h3 = h4 = 0;
+    Arrays.fill(block, (byte) 0);
+    blockLength = 0;
+  }
+
+  /** Adds a 16 byte block (with the given high bit) to the accumulator and multiplies it by r. */
+  private void processBlock(byte[] m, int offset, int hibit) {
+    h0 += getInt(m, offset) & MASK;
+    h1 += (getInt(m, offset + 3) >>> 2) & MASK;
+    h2 += (getInt(m, offset + 6) >>> 4) & MASK;
+    h3 += (getInt(m, offset + 9) >>> 6) & MASK;
+    h4 += (getInt(m, offset + 12) >>> 8) | hibit;
+
+    long d0 = (long) h0 * r0 + (long) h1 * s4 + (long) h2 * s3 + (long) h3 * s2 + (long) h4 * s1;
+    long d1 = (long) h0 * r1 + (long) h1 * r0 + (long) h2 * s4 + (long) h3 * s3 + (long) h4 * s2;
+    long d2 = (long) h0 * r2 + (long) h1 * r1 + (long) h2 * r0 + (long) h3 * s4 + (long) h4 * s3;
+    long d3 = (long) h0 * r3 + (long) h1 * r2 + (long) h2 * r1 + (long) h3 * r0 + (long) h4 * s4;
+    long d4 = (long) h0 * r4 + (long) h1 * r3 + (long) h2 * r2 + (long) h3 * r1 + (long) h4 * r0;
+
+    long c = d0 >>> 26;
+    h0 = (int) d0 & MASK;
+    d1 += c;
+    c = d1 >>> 26;
+    h1 = (int) d1 & MASK;
+    d2 += c;
+    c = d2 >>> 26;
+    h2 = (int) d2 & MASK;
+    d3 += c;
+    c = d3 >>> 26;
+    h3 = (int) d3 & MASK;
+    d4 += c;
+    c = d4 >>> 26;
+    h4 = (int) d4 & MASK;
+    h0 += (int) c * 5;
+    c = h0 >>> 26;
+    h0 &= MASK;
+    h1 += (int) c;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff)
+        | (bytes[offset + 1] & 0xff) << 8
+        | (bytes[offset + 2] & 0xff) << 16
+        | (bytes[offset + 3] & 0xff) << 24;
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+}
@@ -1,5 +1,6 @@
 package no.elixir.crypt4gh.pojo.body;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
 import java.util.Optional;
@@ -9,6 +10,7 @@ import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
 import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
 import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.NonceGenerator;
 
 /**
  * A segment represents one 64 KB block of data in the body of the Crypt4GH file following the
@@ -53,6 +55,64 @@ public abstract class Segment implements Crypt4GHEntity {
     };
   }
 
+  /**
+   * Encrypts a block of unencrypted data straight into a provided output array, without creating a
+   * Segment object or any intermediate copies of the data. The serialized segment written to the
+   * output array has the same layout as the one returned by {@link #serialize()}.
+   *
+   * <p>A new cipher instance is created for every call. Code that encrypts many segments should use
+   * its own {@link SegmentCryptor} instead.
+   *
+   * @param unencryptedData an array holding the data to encrypt
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt (at most {@link #UNENCRYPTED_DATA_SEGMENT_SIZE})
+   * @param output the array to write the serialized encrypted segment to
+   * @param outputOffset the position in the output array to start writing at
+   * @param dataEncryptionParameters specifying the encryption method and containing the encryption
+   *     key
+   * @return the number of bytes written to the output array
+   * @throws GeneralSecurityException if the encryption method was not recognized or the encryption
+   *     failed for other reasons
+   */
+  public static int encrypt(
+      byte[] unencryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      DataEncryptionParameters dataEncryptionParameters)
+      throws GeneralSecurityException {
+    return new SegmentCryptor(NonceGenerator.getInstance())
+        .encrypt(unencryptedData, offset, length, output, outputOffset, dataEncryptionParameters);
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer straight into an output buffer (heap or direct),
+   * without creating a Segment object or any intermediate copies of the data. The serialized
+   * segment written to the output buffer has the same layout as the one returned by {@link
+   * #serialize()}.
+   *
+   * <p>A new cipher instance is created for every call. Code that encrypts many segments should use
+   * its own {@link SegmentCryptor} instead.
+   *
+   * @param unencryptedData a buffer holding the data to encrypt (at most {@link
+   *     #UNENCRYPTED_DATA_SEGMENT_SIZE} bytes remaining)
+   * @param output the buffer to write the serialized encrypted segment to
+   * @param dataEncryptionParameters specifying the encryption method and containing the encryption
+   *     key
+   * @return the number of bytes written to the output buffer
+   * @throws GeneralSecurityException if the encryption method was not recognized or the encryption
+   *     failed for other reasons
+   */
+  public static int encrypt(
+      ByteBuffer unencryptedData,
+      ByteBuffer output,
+      DataEncryptionParameters dataEncryptionParameters)
+      throws GeneralSecurityException {
+    return new SegmentCryptor(NonceGenerator.getInstance())
+        .encrypt(unencryptedData, output, dataEncryptionParameters);
+  }
+
   /**
    * Creates a new Segment from a block of encrypted data.
    *
@@ -81,6 +141,69 @@ public abstract class Segment implements Crypt4GHEntity {
         "Data Segment can't be decrypted with any of the Header keys");
   }
 
+  /**
+   * Decrypts a block of encrypted data straight into a provided output array, without creating a
+   * Segment object or any intermediate copies of the data.
+   *
+   * <p>The method will go through the list of provided Data Encryption Parameters one by one and
+   * attempt to decrypt the data using the cipher and key defined in each parameter object. An
+   * exception will be thrown if the data cannot be decrypted with any of those keys.
+   *
+   * <p>A new cipher instance is created for every call. Code that decrypts many segments should use
+   * its own {@link SegmentCryptor} instead.
+   *
+   * @param encryptedData an array holding the encrypted segment
+   * @param offset the position of the encrypted segment in the array
+   * @param length the length of the encrypted segment (including nonce and MAC)
+   * @param output the array to write the decrypted data to
+   * @param outputOffset the position in the output array to start writing at
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the number of decrypted bytes written to the output array
+   * @throws GeneralSecurityException if the data block could not be decrypted with any of the
+   *     provided Data Encryption Parameters
+   */
+  public static int decrypt(
+      byte[] encryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    return new SegmentCryptor(NonceGenerator.getInstance())
+        .decrypt(encryptedData, offset, length, output, outputOffset, dataEncryptionParametersList);
+  }
+
+  /**
+   * Decrypts the encrypted segment held in the remaining bytes of a buffer straight into an output
+   * buffer (heap or direct), without creating a Segment object or any intermediate copies of the
+   * data.
+   *
+   * <p>The method will go through the list of provided Data Encryption Parameters one by one and
+   * attempt to decrypt the data using the cipher and key defined in each parameter object. An
+   * exception will be thrown if the data cannot be decrypted with any of those keys.
+   *
+   * <p>A new cipher instance is created for every call. Code that decrypts many segments should use
+   * its own {@link SegmentCryptor} instead.
+   *
+   * @param encryptedData a buffer holding the encrypted segment (including nonce and MAC)
+   * @param output the buffer to write the decrypted data to
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the number of decrypted bytes written to the output buffer
+   * @throws GeneralSecurityException if the data block could not be decrypted with any of the
+   *     provided Data Encryption Parameters
+   */
+  public static int decrypt(
+      ByteBuffer encryptedData,
+      ByteBuffer output,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    return new SegmentCryptor(NonceGenerator.getInstance())
+        .decrypt(encryptedData, output, dataEncryptionParametersList);
+  }
+
   /**
    * Tries to decrypt a segment from a block of encrypted data using the cipher and decryption key
    * included in the Data Encryption Parameters.
@@ -0,0 +1,173 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * ChaCha20-Poly1305 (RFC 8439) authenticated encryption without additional data, as used for data
+ * segments and header packets. This is the extension point for the cipher implementation: segments
+ * and header packets are encrypted, decrypted and verified through it rather than through a JCE
+ * {@link javax.crypto.Cipher} directly.
+ *
+ * <p>Two implementations are provided: {@link JdkSegmentCipher}, backed by the JDK provider, and
+ * {@link JavaSegmentCipher}, a pure-Java implementation that does not depend on any provider. The
+ * one returned by {@link #newInstance()} can be chosen with the {@value #SEGMENT_CIPHER_PROPERTY}
+ * system property.
+ *
+ * <p>Instances are meant to be reused for any number of segments, but are not thread-safe.
+ */
+public interface SegmentCipher {
+
+  /**
+   * The system property selecting the implementation returned by {@link #newInstance()}: {@value
+   * #JDK} or {@value #JAVA}. By default, the JDK implementation is used if the JDK provides
+   * ChaCha20-Poly1305, and the pure-Java implementation otherwise.
+   */
+  String SEGMENT_CIPHER_PROPERTY = "crypt4gh.segmentCipher";
+
+  /** The name of the {@link JdkSegmentCipher} implementation */
+  String JDK = "jdk";
+
+  /** The name of the {@link JavaSegmentCipher} implementation */
+  String JAVA = "java";
+
+  /**
+   * Creates a new instance of the implementation selected by the {@value #SEGMENT_CIPHER_PROPERTY}
+   * system property.
+   *
+   * @return a new SegmentCipher
+   * @throws NoSuchAlgorithmException if the property names an unknown implementation, or if the JDK
+   *     implementation is selected and the JDK does not provide ChaCha20-Poly1305
+   * @throws GeneralSecurityException if the cipher cannot be created
+   */
+  static SegmentCipher newInstance() throws GeneralSecurityException {
+    String implementation = System.getProperty(SEGMENT_CIPHER_PROPERTY, "");
+    switch (implementation) {
+      case JDK -> {
+        return new JdkSegmentCipher();
+      }
+      case JAVA -> {
+        return new JavaSegmentCipher();
+      }
+      case "" -> {
+        try {
+          return new JdkSegmentCipher();
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+          return new JavaSegmentCipher();
+        }
+      }
+      default ->
+          throw new NoSuchAlgorithmException("Unknown segment cipher: " + implementation);
+    }
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer and writes the encrypted data followed by the MAC
+   * into an output buffer. Both buffers may be heap or direct buffers, and must not overlap. The
+   * position of the source buffer is advanced to its limit, and the position of the output buffer
+   * is advanced past the MAC.
+   *
+   * @param key the 256-bit key to encrypt with
+   * @param nonce the 96-bit nonce, which must never be reused with the same key
+   * @param input a buffer holding the data to encrypt
+   * @param output the buffer to write the encrypted data and the MAC to
+   * @return the number of bytes written to the output buffer
+   * @throws GeneralSecurityException if the encryption fails, or the output buffer is too small
+   */
+  int encrypt(SecretKey key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+      throws GeneralSecurityException;
+
+  /**
+   * Checks the MAC of the encrypted data held in the remaining bytes of a buffer (the encrypted
+   * data followed by the MAC) and decrypts it into an output buffer. Both buffers may be heap or
+   * direct buffers, and must not overlap. On success, the position of the source buffer is
+   * advanced to its limit and the position of the output buffer is advanced past the decrypted
+   * data. On failure, neither buffer is modified.
+   *
+   * @param key the 256-bit key to decrypt with
+   * @param nonce the 96-bit nonce the data was encrypted with
+   * @param input a buffer holding the encrypted data and the MAC
+   * @param output the buffer to write the decrypted data to
+   * @return the number of bytes written to the output buffer
+   * @throws GeneralSecurityException if the MAC doesn't match, the input is shorter than a MAC, or
+   *     the output buffer is too small
+   */
+  int decrypt(SecretKey key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+      throws GeneralSecurityException;
+
+  /**
+   * Checks the MAC of the encrypted data held in the remaining bytes of a buffer (the encrypted
+   * data followed by the MAC), without decrypting it. The position of the buffer is not changed.
+   *
+   * @param key the 256-bit key the data was encrypted with
+   * @param nonce the 96-bit nonce the data was encrypted with
+   * @param input a buffer holding the encrypted data and the MAC
+   * @return {@code true} if the MAC is valid for the given key and nonce
+   * @throws GeneralSecurityException if the verification can't be performed
+   */
+  boolean verify(SecretKey key, byte[] nonce, ByteBuffer input) throws GeneralSecurityException;
+
+  /**
+   * Encrypts a block of data and writes the encrypted data followed by the MAC into an output
+   * array.
+   *
+   * @param key the 256-bit key to encrypt with
+   * @param nonce the 96-bit nonce, which must never be reused with the same key
+   * @param input an array holding the data to encrypt
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt
+   * @param output the array to write the encrypted data and the MAC to
+   * @param outputOffset the position in the output array to start writing at
+   * @return the number of bytes written to the output array
+   * @throws GeneralSecurityException if the encryption fails, or the output array is too small
+   */
+  default int encrypt(
+      SecretKey key,
+      byte[] nonce,
+      byte[] input,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset)
+      throws GeneralSecurityException {
+    return encrypt(
+        key,
+        nonce,
+        ByteBuffer.wrap(input, offset, length),
+        ByteBuffer.wrap(output, outputOffset, output.length - outputOffset));
+  }
+
+  /**
+   * Checks the MAC of a block of encrypted data (the encrypted data followed by the MAC) and
+   * decrypts it into an output array. On failure, the output array is not modified.
+   *
+   * @param key the 256-bit key to decrypt with
+   * @param nonce the 96-bit nonce the data was encrypted with
+   * @param input an array holding the encrypted data and the MAC
+   * @param offset the position of the encrypted data in the array
+   * @param length the length of the encrypted data, including the MAC
+   * @param output the array to write the decrypted data to
+   * @param outputOffset the position in the output array to start writing at
+   * @return the number of bytes written to the output array
+   * @throws GeneralSecurityException if the MAC doesn't match, the input is shorter than a MAC, or
+   *     the output array is too small
+   */
+  default int decrypt(
+      SecretKey key,
+      byte[] nonce,
+      byte[] input,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset)
+      throws GeneralSecurityException {
+    return decrypt(
+        key,
+        nonce,
+        ByteBuffer.wrap(input, offset, length),
+        ByteBuffer.wrap(output, outputOffset, output.length - outputOffset));
+  }
+}
@@ -0,0 +1,258 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import javax.crypto.SecretKey;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.NonceGenerator;
+
+/**
+ * Encrypts, decrypts and verifies segments straight between byte arrays or byte buffers, reusing
+ * the same {@link SegmentCipher} and nonce generator for all the segments it processes.
+ *
+ * <p>A SegmentCryptor is meant to be owned by a single stream (or a single worker thread) and is
+ * not thread-safe.
+ */
+public class SegmentCryptor {
+
+  /** The ChaCha20-Poly1305 cipher used for all the segments */
+  private final SegmentCipher segmentCipher;
+
+  /**
+   * The generator used to create nonces for encrypted segments. Created on first use, so that
+   * decrypting does not have to seed a generator.
+   */
+  private NonceGenerator nonceGenerator;
+
+  /**
+   * Creates a new SegmentCryptor with the {@link SegmentCipher} selected by {@link
+   * SegmentCipher#newInstance()}. It will get its own nonce generator the first time it encrypts a
+   * segment.
+   *
+   * @throws GeneralSecurityException if the cipher cannot be created
+   */
+  public SegmentCryptor() throws GeneralSecurityException {
+    this(null);
+  }
+
+  /**
+   * Creates a new SegmentCryptor using the given nonce generator, with the {@link SegmentCipher}
+   * selected by {@link SegmentCipher#newInstance()}.
+   *
+   * @param nonceGenerator the generator to take segment nonces from (or {@code null} to create a
+   *     new generator on first use)
+   * @throws GeneralSecurityException if the cipher cannot be created
+   */
+  public SegmentCryptor(NonceGenerator nonceGenerator) throws GeneralSecurityException {
+    this(nonceGenerator, SegmentCipher.newInstance());
+  }
+
+  /**
+   * Creates a new SegmentCryptor using the given nonce generator and cipher.
+   *
+   * @param nonceGenerator the generator to take segment nonces from (or {@code null} to create a
+   *     new generator on first use)
+   * @param segmentCipher the cipher to encrypt, decrypt and verify segments with, which must not be
+   *     shared with any other SegmentCryptor
+   */
+  public SegmentCryptor(NonceGenerator nonceGenerator, SegmentCipher segmentCipher) {
+    if (segmentCipher == null) {
+      throw new IllegalArgumentException("A segment cipher is required");
+    }
+    this.segmentCipher = segmentCipher;
+    this.nonceGenerator = nonceGenerator;
+  }
+
+  /**
+   * Encrypts a block of unencrypted data and writes the serialized segment into an output array.
+   *
+   * @param unencryptedData an array holding the data to encrypt
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt (at most one segment)
+   * @param output the array to write the serialized encrypted segment to
+   * @param outputOffset the position in the output array to start writing at
+   * @param dataEncryptionParameters specifying the encryption method and containing the encryption
+   *     key
+   * @return the number of bytes written to the output array
+   * @throws GeneralSecurityException if the encryption fails
+   */
+  public int encrypt(
+      byte[] unencryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      DataEncryptionParameters dataEncryptionParameters)
+      throws GeneralSecurityException {
+    if (nonceGenerator == null) {
+      nonceGenerator = new NonceGenerator();
+    }
+    DataEncryptionMethod dataEncryptionMethod = dataEncryptionParameters.getDataEncryptionMethod();
+    return switch (dataEncryptionMethod) {
+      case CHACHA20_IETF_POLY1305 ->
+          ChaCha20IETFPoly1305Segment.encrypt(
+              unencryptedData,
+              offset,
+              length,
+              output,
+              outputOffset,
+              ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+              segmentCipher,
+              nonceGenerator);
+    };
+  }
+
+  /**
+   * Decrypts a serialized encrypted segment into an output array, trying each of the provided Data
+   * Encryption Parameters in turn.
+   *
+   * @param encryptedData an array holding the encrypted segment
+   * @param offset the position of the encrypted segment in the array
+   * @param length the length of the encrypted segment (including nonce and MAC)
+   * @param output the array to write the decrypted data to
+   * @param outputOffset the position in the output array to start writing at
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the number of decrypted bytes written to the output array
+   * @throws GeneralSecurityException if the data block could not be decrypted with any of the
+   *     provided Data Encryption Parameters
+   */
+  public int decrypt(
+      byte[] encryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    for (DataEncryptionParameters dataEncryptionParameters : dataEncryptionParametersList) {
+      DataEncryptionMethod dataEncryptionMethod =
+          dataEncryptionParameters.getDataEncryptionMethod();
+      switch (dataEncryptionMethod) {
+        case CHACHA20_IETF_POLY1305 -> {
+          try {
+            return ChaCha20IETFPoly1305Segment.decrypt(
+                encryptedData,
+                offset,
+                length,
+                output,
+                outputOffset,
+                ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+                segmentCipher);
+          } catch (GeneralSecurityException e) {
+            // try the next key
+          }
+        }
+      }
+    }
+    throw new GeneralSecurityException(
+        "Data Segment can't be decrypted with any of the Header keys");
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer (at most one segment) and writes the serialized
+   * segment into an output buffer. Both buffers may be heap or direct buffers. The position of the
+   * source buffer is advanced to its limit, and the position of the output buffer is advanced past
+   * the serialized segment.
+   *
+   * @param unencryptedData a buffer holding the data to encrypt
+   * @param output the buffer to write the serialized encrypted segment to
+   * @param dataEncryptionParameters specifying the encryption method and containing the encryption
+   *     key
+   * @return the number of bytes written to the output buffer
+   * @throws GeneralSecurityException if the encryption fails
+   */
+  public int encrypt(
+      ByteBuffer unencryptedData,
+      ByteBuffer output,
+      DataEncryptionParameters dataEncryptionParameters)
+      throws GeneralSecurityException {
+    if (nonceGenerator == null) {
+      nonceGenerator = new NonceGenerator();
+    }
+    DataEncryptionMethod dataEncryptionMethod = dataEncryptionParameters.getDataEncryptionMethod();
+    return switch (dataEncryptionMethod) {
+      case CHACHA20_IETF_POLY1305 ->
+          ChaCha20IETFPoly1305Segment.encrypt(
+              unencryptedData,
+              output,
+              ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+              segmentCipher,
+              nonceGenerator);
+    };
+  }
+
+  /**
+   * Decrypts the serialized encrypted segment held in the remaining bytes of a buffer into an
+   * output buffer, trying each of the provided Data Encryption Parameters in turn. Both buffers may
+   * be heap or direct buffers. On success, the position of the source buffer is advanced to its
+   * limit and the position of the output buffer is advanced past the decrypted data.
+   *
+   * @param encryptedData a buffer holding the encrypted segment (including nonce and MAC)
+   * @param output the buffer to write the decrypted data to
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the number of decrypted bytes written to the output buffer
+   * @throws GeneralSecurityException if the data block could not be decrypted with any of the
+   *     provided Data Encryption Parameters
+   */
+  public int decrypt(
+      ByteBuffer encryptedData,
+      ByteBuffer output,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    for (DataEncryptionParameters dataEncryptionParameters : dataEncryptionParametersList) {
+      DataEncryptionMethod dataEncryptionMethod =
+          dataEncryptionParameters.getDataEncryptionMethod();
+      switch (dataEncryptionMethod) {
+        case CHACHA20_IETF_POLY1305 -> {
+          try {
+            return ChaCha20IETFPoly1305Segment.decrypt(
+                encryptedData,
+                output,
+                ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+                segmentCipher);
+          } catch (GeneralSecurityException e) {
+            // try the next key
+          }
+        }
+      }
+    }
+    throw new GeneralSecurityException(
+        "Data Segment can't be decrypted with any of the Header keys");
+  }
+
+  /**
+   * Checks the MAC of the serialized encrypted segment held in the remaining bytes of a buffer
+   * against each of the provided Data Encryption Parameters in turn, without decrypting it. The
+   * buffer may be a heap or a direct buffer, and its position is not changed.
+   *
+   * @param encryptedData a buffer holding the encrypted segment (including nonce and MAC)
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return {@code true} if the segment is authentic for any of the Data Encryption Parameters
+   * @throws GeneralSecurityException if the verification can't be performed
+   */
+  public boolean verify(
+      ByteBuffer encryptedData, Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    for (DataEncryptionParameters dataEncryptionParameters : dataEncryptionParametersList) {
+      DataEncryptionMethod dataEncryptionMethod =
+          dataEncryptionParameters.getDataEncryptionMethod();
+      switch (dataEncryptionMethod) {
+        case CHACHA20_IETF_POLY1305 -> {
+          if (ChaCha20IETFPoly1305Segment.verify(
+              encryptedData,
+              ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+              segmentCipher)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -3,19 +3,25 @@ package no.elixir.crypt4gh.pojo.header;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.util.*;
-import lombok.AllArgsConstructor;
-import lombok.Getter;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
+import no.elixir.crypt4gh.util.KeyRing;
 
-/** Crypt4GH header containing both unencrypted and encrypted payloads. */
+/**
+ * Crypt4GH header containing both unencrypted and encrypted payloads.
+ *
+ * <p>A header read from a stream is decrypted lazily: only the unencrypted framing is parsed up
+ * front (see {@link HeaderDescriptor}), and the header packets are decrypted the first time they
+ * are needed.
+ */
 @ToString
-@AllArgsConstructor
 public class Header implements Crypt4GHEntity {
 
   /**
@@ -25,18 +31,51 @@ public class Header implements Crypt4GHEntity {
    */
   public static final int UNENCRYPTED_HEADER_LENGTH = 8 + 4 + 4;
 
+  /**
+   * The largest header accepted by the readers that buffer a whole header before parsing it. This
+   * leaves room for many recipients and a large Data Edit List, while a corrupted or hostile packet
+   * length can't make them allocate gigabytes.
+   */
+  public static final int MAX_HEADER_LENGTH = 16 * 1024 * 1024;
+
   /** The magic word "crypt4gh" used at the start of a Crypt4GH file to identify it as such. */
   public static final String MAGIC_WORD = "crypt4gh";
 
   /** The version number of the Crypt4GH standard supported by this implementation. */
   public static final int VERSION = 1;
 
-  /** The list of header packets included in the header. */
-  @Getter private final List<HeaderPacket> headerPackets;
+  /**
+   * The list of header packets included in the header, or null if they have not been decrypted
+   * yet.
+   */
+  private List<HeaderPacket> headerPackets;
+
+  /**
+   * The framing of the header read from a stream, or null if the header was constructed or
+   * deserialized
+   */
+  @ToString.Exclude private final transient HeaderDescriptor headerDescriptor;
+
+  /** The private key to decrypt the header packets with, until they have been decrypted */
+  @ToString.Exclude private transient PrivateKey readerPrivateKey;
+
+  /** The key ring to decrypt the header packets with, until they have been decrypted */
+  @ToString.Exclude private transient KeyRing keyRing;
+
+  /**
+   * Constructs a header from a list of header packets.
+   *
+   * @param headerPackets the header packets to include in the header
+   */
+  public Header(List<HeaderPacket> headerPackets) {
+    this.headerPackets = headerPackets;
+    this.headerDescriptor = null;
+  }
 
   /**
    * Reads a header from an input stream. The header packets that can be decrypted with the provided
-   * private key are added to the headerPackets list.
+   * private key are added to the headerPackets list. Only the unencrypted framing of the header is
+   * parsed here, the header packets are decrypted the first time they are needed.
    *
    * @param inputStream a stream to read the header from
    * @param readerPrivateKey the private key of the reader
@@ -46,23 +85,100 @@ public class Header implements Crypt4GHEntity {
    */
   public Header(InputStream inputStream, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
-    byte[] unencryptedHeaderBytes = inputStream.readNBytes(UNENCRYPTED_HEADER_LENGTH);
-    String magicWord = new String(Arrays.copyOfRange(unencryptedHeaderBytes, 0, 8));
-    if (!MAGIC_WORD.equals(magicWord)) {
-      throw new GeneralSecurityException("Not a Crypt4GH stream");
-    }
-    int version = Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 8, 12));
-    if (VERSION != version) {
-      throw new GeneralSecurityException("Unsupported Crypt4GH version: " + version);
-    }
-    int headerPacketCount =
-        Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 12, 16));
-    this.headerPackets = new ArrayList<>();
-    for (int i = 0; i < headerPacketCount; i++) {
-      Optional<HeaderPacket> headerPacketOptional =
-          HeaderPacket.create(inputStream, readerPrivateKey);
-      headerPacketOptional.ifPresent(headerPackets::add);
+    this(HeaderDescriptor.read(inputStream), readerPrivateKey);
+  }
+
+  /**
+   * Constructs a header from the framing read by a {@link HeaderDescriptor}. The header packets
+   * that can be decrypted with the provided private key are decrypted the first time they are
+   * needed.
+   *
+   * @param headerDescriptor the framing of the header, with the still encrypted header packets
+   * @param readerPrivateKey the private key of the reader
+   */
+  public Header(HeaderDescriptor headerDescriptor, PrivateKey readerPrivateKey) {
+    this.headerDescriptor = headerDescriptor;
+    this.readerPrivateKey = readerPrivateKey;
+  }
+
+  /**
+   * Reads a header from an input stream. The header packets that can be decrypted with one of the
+   * private keys in the key ring are added to the headerPackets list. Only the unencrypted framing
+   * of the header is parsed here, the header packets are decrypted the first time they are needed.
+   *
+   * @param inputStream a stream to read the header from
+   * @param keyRing the key ring holding the private keys of the reader
+   * @throws IOException if something goes wrong while reading from the input stream
+   * @throws GeneralSecurityException if the input stream does not contain a valid Crypt4GH file or
+   *     the file has an unsupported version number.
+   */
+  public Header(InputStream inputStream, KeyRing keyRing)
+      throws IOException, GeneralSecurityException {
+    this(HeaderDescriptor.read(inputStream), keyRing);
+  }
+
+  /**
+   * Constructs a header from the framing read by a {@link HeaderDescriptor}. The header packets
+   * that can be decrypted with one of the private keys in the key ring are decrypted the first time
+   * they are needed.
+   *
+   * @param headerDescriptor the framing of the header, with the still encrypted header packets
+   * @param keyRing the key ring holding the private keys of the reader
+   */
+  public Header(HeaderDescriptor headerDescriptor, KeyRing keyRing) {
+    this.headerDescriptor = headerDescriptor;
+    this.keyRing = keyRing;
+  }
+
+  /**
+   * Returns the list of header packets included in the header, decrypting them first if needed.
+   * Header packets that can't be decrypted with the reader's private key (or any of the keys in the
+   * reader's key ring) are left out.
+   *
+   * @return the list of header packets
+   */
+  public synchronized List<HeaderPacket> getHeaderPackets() {
+    if (headerPackets == null) {
+      List<HeaderPacket> decryptedHeaderPackets = new ArrayList<>();
+      try {
+        for (HeaderDescriptor.PacketDescriptor packetDescriptor :
+            headerDescriptor.getPacketDescriptors()) {
+          Optional<HeaderPacket> headerPacketOptional =
+              keyRing != null
+                  ? HeaderPacket.create(packetDescriptor, keyRing)
+                  : HeaderPacket.create(packetDescriptor, readerPrivateKey);
+          headerPacketOptional.ifPresent(decryptedHeaderPackets::add);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      this.headerPackets = decryptedHeaderPackets;
+      this.readerPrivateKey = null;
+      this.keyRing = null;
     }
+    return headerPackets;
+  }
+
+  /**
+   * Decrypts the header packets before serializing the header, since the framing and the key they
+   * are decrypted with are not serialized.
+   *
+   * @param out the stream to serialize the header to
+   * @throws IOException if the header can't be written
+   */
+  @Serial
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    getHeaderPackets();
+    out.defaultWriteObject();
+  }
+
+  /**
+   * Returns the framing of the header, if the header was read from a stream.
+   *
+   * @return an Optional containing the header descriptor, provided that the header was read
+   */
+  public Optional<HeaderDescriptor> getHeaderDescriptor() {
+    return Optional.ofNullable(headerDescriptor);
   }
 
   /**
@@ -75,7 +191,7 @@ public class Header implements Crypt4GHEntity {
   public Collection<DataEncryptionParameters> getDataEncryptionParametersList()
       throws GeneralSecurityException {
     Collection<DataEncryptionParameters> result = new ArrayList<>();
-    for (HeaderPacket headerPacket : headerPackets) {
+    for (HeaderPacket headerPacket : getHeaderPackets()) {
       EncryptableHeaderPacket encryptablePayload = headerPacket.getEncryptablePayload();
       HeaderPacketType packetType = encryptablePayload.getPacketType();
       if (packetType == HeaderPacketType.DATA_ENCRYPTION_PARAMETERS) {
@@ -90,7 +206,7 @@ public class Header implements Crypt4GHEntity {
 
   /** Removes all the Data Edit List packets from the header. */
   public void removeDataEditList() {
-    Iterator<HeaderPacket> iterator = headerPackets.iterator();
+    Iterator<HeaderPacket> iterator = getHeaderPackets().iterator();
     while (iterator.hasNext()) {
       HeaderPacket headerPacket = iterator.next();
       EncryptableHeaderPacket encryptablePayload = headerPacket.getEncryptablePayload();
@@ -107,7 +223,7 @@ public class Header implements Crypt4GHEntity {
    * @return an Optional containing a Data Edit List, provided that one was found in this header
    */
   public Optional<DataEditList> getDataEditList() {
-    for (HeaderPacket headerPacket : headerPackets) {
+    for (HeaderPacket headerPacket : getHeaderPackets()) {
       EncryptableHeaderPacket encryptablePayload = headerPacket.getEncryptablePayload();
       HeaderPacketType packetType = encryptablePayload.getPacketType();
       if (packetType == HeaderPacketType.DATA_EDIT_LIST) {
@@ -133,6 +249,7 @@ public class Header implements Crypt4GHEntity {
         ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).put(MAGIC_WORD.getBytes()).array());
     byteArrayOutputStream.write(
         ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(VERSION).array());
+    List<HeaderPacket> headerPackets = getHeaderPackets();
     byteArrayOutputStream.write(
         ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(headerPackets.size()).array());
     for (HeaderPacket headerPacket : headerPackets) {
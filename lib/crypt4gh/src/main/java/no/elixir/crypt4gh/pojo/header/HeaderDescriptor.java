@@ -0,0 +1,188 @@
+package no.elixir.crypt4gh.pojo.header;
+
+import static no.elixir.crypt4gh.pojo.header.Header.MAGIC_WORD;
+import static no.elixir.crypt4gh.pojo.header.Header.UNENCRYPTED_HEADER_LENGTH;
+import static no.elixir.crypt4gh.pojo.header.Header.VERSION;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+import lombok.ToString;
+import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
+
+/**
+ * The unencrypted framing of a Crypt4GH header: version, header packet count, and the offset,
+ * length and encryption method of each header packet.
+ *
+ * <p>Reading a descriptor requires no key and performs no cryptographic operations, so it is a
+ * cheap way to learn the length of the header (and thus the offset of the encrypted body) of a
+ * Crypt4GH file. The still encrypted header packets can be decrypted later by passing the
+ * descriptor to {@link Header#Header(HeaderDescriptor, java.security.PrivateKey)}.
+ */
+@ToString
+@Getter
+public class HeaderDescriptor {
+
+  /** The version number of the Crypt4GH format */
+  private final int version;
+
+  /** The total length of the header, which is also the offset of the first data segment */
+  private final long headerLength;
+
+  /** The header packets, in the order they appear in the header */
+  private final List<PacketDescriptor> packetDescriptors;
+
+  private HeaderDescriptor(int version, long headerLength, List<PacketDescriptor> packets) {
+    this.version = version;
+    this.headerLength = headerLength;
+    this.packetDescriptors = Collections.unmodifiableList(packets);
+  }
+
+  /**
+   * Reads the framing of a header from an input stream. The stream is left positioned at the start
+   * of the first data segment.
+   *
+   * @param inputStream a stream to read the header from
+   * @return the header descriptor
+   * @throws IOException if something goes wrong while reading from the input stream, or if the
+   *     stream ends before the end of the header
+   * @throws GeneralSecurityException if the input stream does not contain a valid Crypt4GH file, or
+   *     the file has an unsupported version number or header packet encryption method.
+   */
+  public static HeaderDescriptor read(InputStream inputStream)
+      throws IOException, GeneralSecurityException {
+    byte[] unencryptedHeaderBytes = readFully(inputStream, UNENCRYPTED_HEADER_LENGTH);
+    String magicWord = new String(Arrays.copyOfRange(unencryptedHeaderBytes, 0, 8));
+    if (!MAGIC_WORD.equals(magicWord)) {
+      throw new GeneralSecurityException("Not a Crypt4GH stream");
+    }
+    int version = Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 8, 12));
+    if (VERSION != version) {
+      throw new GeneralSecurityException("Unsupported Crypt4GH version: " + version);
+    }
+    int headerPacketCount =
+        Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 12, 16));
+    if (headerPacketCount < 0) {
+      throw new GeneralSecurityException("Invalid header packet count: " + headerPacketCount);
+    }
+    long offset = UNENCRYPTED_HEADER_LENGTH;
+    // the count comes from the file, so the packets have to be read before trusting it
+    List<PacketDescriptor> packets = new ArrayList<>(Math.min(headerPacketCount, 16));
+    for (int i = 0; i < headerPacketCount; i++) {
+      int packetLength = Crypt4GHEntity.getInt(readFully(inputStream, 4));
+      if (packetLength < 4 + 4) {
+        throw new GeneralSecurityException("Invalid header packet length: " + packetLength);
+      }
+      int packetEncryptionCode = Crypt4GHEntity.getInt(readFully(inputStream, 4));
+      HeaderEncryptionMethod packetEncryption;
+      try {
+        packetEncryption = HeaderEncryptionMethod.getByCode(packetEncryptionCode);
+      } catch (RuntimeException e) {
+        throw new GeneralSecurityException(
+            "Unsupported header packet encryption method: " + packetEncryptionCode, e);
+      }
+      byte[] packetBody = readFully(inputStream, packetLength - 4 - 4);
+      packets.add(new PacketDescriptor(offset, packetLength, packetEncryption, packetBody));
+      offset += packetLength;
+    }
+    return new HeaderDescriptor(version, offset, packets);
+  }
+
+  /**
+   * Reads the framing of the header of a Crypt4GH file. Only the header is read from the file.
+   *
+   * @param path the Crypt4GH file
+   * @return the header descriptor
+   * @throws IOException if the file can't be read, or if it ends before the end of the header
+   * @throws GeneralSecurityException if the file is not a valid Crypt4GH file, or has an
+   *     unsupported version number or header packet encryption method.
+   */
+  public static HeaderDescriptor read(Path path) throws IOException, GeneralSecurityException {
+    try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path), 1024)) {
+      return read(inputStream);
+    }
+  }
+
+  /**
+   * Returns the number of header packets in the header.
+   *
+   * @return the number of header packets
+   */
+  public int getHeaderPacketCount() {
+    return packetDescriptors.size();
+  }
+
+  /**
+   * Returns the offset of the first data segment, which is the same as the length of the header.
+   *
+   * @return the offset of the encrypted body
+   */
+  public long getBodyOffset() {
+    return headerLength;
+  }
+
+  /**
+   * Reads exactly the given number of bytes from a stream.
+   *
+   * @throws EOFException if the stream ends before all the bytes have been read
+   */
+  private static byte[] readFully(InputStream inputStream, int length) throws IOException {
+    byte[] bytes = inputStream.readNBytes(length);
+    if (bytes.length != length) {
+      throw new EOFException("Unexpected end of stream while reading the Crypt4GH header");
+    }
+    return bytes;
+  }
+
+  /** The framing of a single, still encrypted, header packet. */
+  @ToString
+  @Getter
+  public static class PacketDescriptor {
+
+    /** The offset of the header packet from the start of the header */
+    private final long offset;
+
+    /** The total size of the header packet */
+    private final int packetLength;
+
+    /** The encryption method used to encrypt the payload of the header packet */
+    private final HeaderEncryptionMethod packetEncryption;
+
+    /** The header packet without the packet length and encryption method fields */
+    @ToString.Exclude private final byte[] packetBody;
+
+    private PacketDescriptor(
+        long offset, int packetLength, HeaderEncryptionMethod packetEncryption, byte[] packetBody) {
+      this.offset = offset;
+      this.packetLength = packetLength;
+      this.packetEncryption = packetEncryption;
+      this.packetBody = packetBody;
+    }
+
+    /**
+     * Serializes the header packet as it was read, still encrypted, so that it can be copied to
+     * another header without being decrypted.
+     *
+     * @return the packet length, the encryption method and the packet body, as in the header
+     */
+    public byte[] serialize() {
+      return ByteBuffer.allocate(packetLength)
+          .order(ByteOrder.LITTLE_ENDIAN)
+          .putInt(packetLength)
+          .putInt(packetEncryption.getCode())
+          .put(packetBody)
+          .array();
+    }
+  }
+}
@@ -1,13 +1,16 @@
 package no.elixir.crypt4gh.pojo.header;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.Optional;
 import lombok.Data;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
+import no.elixir.crypt4gh.util.KeyRing;
+import no.elixir.crypt4gh.util.KeyUtils;
 
 /** Header packet, bearing its length, encryption type and encrypted payload. */
 @ToString
@@ -24,33 +27,71 @@ public abstract class HeaderPacket implements Crypt4GHEntity {
   protected EncryptableHeaderPacket encryptablePayload;
 
   /**
-   * Tries to read and decrypt a header packet from an input stream. If the header packet cannot be
-   * decrypted with the provided private key, an empty Optional is returned instead. This can happen
-   * if the header packet was encrypted for a different target recipient.
+   * Tries to decrypt a header packet read by a {@link HeaderDescriptor}. If the header packet
+   * cannot be decrypted with the provided private key, an empty Optional is returned instead. This
+   * can happen if the header packet was encrypted for a different target recipient.
    *
-   * @param inputStream the stream to read the header packet from
+   * @param packetDescriptor the framing and still encrypted body of the header packet
    * @param readerPrivateKey the private key of the reader
    * @return an Optional that may contain a header packet if it could successfully be decrypted with
    *     the provided key
-   * @throws IOException if something goes wrong while reading from the stream
+   * @throws IOException if the decrypted payload can't be parsed
    */
-  static Optional<HeaderPacket> create(InputStream inputStream, PrivateKey readerPrivateKey)
+  static Optional<HeaderPacket> create(
+      HeaderDescriptor.PacketDescriptor packetDescriptor, PrivateKey readerPrivateKey)
       throws IOException {
-    int packetLength = Crypt4GHEntity.getInt(inputStream.readNBytes(4));
-    int packetEncryptionCode = Crypt4GHEntity.getInt(inputStream.readNBytes(4));
-    HeaderEncryptionMethod packetEncryption =
-        HeaderEncryptionMethod.getByCode(packetEncryptionCode);
-    byte[] encryptedPayload = inputStream.readNBytes(packetLength - 4 - 4);
-    return switch (packetEncryption) {
+    return switch (packetDescriptor.getPacketEncryption()) {
       case X25519_CHACHA20_IETF_POLY1305 -> {
         try {
           yield Optional.of(
               new X25519ChaCha20IETFPoly1305HeaderPacket(
-                  packetLength, encryptedPayload, readerPrivateKey));
+                  packetDescriptor.getPacketLength(),
+                  packetDescriptor.getPacketBody(),
+                  readerPrivateKey));
         } catch (GeneralSecurityException e) {
           yield Optional.empty();
         }
       }
     };
   }
+
+  /**
+   * Tries to decrypt a header packet read by a {@link HeaderDescriptor} with the private keys in a
+   * key ring. The keys are tried in the order given by {@link KeyRing#getPrivateKeys(PublicKey)}
+   * for the writer's public key in the header packet, and the key that decrypts the header packet
+   * is recorded in the key ring. If none of the keys can decrypt the header packet, an empty
+   * Optional is returned instead.
+   *
+   * @param packetDescriptor the framing and still encrypted body of the header packet
+   * @param keyRing the key ring holding the private keys of the reader
+   * @return an Optional that may contain a header packet if it could successfully be decrypted with
+   *     one of the keys
+   * @throws IOException if the decrypted payload can't be parsed
+   */
+  static Optional<HeaderPacket> create(
+      HeaderDescriptor.PacketDescriptor packetDescriptor, KeyRing keyRing) throws IOException {
+    return switch (packetDescriptor.getPacketEncryption()) {
+      case X25519_CHACHA20_IETF_POLY1305 -> {
+        byte[] packetBody = packetDescriptor.getPacketBody();
+        try {
+          PublicKey writerPublicKey =
+              KeyUtils.getInstance().constructPublicKey(Arrays.copyOfRange(packetBody, 0, 32));
+          for (PrivateKey readerPrivateKey : keyRing.getPrivateKeys(writerPublicKey)) {
+            try {
+              HeaderPacket headerPacket =
+                  new X25519ChaCha20IETFPoly1305HeaderPacket(
+                      packetDescriptor.getPacketLength(), packetBody, readerPrivateKey);
+              keyRing.recordReader(writerPublicKey, readerPrivateKey);
+              yield Optional.of(headerPacket);
+            } catch (GeneralSecurityException | IllegalStateException e) {
+              // encrypted for a different key, or the key was removed from the key ring meanwhile
+            }
+          }
+        } catch (GeneralSecurityException e) {
+          yield Optional.empty();
+        }
+        yield Optional.empty();
+      }
+    };
+  }
 }
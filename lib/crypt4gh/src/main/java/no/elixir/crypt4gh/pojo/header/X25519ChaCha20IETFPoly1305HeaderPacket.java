@@ -8,16 +8,15 @@ import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.util.Arrays;
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.EncryptableEntity;
+import no.elixir.crypt4gh.pojo.body.SegmentCipher;
 import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
 import org.apache.commons.lang3.ArrayUtils;
 
 /** X25519 ChaCha20-IETF-Poly1305 encrypted header packet. */
@@ -170,10 +169,17 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
   @Override
   public void encrypt(byte[] unencryptedBytes, SecretKey sharedKey)
       throws GeneralSecurityException {
-    SecureRandom.getInstanceStrong().nextBytes(nonce);
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.ENCRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
-    byte[] encryptedPayloadWithMAC = cipher.doFinal(unencryptedBytes);
+    NonceGenerator.getInstance().nextNonce(nonce);
+    byte[] encryptedPayloadWithMAC = new byte[unencryptedBytes.length + MAC_SIZE];
+    SegmentCipher.newInstance()
+        .encrypt(
+            sharedKey,
+            nonce,
+            unencryptedBytes,
+            0,
+            unencryptedBytes.length,
+            encryptedPayloadWithMAC,
+            0);
     encryptedPayload =
         Arrays.copyOfRange(encryptedPayloadWithMAC, 0, encryptedPayloadWithMAC.length - MAC_SIZE);
     mac =
@@ -186,8 +192,17 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
   /** {@inheritDoc} */
   @Override
   public byte[] decrypt(SecretKey sharedKey) throws GeneralSecurityException {
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.DECRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
-    return cipher.doFinal(ArrayUtils.addAll(encryptedPayload, mac));
+    byte[] encryptedPayloadWithMAC = ArrayUtils.addAll(encryptedPayload, mac);
+    byte[] decryptedPayload = new byte[encryptedPayload.length];
+    SegmentCipher.newInstance()
+        .decrypt(
+            sharedKey,
+            nonce,
+            encryptedPayloadWithMAC,
+            0,
+            encryptedPayloadWithMAC.length,
+            decryptedPayload,
+            0);
+    return decryptedPayload;
   }
 }
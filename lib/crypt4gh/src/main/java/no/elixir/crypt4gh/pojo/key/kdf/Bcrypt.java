@@ -22,6 +22,10 @@
       The eight 32-bit words in the resulting hash are converted to little-endian format.
    6. Added new function "bcrypt_pbkdf" that employs a modified version of PBKDF2 to derive a key
       of arbitrary length from a provided input and salt
+   7. Since the salt and password passed to "bcrypt_hash" are always 64-byte SHA-512 hashes, they are
+      converted to sixteen 32-bit words once, and "bcrypt_hash" uses word-oriented versions of the
+      key schedule functions that index these words cyclically instead of calling "streamToWord".
+      The key schedule, the hashes and the SHA-512 digest are reused for every round of "bcrypt_pbkdf".
 
 */
 
@@ -41,8 +45,10 @@
 
 package no.elixir.crypt4gh.pojo.key.kdf;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * The basic protocol for the OpenBSD bcrypt password hashing schema which is based on Blowfish
@@ -532,7 +538,7 @@ public final class Bcrypt {
    * @param lr an array containing the two 32-bit half blocks
    * @param off the position in the array of the blocks
    */
-  private void encipher(int[] P, int[] S, int[] lr, int off) {
+  private static void encipher(int[] P, int[] S, int[] lr, int off) {
     int i, n, l = lr[off], r = lr[off + 1];
 
     l ^= P[0];
@@ -556,59 +562,152 @@ public final class Bcrypt {
   }
 
   /**
-   * Hashes the given input with SHA-512.
+   * Key the Blowfish cipher with a key of sixteen 32-bit words (a SHA-512 hash), as done by
+   * {@link #key(int[], int[], byte[])} for a 64-byte key.
    *
-   * @param input The array of bytes to be hashed
-   * @return A 64-byte long hash (512 bits)
-   * @throws RuntimeException if the SHA-512 algorithm is not available on the system
+   * @param P the P-array (part of key schedule)
+   * @param S the S-boxes (part of key schedule)
+   * @param key the sixteen words of the encryption key
+   * @param lr a two-word array used for the half blocks
+   */
+  private static void key(int[] P, int[] S, int[] key, int[] lr) {
+    int i;
+    int plen = P.length, slen = S.length;
+
+    for (i = 0; i < plen; i++) P[i] ^= key[i & 15];
+
+    lr[0] = 0;
+    lr[1] = 0;
+    for (i = 0; i < plen; i += 2) {
+      encipher(P, S, lr, 0);
+      P[i] = lr[0];
+      P[i + 1] = lr[1];
+    }
+
+    for (i = 0; i < slen; i += 2) {
+      encipher(P, S, lr, 0);
+      S[i] = lr[0];
+      S[i + 1] = lr[1];
+    }
+  }
+
+  /**
+   * Perform the "enhanced key schedule" step with a salt and key of sixteen 32-bit words each (two
+   * SHA-512 hashes), as done by {@link #enhancedKeySchedule(int[], int[], byte[], byte[])} for
+   * 64-byte salts and keys.
+   *
+   * @param P the P-array (part of key schedule)
+   * @param S the S-boxes (part of key schedule)
+   * @param data the sixteen words of the salt
+   * @param key the sixteen words of the encryption key
+   * @param lr a two-word array used for the half blocks
+   */
+  private static void enhancedKeySchedule(int[] P, int[] S, int[] data, int[] key, int[] lr) {
+    int i, doff = 0;
+    int plen = P.length, slen = S.length;
+
+    for (i = 0; i < plen; i++) P[i] ^= key[i & 15];
+
+    lr[0] = 0;
+    lr[1] = 0;
+    for (i = 0; i < plen; i += 2) {
+      lr[0] ^= data[doff++ & 15];
+      lr[1] ^= data[doff++ & 15];
+      encipher(P, S, lr, 0);
+      P[i] = lr[0];
+      P[i + 1] = lr[1];
+    }
+
+    for (i = 0; i < slen; i += 2) {
+      lr[0] ^= data[doff++ & 15];
+      lr[1] ^= data[doff++ & 15];
+      encipher(P, S, lr, 0);
+      S[i] = lr[0];
+      S[i + 1] = lr[1];
+    }
+  }
+
+  /**
+   * Finishes the SHA-512 hash of the data passed to the digest and stores it as sixteen big-endian
+   * 32-bit words, the same words that {@link #streamToWord(byte[], int[])} would extract from it.
+   *
+   * @param digest The SHA-512 digest holding the data to hash
+   * @param hash A 64-byte array to store the hash in
+   * @param words A 16-word array to store the words of the hash in
+   * @throws RuntimeException if the hash can't be stored in the array
    */
-  private static byte[] hashSHA512(byte[] input) {
+  private static void hashSHA512(MessageDigest digest, byte[] hash, int[] words) {
     try {
-      MessageDigest digest = MessageDigest.getInstance("SHA-512");
-      return digest.digest(input);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("SHA-512 algorithm not available", e);
+      digest.digest(hash, 0, hash.length);
+    } catch (DigestException e) {
+      throw new RuntimeException("SHA-512 hash could not be computed", e);
+    }
+    for (int i = 0; i < words.length; i++) {
+      words[i] =
+          (hash[i * 4] & 0xff) << 24
+              | (hash[i * 4 + 1] & 0xff) << 16
+              | (hash[i * 4 + 2] & 0xff) << 8
+              | (hash[i * 4 + 3] & 0xff);
     }
   }
 
   /**
-   * Hashes the given password and salt with BCrypt using the magic value for bcrypt_pbkdf. Returns
-   * the resulting hash in little-endian format (eight 32-bit words)
+   * Hashes the given password and salt with BCrypt using the magic value for bcrypt_pbkdf, and
+   * stores the resulting hash in little-endian format (eight 32-bit words). The key schedule and
+   * the other arrays are supplied by the caller, so that they can be reused for every round.
    *
-   * @param salt The salt bytes (should be pre-hashed with SHA-512)
-   * @param password The password bytes (should be pre-hashed with SHA-512)
-   * @return A 32-byte BCrypt hash (hashed from "OxychromaticBlowfishSwatDynamite")
+   * @param salt The sixteen words of the salt (pre-hashed with SHA-512)
+   * @param password The sixteen words of the password (pre-hashed with SHA-512)
+   * @param P the P-array (part of key schedule)
+   * @param S the S-boxes (part of key schedule)
+   * @param cdata an eight-word array used for the magic value being encrypted
+   * @param lr a two-word array used for the half blocks
+   * @param hash A 32-byte array to store the BCrypt hash (of "OxychromaticBlowfishSwatDynamite")
    */
-  private static byte[] bcrypt_hash(byte[] salt, byte[] password) {
-    long rounds = 1 << 6; // bcrypt_pbkdf uses a hardcoded cost factor of 6 for bcrypt (64 rounds)
-
-    Bcrypt bcrypt = new Bcrypt();
-    byte[] hash = bcrypt.cryptRaw(rounds, salt, password, bcrypt_pbkdf_ciphertext.clone());
-
-    // convert 32-bit words (4 bytes) to little-endian
-    for (int i = 0; i < 32; i += 4) {
-      byte tmp0 = hash[i];
-      byte tmp1 = hash[i + 1];
-      byte tmp2 = hash[i + 2];
-      byte tmp3 = hash[i + 3];
-      hash[i] = tmp3;
-      hash[i + 1] = tmp2;
-      hash[i + 2] = tmp1;
-      hash[i + 3] = tmp0;
+  private static void bcrypt_hash(
+      int[] salt, int[] password, int[] P, int[] S, int[] cdata, int[] lr, byte[] hash) {
+    // bcrypt_pbkdf uses a hardcoded cost factor of 6 for bcrypt (64 rounds)
+    int rounds = 1 << 6;
+
+    System.arraycopy(P_orig, 0, P, 0, P.length);
+    System.arraycopy(S_orig, 0, S, 0, S.length);
+    System.arraycopy(bcrypt_pbkdf_ciphertext, 0, cdata, 0, cdata.length);
+
+    enhancedKeySchedule(P, S, salt, password, lr);
+
+    for (int roundCount = 0; roundCount != rounds; roundCount++) {
+      key(P, S, salt, lr);
+      key(P, S, password, lr);
     }
 
-    return hash;
+    for (int i = 0; i < 64; i++) {
+      for (int j = 0; j < (cdata.length >> 1); j++) {
+        encipher(P, S, cdata, j << 1);
+      }
+    }
+
+    // output the 32-bit words (4 bytes) in little-endian order
+    for (int i = 0, j = 0; i < cdata.length; i++) {
+      hash[j++] = (byte) (cdata[i] & 0xff);
+      hash[j++] = (byte) ((cdata[i] >> 8) & 0xff);
+      hash[j++] = (byte) ((cdata[i] >> 16) & 0xff);
+      hash[j++] = (byte) ((cdata[i] >> 24) & 0xff);
+    }
   }
 
   /**
    * Derives a new key of arbitrary length from the provided password and salt using the
    * "bcrypt_pbkdf" key derivation function
    *
+   * <p>All the working memory (the Blowfish key schedule, the hashes and the SHA-512 digest) is
+   * allocated once and reused for every round, and cleared before returning.
+   *
    * @param password The original password that should be stretched
    * @param salt a 16-byte salt
    * @param rounds The number of rounds to use for PBDKF2
    * @param keyLength The desired length for the new key
    * @return a hash of length specified by the keyLength parameter
+   * @throws RuntimeException if the SHA-512 algorithm is not available on the system
    * @see <a href="https://flak.tedunangst.com/post/bcrypt-pbkdf">bcrypt-pbkdf</a>
    */
   public static byte[] bcrypt_pbkdf(byte[] password, byte[] salt, int rounds, int keyLength) {
@@ -617,28 +716,42 @@ public final class Bcrypt {
     int blocks = (keyLength + BCRYPT_PBKDF_BLOCK_SIZE - 1) / BCRYPT_PBKDF_BLOCK_SIZE;
     byte[] keybuffer = new byte[BCRYPT_PBKDF_BLOCK_SIZE * blocks];
 
-    byte[] passwordSHA512 = hashSHA512(password);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-512");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-512 algorithm not available", e);
+    }
+
+    int[] P = new int[P_orig.length];
+    int[] S = new int[S_orig.length];
+    int[] cdata = new int[bcrypt_pbkdf_ciphertext.length];
+    int[] lr = new int[2];
+    byte[] sha512 = new byte[64];
+    int[] passwordSHA512 = new int[16];
+    int[] saltSHA512 = new int[16];
+    byte[] hashValue = new byte[BCRYPT_PBKDF_BLOCK_SIZE]; // hash from single round
+    byte[] blockHash = new byte[BCRYPT_PBKDF_BLOCK_SIZE]; // running merger of all round hashes
+
+    digest.update(password);
+    hashSHA512(digest, sha512, passwordSHA512);
 
     for (int count = 1; count <= blocks; count++) {
       // append 4-byte block counter to the end of the salt
-      if (salt.length > Integer.MAX_VALUE - 4) {
-        throw new IllegalArgumentException("Salt length is too large and may cause an overflow.");
-      }
-      byte[] blockSalt = new byte[salt.length + 4];
-      System.arraycopy(salt, 0, blockSalt, 0, salt.length);
-      blockSalt[blockSalt.length - 4] = (byte) ((count >> 24) & 0xff);
-      blockSalt[blockSalt.length - 3] = (byte) ((count >> 16) & 0xff);
-      blockSalt[blockSalt.length - 2] = (byte) ((count >> 8) & 0xff);
-      blockSalt[blockSalt.length - 1] = (byte) (count & 0xff);
-
-      byte[] saltSHA512 = hashSHA512(blockSalt);
-      byte[] hashValue = bcrypt_hash(saltSHA512, passwordSHA512); // hash from single round
-      byte[] blockHash = new byte[hashValue.length]; // running merger of hashes from all rounds
+      digest.update(salt);
+      digest.update((byte) ((count >> 24) & 0xff));
+      digest.update((byte) ((count >> 16) & 0xff));
+      digest.update((byte) ((count >> 8) & 0xff));
+      digest.update((byte) (count & 0xff));
+
+      hashSHA512(digest, sha512, saltSHA512);
+      bcrypt_hash(saltSHA512, passwordSHA512, P, S, cdata, lr, hashValue);
       System.arraycopy(hashValue, 0, blockHash, 0, hashValue.length);
 
       for (long i = 1; i < rounds; i++) {
-        saltSHA512 = hashSHA512(hashValue); // update salt based on previous hash
-        hashValue = bcrypt_hash(saltSHA512, passwordSHA512);
+        digest.update(hashValue); // update salt based on previous hash
+        hashSHA512(digest, sha512, saltSHA512);
+        bcrypt_hash(saltSHA512, passwordSHA512, P, S, cdata, lr, hashValue);
         for (int j = 0; j < hashValue.length; j++) {
           blockHash[j] ^= hashValue[j]; // combine running hash with new round-hash using XOR
         }
@@ -653,6 +766,16 @@ public final class Bcrypt {
     byte[] finalKey = new byte[keyLength];
     System.arraycopy(keybuffer, 0, finalKey, 0, keyLength);
 
+    Arrays.fill(P, 0);
+    Arrays.fill(S, 0);
+    Arrays.fill(cdata, 0);
+    Arrays.fill(sha512, (byte) 0);
+    Arrays.fill(passwordSHA512, 0);
+    Arrays.fill(saltSHA512, 0);
+    Arrays.fill(hashValue, (byte) 0);
+    Arrays.fill(blockHash, (byte) 0);
+    Arrays.fill(keybuffer, (byte) 0);
+
     return finalKey;
   }
 }
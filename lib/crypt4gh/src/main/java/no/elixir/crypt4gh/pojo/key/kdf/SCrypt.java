@@ -2,16 +2,29 @@
 // This code was copied from the repository: https://github.com/wg/scrypt
 // It combines code from "com/lambdaworks/crypto/SCrypt.java" and
 // "com/lambdaworks/crypto/PBKDF.java",
-// but excludes functions related to using a native SCrypt library
+// but excludes functions related to using a native SCrypt library.
+//
+// Changes from the original code:
+//
+//   1. The mixing functions work on 32-bit words (int[]) instead of bytes, so the state is only
+//      converted from and to bytes once, before and after the mixing, and Salsa20/8 keeps its
+//      state in local variables. No memory is allocated inside the mixing loops.
+//   2. The p independent SMix lanes are computed in parallel when p > 1, each thread reusing
+//      one set of scratch arrays for all the lanes it computes.
+//   3. The public byte-oriented mixing functions are kept, deprecated, as wrappers converting to
+//      and from words around the private word-oriented ones.
 
 // Copyright (C) 2011 - Will Glozer.  All rights reserved.
 
 package no.elixir.crypt4gh.pojo.key.kdf;
 
 import static java.lang.Integer.MAX_VALUE;
+import static java.lang.Integer.rotateLeft;
 import static java.lang.System.arraycopy;
 
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -28,6 +41,9 @@ public class SCrypt {
    * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf">scrypt
    * KDF</a>.
    *
+   * <p>When p &gt; 1, the SMix lanes are computed in parallel on the common fork-join pool, using
+   * at most one scratch area of 128 * r * N bytes per thread.
+   *
    * @param passwd Password.
    * @param salt Salt.
    * @param N CPU cost parameter.
@@ -51,21 +67,49 @@ public class SCrypt {
     byte[] DK = new byte[dkLen];
 
     byte[] B = new byte[128 * r * p];
-    byte[] XY = new byte[256 * r];
-    byte[] V = new byte[128 * r * N];
-    int i;
+    int[] B32 = new int[32 * r * p];
 
     pbkdf2(mac, salt, 1, B, p * 128 * r);
+    decode(B, 0, B32);
 
-    for (i = 0; i < p; i++) {
-      smix(B, i * 128 * r, r, N, V, XY);
+    int threads = Math.min(p, Runtime.getRuntime().availableProcessors());
+    if (threads == 1) {
+      smixLanes(B32, r, N, p, 0, 1);
+    } else {
+      IntStream.range(0, threads).parallel().forEach(t -> smixLanes(B32, r, N, p, t, threads));
     }
 
+    encode(B32, B, 0);
     pbkdf2(mac, B, 1, DK, dkLen);
 
+    Arrays.fill(B, (byte) 0);
+    Arrays.fill(B32, 0);
     return DK;
   }
 
+  /**
+   * Performs the SMix operation on every {@code step}th lane, starting with lane {@code first},
+   * reusing the same scratch arrays for all of them.
+   *
+   * @param B The words of all the lanes.
+   * @param r The block size parameter.
+   * @param N The iteration count.
+   * @param p The number of lanes.
+   * @param first The first lane to mix.
+   * @param step The distance between the lanes to mix.
+   */
+  private static void smixLanes(int[] B, int r, int N, int p, int first, int step) {
+    int[] V = new int[32 * r * N];
+    int[] XY = new int[64 * r];
+    int[] X = new int[16];
+    for (int i = first; i < p; i += step) {
+      smix(B, i * 32 * r, r, N, V, XY, X);
+    }
+    Arrays.fill(V, 0);
+    Arrays.fill(XY, 0);
+    Arrays.fill(X, 0);
+  }
+
   // Note: the documentation for smix below was generated by ChatGPT
   /**
    * Performs the SMix operation in the Scrypt key derivation function.
@@ -74,32 +118,34 @@ public class SCrypt {
    * and Salsa20/8. It strengthens the input by repeatedly transforming it, making password hashing
    * more resistant to attacks.
    *
-   * @param B The input byte array containing data to be mixed.
+   * @param B The input words containing data to be mixed.
    * @param Bi The starting index in `B` where the mixing begins.
    * @param r The block size parameter, determining memory usage.
    * @param N The iteration count, which controls computational cost.
-   * @param V A temporary storage array used for the mixing process.
-   * @param XY A workspace array used for intermediate calculations.
+   * @param V A temporary storage array of 32 * r * N words used for the mixing process.
+   * @param XY A workspace array of 64 * r words used for intermediate calculations.
+   * @param X A workspace array of 16 words used by BlockMix.
    */
-  public static void smix(byte[] B, int Bi, int r, int N, byte[] V, byte[] XY) {
+  private static void smix(int[] B, int Bi, int r, int N, int[] V, int[] XY, int[] X) {
+    int blockWords = 32 * r;
     int Xi = 0;
-    int Yi = 128 * r;
+    int Yi = blockWords;
     int i;
 
-    arraycopy(B, Bi, XY, Xi, 128 * r);
+    arraycopy(B, Bi, XY, Xi, blockWords);
 
     for (i = 0; i < N; i++) {
-      arraycopy(XY, Xi, V, i * (128 * r), 128 * r);
-      blockmix_salsa8(XY, Xi, Yi, r);
+      arraycopy(XY, Xi, V, i * blockWords, blockWords);
+      blockmix_salsa8(XY, Xi, Yi, r, X);
     }
 
     for (i = 0; i < N; i++) {
       int j = integerify(XY, Xi, r) & (N - 1);
-      blockxor(V, j * (128 * r), XY, Xi, 128 * r);
-      blockmix_salsa8(XY, Xi, Yi, r);
+      blockxor(V, j * blockWords, XY, Xi, blockWords);
+      blockmix_salsa8(XY, Xi, Yi, r, X);
     }
 
-    arraycopy(XY, Xi, B, Bi, 128 * r);
+    arraycopy(XY, Xi, B, Bi, blockWords);
   }
 
   // Note: the documentation for blockmix_salsa8 below was generated by ChatGPT
@@ -110,115 +156,232 @@ public class SCrypt {
    * XOR transformations, and uses Salsa20/8 for diffusion, rearranging the blocks in a way that
    * strengthens security against parallel brute-force attacks.
    *
-   * @param BY The input byte array, which is transformed in place.
+   * @param BY The input words, which are transformed in place.
    * @param Bi The starting index of `BY` where the operation begins.
    * @param Yi The workspace index for intermediate results.
    * @param r The block size parameter, determining memory usage.
+   * @param X A workspace array of 16 words.
    */
-  public static void blockmix_salsa8(byte[] BY, int Bi, int Yi, int r) {
-    byte[] X = new byte[64];
+  private static void blockmix_salsa8(int[] BY, int Bi, int Yi, int r, int[] X) {
     int i;
 
-    arraycopy(BY, Bi + (2 * r - 1) * 64, X, 0, 64);
+    arraycopy(BY, Bi + (2 * r - 1) * 16, X, 0, 16);
 
     for (i = 0; i < 2 * r; i++) {
-      blockxor(BY, i * 64, X, 0, 64);
+      blockxor(BY, Bi + i * 16, X, 0, 16);
       salsa20_8(X);
-      arraycopy(X, 0, BY, Yi + (i * 64), 64);
+      arraycopy(X, 0, BY, Yi + (i * 16), 16);
     }
 
     for (i = 0; i < r; i++) {
-      arraycopy(BY, Yi + (i * 2) * 64, BY, Bi + (i * 64), 64);
+      arraycopy(BY, Yi + (i * 2) * 16, BY, Bi + (i * 16), 16);
     }
 
     for (i = 0; i < r; i++) {
-      arraycopy(BY, Yi + (i * 2 + 1) * 64, BY, Bi + (i + r) * 64, 64);
+      arraycopy(BY, Yi + (i * 2 + 1) * 16, BY, Bi + (i + r) * 16, 16);
+    }
+  }
+
+  // Note: the documentation for salsa20_8 below was generated by ChatGPT
+  /**
+   * Applies the Salsa20/8 core hash function to a 64-byte block.
+   *
+   * <p>This function performs eight rounds of the Salsa20 hash function on a 64-byte input block.
+   * It is a key component in Scrypt's memory-hard function, introducing significant diffusion and
+   * non-linearity.
+   *
+   * @param B The 16 words containing the block to be transformed.
+   */
+  private static void salsa20_8(int[] B) {
+    int x0 = B[0], x1 = B[1], x2 = B[2], x3 = B[3];
+    int x4 = B[4], x5 = B[5], x6 = B[6], x7 = B[7];
+    int x8 = B[8], x9 = B[9], x10 = B[10], x11 = B[11];
+    int x12 = B[12], x13 = B[13], x14 = B[14], x15 = B[15];
+
+    for (int i = 8; i > 0; i -= 2) {
+      x4 ^= rotateLeft(x0 + x12, 7);
+      x8 ^= rotateLeft(x4 + x0, 9);
+      x12 ^= rotateLeft(x8 + x4, 13);
+      x0 ^= rotateLeft(x12 + x8, 18);
+      x9 ^= rotateLeft(x5 + x1, 7);
+      x13 ^= rotateLeft(x9 + x5, 9);
+      x1 ^= rotateLeft(x13 + x9, 13);
+      x5 ^= rotateLeft(x1 + x13, 18);
+      x14 ^= rotateLeft(x10 + x6, 7);
+      x2 ^= rotateLeft(x14 + x10, 9);
+      x6 ^= rotateLeft(x2 + x14, 13);
+      x10 ^= rotateLeft(x6 + x2, 18);
+      x3 ^= rotateLeft(x15 + x11, 7);
+      x7 ^= rotateLeft(x3 + x15, 9);
+      x11 ^= rotateLeft(x7 + x3, 13);
+      x15 ^= rotateLeft(x11 + x7, 18);
+      x1 ^= rotateLeft(x0 + x3, 7);
+      x2 ^= rotateLeft(x1 + x0, 9);
+      x3 ^= rotateLeft(x2 + x1, 13);
+      x0 ^= rotateLeft(x3 + x2, 18);
+      x6 ^= rotateLeft(x5 + x4, 7);
+      x7 ^= rotateLeft(x6 + x5, 9);
+      x4 ^= rotateLeft(x7 + x6, 13);
+      x5 ^= rotateLeft(x4 + x7, 18);
+      x11 ^= rotateLeft(x10 + x9, 7);
+      x8 ^= rotateLeft(x11 + x10, 9);
+      x9 ^= rotateLeft(x8 + x11, 13);
+      x10 ^= rotateLeft(x9 + x8, 18);
+      x12 ^= rotateLeft(x15 + x14, 7);
+      x13 ^= rotateLeft(x12 + x15, 9);
+      x14 ^= rotateLeft(x13 + x12, 13);
+      x15 ^= rotateLeft(x14 + x13, 18);
     }
+
+    B[0] += x0;
+    B[1] += x1;
+    B[2] += x2;
+    B[3] += x3;
+    B[4] += x4;
+    B[5] += x5;
+    B[6] += x6;
+    B[7] += x7;
+    B[8] += x8;
+    B[9] += x9;
+    B[10] += x10;
+    B[11] += x11;
+    B[12] += x12;
+    B[13] += x13;
+    B[14] += x14;
+    B[15] += x15;
   }
 
-  // Note: the documentation for R below was generated by ChatGPT
   /**
-   * Performs a left rotation (circular shift) on a 32-bit integer.
+   * Performs XOR on a number of elements from D with elements from S (D is updated).
+   *
+   * @param S an int array
+   * @param Si the position of the first element to XOR from S.
+   * @param D an int array
+   * @param Di the position of the first element to XOR from D.
+   * @param len the number of elements to apply the XOR operator to
+   */
+  private static void blockxor(int[] S, int Si, int[] D, int Di, int len) {
+    for (int i = 0; i < len; i++) {
+      D[Di + i] ^= S[Si + i];
+    }
+  }
+
+  // Note: the documentation for integerify below was generated by ChatGPT
+  /**
+   * Extracts the first 32-bit word of the last 64-byte block of a `2r * 64`-byte region.
    *
-   * <p>This function is a helper used in the Salsa20/8 function to rotate bits of an integer by `b`
-   * positions to the left. Any bits shifted out from the left are reintroduced on the right,
-   * maintaining the integrity of the data.
+   * <p>This function is used in the Scrypt key derivation function (KDF) to retrieve an integer
+   * from the last 64-byte block of a `2r * 64`-byte region. The extracted integer is typically used
+   * as an index for accessing memory during the Scrypt hashing process.
+   *
+   * @param B The words containing Scrypt state data.
+   * @param Bi The initial offset within `B` (before adjustment).
+   * @param r The block size parameter in Scrypt, which determines the memory layout.
+   * @return The 32-bit word at the computed position.
+   */
+  private static int integerify(int[] B, int Bi, int r) {
+    return B[Bi + (2 * r - 1) * 16];
+  }
+
+  /**
+   * Converts bytes to 32-bit little-endian words.
+   *
+   * @param bytes the bytes to convert
+   * @param offset the position of the first byte to convert
+   * @param words the array to write the words to, which is filled
+   */
+  private static void decode(byte[] bytes, int offset, int[] words) {
+    for (int i = 0; i < words.length; i++) {
+      int b = offset + i * 4;
+      words[i] =
+          (bytes[b] & 0xff)
+              | (bytes[b + 1] & 0xff) << 8
+              | (bytes[b + 2] & 0xff) << 16
+              | (bytes[b + 3] & 0xff) << 24;
+    }
+  }
+
+  /**
+   * Converts 32-bit words to bytes in little-endian order.
+   *
+   * @param words the words to convert
+   * @param bytes the array to write the bytes to
+   * @param offset the position to write the first byte at
+   */
+  private static void encode(int[] words, byte[] bytes, int offset) {
+    for (int i = 0; i < words.length; i++) {
+      int b = offset + i * 4;
+      bytes[b] = (byte) words[i];
+      bytes[b + 1] = (byte) (words[i] >>> 8);
+      bytes[b + 2] = (byte) (words[i] >>> 16);
+      bytes[b + 3] = (byte) (words[i] >>> 24);
+    }
+  }
+
+  /**
+   * Performs the SMix operation on bytes.
+   *
+   * @param B The input byte array containing data to be mixed.
+   * @param Bi The starting index in `B` where the mixing begins.
+   * @param r The block size parameter, determining memory usage.
+   * @param N The iteration count, which controls computational cost.
+   * @param V A temporary storage array used for the mixing process (unused).
+   * @param XY A workspace array used for intermediate calculations (unused).
+   * @deprecated The mixing functions work on 32-bit words internally. This method converts the
+   *     block to words and back, and is only kept for compatibility.
+   */
+  @Deprecated
+  public static void smix(byte[] B, int Bi, int r, int N, byte[] V, byte[] XY) {
+    int[] B32 = new int[32 * r];
+    decode(B, Bi, B32);
+    smix(B32, 0, r, N, new int[32 * r * N], new int[64 * r], new int[16]);
+    encode(B32, B, Bi);
+  }
+
+  /**
+   * Performs the BlockMix operation using the Salsa20/8 function on bytes.
+   *
+   * @param BY The input byte array, which is transformed in place.
+   * @param Bi The starting index of `BY` where the operation begins.
+   * @param Yi The workspace index for intermediate results.
+   * @param r The block size parameter, determining memory usage.
+   * @deprecated The mixing functions work on 32-bit words internally. This method converts the
+   *     array to words and back, and is only kept for compatibility.
+   */
+  @Deprecated
+  public static void blockmix_salsa8(byte[] BY, int Bi, int Yi, int r) {
+    int[] BY32 = new int[BY.length / 4];
+    decode(BY, 0, BY32);
+    blockmix_salsa8(BY32, Bi / 4, Yi / 4, r, new int[16]);
+    encode(BY32, BY, 0);
+  }
+
+  /**
+   * Performs a left rotation (circular shift) on a 32-bit integer.
    *
    * @param a The integer value to rotate.
    * @param b The number of bits to rotate to the left.
    * @return The result of rotating `a` left by `b` bits.
+   * @deprecated Use {@link Integer#rotateLeft(int, int)}.
    */
+  @Deprecated
   public static int R(int a, int b) {
-    return (a << b) | (a >>> (32 - b));
+    return rotateLeft(a, b);
   }
 
-  // Note: the documentation for salsa20_8 below was generated by ChatGPT
   /**
    * Applies the Salsa20/8 core hash function to a 64-byte block.
    *
-   * <p>This function performs eight rounds of the Salsa20 hash function on a 64-byte input block.
-   * It is a key component in Scrypt's memory-hard function, introducing significant diffusion and
-   * non-linearity.
-   *
    * @param B The input byte array containing the block to be transformed.
+   * @deprecated The mixing functions work on 32-bit words internally. This method converts the
+   *     block to words and back, and is only kept for compatibility.
    */
+  @Deprecated
   public static void salsa20_8(byte[] B) {
     int[] B32 = new int[16];
-    int[] x = new int[16];
-    int i;
-
-    for (i = 0; i < 16; i++) {
-      B32[i] = (B[i * 4 + 0] & 0xff) << 0;
-      B32[i] |= (B[i * 4 + 1] & 0xff) << 8;
-      B32[i] |= (B[i * 4 + 2] & 0xff) << 16;
-      B32[i] |= (B[i * 4 + 3] & 0xff) << 24;
-    }
-
-    arraycopy(B32, 0, x, 0, 16);
-
-    for (i = 8; i > 0; i -= 2) {
-      x[4] ^= R(x[0] + x[12], 7);
-      x[8] ^= R(x[4] + x[0], 9);
-      x[12] ^= R(x[8] + x[4], 13);
-      x[0] ^= R(x[12] + x[8], 18);
-      x[9] ^= R(x[5] + x[1], 7);
-      x[13] ^= R(x[9] + x[5], 9);
-      x[1] ^= R(x[13] + x[9], 13);
-      x[5] ^= R(x[1] + x[13], 18);
-      x[14] ^= R(x[10] + x[6], 7);
-      x[2] ^= R(x[14] + x[10], 9);
-      x[6] ^= R(x[2] + x[14], 13);
-      x[10] ^= R(x[6] + x[2], 18);
-      x[3] ^= R(x[15] + x[11], 7);
-      x[7] ^= R(x[3] + x[15], 9);
-      x[11] ^= R(x[7] + x[3], 13);
-      x[15] ^= R(x[11] + x[7], 18);
-      x[1] ^= R(x[0] + x[3], 7);
-      x[2] ^= R(x[1] + x[0], 9);
-      x[3] ^= R(x[2] + x[1], 13);
-      x[0] ^= R(x[3] + x[2], 18);
-      x[6] ^= R(x[5] + x[4], 7);
-      x[7] ^= R(x[6] + x[5], 9);
-      x[4] ^= R(x[7] + x[6], 13);
-      x[5] ^= R(x[4] + x[7], 18);
-      x[11] ^= R(x[10] + x[9], 7);
-      x[8] ^= R(x[11] + x[10], 9);
-      x[9] ^= R(x[8] + x[11], 13);
-      x[10] ^= R(x[9] + x[8], 18);
-      x[12] ^= R(x[15] + x[14], 7);
-      x[13] ^= R(x[12] + x[15], 9);
-      x[14] ^= R(x[13] + x[12], 13);
-      x[15] ^= R(x[14] + x[13], 18);
-    }
-
-    for (i = 0; i < 16; ++i) B32[i] = x[i] + B32[i];
-
-    for (i = 0; i < 16; i++) {
-      B[i * 4 + 0] = (byte) (B32[i] >> 0 & 0xff);
-      B[i * 4 + 1] = (byte) (B32[i] >> 8 & 0xff);
-      B[i * 4 + 2] = (byte) (B32[i] >> 16 & 0xff);
-      B[i * 4 + 3] = (byte) (B32[i] >> 24 & 0xff);
-    }
+    decode(B, 0, B32);
+    salsa20_8(B32);
+    encode(B32, B, 0);
   }
 
   /**
@@ -229,38 +392,35 @@ public class SCrypt {
    * @param D a byte array
    * @param Di the position of the first element to XOR from D.
    * @param len the number of elements to apply the XOR operator to
+   * @deprecated The mixing functions work on 32-bit words internally, and no longer use this
+   *     method. It is only kept for compatibility.
    */
+  @Deprecated
   public static void blockxor(byte[] S, int Si, byte[] D, int Di, int len) {
     for (int i = 0; i < len; i++) {
       D[Di + i] ^= S[Si + i];
     }
   }
 
-  // Note: the documentation for integerify below was generated by ChatGPT
   /**
-   * Extracts a 32-bit little-endian integer from a specific position in the byte array `B`.
-   *
-   * <p>This function is used in the Scrypt key derivation function (KDF) to retrieve an integer
-   * from the last 64-byte block of a `2r * 64`-byte region. The extracted integer is typically used
-   * as an index for accessing memory during the Scrypt hashing process.
+   * Extracts a 32-bit little-endian integer from the last 64-byte block of a `2r * 64`-byte region
+   * of the byte array `B`.
    *
    * @param B The input byte array containing Scrypt state data.
    * @param Bi The initial offset within `B` (before adjustment).
    * @param r The block size parameter in Scrypt, which determines the memory layout.
    * @return A 32-bit integer extracted from `B` at the computed position, interpreted in
    *     little-endian format.
+   * @deprecated The mixing functions work on 32-bit words internally, and no longer use this
+   *     method. It is only kept for compatibility.
    */
+  @Deprecated
   public static int integerify(byte[] B, int Bi, int r) {
-    int n;
-
     Bi += (2 * r - 1) * 64;
-
-    n = (B[Bi] & 0xff);
-    n |= (B[Bi + 1] & 0xff) << 8;
-    n |= (B[Bi + 2] & 0xff) << 16;
-    n |= (B[Bi + 3] & 0xff) << 24;
-
-    return n;
+    return (B[Bi] & 0xff)
+        | (B[Bi + 1] & 0xff) << 8
+        | (B[Bi + 2] & 0xff) << 16
+        | (B[Bi + 3] & 0xff) << 24;
   }
 
   /**
@@ -0,0 +1,216 @@
+package no.elixir.crypt4gh.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The default {@link SegmentBufferPool}: a bounded pool of direct buffers, with a pool of heap
+ * buffers alongside.
+ *
+ * <p>At most {@code maxDirectBuffers} direct buffers are ever allocated, which bounds the direct
+ * memory used. When they are all in use, {@link #acquire(int)} falls back to a heap buffer and
+ * counts the pool as exhausted. Released heap buffers are kept for reuse up to {@code
+ * maxPooledHeapBuffers}, and the rest are left to the garbage collector. Buffers are pooled by
+ * capacity, so in practice there is one pool for plaintext segments and one for encrypted
+ * segments. Buffers that are never released still count against the bound on direct buffers.
+ */
+public class BoundedSegmentBufferPool implements SegmentBufferPool {
+
+  /** The default maximum number of direct buffers (about 64 MiB of segments) */
+  public static final int DEFAULT_MAX_DIRECT_BUFFERS = 1024;
+
+  /** The default maximum number of heap buffers kept for reuse (about 64 MiB of segments) */
+  public static final int DEFAULT_MAX_POOLED_HEAP_BUFFERS = 1024;
+
+  private static final BoundedSegmentBufferPool ourInstance = new BoundedSegmentBufferPool();
+
+  /** The maximum number of direct buffers allocated */
+  private final int maxDirectBuffers;
+
+  /** The maximum number of heap buffers kept for reuse */
+  private final int maxPooledHeapBuffers;
+
+  /** The released direct buffers, by capacity */
+  private final Map<Integer, Queue<ByteBuffer>> directBuffers = new ConcurrentHashMap<>();
+
+  /** The released heap buffers, by capacity */
+  private final Map<Integer, Queue<ByteBuffer>> heapBuffers = new ConcurrentHashMap<>();
+
+  /** The number of direct buffers allocated so far */
+  private final AtomicInteger directBuffersAllocated = new AtomicInteger();
+
+  /** The number of heap buffers currently kept for reuse */
+  private final AtomicInteger heapBuffersPooled = new AtomicInteger();
+
+  private final LongAdder acquisitions = new LongAdder();
+  private final LongAdder reuses = new LongAdder();
+  private final LongAdder allocations = new LongAdder();
+  private final LongAdder exhaustions = new LongAdder();
+  private final LongAdder releases = new LongAdder();
+
+  /**
+   * Returns the pool shared by all the streams that are not given a pool of their own.
+   *
+   * @return the shared pool
+   */
+  public static BoundedSegmentBufferPool getInstance() {
+    return ourInstance;
+  }
+
+  /** Creates a pool with the default bounds. */
+  public BoundedSegmentBufferPool() {
+    this(DEFAULT_MAX_DIRECT_BUFFERS, DEFAULT_MAX_POOLED_HEAP_BUFFERS);
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxDirectBuffers the maximum number of direct buffers to allocate
+   * @param maxPooledHeapBuffers the maximum number of heap buffers to keep for reuse
+   */
+  public BoundedSegmentBufferPool(int maxDirectBuffers, int maxPooledHeapBuffers) {
+    if (maxDirectBuffers < 0 || maxPooledHeapBuffers < 0) {
+      throw new IllegalArgumentException(
+          "Pool bounds can't be negative: " + maxDirectBuffers + ", " + maxPooledHeapBuffers);
+    }
+    this.maxDirectBuffers = maxDirectBuffers;
+    this.maxPooledHeapBuffers = maxPooledHeapBuffers;
+  }
+
+  @Override
+  public ByteBuffer acquire(int capacity) {
+    acquisitions.increment();
+    ByteBuffer buffer = poll(directBuffers, capacity);
+    if (buffer != null) {
+      reuses.increment();
+      return buffer;
+    }
+    if (directBuffersAllocated.getAndUpdate(n -> n < maxDirectBuffers ? n + 1 : n)
+        < maxDirectBuffers) {
+      allocations.increment();
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    exhaustions.increment();
+    return acquireHeapBuffer(capacity);
+  }
+
+  @Override
+  public ByteBuffer acquireHeap(int capacity) {
+    acquisitions.increment();
+    return acquireHeapBuffer(capacity);
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    releases.increment();
+    buffer.clear();
+    if (buffer.isDirect()) {
+      queue(directBuffers, buffer.capacity()).add(buffer);
+    } else if (heapBuffersPooled.incrementAndGet() <= maxPooledHeapBuffers) {
+      queue(heapBuffers, buffer.capacity()).add(buffer);
+    } else {
+      heapBuffersPooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the pool statistics.
+   *
+   * @return the statistics
+   */
+  public Statistics getStatistics() {
+    return new Statistics(
+        acquisitions.sum(),
+        reuses.sum(),
+        allocations.sum(),
+        exhaustions.sum(),
+        releases.sum(),
+        directBuffersAllocated.get());
+  }
+
+  /**
+   * Takes a pooled heap buffer, or allocates a new one.
+   *
+   * @param capacity the capacity of the buffer
+   * @return the heap buffer
+   */
+  private ByteBuffer acquireHeapBuffer(int capacity) {
+    ByteBuffer buffer = poll(heapBuffers, capacity);
+    if (buffer != null) {
+      heapBuffersPooled.decrementAndGet();
+      reuses.increment();
+      return buffer;
+    }
+    allocations.increment();
+    return ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Takes a released buffer of the given capacity, if there is one.
+   *
+   * @param buffers the released buffers, by capacity
+   * @param capacity the capacity of the buffer
+   * @return the buffer, or null if there is none
+   */
+  private static ByteBuffer poll(Map<Integer, Queue<ByteBuffer>> buffers, int capacity) {
+    Queue<ByteBuffer> queue = buffers.get(capacity);
+    return queue == null ? null : queue.poll();
+  }
+
+  /**
+   * Gets the queue of released buffers of the given capacity, creating it if needed.
+   *
+   * @param buffers the released buffers, by capacity
+   * @param capacity the capacity of the buffers
+   * @return the queue
+   */
+  private static Queue<ByteBuffer> queue(Map<Integer, Queue<ByteBuffer>> buffers, int capacity) {
+    return buffers.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>());
+  }
+
+  /** A snapshot of the statistics of a pool. */
+  @ToString
+  @Getter
+  public static class Statistics {
+
+    /** The number of buffers borrowed */
+    private final long acquisitions;
+
+    /** The number of buffers borrowed that were taken from the pool */
+    private final long reuses;
+
+    /** The number of buffers borrowed that had to be allocated */
+    private final long allocations;
+
+    /** The number of times a direct buffer was asked for when none could be allocated */
+    private final long exhaustions;
+
+    /** The number of buffers returned to the pool */
+    private final long releases;
+
+    /** The number of direct buffers allocated, whether in use or pooled */
+    private final int directBuffersAllocated;
+
+    private Statistics(
+        long acquisitions,
+        long reuses,
+        long allocations,
+        long exhaustions,
+        long releases,
+        int directBuffersAllocated) {
+      this.acquisitions = acquisitions;
+      this.reuses = reuses;
+      this.allocations = allocations;
+      this.exhaustions = exhaustions;
+      this.releases = releases;
+      this.directBuffersAllocated = directBuffersAllocated;
+    }
+  }
+}
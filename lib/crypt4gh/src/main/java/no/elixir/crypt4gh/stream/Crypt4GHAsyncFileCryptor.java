@@ -0,0 +1,802 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static no.elixir.crypt4gh.pojo.header.Header.MAX_HEADER_LENGTH;
+import static no.elixir.crypt4gh.pojo.header.Header.UNENCRYPTED_HEADER_LENGTH;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
+import no.elixir.crypt4gh.pojo.header.HeaderPacket;
+import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+
+/**
+ * Encrypts and decrypts whole files asynchronously, without blocking a thread per file.
+ *
+ * <p>Files are read and written through {@link AsynchronousFileChannel}s, and the segments are
+ * encrypted or decrypted on a caller-supplied executor. Since every segment has a fixed size, the
+ * position of each segment in both the plaintext and the encrypted file is known in advance, so
+ * segments are processed independently and written straight to their final position. At most
+ * {@code maxSegmentsInFlight} segments of a file are being read, processed or written at any time,
+ * each with its own pair of buffers, which bounds the memory used per file. The buffers are direct
+ * buffers borrowed from a {@link SegmentBufferPool}, so that the channels read and write them
+ * without an intermediate copy, and they are returned to the pool when the file is done.
+ *
+ * <p>The encrypted files produced are identical in format to the ones produced by {@link
+ * Crypt4GHOutputStream}. A Data Edit List in the header of a file being decrypted is applied:
+ * segments holding no kept data are not read at all.
+ *
+ * <p>The methods return immediately. The returned futures complete with the size of the file
+ * written, or exceptionally with an {@link IOException} or a {@link GeneralSecurityException}. A
+ * single cryptor can drive any number of files concurrently.
+ */
+public class Crypt4GHAsyncFileCryptor {
+
+  /** The number of bytes read at first when reading the header of a file to decrypt */
+  static final int INITIAL_HEADER_READ_SIZE = 4096;
+
+  /** The executor the segments are encrypted and decrypted on */
+  private final Executor executor;
+
+  /** The maximum number of segments of a file that are in flight at the same time */
+  private final int maxSegmentsInFlight;
+
+  /** The pool the segment buffers are borrowed from */
+  private final SegmentBufferPool segmentBufferPool;
+
+  /**
+   * Creates an asynchronous file cryptor, borrowing its buffers from the shared {@link
+   * BoundedSegmentBufferPool}.
+   *
+   * @param executor the executor to encrypt and decrypt segments on
+   * @param maxSegmentsInFlight the maximum number of segments of each file that are read,
+   *     processed or written at the same time
+   */
+  public Crypt4GHAsyncFileCryptor(Executor executor, int maxSegmentsInFlight) {
+    this(executor, maxSegmentsInFlight, BoundedSegmentBufferPool.getInstance());
+  }
+
+  /**
+   * Creates an asynchronous file cryptor.
+   *
+   * @param executor the executor to encrypt and decrypt segments on
+   * @param maxSegmentsInFlight the maximum number of segments of each file that are read,
+   *     processed or written at the same time
+   * @param segmentBufferPool the pool to borrow the segment buffers from
+   */
+  public Crypt4GHAsyncFileCryptor(
+      Executor executor, int maxSegmentsInFlight, SegmentBufferPool segmentBufferPool) {
+    if (executor == null) {
+      throw new IllegalArgumentException("An executor is required");
+    }
+    if (segmentBufferPool == null) {
+      throw new IllegalArgumentException("A segment buffer pool is required");
+    }
+    if (maxSegmentsInFlight < 1) {
+      throw new IllegalArgumentException(
+          "At least one segment must be in flight: " + maxSegmentsInFlight);
+    }
+    this.executor = executor;
+    this.maxSegmentsInFlight = maxSegmentsInFlight;
+    this.segmentBufferPool = segmentBufferPool;
+  }
+
+  /**
+   * Encrypts a file in Crypt4GH format. The output file is created or replaced.
+   *
+   * @param input the file to encrypt
+   * @param output the file to write the encrypted data to
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @return a future completing with the size of the encrypted file
+   */
+  public CompletableFuture<Long> encrypt(
+      Path input, Path output, PrivateKey writerPrivateKey, PublicKey readerPublicKey) {
+    return supplyAsync(
+            () -> {
+              SecretKey dataKey = KeyUtils.getInstance().generateSessionKey();
+              DataEncryptionParameters dataEncryptionParameters =
+                  new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+              HeaderPacket headerPacket =
+                  new X25519ChaCha20IETFPoly1305HeaderPacket(
+                      dataEncryptionParameters, writerPrivateKey, readerPublicKey);
+              byte[] header = new Header(Collections.singletonList(headerPacket)).serialize();
+              AsynchronousFileChannel inputChannel =
+                  AsynchronousFileChannel.open(input, StandardOpenOption.READ);
+              AsynchronousFileChannel outputChannel = null;
+              try {
+                outputChannel = openOutput(output);
+                return new Encryption(
+                    inputChannel, outputChannel, header, dataEncryptionParameters);
+              } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                closeQuietly(inputChannel);
+                closeQuietly(outputChannel);
+                throw e;
+              }
+            })
+        .thenCompose(Encryption::run);
+  }
+
+  /**
+   * Decrypts a Crypt4GH file, applying the Data Edit List in the header (if present). The output
+   * file is created or replaced.
+   *
+   * @param input the file to decrypt
+   * @param output the file to write the decrypted data to
+   * @param readerPrivateKey Recipient's private key.
+   * @return a future completing with the size of the decrypted file
+   */
+  public CompletableFuture<Long> decrypt(Path input, Path output, PrivateKey readerPrivateKey) {
+    CompletableFuture<AsynchronousFileChannel> inputChannelFuture =
+        supplyAsync(() -> AsynchronousFileChannel.open(input, StandardOpenOption.READ));
+    return inputChannelFuture
+        .thenCompose(
+            inputChannel ->
+                readHeaderDescriptor(inputChannel, ByteBuffer.allocate(INITIAL_HEADER_READ_SIZE)))
+        .thenCompose(
+            headerDescriptor ->
+                supplyAsync(
+                    () -> {
+                      Header header = new Header(headerDescriptor, readerPrivateKey);
+                      Collection<DataEncryptionParameters> dataEncryptionParametersList =
+                          Crypt4GHFileCryptor.getDataEncryptionParametersList(header);
+                      Optional<DataEditList> dataEditList = header.getDataEditList();
+                      AsynchronousFileChannel outputChannel = openOutput(output);
+                      try {
+                        return new Decryption(
+                            inputChannelFuture.join(),
+                            outputChannel,
+                            headerDescriptor.getBodyOffset(),
+                            dataEncryptionParametersList,
+                            dataEditList);
+                      } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                        closeQuietly(outputChannel);
+                        throw e;
+                      }
+                    }))
+        .whenComplete(
+            (decryption, e) -> {
+              if (e != null && !inputChannelFuture.isCompletedExceptionally()) {
+                closeQuietly(inputChannelFuture.join());
+              }
+            })
+        .thenCompose(Decryption::run);
+  }
+
+  /**
+   * Reads the header framing from the start of a file. If the header does not fit in what has been
+   * read, the lengths of the header packets read so far tell how much of the file to read next, so
+   * the header is read in as few reads as possible and never beyond {@link
+   * Header#MAX_HEADER_LENGTH}.
+   *
+   * @param channel the file to read the header from
+   * @param buffer the buffer to read into, holding the bytes of the file read so far
+   * @return a future completing with the header descriptor
+   */
+  private static CompletableFuture<HeaderDescriptor> readHeaderDescriptor(
+      AsynchronousFileChannel channel, ByteBuffer buffer) {
+    return read(channel, buffer, buffer.position())
+        .thenCompose(
+            length -> {
+              try {
+                return CompletableFuture.completedFuture(
+                    HeaderDescriptor.read(
+                        new ByteArrayInputStream(buffer.array(), 0, buffer.position())));
+              } catch (EOFException e) {
+                if (buffer.hasRemaining()) {
+                  return CompletableFuture.failedFuture(e);
+                }
+                long needed = getHeaderBytesNeeded(buffer);
+                if (needed > MAX_HEADER_LENGTH) {
+                  return CompletableFuture.failedFuture(
+                      new GeneralSecurityException(
+                          "Crypt4GH header is larger than "
+                              + MAX_HEADER_LENGTH
+                              + " bytes: "
+                              + needed));
+                }
+                // reading ahead saves a read per header packet when there are many of them
+                long size = Math.max(needed, Math.min(2L * buffer.position(), MAX_HEADER_LENGTH));
+                ByteBuffer larger = ByteBuffer.allocate((int) size);
+                larger.put(buffer.array(), 0, buffer.position());
+                return readHeaderDescriptor(channel, larger);
+              } catch (IOException | GeneralSecurityException e) {
+                return CompletableFuture.failedFuture(e);
+              }
+            });
+  }
+
+  /**
+   * Walks the header framing in the bytes read so far, which {@link HeaderDescriptor} has already
+   * validated, to find how many bytes of the file are needed to parse the header further: the
+   * whole header if the length of every header packet has been read, or up to the length of the
+   * next header packet otherwise.
+   *
+   * @param buffer the bytes read from the start of the file, at least the unencrypted part of the
+   *     header
+   * @return the number of bytes needed
+   */
+  private static long getHeaderBytesNeeded(ByteBuffer buffer) {
+    ByteBuffer framing = buffer.duplicate().flip().order(ByteOrder.LITTLE_ENDIAN);
+    int headerPacketCount = framing.getInt(UNENCRYPTED_HEADER_LENGTH - 4);
+    long needed = UNENCRYPTED_HEADER_LENGTH;
+    for (int i = 0; i < headerPacketCount; i++) {
+      if (needed + 4 > framing.limit()) {
+        return needed + 4;
+      }
+      needed += framing.getInt((int) needed);
+    }
+    return needed;
+  }
+
+  /**
+   * Runs a task on the executor.
+   *
+   * @param task the task to run
+   * @return a future completing with the result of the task, or exceptionally with the exception
+   *     it threw
+   */
+  private <T> CompletableFuture<T> supplyAsync(Callable<T> task) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(
+          () -> {
+            try {
+              future.complete(task.call());
+            } catch (Throwable e) {
+              future.completeExceptionally(e);
+            }
+          });
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Reads from a file until the buffer is full or the end of the file is reached.
+   *
+   * @param channel the file to read from
+   * @param buffer the buffer to read into
+   * @param position the position in the file to start reading at
+   * @return a future completing with the number of bytes read
+   */
+  private static CompletableFuture<Integer> read(
+      AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+    CompletableFuture<Integer> future = new CompletableFuture<>();
+    int start = buffer.position();
+    CompletionHandler<Integer, Long> handler =
+        new CompletionHandler<>() {
+          @Override
+          public void completed(Integer length, Long readPosition) {
+            if (length == -1 || !buffer.hasRemaining()) {
+              future.complete(buffer.position() - start);
+            } else {
+              channel.read(buffer, readPosition + length, readPosition + length, this);
+            }
+          }
+
+          @Override
+          public void failed(Throwable e, Long readPosition) {
+            future.completeExceptionally(e);
+          }
+        };
+    try {
+      channel.read(buffer, position, position, handler);
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Reads from a file until the buffer is full.
+   *
+   * @param channel the file to read from
+   * @param buffer the buffer to fill
+   * @param position the position in the file to start reading at
+   * @return a future completing when the buffer is full, or exceptionally with an EOFException if
+   *     the file ends first
+   */
+  private static CompletableFuture<Void> readFully(
+      AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+    return read(channel, buffer, position)
+        .thenCompose(
+            length ->
+                buffer.hasRemaining()
+                    ? CompletableFuture.failedFuture(
+                        new EOFException("Unexpected end of file at position " + position))
+                    : CompletableFuture.completedFuture(null));
+  }
+
+  /**
+   * Writes all the remaining bytes of a buffer to a file.
+   *
+   * @param channel the file to write to
+   * @param buffer the buffer to write
+   * @param position the position in the file to start writing at
+   * @return a future completing when the whole buffer has been written
+   */
+  private static CompletableFuture<Void> write(
+      AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    CompletionHandler<Integer, Long> handler =
+        new CompletionHandler<>() {
+          @Override
+          public void completed(Integer length, Long writePosition) {
+            if (buffer.hasRemaining()) {
+              channel.write(buffer, writePosition + length, writePosition + length, this);
+            } else {
+              future.complete(null);
+            }
+          }
+
+          @Override
+          public void failed(Throwable e, Long writePosition) {
+            future.completeExceptionally(e);
+          }
+        };
+    try {
+      channel.write(buffer, position, position, handler);
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Opens an output file for writing, replacing any existing file.
+   *
+   * @param output the output file
+   * @return the opened channel
+   * @throws IOException In case the file can't be opened.
+   */
+  private static AsynchronousFileChannel openOutput(Path output) throws IOException {
+    return AsynchronousFileChannel.open(
+        output,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Closes a channel, ignoring any exception, after a failure that is reported instead.
+   *
+   * @param channel the channel to close (or null if it was not opened)
+   */
+  private static void closeQuietly(AsynchronousFileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // the original failure is reported instead
+    }
+  }
+
+  /**
+   * Divides two positive numbers, rounding up.
+   *
+   * @param x the dividend
+   * @param y the divisor
+   * @return the quotient, rounded up
+   */
+  private static long ceilDiv(long x, long y) {
+    return (x + y - 1) / y;
+  }
+
+  /**
+   * A file being encrypted or decrypted. The segments are claimed in order by a number of lanes,
+   * each lane processing one segment at a time with its own buffers.
+   */
+  private abstract class Transfer {
+
+    /** The file being read */
+    final AsynchronousFileChannel inputChannel;
+
+    /** The file being written */
+    final AsynchronousFileChannel outputChannel;
+
+    /** The total number of segments */
+    final long segments;
+
+    /** The size of an encrypted segment */
+    final int encryptedSegmentSize;
+
+    /** The index of the next segment to be claimed by a lane */
+    private final AtomicLong nextSegment = new AtomicLong();
+
+    /** Set when a lane fails, so that the other lanes stop claiming segments */
+    private volatile boolean failed;
+
+    Transfer(
+        AsynchronousFileChannel inputChannel,
+        AsynchronousFileChannel outputChannel,
+        long segments,
+        int encryptedSegmentSize) {
+      this.inputChannel = inputChannel;
+      this.outputChannel = outputChannel;
+      this.segments = segments;
+      this.encryptedSegmentSize = encryptedSegmentSize;
+    }
+
+    /**
+     * Processes all the segments and closes the files.
+     *
+     * @return a future completing with the size of the output file
+     */
+    CompletableFuture<Long> run() {
+      int lanes = (int) Math.max(1, Math.min(maxSegmentsInFlight, segments));
+      CompletableFuture<?>[] futures = new CompletableFuture<?>[lanes + 1];
+      futures[0] = start();
+      for (int i = 1; i <= lanes; i++) {
+        Lane lane = new Lane(segmentBufferPool, encryptedSegmentSize);
+        futures[i] =
+            processSegments(lane)
+                .whenComplete(
+                    (v, e) -> {
+                      lane.release(segmentBufferPool);
+                      if (e != null) {
+                        failed = true;
+                      }
+                    });
+      }
+      return CompletableFuture.allOf(futures)
+          .handle(
+              (v, e) -> {
+                IOException closeFailure = close();
+                if (e != null) {
+                  throw e instanceof CompletionException c ? c : new CompletionException(e);
+                }
+                if (closeFailure != null) {
+                  throw new CompletionException(closeFailure);
+                }
+                return outputSize();
+              });
+    }
+
+    /**
+     * Claims and processes segments with a lane until all the segments have been claimed.
+     *
+     * @param lane the lane processing the segments
+     * @return a future completing when there are no more segments to claim
+     */
+    private CompletableFuture<Void> processSegments(Lane lane) {
+      long segment = failed ? segments : nextSegment.getAndIncrement();
+      if (segment >= segments) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return process(lane, segment).thenCompose(v -> processSegments(lane));
+    }
+
+    /**
+     * Closes both files.
+     *
+     * @return the exception thrown while closing a file, or null if both were closed
+     */
+    private IOException close() {
+      IOException failure = null;
+      for (AsynchronousFileChannel channel : List.of(inputChannel, outputChannel)) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      return failure;
+    }
+
+    /**
+     * Starts any work that is not tied to a segment.
+     *
+     * @return a future completing when that work is done
+     */
+    abstract CompletableFuture<Void> start();
+
+    /**
+     * Reads, processes and writes a single segment.
+     *
+     * @param lane the lane whose buffers are used
+     * @param segment the index of the segment
+     * @return a future completing when the segment has been written
+     */
+    abstract CompletableFuture<Void> process(Lane lane, long segment);
+
+    /**
+     * Returns the size of the output file.
+     *
+     * @return the size of the output file
+     */
+    abstract long outputSize();
+  }
+
+  /** A file being encrypted. */
+  private class Encryption extends Transfer {
+
+    /** The serialized header */
+    private final byte[] header;
+
+    /** The parameters to encrypt the segments with */
+    private final DataEncryptionParameters dataEncryptionParameters;
+
+    /** The generator the segment nonces are taken from, shared by the lanes */
+    private final NonceGenerator nonceGenerator;
+
+    /** The size of the file to encrypt */
+    private final long plaintextSize;
+
+    Encryption(
+        AsynchronousFileChannel inputChannel,
+        AsynchronousFileChannel outputChannel,
+        byte[] header,
+        DataEncryptionParameters dataEncryptionParameters)
+        throws IOException, GeneralSecurityException {
+      // an empty file still gets one (empty) segment
+      super(
+          inputChannel,
+          outputChannel,
+          Math.max(1, ceilDiv(inputChannel.size(), UNENCRYPTED_DATA_SEGMENT_SIZE)),
+          dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize());
+      this.header = header;
+      this.dataEncryptionParameters = dataEncryptionParameters;
+      this.nonceGenerator = new NonceGenerator();
+      this.plaintextSize = inputChannel.size();
+    }
+
+    @Override
+    CompletableFuture<Void> start() {
+      return write(outputChannel, ByteBuffer.wrap(header), 0);
+    }
+
+    @Override
+    CompletableFuture<Void> process(Lane lane, long segment) {
+      long offset = segment * UNENCRYPTED_DATA_SEGMENT_SIZE;
+      int length = (int) Math.min(UNENCRYPTED_DATA_SEGMENT_SIZE, plaintextSize - offset);
+      lane.plaintext.clear().limit(length);
+      return readFully(inputChannel, lane.plaintext, offset)
+          .thenCompose(
+              v ->
+                  supplyAsync(
+                      () -> {
+                        lane.plaintext.flip();
+                        lane.ciphertext.clear();
+                        lane.segmentCryptor(nonceGenerator)
+                            .encrypt(lane.plaintext, lane.ciphertext, dataEncryptionParameters);
+                        return lane.ciphertext.flip();
+                      }))
+          .thenCompose(
+              ciphertext ->
+                  write(outputChannel, ciphertext, header.length + segment * encryptedSegmentSize));
+    }
+
+    @Override
+    long outputSize() {
+      return header.length
+          + plaintextSize
+          + segments * (encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE);
+    }
+  }
+
+  /** A file being decrypted. */
+  private class Decryption extends Transfer {
+
+    /** The offset of the first segment, which is the length of the header */
+    private final long bodyOffset;
+
+    /** The parameters to decrypt the segments with */
+    private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+
+    /** The size of the encrypted body */
+    private final long encryptedSize;
+
+    /**
+     * The ranges of the plaintext that are kept, as alternating (inclusive) start and (exclusive)
+     * end positions, clipped to the size of the plaintext
+     */
+    private final long[] keptRanges;
+
+    /** The position in the output file of the start of each kept range */
+    private final long[] outputOffsets;
+
+    /** The size of the decrypted file */
+    private final long outputSize;
+
+    Decryption(
+        AsynchronousFileChannel inputChannel,
+        AsynchronousFileChannel outputChannel,
+        long bodyOffset,
+        Collection<DataEncryptionParameters> dataEncryptionParametersList,
+        Optional<DataEditList> dataEditList)
+        throws IOException, GeneralSecurityException {
+      this(
+          inputChannel,
+          outputChannel,
+          bodyOffset,
+          dataEncryptionParametersList,
+          dataEditList,
+          dataEncryptionParametersList
+              .iterator()
+              .next()
+              .getDataEncryptionMethod()
+              .getEncryptedSegmentSize(),
+          inputChannel.size() - bodyOffset);
+    }
+
+    private Decryption(
+        AsynchronousFileChannel inputChannel,
+        AsynchronousFileChannel outputChannel,
+        long bodyOffset,
+        Collection<DataEncryptionParameters> dataEncryptionParametersList,
+        Optional<DataEditList> dataEditList,
+        int encryptedSegmentSize,
+        long encryptedSize)
+        throws GeneralSecurityException {
+      super(
+          inputChannel,
+          outputChannel,
+          ceilDiv(encryptedSize, encryptedSegmentSize),
+          encryptedSegmentSize);
+      this.bodyOffset = bodyOffset;
+      this.dataEncryptionParametersList = dataEncryptionParametersList;
+      this.encryptedSize = encryptedSize;
+      int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+      long lastSegmentSize = encryptedSize - (segments - 1) * encryptedSegmentSize;
+      if (segments > 0 && lastSegmentSize < overhead) {
+        throw new GeneralSecurityException("Encrypted segment is too short: " + lastSegmentSize);
+      }
+      long plaintextSize = encryptedSize - segments * overhead;
+      this.keptRanges = getKeptRanges(dataEditList, plaintextSize);
+      this.outputOffsets = new long[keptRanges.length / 2];
+      long offset = 0;
+      for (int i = 0; i < outputOffsets.length; i++) {
+        outputOffsets[i] = offset;
+        offset += keptRanges[2 * i + 1] - keptRanges[2 * i];
+      }
+      this.outputSize = offset;
+    }
+
+    /**
+     * Gets the ranges of the plaintext that are kept by the Data Edit List, clipped to the size
+     * of the plaintext. Without a Data Edit List, the whole plaintext is kept.
+     *
+     * @param dataEditList the Data Edit List, if present
+     * @param plaintextSize the size of the plaintext
+     * @return the kept ranges as alternating start and end positions, clipped to the plaintext
+     */
+    private static long[] getKeptRanges(Optional<DataEditList> dataEditList, long plaintextSize) {
+      if (dataEditList.isEmpty()) {
+        return new long[] {0, plaintextSize};
+      }
+      long[] ranges = Crypt4GHInputStream.getKeptRanges(dataEditList.get());
+      for (int i = 0; i < ranges.length; i++) {
+        ranges[i] = Math.min(ranges[i], plaintextSize);
+      }
+      return ranges;
+    }
+
+    @Override
+    CompletableFuture<Void> start() {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    CompletableFuture<Void> process(Lane lane, long segment) {
+      long start = segment * UNENCRYPTED_DATA_SEGMENT_SIZE;
+      long end = start + UNENCRYPTED_DATA_SEGMENT_SIZE;
+      if (!Crypt4GHInputStream.isKept(keptRanges, start, end)) {
+        return CompletableFuture.completedFuture(null);
+      }
+      long offset = segment * encryptedSegmentSize;
+      lane.ciphertext.clear().limit((int) Math.min(encryptedSegmentSize, encryptedSize - offset));
+      return readFully(inputChannel, lane.ciphertext, bodyOffset + offset)
+          .thenCompose(
+              v ->
+                  supplyAsync(
+                      () -> {
+                        lane.ciphertext.flip();
+                        lane.plaintext.clear();
+                        lane.segmentCryptor(null)
+                            .decrypt(lane.ciphertext, lane.plaintext, dataEncryptionParametersList);
+                        return lane.plaintext.flip();
+                      }))
+          .thenCompose(plaintext -> writeKeptRanges(plaintext, start));
+    }
+
+    /**
+     * Writes the kept parts of a decrypted segment to their positions in the output file.
+     *
+     * @param plaintext the decrypted segment
+     * @param start the position of the segment in the plaintext
+     * @return a future completing when all the kept parts have been written
+     */
+    private CompletableFuture<Void> writeKeptRanges(ByteBuffer plaintext, long start) {
+      long end = start + plaintext.remaining();
+      CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+      for (int i = 0; i < keptRanges.length; i += 2) {
+        long from = Math.max(start, keptRanges[i]);
+        long to = Math.min(end, keptRanges[i + 1]);
+        if (from < to) {
+          ByteBuffer part = plaintext.slice((int) (from - start), (int) (to - from));
+          long position = outputOffsets[i / 2] + from - keptRanges[i];
+          future = future.thenCompose(v -> write(outputChannel, part, position));
+        }
+      }
+      return future;
+    }
+
+    @Override
+    long outputSize() {
+      return outputSize;
+    }
+  }
+
+  /** The buffers and cryptor used to process one segment at a time. */
+  private static class Lane {
+
+    /** The buffer holding an unencrypted segment */
+    final ByteBuffer plaintext;
+
+    /** The buffer holding an encrypted segment */
+    final ByteBuffer ciphertext;
+
+    /** The segment cryptor, created on first use */
+    private SegmentCryptor segmentCryptor;
+
+    Lane(SegmentBufferPool segmentBufferPool, int encryptedSegmentSize) {
+      this.plaintext = segmentBufferPool.acquire(UNENCRYPTED_DATA_SEGMENT_SIZE);
+      this.ciphertext = segmentBufferPool.acquire(encryptedSegmentSize);
+    }
+
+    /**
+     * Returns the buffers of this lane to the pool, once the lane has no segment in flight.
+     *
+     * @param segmentBufferPool the pool the buffers were borrowed from
+     */
+    void release(SegmentBufferPool segmentBufferPool) {
+      segmentBufferPool.release(plaintext);
+      segmentBufferPool.release(ciphertext);
+    }
+
+    /**
+     * Returns the segment cryptor of this lane, creating it on first use.
+     *
+     * @param nonceGenerator the generator to take segment nonces from, or null when decrypting
+     * @return the segment cryptor
+     * @throws GeneralSecurityException if the cryptor cannot be created
+     */
+    SegmentCryptor segmentCryptor(NonceGenerator nonceGenerator) throws GeneralSecurityException {
+      if (segmentCryptor == null) {
+        segmentCryptor = new SegmentCryptor(nonceGenerator);
+      }
+      return segmentCryptor;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static no.elixir.crypt4gh.pojo.header.Header.MAX_HEADER_LENGTH;
+import static no.elixir.crypt4gh.pojo.header.Header.UNENCRYPTED_HEADER_LENGTH;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Collection;
+import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
+import no.elixir.crypt4gh.util.KeyRing;
+
+/**
+ * A {@link java.util.concurrent.Flow.Processor} that decrypts the Crypt4GH stream it receives. The
+ * header is consumed, and each item published holds the decrypted data of one segment. A Data Edit
+ * List in the header is applied: only the kept parts of a segment are published, and segments
+ * holding no kept data are neither decrypted nor published.
+ */
+public class Crypt4GHDecryptingProcessor extends Crypt4GHProcessor {
+
+  /** Recipient's private key, or null if a key ring is used */
+  private final PrivateKey readerPrivateKey;
+
+  /** The key ring holding the recipient's private key, or null if a private key is used */
+  private final KeyRing keyRing;
+
+  /** Decrypts segments, reusing the same cipher instance for the stream */
+  private final SegmentCryptor segmentCryptor = new SegmentCryptor();
+
+  /** Collects the bytes of the header, until the whole header has been received */
+  private byte[] headerBytes = new byte[UNENCRYPTED_HEADER_LENGTH];
+
+  /** The number of bytes of the header received so far */
+  private int headerBytesReceived;
+
+  /**
+   * The number of bytes of the header needed to parse the next field of its framing: the
+   * unencrypted part, the length of the next header packet, or the end of the current one
+   */
+  private long headerBytesNeeded = UNENCRYPTED_HEADER_LENGTH;
+
+  /** The number of header packets whose length has not been read yet, or -1 if not known yet */
+  private int headerPacketsLeft = -1;
+
+  /** Whether the header bytes needed end with the length of a header packet */
+  private boolean readingPacketLength;
+
+  /** The decrypted header, once it has been received */
+  private Header header;
+
+  /** The parameters to decrypt the segments with, once the header has been received */
+  private Collection<DataEncryptionParameters> dataEncryptionParametersList;
+
+  /**
+   * The ranges of the plaintext kept by the Data Edit List, as alternating (inclusive) start and
+   * (exclusive) end positions, or null if there is no Data Edit List
+   */
+  private long[] keptRanges;
+
+  /** Collects the next encrypted segment, allocated once the header has been received */
+  private ByteBuffer ciphertext;
+
+  /** The position in the plaintext of the next segment */
+  private long plaintextPosition;
+
+  /**
+   * Creates a processor decrypting a stream with a private key.
+   *
+   * @param readerPrivateKey Recipient's private key.
+   * @throws GeneralSecurityException In case the cipher can't be created.
+   */
+  public Crypt4GHDecryptingProcessor(PrivateKey readerPrivateKey) throws GeneralSecurityException {
+    this(readerPrivateKey, null);
+  }
+
+  /**
+   * Creates a processor decrypting a stream with one of the private keys in a key ring.
+   *
+   * @param keyRing the key ring holding the recipient's private key
+   * @throws GeneralSecurityException In case the cipher can't be created.
+   */
+  public Crypt4GHDecryptingProcessor(KeyRing keyRing) throws GeneralSecurityException {
+    this(null, keyRing);
+  }
+
+  private Crypt4GHDecryptingProcessor(PrivateKey readerPrivateKey, KeyRing keyRing)
+      throws GeneralSecurityException {
+    this.readerPrivateKey = readerPrivateKey;
+    this.keyRing = keyRing;
+  }
+
+  @Override
+  ByteBuffer process(ByteBuffer input) throws IOException, GeneralSecurityException {
+    if (header == null && !readHeader(input)) {
+      return null;
+    }
+    while (input.hasRemaining()) {
+      int length = Math.min(ciphertext.remaining(), input.remaining());
+      ciphertext.put(input.slice(input.position(), length));
+      input.position(input.position() + length);
+      if (!ciphertext.hasRemaining()) {
+        ByteBuffer plaintext = decryptSegment();
+        if (plaintext != null) {
+          return plaintext;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  ByteBuffer finish() throws IOException, GeneralSecurityException {
+    if (header == null) {
+      throw new EOFException("Unexpected end of stream while reading the Crypt4GH header");
+    }
+    return ciphertext.position() > 0 ? decryptSegment() : null;
+  }
+
+  /**
+   * Collects the bytes of the header, and decrypts it once all of it has been received. Only the
+   * bytes of the header are consumed, and the framing is parsed as it arrives, so every byte is
+   * only looked at once however small the buffers received are.
+   *
+   * @param data the bytes received, whose position is advanced past the bytes of the header
+   * @return true if the header is complete
+   * @throws IOException In case the header can't be parsed.
+   * @throws GeneralSecurityException In case the header is invalid, larger than {@link
+   *     Header#MAX_HEADER_LENGTH} or can't be decrypted.
+   */
+  private boolean readHeader(ByteBuffer data) throws IOException, GeneralSecurityException {
+    while (true) {
+      if (headerBytesNeeded > MAX_HEADER_LENGTH) {
+        throw new GeneralSecurityException(
+            "Crypt4GH header is larger than " + MAX_HEADER_LENGTH + " bytes: " + headerBytesNeeded);
+      }
+      if (headerBytes.length < headerBytesNeeded) {
+        long capacity =
+            Math.min(Math.max(headerBytesNeeded, 2L * headerBytes.length), MAX_HEADER_LENGTH);
+        headerBytes = Arrays.copyOf(headerBytes, (int) capacity);
+      }
+      int count = (int) Math.min(headerBytesNeeded - headerBytesReceived, data.remaining());
+      data.get(headerBytes, headerBytesReceived, count);
+      headerBytesReceived += count;
+      if (headerBytesReceived < headerBytesNeeded) {
+        return false;
+      }
+      if (headerPacketsLeft < 0) {
+        try {
+          // checks the magic word, the version and the header packet count
+          HeaderDescriptor.read(new ByteArrayInputStream(headerBytes, 0, headerBytesReceived));
+        } catch (EOFException e) {
+          // the header packets follow
+        }
+        headerPacketsLeft = getHeaderInt(UNENCRYPTED_HEADER_LENGTH - 4);
+      } else if (readingPacketLength) {
+        int packetLength = getHeaderInt(headerBytesReceived - 4);
+        if (packetLength < 4 + 4) {
+          throw new GeneralSecurityException("Invalid header packet length: " + packetLength);
+        }
+        headerBytesNeeded += packetLength - 4;
+        headerPacketsLeft--;
+        readingPacketLength = false;
+        continue;
+      }
+      if (headerPacketsLeft == 0) {
+        break;
+      }
+      headerBytesNeeded += 4;
+      readingPacketLength = true;
+    }
+    HeaderDescriptor headerDescriptor =
+        HeaderDescriptor.read(new ByteArrayInputStream(headerBytes, 0, headerBytesReceived));
+    header =
+        keyRing == null
+            ? new Header(headerDescriptor, readerPrivateKey)
+            : new Header(headerDescriptor, keyRing);
+    dataEncryptionParametersList = Crypt4GHFileCryptor.getDataEncryptionParametersList(header);
+    keptRanges = header.getDataEditList().map(Crypt4GHInputStream::getKeptRanges).orElse(null);
+    ciphertext =
+        ByteBuffer.allocate(
+            dataEncryptionParametersList
+                .iterator()
+                .next()
+                .getDataEncryptionMethod()
+                .getEncryptedSegmentSize());
+    headerBytes = null;
+    return true;
+  }
+
+  /**
+   * Reads a little-endian integer from the header bytes received.
+   *
+   * @param offset the position of the integer in the header
+   * @return the integer
+   */
+  private int getHeaderInt(int offset) {
+    return Crypt4GHEntity.getInt(Arrays.copyOfRange(headerBytes, offset, offset + 4));
+  }
+
+  /**
+   * Decrypts the collected segment and returns the kept parts of it.
+   *
+   * @return the decrypted data, or null if none of it is kept by the Data Edit List
+   * @throws GeneralSecurityException In case the segment is too short or can't be decrypted.
+   */
+  private ByteBuffer decryptSegment() throws GeneralSecurityException {
+    int overhead = ciphertext.capacity() - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    if (ciphertext.position() < overhead) {
+      throw new GeneralSecurityException(
+          "Encrypted segment is too short: " + ciphertext.position());
+    }
+    long start = plaintextPosition;
+    long end = start + ciphertext.position() - overhead;
+    plaintextPosition = end;
+    if (keptRanges != null && !Crypt4GHInputStream.isKept(keptRanges, start, end)) {
+      ciphertext.clear();
+      return null;
+    }
+    ciphertext.flip();
+    ByteBuffer plaintext = ByteBuffer.allocate((int) (end - start));
+    segmentCryptor.decrypt(ciphertext, plaintext, dataEncryptionParametersList);
+    ciphertext.clear();
+    plaintext.flip();
+    if (keptRanges != null) {
+      plaintext = keep(plaintext, start);
+    }
+    return plaintext.hasRemaining() ? plaintext : null;
+  }
+
+  /**
+   * Copies the parts of a decrypted segment that are kept by the Data Edit List.
+   *
+   * @param plaintext the decrypted segment
+   * @param start the position of the segment in the plaintext
+   * @return a buffer holding the kept parts of the segment
+   */
+  private ByteBuffer keep(ByteBuffer plaintext, long start) {
+    long end = start + plaintext.remaining();
+    ByteBuffer kept = ByteBuffer.allocate(plaintext.remaining());
+    for (int i = 0; i < keptRanges.length; i += 2) {
+      long from = Math.max(start, keptRanges[i]);
+      long to = Math.min(end, keptRanges[i + 1]);
+      if (from < to) {
+        kept.put(plaintext.slice((int) (from - start), (int) (to - from)));
+      }
+    }
+    return kept.flip();
+  }
+}
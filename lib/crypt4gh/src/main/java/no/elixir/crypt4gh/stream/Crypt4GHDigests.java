@@ -0,0 +1,286 @@
+package no.elixir.crypt4gh.stream;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Running message digests (and sizes) of the plaintext and the ciphertext of a Crypt4GH stream,
+ * computed while the stream is written or read, so that no extra pass over the file is needed to
+ * checksum it.
+ *
+ * <p>The ciphertext digests cover the complete Crypt4GH file, header included. The plaintext
+ * digests cover the data of all the segments, before any Data Edit List is applied, so they are the
+ * digests of the original unencrypted file. The digests are updated segment by segment and become
+ * available once an output stream has been closed, or once an input stream has been read to its
+ * end. An input stream closed before its end leaves the digests incomplete.
+ *
+ * <p>An instance can only be used for a single stream, and is not thread-safe.
+ */
+public class Crypt4GHDigests {
+
+  /** The name of the SHA-256 message digest algorithm */
+  public static final String SHA_256 = "SHA-256";
+
+  /** The name of the MD5 message digest algorithm */
+  public static final String MD5 = "MD5";
+
+  /** The digests of the plaintext, keyed by algorithm */
+  private final Map<String, MessageDigest> plaintextDigests = new LinkedHashMap<>();
+
+  /** The digests of the ciphertext, keyed by algorithm */
+  private final Map<String, MessageDigest> ciphertextDigests = new LinkedHashMap<>();
+
+  /** The final plaintext digests, keyed by algorithm, once the stream is complete */
+  private final Map<String, byte[]> plaintextResults = new LinkedHashMap<>();
+
+  /** The final ciphertext digests, keyed by algorithm, once the stream is complete */
+  private final Map<String, byte[]> ciphertextResults = new LinkedHashMap<>();
+
+  /** The number of plaintext bytes digested so far */
+  private long plaintextSize;
+
+  /** The number of ciphertext bytes digested so far */
+  private long ciphertextSize;
+
+  /** Set to true once the whole stream has been digested */
+  private boolean complete;
+
+  /**
+   * Creates running SHA-256 and MD5 digests.
+   *
+   * @throws NoSuchAlgorithmException If SHA-256 or MD5 is not available.
+   */
+  public Crypt4GHDigests() throws NoSuchAlgorithmException {
+    this(SHA_256, MD5);
+  }
+
+  /**
+   * Creates running digests with the given algorithms.
+   *
+   * @param algorithms The names of the message digest algorithms, e.g. {@link #SHA_256}.
+   * @throws NoSuchAlgorithmException If one of the algorithms is not available.
+   */
+  public Crypt4GHDigests(String... algorithms) throws NoSuchAlgorithmException {
+    for (String algorithm : algorithms) {
+      plaintextDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+      ciphertextDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+    }
+  }
+
+  /**
+   * Returns whether the whole stream has been digested, so that the digests are available.
+   *
+   * @return true if the digests are complete
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Returns the size of the plaintext.
+   *
+   * @return The number of plaintext bytes.
+   * @throws IllegalStateException If the stream has not been digested completely.
+   */
+  public long getPlaintextSize() {
+    ensureComplete();
+    return plaintextSize;
+  }
+
+  /**
+   * Returns the size of the Crypt4GH file.
+   *
+   * @return The number of ciphertext bytes, header included.
+   * @throws IllegalStateException If the stream has not been digested completely.
+   */
+  public long getCiphertextSize() {
+    ensureComplete();
+    return ciphertextSize;
+  }
+
+  /**
+   * Returns a digest of the plaintext.
+   *
+   * @param algorithm The message digest algorithm, e.g. {@link #SHA_256}.
+   * @return The digest.
+   * @throws IllegalStateException If the stream has not been digested completely.
+   * @throws IllegalArgumentException If the algorithm was not one of the requested algorithms.
+   */
+  public byte[] getPlaintextDigest(String algorithm) {
+    return getResult(plaintextResults, algorithm).clone();
+  }
+
+  /**
+   * Returns a digest of the Crypt4GH file.
+   *
+   * @param algorithm The message digest algorithm, e.g. {@link #SHA_256}.
+   * @return The digest.
+   * @throws IllegalStateException If the stream has not been digested completely.
+   * @throws IllegalArgumentException If the algorithm was not one of the requested algorithms.
+   */
+  public byte[] getCiphertextDigest(String algorithm) {
+    return getResult(ciphertextResults, algorithm).clone();
+  }
+
+  /**
+   * Returns a digest of the plaintext as a lowercase hex string.
+   *
+   * @param algorithm The message digest algorithm, e.g. {@link #SHA_256}.
+   * @return The hex-encoded digest.
+   * @throws IllegalStateException If the stream has not been digested completely.
+   * @throws IllegalArgumentException If the algorithm was not one of the requested algorithms.
+   */
+  public String getPlaintextDigestHex(String algorithm) {
+    return HexFormat.of().formatHex(getResult(plaintextResults, algorithm));
+  }
+
+  /**
+   * Returns a digest of the Crypt4GH file as a lowercase hex string.
+   *
+   * @param algorithm The message digest algorithm, e.g. {@link #SHA_256}.
+   * @return The hex-encoded digest.
+   * @throws IllegalStateException If the stream has not been digested completely.
+   * @throws IllegalArgumentException If the algorithm was not one of the requested algorithms.
+   */
+  public String getCiphertextDigestHex(String algorithm) {
+    return HexFormat.of().formatHex(getResult(ciphertextResults, algorithm));
+  }
+
+  /**
+   * Updates the plaintext digests with the data of a segment.
+   *
+   * @param data an array holding the plaintext
+   * @param offset the position of the plaintext in the array
+   * @param length the number of plaintext bytes
+   */
+  void updatePlaintext(byte[] data, int offset, int length) {
+    for (MessageDigest digest : plaintextDigests.values()) {
+      digest.update(data, offset, length);
+    }
+    plaintextSize += length;
+  }
+
+  /**
+   * Updates the ciphertext digests.
+   *
+   * @param data an array holding the ciphertext
+   * @param offset the position of the ciphertext in the array
+   * @param length the number of ciphertext bytes
+   */
+  void updateCiphertext(byte[] data, int offset, int length) {
+    for (MessageDigest digest : ciphertextDigests.values()) {
+      digest.update(data, offset, length);
+    }
+    ciphertextSize += length;
+  }
+
+  /** Finishes the digests, once the whole stream has been digested. Later calls have no effect. */
+  void complete() {
+    if (complete) {
+      return;
+    }
+    plaintextDigests.forEach(
+        (algorithm, digest) -> plaintextResults.put(algorithm, digest.digest()));
+    ciphertextDigests.forEach(
+        (algorithm, digest) -> ciphertextResults.put(algorithm, digest.digest()));
+    complete = true;
+  }
+
+  /**
+   * Wraps an output stream, updating the ciphertext digests with everything written to it.
+   *
+   * @param out the stream the Crypt4GH file is written to
+   * @return the wrapping stream
+   */
+  OutputStream digestCiphertext(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        updateCiphertext(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        updateCiphertext(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * Wraps an input stream, updating the ciphertext digests with everything read from it. Skipped
+   * bytes are read and digested as well.
+   *
+   * @param in the stream the Crypt4GH file is read from
+   * @return the wrapping stream
+   */
+  InputStream digestCiphertext(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+          updateCiphertext(new byte[] {(byte) b}, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+          updateCiphertext(b, off, read);
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        if (n <= 0) {
+          return 0;
+        }
+        byte[] skipBuffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+          int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+          if (read == -1) {
+            break;
+          }
+          skipped += read;
+        }
+        return skipped;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  /** Returns the final digest for an algorithm, checking that the stream is complete. */
+  private byte[] getResult(Map<String, byte[]> results, String algorithm) {
+    ensureComplete();
+    byte[] result = results.get(algorithm);
+    if (result == null) {
+      throw new IllegalArgumentException("Digest not computed: " + algorithm);
+    }
+    return result;
+  }
+
+  /** Throws an exception if the stream has not been digested completely. */
+  private void ensureComplete() {
+    if (!complete) {
+      throw new IllegalStateException("The stream has not been digested completely");
+    }
+  }
+}
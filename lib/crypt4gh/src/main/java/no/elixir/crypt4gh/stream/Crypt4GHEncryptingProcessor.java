@@ -0,0 +1,123 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.List;
+import javax.crypto.SecretKey;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.util.KeyUtils;
+
+/**
+ * A {@link java.util.concurrent.Flow.Processor} that encrypts the plaintext it receives into a
+ * Crypt4GH stream. Each item published holds one encrypted segment, and the first one is preceded
+ * by the header. The encrypted stream is identical in format to the one written by {@link
+ * Crypt4GHOutputStream}.
+ */
+public class Crypt4GHEncryptingProcessor extends Crypt4GHProcessor {
+
+  /** The parameters the segments are encrypted with */
+  private final DataEncryptionParameters dataEncryptionParameters;
+
+  /** Encrypts segments, reusing the same cipher instance and nonce generator for the stream */
+  private final SegmentCryptor segmentCryptor = new SegmentCryptor();
+
+  /** Collects the plaintext of the next segment */
+  private final ByteBuffer plaintext = ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE);
+
+  /** The size of an encrypted segment */
+  private final int encryptedSegmentSize;
+
+  /** The serialized header, until it has been published with the first segment */
+  private byte[] header;
+
+  /** The number of segments encrypted so far */
+  private long segmentsWritten;
+
+  /**
+   * Creates a processor encrypting a stream for a single recipient.
+   *
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @throws IOException In case the Crypt4GH header can't be serialized.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be encrypted.
+   */
+  public Crypt4GHEncryptingProcessor(PrivateKey writerPrivateKey, PublicKey readerPublicKey)
+      throws IOException, GeneralSecurityException {
+    this(null, writerPrivateKey, List.of(readerPublicKey));
+  }
+
+  /**
+   * Creates a processor encrypting a stream for several recipients, with a Data Edit List included
+   * in the header.
+   *
+   * @param dataEditList Data Edit List (or null, if there isn't one).
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKeys Recipients' public keys.
+   * @throws IOException In case the Crypt4GH header can't be serialized.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be encrypted.
+   * @throws IllegalArgumentException If there are no recipients.
+   */
+  public Crypt4GHEncryptingProcessor(
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      Collection<? extends PublicKey> readerPublicKeys)
+      throws IOException, GeneralSecurityException {
+    SecretKey dataKey = KeyUtils.getInstance().generateSessionKey();
+    this.dataEncryptionParameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    this.encryptedSegmentSize =
+        dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+    this.header =
+        new Header(
+                Crypt4GHOutputStream.createHeaderPackets(
+                    dataEncryptionParameters, dataEditList, writerPrivateKey, readerPublicKeys))
+            .serialize();
+  }
+
+  @Override
+  ByteBuffer process(ByteBuffer input) throws GeneralSecurityException {
+    int length = Math.min(plaintext.remaining(), input.remaining());
+    plaintext.put(input.slice(input.position(), length));
+    input.position(input.position() + length);
+    return plaintext.hasRemaining() ? null : encryptSegment();
+  }
+
+  /**
+   * Encrypts the final (possibly short) segment. A stream without any data will still get one
+   * empty segment.
+   */
+  @Override
+  ByteBuffer finish() throws GeneralSecurityException {
+    return plaintext.position() > 0 || segmentsWritten == 0 ? encryptSegment() : null;
+  }
+
+  /**
+   * Encrypts the collected plaintext as a segment, preceded by the header if it is the first one.
+   *
+   * @return a buffer holding the encrypted segment
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  private ByteBuffer encryptSegment() throws GeneralSecurityException {
+    int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    int headerLength = header == null ? 0 : header.length;
+    ByteBuffer segment = ByteBuffer.allocate(headerLength + plaintext.position() + overhead);
+    if (header != null) {
+      segment.put(header);
+      header = null;
+    }
+    plaintext.flip();
+    segmentCryptor.encrypt(plaintext, segment, dataEncryptionParameters);
+    plaintext.clear();
+    segmentsWritten++;
+    return segment.flip();
+  }
+}
@@ -0,0 +1,536 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+import lombok.Getter;
+import lombok.ToString;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
+import no.elixir.crypt4gh.pojo.header.HeaderPacket;
+import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+
+/**
+ * Encrypts, decrypts and verifies whole files using memory-mapped I/O.
+ *
+ * <p>Since every segment has a fixed size, the position of each segment in both the plaintext and
+ * the encrypted file is known in advance. The files are mapped in windows of {@value
+ * #WINDOW_SEGMENTS} segments, segments are encrypted or decrypted straight from one mapped region
+ * into the other without intermediate copies, and the file is split into ranges of segments that
+ * are processed on separate threads.
+ *
+ * <p>The encrypted files produced are identical in format to the ones produced by {@link
+ * Crypt4GHOutputStream}. Files with a Data Edit List in the header are decrypted through {@link
+ * Crypt4GHInputStream} instead, so that the Data Edit List is applied. Inputs that are not regular
+ * files (such as named pipes) can't be mapped, so they are read sequentially through the streams.
+ */
+public class Crypt4GHFileCryptor {
+
+  /** The number of segments mapped at a time by each thread */
+  static final int WINDOW_SEGMENTS = 512;
+
+  /** The number of threads processing segments */
+  private final int parallelism;
+
+  /**
+   * Creates a file cryptor processing files on the given number of threads.
+   *
+   * @param parallelism the number of threads processing segments
+   */
+  public Crypt4GHFileCryptor(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Encrypts a file in Crypt4GH format. The output file is created or replaced.
+   *
+   * @param input the file to encrypt
+   * @param output the file to write the encrypted data to
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @return the size of the encrypted file
+   * @throws IOException In case the files can't be read or written.
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  public long encrypt(
+      Path input, Path output, PrivateKey writerPrivateKey, PublicKey readerPublicKey)
+      throws IOException, GeneralSecurityException {
+    if (!Files.isRegularFile(input)) {
+      return encryptWithStream(input, output, writerPrivateKey, readerPublicKey);
+    }
+    SecretKey dataKey = KeyUtils.getInstance().generateSessionKey();
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    HeaderPacket headerPacket =
+        new X25519ChaCha20IETFPoly1305HeaderPacket(
+            dataEncryptionParameters, writerPrivateKey, readerPublicKey);
+    byte[] header = new Header(Collections.singletonList(headerPacket)).serialize();
+    int encryptedSegmentSize =
+        dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+    int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+    try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel outputChannel = openOutput(output)) {
+      long plaintextSize = inputChannel.size();
+      // an empty file still gets one (empty) segment
+      long segments = Math.max(1, ceilDiv(plaintextSize, UNENCRYPTED_DATA_SEGMENT_SIZE));
+      long encryptedSize = header.length + plaintextSize + segments * overhead;
+      outputChannel.write(ByteBuffer.wrap(header), 0);
+      preallocate(outputChannel, encryptedSize);
+      NonceGenerator nonceGenerator = new NonceGenerator();
+      processSegments(
+          segments,
+          (first, last) -> {
+            SegmentCryptor segmentCryptor = new SegmentCryptor(nonceGenerator);
+            for (long window = first; window < last; window += WINDOW_SEGMENTS) {
+              long windowEnd = Math.min(last, window + WINDOW_SEGMENTS);
+              long plaintextStart = window * UNENCRYPTED_DATA_SEGMENT_SIZE;
+              long plaintextEnd =
+                  Math.min(plaintextSize, windowEnd * UNENCRYPTED_DATA_SEGMENT_SIZE);
+              long encryptedStart = header.length + window * encryptedSegmentSize;
+              MappedByteBuffer source =
+                  inputChannel.map(
+                      FileChannel.MapMode.READ_ONLY, plaintextStart, plaintextEnd - plaintextStart);
+              MappedByteBuffer target =
+                  outputChannel.map(
+                      FileChannel.MapMode.READ_WRITE,
+                      encryptedStart,
+                      plaintextEnd - plaintextStart + (windowEnd - window) * overhead);
+              while (source.hasRemaining() || target.hasRemaining()) {
+                int length = Math.min(source.remaining(), UNENCRYPTED_DATA_SEGMENT_SIZE);
+                segmentCryptor.encrypt(
+                    source.slice(source.position(), length), target, dataEncryptionParameters);
+                source.position(source.position() + length);
+              }
+            }
+            return null;
+          });
+      return encryptedSize;
+    }
+  }
+
+  /**
+   * Decrypts a Crypt4GH file. The output file is created or replaced.
+   *
+   * @param input the file to decrypt
+   * @param output the file to write the decrypted data to
+   * @param readerPrivateKey Recipient's private key.
+   * @return the size of the decrypted file
+   * @throws IOException In case the files can't be read or written.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized or a segment
+   *     can't be decrypted.
+   */
+  public long decrypt(Path input, Path output, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    if (!Files.isRegularFile(input)) {
+      return decryptWithStream(input, output, readerPrivateKey);
+    }
+    try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+      Header header = new Header(Channels.newInputStream(inputChannel), readerPrivateKey);
+      long headerLength = inputChannel.position();
+      if (header.getDataEditList().isPresent()) {
+        return decryptWithStream(input, output, readerPrivateKey);
+      }
+      Collection<DataEncryptionParameters> dataEncryptionParametersList =
+          getDataEncryptionParametersList(header);
+      int encryptedSegmentSize =
+          dataEncryptionParametersList
+              .iterator()
+              .next()
+              .getDataEncryptionMethod()
+              .getEncryptedSegmentSize();
+      int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+      long encryptedSize = inputChannel.size() - headerLength;
+      long segments = ceilDiv(encryptedSize, encryptedSegmentSize);
+      long lastSegmentSize = encryptedSize - (segments - 1) * encryptedSegmentSize;
+      if (segments > 0 && lastSegmentSize < overhead) {
+        throw new GeneralSecurityException("Encrypted segment is too short: " + lastSegmentSize);
+      }
+      long plaintextSize = encryptedSize - segments * overhead;
+
+      try (FileChannel outputChannel = openOutput(output)) {
+        preallocate(outputChannel, plaintextSize);
+        processSegments(
+            segments,
+            (first, last) -> {
+              SegmentCryptor segmentCryptor = new SegmentCryptor();
+              for (long window = first; window < last; window += WINDOW_SEGMENTS) {
+                long windowEnd = Math.min(last, window + WINDOW_SEGMENTS);
+                long encryptedStart = window * encryptedSegmentSize;
+                long encryptedEnd = Math.min(encryptedSize, windowEnd * encryptedSegmentSize);
+                MappedByteBuffer source =
+                    inputChannel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        headerLength + encryptedStart,
+                        encryptedEnd - encryptedStart);
+                MappedByteBuffer target =
+                    outputChannel.map(
+                        FileChannel.MapMode.READ_WRITE,
+                        window * UNENCRYPTED_DATA_SEGMENT_SIZE,
+                        encryptedEnd - encryptedStart - (windowEnd - window) * overhead);
+                while (source.hasRemaining()) {
+                  int length = Math.min(source.remaining(), encryptedSegmentSize);
+                  segmentCryptor.decrypt(
+                      source.slice(source.position(), length),
+                      target,
+                      dataEncryptionParametersList);
+                  source.position(source.position() + length);
+                }
+              }
+              return null;
+            });
+      }
+      return plaintextSize;
+    }
+  }
+
+  /**
+   * Verifies the integrity of a Crypt4GH file by checking the MAC of every segment, without
+   * decrypting any of them.
+   *
+   * <p>The segments are checked in parallel, straight from the mapped file. As soon as a segment
+   * fails verification, the threads stop checking the segments that come after it, so a damaged
+   * file is reported quickly while the segment reported is still the first bad one in the file. A
+   * Data Edit List in the header is not applied: all the segments are verified.
+   *
+   * @param input the file to verify
+   * @param readerPrivateKey Recipient's private key.
+   * @return the result of the verification
+   * @throws IOException In case the file can't be read.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public VerificationResult verify(Path input, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    if (!Files.isRegularFile(input)) {
+      return verifyWithStream(input, readerPrivateKey);
+    }
+    try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+      Header header = new Header(Channels.newInputStream(inputChannel), readerPrivateKey);
+      long headerLength = inputChannel.position();
+      Collection<DataEncryptionParameters> dataEncryptionParametersList =
+          getDataEncryptionParametersList(header);
+      int encryptedSegmentSize =
+          dataEncryptionParametersList
+              .iterator()
+              .next()
+              .getDataEncryptionMethod()
+              .getEncryptedSegmentSize();
+      long encryptedSize = inputChannel.size() - headerLength;
+      long segments = ceilDiv(encryptedSize, encryptedSegmentSize);
+      AtomicLong firstBadSegment = new AtomicLong(segments);
+      processSegments(
+          segments,
+          (first, last) -> {
+            SegmentCryptor segmentCryptor = new SegmentCryptor();
+            for (long window = first; window < last; window += WINDOW_SEGMENTS) {
+              long windowEnd = Math.min(last, window + WINDOW_SEGMENTS);
+              long encryptedStart = window * encryptedSegmentSize;
+              long encryptedEnd = Math.min(encryptedSize, windowEnd * encryptedSegmentSize);
+              MappedByteBuffer source =
+                  inputChannel.map(
+                      FileChannel.MapMode.READ_ONLY,
+                      headerLength + encryptedStart,
+                      encryptedEnd - encryptedStart);
+              for (long segment = window; source.hasRemaining(); segment++) {
+                if (segment >= firstBadSegment.get()) {
+                  return null; // an earlier segment has already failed verification
+                }
+                int length = Math.min(source.remaining(), encryptedSegmentSize);
+                if (!segmentCryptor.verify(
+                    source.slice(source.position(), length), dataEncryptionParametersList)) {
+                  firstBadSegment.accumulateAndGet(segment, Math::min);
+                  return null;
+                }
+                source.position(source.position() + length);
+              }
+            }
+            return null;
+          });
+      if (firstBadSegment.get() == segments) {
+        return new VerificationResult(segments, -1, -1);
+      }
+      return new VerificationResult(
+          segments,
+          firstBadSegment.get(),
+          headerLength + firstBadSegment.get() * encryptedSegmentSize);
+    }
+  }
+
+  /**
+   * Gets the Data Encryption Parameters of a header, checking that they all use the same Data
+   * Encryption Method (and thus the same segment size).
+   *
+   * @param header the Crypt4GH header
+   * @return the Data Encryption Parameters
+   * @throws GeneralSecurityException In case the header has no Data Encryption Parameters, or they
+   *     use different Data Encryption Methods.
+   */
+  static Collection<DataEncryptionParameters> getDataEncryptionParametersList(Header header)
+      throws GeneralSecurityException {
+    Collection<DataEncryptionParameters> dataEncryptionParametersList =
+        header.getDataEncryptionParametersList();
+    DataEncryptionParameters firstDataEncryptionParameters =
+        dataEncryptionParametersList.iterator().next();
+    for (DataEncryptionParameters encryptionParameters : dataEncryptionParametersList) {
+      if (firstDataEncryptionParameters.getDataEncryptionMethod()
+          != encryptionParameters.getDataEncryptionMethod()) {
+        throw new GeneralSecurityException("Different Data Encryption Methods are not supported");
+      }
+    }
+    return dataEncryptionParametersList;
+  }
+
+  /**
+   * Encrypts a file through a Crypt4GHOutputStream, for inputs that can't be mapped.
+   *
+   * @param input the file to encrypt
+   * @param output the file to write the encrypted data to
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @return the size of the encrypted file
+   * @throws IOException In case the files can't be read or written.
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  private long encryptWithStream(
+      Path input, Path output, PrivateKey writerPrivateKey, PublicKey readerPublicKey)
+      throws IOException, GeneralSecurityException {
+    try (InputStream inputStream = Files.newInputStream(input);
+        OutputStream outputStream = Files.newOutputStream(output)) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(outputStream, writerPrivateKey, readerPublicKey)) {
+        inputStream.transferTo(crypt4GHOutputStream);
+      }
+    }
+    return Files.size(output);
+  }
+
+  /**
+   * Decrypts a Crypt4GH file through a Crypt4GHInputStream, for files with a Data Edit List and
+   * inputs that can't be mapped.
+   *
+   * @param input the file to decrypt
+   * @param output the file to write the decrypted data to
+   * @param readerPrivateKey Recipient's private key.
+   * @return the size of the decrypted file
+   * @throws IOException In case the files can't be read or written.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  private long decryptWithStream(Path input, Path output, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    try (InputStream inputStream = Files.newInputStream(input);
+        Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(inputStream, readerPrivateKey);
+        OutputStream outputStream = Files.newOutputStream(output)) {
+      return crypt4GHInputStream.transferTo(outputStream);
+    }
+  }
+
+  /**
+   * Verifies a Crypt4GH file by reading its segments one at a time, for inputs that can't be
+   * mapped. All the segments are read, so that the result reports the number of segments.
+   *
+   * @param input the file to verify
+   * @param readerPrivateKey Recipient's private key.
+   * @return the result of the verification
+   * @throws IOException In case the file can't be read.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  private VerificationResult verifyWithStream(Path input, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    try (InputStream inputStream = Files.newInputStream(input)) {
+      HeaderDescriptor headerDescriptor = HeaderDescriptor.read(inputStream);
+      Header header = new Header(headerDescriptor, readerPrivateKey);
+      Collection<DataEncryptionParameters> dataEncryptionParametersList =
+          getDataEncryptionParametersList(header);
+      int encryptedSegmentSize =
+          dataEncryptionParametersList
+              .iterator()
+              .next()
+              .getDataEncryptionMethod()
+              .getEncryptedSegmentSize();
+      SegmentCryptor segmentCryptor = new SegmentCryptor();
+      byte[] encryptedSegment = new byte[encryptedSegmentSize];
+      long segments = 0;
+      long firstBadSegment = -1;
+      int length;
+      while ((length = inputStream.readNBytes(encryptedSegment, 0, encryptedSegmentSize)) > 0) {
+        if (firstBadSegment == -1
+            && !segmentCryptor.verify(
+                ByteBuffer.wrap(encryptedSegment, 0, length), dataEncryptionParametersList)) {
+          firstBadSegment = segments;
+        }
+        segments++;
+      }
+      if (firstBadSegment == -1) {
+        return new VerificationResult(segments, -1, -1);
+      }
+      return new VerificationResult(
+          segments,
+          firstBadSegment,
+          headerDescriptor.getBodyOffset() + firstBadSegment * encryptedSegmentSize);
+    }
+  }
+
+  /**
+   * Splits the segments of a file into one contiguous range per thread and processes the ranges in
+   * parallel.
+   *
+   * @param segments the total number of segments
+   * @param processor processes a range of segments
+   * @throws IOException In case processing a range fails with an I/O error.
+   * @throws GeneralSecurityException In case processing a range fails with a security error.
+   */
+  private void processSegments(long segments, SegmentRangeProcessor processor)
+      throws IOException, GeneralSecurityException {
+    int ranges = (int) Math.max(1, Math.min(parallelism, ceilDiv(segments, WINDOW_SEGMENTS)));
+    if (ranges == 1) {
+      processor.process(0, segments);
+      return;
+    }
+    long segmentsPerRange = ceilDiv(segments, ranges);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (long first = 0; first < segments; first += segmentsPerRange) {
+      long start = first;
+      long end = Math.min(segments, first + segmentsPerRange);
+      tasks.add(() -> processor.process(start, end));
+    }
+    ExecutorService executor = new ForkJoinPool(ranges);
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while processing segments");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof GeneralSecurityException cause) {
+        throw cause;
+      }
+      throw new IOException("Processing segments failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Opens an output file for reading and writing (as required for mapping), replacing any existing
+   * file.
+   *
+   * @param output the output file
+   * @return the opened channel
+   * @throws IOException In case the file can't be opened.
+   */
+  private static FileChannel openOutput(Path output) throws IOException {
+    return FileChannel.open(
+        output,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Extends a file to its final size before the regions are mapped by several threads.
+   *
+   * @param channel the file to extend
+   * @param size the final size of the file
+   * @throws IOException In case the file can't be extended.
+   */
+  private static void preallocate(FileChannel channel, long size) throws IOException {
+    if (size > channel.size()) {
+      channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+    }
+  }
+
+  /**
+   * Divides two positive numbers, rounding up.
+   *
+   * @param x the dividend
+   * @param y the divisor
+   * @return the quotient, rounded up
+   */
+  private static long ceilDiv(long x, long y) {
+    return (x + y - 1) / y;
+  }
+
+  /** Processes a range of segments of a file. */
+  @FunctionalInterface
+  private interface SegmentRangeProcessor {
+
+    /**
+     * Processes the segments with indices from first (inclusive) to last (exclusive).
+     *
+     * @param first the index of the first segment
+     * @param last the index after the last segment
+     * @return nothing
+     * @throws IOException In case of an I/O error.
+     * @throws GeneralSecurityException In case of a security error.
+     */
+    Void process(long first, long last) throws IOException, GeneralSecurityException;
+  }
+
+  /** The result of verifying the integrity of a Crypt4GH file. */
+  @ToString
+  @Getter
+  public static class VerificationResult {
+
+    /** The number of segments in the file */
+    private final long segments;
+
+    /** The index of the first segment that failed verification, or -1 if none did */
+    private final long firstBadSegment;
+
+    /** The offset in the file of the first segment that failed verification, or -1 if none did */
+    private final long firstBadSegmentOffset;
+
+    private VerificationResult(long segments, long firstBadSegment, long firstBadSegmentOffset) {
+      this.segments = segments;
+      this.firstBadSegment = firstBadSegment;
+      this.firstBadSegmentOffset = firstBadSegmentOffset;
+    }
+
+    /**
+     * Tells whether all the segments of the file passed verification.
+     *
+     * @return {@code true} if the file is intact
+     */
+    public boolean isValid() {
+      return firstBadSegment == -1;
+    }
+  }
+}
@@ -3,26 +3,31 @@ package no.elixir.crypt4gh.stream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.ArrayDeque;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Queue;
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.ToString;
-import lombok.extern.slf4j.Slf4j;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
 import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.util.KeyRing;
 
 /** Crypt4GHInputStream that wraps existing InputStream. */
-@Slf4j
 public class Crypt4GHInputStream extends FilterInputStream {
 
   private boolean useDataEditList;
-  private Queue<DataEditListEntry> lengths = new ArrayDeque<>();
-  private long bytesRead;
+
+  /**
+   * The plaintext ranges kept by the Data Edit List, as pairs of absolute start (inclusive) and end
+   * (exclusive) offsets in the decrypted data. Computed once, when the stream is created.
+   */
+  private long[] keptRanges = new long[] {};
+
+  /** The index of the first kept range that has not been read completely */
+  private int keptRangeIndex;
+
+  /** The position of the underlying stream in the decrypted data (before applying the DEL) */
+  private long position;
 
   /**
    * Constructs Crypt4GHInputStream that wraps existing InputStream.
@@ -34,21 +39,52 @@ public class Crypt4GHInputStream extends FilterInputStream {
    */
   public Crypt4GHInputStream(InputStream in, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
-    super(new Crypt4GHInputStreamInternal(in, readerPrivateKey));
-    Optional<DataEditList> dataEditListOptional =
-        ((Crypt4GHInputStreamInternal) this.in).getDataEditList();
+    this(new Crypt4GHInputStreamInternal(in, readerPrivateKey));
+  }
+
+  /**
+   * Constructs Crypt4GHInputStream that wraps existing InputStream and computes running digests of
+   * the plaintext and the ciphertext while the stream is read. The digests are available once the
+   * end of the stream has been reached. If a Data Edit List is applied, reaching the end of the
+   * kept data reads and digests the rest of the file. If the stream is closed before its end, the
+   * rest of the file is not read and the digests are left incomplete.
+   *
+   * @param in Existing InputStream.
+   * @param readerPrivateKey Recipient's private key.
+   * @param digests The digests to update.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHInputStream(InputStream in, PrivateKey readerPrivateKey, Crypt4GHDigests digests)
+      throws IOException, GeneralSecurityException {
+    this(Crypt4GHInputStreamInternal.withDigests(in, readerPrivateKey, digests));
+  }
+
+  /**
+   * Constructs Crypt4GHInputStream that wraps existing InputStream, decrypting the header with the
+   * private keys in a key ring.
+   *
+   * @param in Existing InputStream.
+   * @param keyRing Key ring holding the recipient's private keys.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHInputStream(InputStream in, KeyRing keyRing)
+      throws IOException, GeneralSecurityException {
+    this(new Crypt4GHInputStreamInternal(in, new Header(in, keyRing)));
+  }
+
+  /**
+   * Constructs Crypt4GHInputStream around an already created internal stream, applying the Data
+   * Edit List from the header (if present).
+   *
+   * @param internal the internal stream, positioned after the header
+   */
+  Crypt4GHInputStream(Crypt4GHInputStreamInternal internal) {
+    super(internal);
+    Optional<DataEditList> dataEditListOptional = internal.getDataEditList();
     this.useDataEditList = dataEditListOptional.isPresent();
-    long[] lengthsArray = dataEditListOptional.map(DataEditList::getLengths).orElse(new long[] {});
-    boolean skip = true;
-    for (long length : lengthsArray) {
-      lengths.add(new DataEditListEntry(length, skip));
-      skip = !skip; // alternate between skipping and keeping segments from the edit list
-    }
-    // if the edit list has an odd number of values (thus ending with an "exclude" segment),
-    // then add an extra "include" segment that covers the rest of the stream
-    if (!skip) {
-      this.lengths.add(new DataEditListEntry(Long.MAX_VALUE, false));
-    }
+    dataEditListOptional.ifPresent(this::setDataEditList);
   }
 
   /**
@@ -64,15 +100,52 @@ public class Crypt4GHInputStream extends FilterInputStream {
       throws IOException, GeneralSecurityException {
     super(new Crypt4GHInputStreamInternal(in, readerPrivateKey));
     this.useDataEditList = true;
-    long[] lengthsArray = dataEditList.getLengths();
-    boolean skip = true;
-    for (long length : lengthsArray) {
-      this.lengths.add(new DataEditListEntry(length, skip));
-      skip = !skip;
+    setDataEditList(dataEditList);
+  }
+
+  /** Applies a Data Edit List to the decrypted data. */
+  private void setDataEditList(DataEditList dataEditList) {
+    this.keptRanges = getKeptRanges(dataEditList);
+  }
+
+  /**
+   * Converts the lengths of the Data Edit List, which alternate between skipping and keeping
+   * bytes, into the absolute ranges of the decrypted data that are kept.
+   *
+   * @param dataEditList the Data Edit List
+   * @return the kept ranges, as alternating (inclusive) start and (exclusive) end positions
+   */
+  static long[] getKeptRanges(DataEditList dataEditList) {
+    long[] lengths = dataEditList.getLengths();
+    // if the edit list has an odd number of values (thus ending with an "exclude" segment),
+    // then the last kept range covers the rest of the stream
+    long[] ranges = new long[lengths.length + lengths.length % 2];
+    long offset = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      offset = Long.MAX_VALUE - offset < lengths[i] ? Long.MAX_VALUE : offset + lengths[i];
+      ranges[i] = offset;
     }
-    if (!skip) {
-      this.lengths.add(new DataEditListEntry(Long.MAX_VALUE, false));
+    if (lengths.length % 2 != 0) {
+      ranges[lengths.length] = Long.MAX_VALUE;
+    }
+    return ranges;
+  }
+
+  /**
+   * Tells whether any of the plaintext between two positions is kept.
+   *
+   * @param keptRanges the kept ranges, as returned by {@link #getKeptRanges(DataEditList)}
+   * @param start the start of the plaintext (inclusive)
+   * @param end the end of the plaintext (exclusive)
+   * @return true if some of the plaintext is kept
+   */
+  static boolean isKept(long[] keptRanges, long start, long end) {
+    for (int i = 0; i < keptRanges.length; i += 2) {
+      if (Math.max(start, keptRanges[i]) < Math.min(end, keptRanges[i + 1])) {
+        return true;
+      }
     }
+    return false;
   }
 
   /**
@@ -84,6 +157,16 @@ public class Crypt4GHInputStream extends FilterInputStream {
     return ((Crypt4GHInputStreamInternal) in).getHeader();
   }
 
+  /**
+   * Gets the running digests of the plaintext and the ciphertext, if they were requested when the
+   * stream was created.
+   *
+   * @return an Optional containing the digests, provided that they were requested
+   */
+  public Optional<Crypt4GHDigests> getDigests() {
+    return ((Crypt4GHInputStreamInternal) in).getDigests();
+  }
+
   /** {@inheritDoc} */
   @Override
   public int read() throws IOException {
@@ -93,57 +176,72 @@ public class Crypt4GHInputStream extends FilterInputStream {
   /** {@inheritDoc} */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
-    /*
-       Reusing default `InputStream`'s implementation, because `FilterStream`'s implementation doesn't fit
-    */
-    Objects.checkFromIndexSize(off, len, b.length);
-    if (len == 0) {
+    return useDataEditList ? readWithDataEditList(b, off, len) : in.read(b, off, len);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int readNBytes(byte[] b, int off, int len) throws IOException {
+    return useDataEditList ? super.readNBytes(b, off, len) : in.readNBytes(b, off, len);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] readNBytes(int len) throws IOException {
+    return useDataEditList ? super.readNBytes(len) : in.readNBytes(len);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long transferTo(OutputStream out) throws IOException {
+    return useDataEditList ? super.transferTo(out) : in.transferTo(out);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized int available() throws IOException {
+    if (!useDataEditList) {
+      return in.available();
+    }
+    if (keptRangeIndex >= keptRanges.length || position < keptRanges[keptRangeIndex]) {
       return 0;
     }
+    return (int) Math.min(in.available(), keptRanges[keptRangeIndex + 1] - position);
+  }
 
-    int c = read();
-    if (c == -1) {
-      return -1;
+  /**
+   * Reads up to len bytes of data from this stream according to the Data Edit List. Kept ranges
+   * are copied in bulk from the underlying stream, and the excluded ranges in between are skipped
+   * without decrypting the segments that lie entirely within them.
+   */
+  private synchronized int readWithDataEditList(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    if (len == 0) {
+      return 0;
     }
-    b[off] = (byte) c;
-
-    int i = 1;
-    try {
-      for (; i < len; i++) {
-        c = read();
-        if (c == -1) {
-          break;
-        }
-        b[off + i] = (byte) c;
+    int total = 0;
+    while (total < len && seekToKeptRange()) {
+      long bytesLeftInRange = keptRanges[keptRangeIndex + 1] - position;
+      int count = in.read(b, off + total, (int) Math.min(len - total, bytesLeftInRange));
+      if (count == -1) {
+        break;
       }
-    } catch (IOException ee) {
-      log.error(ee.getMessage(), ee);
+      position += count;
+      total += count;
     }
-    return i;
+    return total == 0 ? -1 : total;
   }
 
   /** Reads the next byte of data from this stream according to the Data Edit List */
   private synchronized int readWithDataEditList() throws IOException {
-    if (!lengths.isEmpty()) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      if (dataEditListEntry.skip) {
-        in.skip(dataEditListEntry.length);
-        lengths.remove();
-      }
+    if (!seekToKeptRange()) {
+      return -1;
     }
-    if (!lengths.isEmpty()) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      long length = dataEditListEntry.length;
-      if (bytesRead == length) {
-        lengths.remove();
-        bytesRead = 0;
-        return readWithDataEditList();
-      } else {
-        bytesRead++;
-        return in.read();
-      }
+    int result = in.read();
+    if (result != -1) {
+      position++;
     }
-    return -1;
+    return result;
   }
 
   /** {@inheritDoc} */
@@ -153,62 +251,74 @@ public class Crypt4GHInputStream extends FilterInputStream {
   }
 
   /**
-   * Skips over and discards n bytes of data from this input stream according to the Data Edit List
+   * Skips over and discards n bytes of data from this input stream according to the Data Edit
+   * List. The position to skip to in the decrypted data is worked out from the kept ranges first,
+   * so that the underlying stream only has to skip once, regardless of the number of excluded
+   * ranges in between.
    */
   private synchronized long skipWithDataEditList(long n) throws IOException {
-    long bytesSkipped = 0;
-    if (!lengths.isEmpty()) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      if (dataEditListEntry.skip) {
-        in.skip(dataEditListEntry.length);
-        lengths.remove();
-      } else {
-        long length = dataEditListEntry.length;
-        if (bytesRead == length) {
-          lengths.remove();
-          bytesRead = 0;
-        } else {
-          long bytesLeftToRead = length - bytesRead;
-          if (n <= bytesLeftToRead) {
-            bytesRead += n;
-            return in.skip(n);
-          } else {
-            bytesSkipped += in.skip(bytesLeftToRead);
-            n -= bytesLeftToRead;
-            lengths.remove();
-            bytesRead = 0;
-          }
-        }
-      }
+    if (n <= 0) {
+      return 0;
     }
-    while (!lengths.isEmpty() && n != 0) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      if (dataEditListEntry.skip) {
-        in.skip(dataEditListEntry.length);
-        lengths.remove();
-      } else {
-        long length = dataEditListEntry.length;
-        if (n <= length) {
-          long bytesSkippedJustNow = in.skip(n);
-          bytesRead += bytesSkippedJustNow;
-          bytesSkipped += bytesSkippedJustNow;
-          return bytesSkipped;
-        } else {
-          bytesSkipped += in.skip(length);
-          n -= length;
-          lengths.remove();
-        }
+    long target = position;
+    long remaining = n;
+    for (int i = keptRangeIndex; i < keptRanges.length && remaining > 0; i += 2) {
+      long start = Math.max(target, keptRanges[i]);
+      long count = Math.min(remaining, Math.max(0, keptRanges[i + 1] - start));
+      if (count > 0) {
+        target = start + count;
+        remaining -= count;
       }
     }
-    return bytesSkipped;
+    long from = position;
+    skipUnderlying(target - position);
+    return keptBytesBetween(from, position);
+  }
+
+  /**
+   * Makes sure that the underlying stream is positioned within a kept range, skipping to the start
+   * of the next kept range if needed.
+   *
+   * @return {@code false} if there is no more data to read according to the Data Edit List
+   * @throws IOException if something goes wrong while skipping in the underlying stream
+   */
+  private boolean seekToKeptRange() throws IOException {
+    while (keptRangeIndex < keptRanges.length && position >= keptRanges[keptRangeIndex + 1]) {
+      keptRangeIndex += 2;
+    }
+    if (keptRangeIndex >= keptRanges.length) {
+      ((Crypt4GHInputStreamInternal) in).digestRemaining();
+      return false;
+    }
+    long start = keptRanges[keptRangeIndex];
+    if (position < start) {
+      skipUnderlying(start - position);
+    }
+    return position >= start;
   }
 
-  @ToString
-  @AllArgsConstructor
-  @Data
-  private static class DataEditListEntry {
+  /**
+   * Skips n bytes of decrypted data in the underlying stream, stopping early only at the end of
+   * the stream.
+   */
+  private void skipUnderlying(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n) {
+      long skippedNow = in.skip(n - skipped);
+      if (skippedNow <= 0) {
+        break;
+      }
+      skipped += skippedNow;
+    }
+    position += skipped;
+  }
 
-    private long length;
-    private boolean skip;
+  /** Counts the kept bytes between two positions in the decrypted data. */
+  private long keptBytesBetween(long from, long to) {
+    long result = 0;
+    for (int i = 0; i < keptRanges.length; i += 2) {
+      result += Math.max(0, Math.min(to, keptRanges[i + 1]) - Math.max(from, keptRanges[i]));
+    }
+    return result;
   }
 }
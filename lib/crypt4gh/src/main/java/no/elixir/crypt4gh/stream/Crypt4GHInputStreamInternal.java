@@ -2,17 +2,20 @@ package no.elixir.crypt4gh.stream;
 
 import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import lombok.extern.slf4j.Slf4j;
-import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
 import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.Header;
@@ -24,11 +27,20 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
   /** The header read from the input stream */
   private Header header;
 
+  /** The pool the segment buffers are borrowed from, and returned to when the stream is closed */
+  private final SegmentBufferPool segmentBufferPool;
+
+  /** The pooled buffer backing {@link #buffer} */
+  private final ByteBuffer pooledBuffer;
+
   /**
-   * A buffer to store data read from the input stream. This will be passed on to the outer
-   * Crypt4GHInputStream
+   * A buffer to store the plaintext of the last decrypted segment. This will be passed on to the
+   * outer Crypt4GHInputStream. The buffer is borrowed once and reused for every segment.
    */
-  private int[] buffer;
+  private final byte[] buffer;
+
+  /** The number of valid plaintext bytes currently held in the buffer */
+  private int bufferLength;
 
   /**
    * The number of bytes the outer Crypt4GHInputStream has read from the internal buffer in this
@@ -36,6 +48,18 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
    */
   private int bytesRead;
 
+  /** The pooled buffer backing {@link #encryptedSegmentBuffer} */
+  private final ByteBuffer pooledEncryptedSegmentBuffer;
+
+  /** A buffer to read encrypted segments into. Borrowed once and reused for every segment. */
+  private final byte[] encryptedSegmentBuffer;
+
+  /** Set to true once the stream has been closed and the buffers returned to the pool */
+  private boolean closed;
+
+  /** Set to true when the end of the wrapped input stream has been reached */
+  private boolean endOfStream;
+
   /** The Data Encryption Parameters read from the header */
   private Collection<DataEncryptionParameters> dataEncryptionParametersList;
 
@@ -46,8 +70,14 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
   /** The size of each encrypted segment (according to the encryption method used in this file) */
   private int encryptedSegmentSize;
 
-  /** A counter to keep track of the last decrypted segment */
-  private long lastDecryptedSegment = -1;
+  /** Decrypts segments, reusing the same cipher instance for the whole stream */
+  private final SegmentCryptor segmentCryptor;
+
+  /** Reads and decrypts segments ahead on other threads (if read-ahead is enabled) */
+  private SegmentReadAhead segmentReadAhead;
+
+  /** The running digests of the plaintext and ciphertext, or null if not requested */
+  private Crypt4GHDigests digests;
 
   /**
    * Constructs the internal part of Crypt4GHInputStream that wraps existing InputStream. Not a
@@ -61,8 +91,38 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
    */
   Crypt4GHInputStreamInternal(InputStream in, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
+    this(in, new Header(in, readerPrivateKey));
+  }
+
+  /**
+   * Constructs the internal part of Crypt4GHInputStream around a stream of encrypted segments
+   * whose header has already been read. Not a public API.
+   *
+   * @param in the stream to read the encrypted segments from
+   * @param header the header of the Crypt4GH file
+   * @throws GeneralSecurityException if the header can't be decrypted, or if it contains several
+   *     Data Encryption Parameters specifying different encryption methods
+   */
+  Crypt4GHInputStreamInternal(InputStream in, Header header) throws GeneralSecurityException {
+    this(in, header, BoundedSegmentBufferPool.getInstance());
+  }
+
+  /**
+   * Constructs the internal part of Crypt4GHInputStream around a stream of encrypted segments
+   * whose header has already been read, borrowing its buffers from a given pool. The buffers are
+   * only borrowed once the header has been validated, so nothing is left borrowed if construction
+   * fails. Not a public API.
+   *
+   * @param in the stream to read the encrypted segments from
+   * @param header the header of the Crypt4GH file
+   * @param segmentBufferPool the pool to borrow the segment buffers from
+   * @throws GeneralSecurityException if the header can't be decrypted, or if it contains several
+   *     Data Encryption Parameters specifying different encryption methods
+   */
+  Crypt4GHInputStreamInternal(InputStream in, Header header, SegmentBufferPool segmentBufferPool)
+      throws GeneralSecurityException {
     super(in);
-    this.header = new Header(in, readerPrivateKey);
+    this.header = header;
     this.dataEncryptionParametersList = header.getDataEncryptionParametersList();
     DataEncryptionParameters firstDataEncryptionParameters =
         dataEncryptionParametersList.iterator().next();
@@ -74,7 +134,86 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
     }
     this.encryptedSegmentSize =
         firstDataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+    this.segmentCryptor = new SegmentCryptor();
     this.dataEditList = header.getDataEditList();
+    this.segmentBufferPool = segmentBufferPool;
+    this.pooledBuffer = segmentBufferPool.acquireHeap(UNENCRYPTED_DATA_SEGMENT_SIZE);
+    try {
+      this.pooledEncryptedSegmentBuffer = segmentBufferPool.acquireHeap(encryptedSegmentSize);
+    } catch (RuntimeException | Error e) {
+      segmentBufferPool.release(pooledBuffer);
+      throw e;
+    }
+    this.buffer = pooledBuffer.array();
+    this.encryptedSegmentBuffer = pooledEncryptedSegmentBuffer.array();
+  }
+
+  /**
+   * Constructs the internal part of Crypt4GHInputStream that wraps existing InputStream and reads
+   * segments ahead, decrypting them in parallel. Not a public API.
+   *
+   * @param in the stream to read the Crypt4GH file from
+   * @param readerPrivateKey the private key of the intended recipient
+   * @param executor the executor to decrypt segments with
+   * @param ownsExecutor whether the executor should be shut down when the stream is closed
+   * @param readAheadSegments the maximum number of segments to read ahead
+   * @throws IOException if something goes wrong while reading from the stream
+   * @throws GeneralSecurityException if the header contains several Data Encryption Parameters
+   *     specifying different encryption methods
+   */
+  Crypt4GHInputStreamInternal(
+      InputStream in,
+      PrivateKey readerPrivateKey,
+      ExecutorService executor,
+      boolean ownsExecutor,
+      int readAheadSegments)
+      throws IOException, GeneralSecurityException {
+    this(in, readerPrivateKey);
+    try {
+      this.segmentReadAhead =
+          new SegmentReadAhead(
+              in,
+              dataEncryptionParametersList,
+              encryptedSegmentSize,
+              executor,
+              ownsExecutor,
+              readAheadSegments);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      releaseBuffers();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates the internal part of Crypt4GHInputStream that wraps existing InputStream and computes
+   * running digests of the plaintext and the ciphertext. Not a public API.
+   *
+   * @param in the stream to read the Crypt4GH file from
+   * @param readerPrivateKey the private key of the intended recipient
+   * @param digests the digests to update
+   * @return the internal stream, positioned after the header
+   * @throws IOException if something goes wrong while reading from the stream
+   * @throws GeneralSecurityException if the header contains several Data Encryption Parameters
+   *     specifying different encryption methods
+   */
+  static Crypt4GHInputStreamInternal withDigests(
+      InputStream in, PrivateKey readerPrivateKey, Crypt4GHDigests digests)
+      throws IOException, GeneralSecurityException {
+    InputStream digestingStream = digests.digestCiphertext(in);
+    Crypt4GHInputStreamInternal internal =
+        new Crypt4GHInputStreamInternal(
+            digestingStream, new Header(digestingStream, readerPrivateKey));
+    internal.digests = digests;
+    return internal;
+  }
+
+  /**
+   * Returns the running digests of the plaintext and the ciphertext (if requested).
+   *
+   * @return an Optional that may contain the digests, if they were requested
+   */
+  Optional<Crypt4GHDigests> getDigests() {
+    return Optional.ofNullable(digests);
   }
 
   /**
@@ -97,129 +236,322 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
 
   /** {@inheritDoc} */
   @Override
-  public int read() throws IOException {
-    if (buffer == null || buffer.length == bytesRead) {
-      fillBuffer();
-    }
-    if (buffer == null || buffer.length == 0) {
+  public synchronized int read() throws IOException {
+    if (!ensureBuffer()) {
       return -1;
-    } else {
-      return buffer[bytesRead++];
     }
+    return buffer[bytesRead++] & 0xff;
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Reads up to {@code len} bytes of decrypted data into an array. Whole runs of bytes are copied
+   * from the internal segment buffer, and the method keeps decrypting new segments until the
+   * request is satisfied or the end of the stream is reached.
+   *
+   * @param b the buffer into which the data is read
+   * @param off the start offset in the destination array
+   * @param len the maximum number of bytes to read
+   * @return the total number of bytes read into the buffer, or -1 if the end of the stream has been
+   *     reached
+   * @throws IOException if something goes wrong while reading from the stream
+   */
   @Override
-  public int read(byte[] b, int off, int len) throws IOException {
-    /*
-       Reusing default `InputStream`'s implementation, because `FilterStream`'s implementation doesn't fit
-    */
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
     Objects.checkFromIndexSize(off, len, b.length);
     if (len == 0) {
       return 0;
     }
+    int total = 0;
+    try {
+      while (total < len && ensureBuffer()) {
+        int count = Math.min(len - total, bufferLength - bytesRead);
+        System.arraycopy(buffer, bytesRead, b, off + total, count);
+        bytesRead += count;
+        total += count;
+      }
+    } catch (IOException e) {
+      if (total == 0) {
+        throw e;
+      }
+      log.error(e.getMessage(), e);
+    }
+    return total == 0 ? -1 : total;
+  }
 
-    int c = read();
-    if (c == -1) {
-      return -1;
+  /** {@inheritDoc} */
+  @Override
+  public int readNBytes(byte[] b, int off, int len) throws IOException {
+    int n = read(b, off, len);
+    return n == -1 ? 0 : n;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized byte[] readNBytes(int len) throws IOException {
+    if (len < 0) {
+      throw new IllegalArgumentException("len < 0");
+    }
+    ByteArrayOutputStream result =
+        new ByteArrayOutputStream(Math.min(len, UNENCRYPTED_DATA_SEGMENT_SIZE));
+    int remaining = len;
+    while (remaining > 0 && ensureBuffer()) {
+      int count = Math.min(remaining, bufferLength - bytesRead);
+      result.write(buffer, bytesRead, count);
+      bytesRead += count;
+      remaining -= count;
     }
-    b[off] = (byte) c;
+    return result.toByteArray();
+  }
+
+  /**
+   * Decrypts all the remaining data in the stream and writes it to the given output stream, one
+   * whole segment at a time.
+   *
+   * @param out the output stream to write the decrypted data to
+   * @return the number of bytes transferred
+   * @throws IOException if something goes wrong while reading or writing
+   */
+  @Override
+  public synchronized long transferTo(OutputStream out) throws IOException {
+    Objects.requireNonNull(out, "out");
+    long transferred = 0;
+    while (ensureBuffer()) {
+      int count = bufferLength - bytesRead;
+      out.write(buffer, bytesRead, count);
+      bytesRead = bufferLength;
+      transferred += count;
+    }
+    return transferred;
+  }
+
+  /**
+   * Returns the number of decrypted bytes that can be read without decrypting another segment.
+   *
+   * @return the number of bytes left in the internal segment buffer
+   */
+  @Override
+  public synchronized int available() {
+    return bufferLength - bytesRead;
+  }
 
-    int i = 1;
+  /**
+   * Closes the stream, stopping the read-ahead (if enabled) before closing the wrapped stream, and
+   * returns the buffers to the pool. Nothing more is read from the wrapped stream, so if digests
+   * were requested and the end of the stream has not been reached, they are left incomplete.
+   * Closing a stream that is already closed has no effect.
+   *
+   * @throws IOException if the wrapped stream can't be closed
+   */
+  @Override
+  public void close() throws IOException {
     try {
-      for (; i < len; i++) {
-        c = read();
-        if (c == -1) {
-          break;
-        }
-        b[off + i] = (byte) c;
+      if (segmentReadAhead != null) {
+        segmentReadAhead.close();
+      }
+    } finally {
+      try {
+        super.close();
+      } finally {
+        releaseBuffers();
       }
-    } catch (IOException ee) {
-      log.error(ee.getMessage(), ee);
     }
-    return i;
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Reads and digests the rest of the stream, if digests were requested. Used by the outer
+   * Crypt4GHInputStream once it has read all the data kept by its Data Edit List, so that the
+   * digests still cover the whole file.
+   *
+   * @throws IOException if something goes wrong while reading from the stream
+   */
+  synchronized void digestRemaining() throws IOException {
+    if (digests == null) {
+      return;
+    }
+    while (!endOfStream) {
+      fillBuffer();
+    }
+    bytesRead = bufferLength;
+  }
+
+  /** Returns the segment buffers to the pool, once. */
+  private synchronized void releaseBuffers() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    bufferLength = 0;
+    bytesRead = 0;
+    segmentBufferPool.release(pooledBuffer);
+    segmentBufferPool.release(pooledEncryptedSegmentBuffer);
+  }
+
+  /**
+   * Skips over and discards n bytes of decrypted data. Whole segments that are skipped over are
+   * not decrypted, unless they have already been read ahead.
+   *
+   * @param n the number of bytes to skip
+   * @return the actual number of bytes skipped
+   * @throws IOException if something goes wrong while skipping ahead in the stream
+   */
   @Override
-  public long skip(long n) throws IOException {
+  public synchronized long skip(long n) throws IOException {
     if (n <= 0) {
       return 0;
     }
-    if (buffer == null || buffer.length == bytesRead) {
-      fillBuffer();
+    int buffered = bufferLength - bytesRead;
+    if (n <= buffered) {
+      bytesRead += (int) n;
+      return n;
     }
-    long currentDecryptedPosition =
-        lastDecryptedSegment * UNENCRYPTED_DATA_SEGMENT_SIZE + bytesRead;
-    long newDecryptedPosition = currentDecryptedPosition + n;
-    long newSegmentNumber = newDecryptedPosition / UNENCRYPTED_DATA_SEGMENT_SIZE;
-    if (newSegmentNumber != lastDecryptedSegment) {
-      long segmentsToSkip = newSegmentNumber - lastDecryptedSegment - 1;
-      skipSegments(segmentsToSkip);
-      fillBuffer();
-      currentDecryptedPosition = lastDecryptedSegment * UNENCRYPTED_DATA_SEGMENT_SIZE;
+    long skipped = buffered;
+    bytesRead = bufferLength;
+    long remaining = n - buffered;
+    long segmentsToSkip = remaining / UNENCRYPTED_DATA_SEGMENT_SIZE;
+    if (segmentsToSkip > 0) {
+      long plaintextSkipped = skipSegments(segmentsToSkip);
+      skipped += plaintextSkipped;
+      remaining -= plaintextSkipped;
+      if (endOfStream) {
+        return skipped;
+      }
     }
-    long delta = newDecryptedPosition - currentDecryptedPosition;
-    if (bytesRead + delta > buffer.length) {
-      long missingBytes = bytesRead + delta - buffer.length;
-      assert bytesRead + delta - missingBytes <= Integer.MAX_VALUE
-          : "Value assigned to int exceeds integer range";
-      bytesRead = (int) (bytesRead + delta - missingBytes);
-      return n - missingBytes;
+    if (remaining > 0 && ensureBuffer()) {
+      int count = (int) Math.min(remaining, bufferLength);
+      bytesRead = count;
+      skipped += count;
     }
-    assert bytesRead + delta <= Integer.MAX_VALUE : "Value assigned to int exceeds integer range";
-    bytesRead = (int) (bytesRead + delta);
-    return n;
+    return skipped;
   }
 
   /**
-   * Skips ahead a number of segments (data blocks) in the stream.
+   * Skips ahead a number of segments (data blocks) in the stream. Without read-ahead, the skipped
+   * segments are not decrypted. With read-ahead, they are taken from the read-ahead and discarded,
+   * and if digests were requested, they are decrypted and digested before being discarded.
    *
    * @param n the number of segments to skip
+   * @return the number of plaintext bytes contained in the skipped segments
    * @throws IOException if something goes wrong while skipping ahead in the stream
    */
-  @SuppressWarnings("ResultOfMethodCallIgnored")
-  private synchronized void skipSegments(long n) throws IOException {
-    in.skip(n * encryptedSegmentSize);
-    lastDecryptedSegment += n;
+  private long skipSegments(long n) throws IOException {
+    if (segmentReadAhead != null || digests != null) {
+      long plaintextSkipped = 0;
+      for (long i = 0; i < n && !endOfStream; i++) {
+        fillBuffer();
+        plaintextSkipped += bufferLength;
+        bufferLength = 0;
+      }
+      return plaintextSkipped;
+    }
+    long bytesToSkip = n * encryptedSegmentSize;
+    long bytesSkipped = 0;
+    while (bytesSkipped < bytesToSkip) {
+      long skippedNow = in.skip(bytesToSkip - bytesSkipped);
+      if (skippedNow <= 0) {
+        // skip() may return 0 without having reached the end; probe with a single read
+        if (in.read() == -1) {
+          endOfStream = true;
+          break;
+        }
+        skippedNow = 1;
+      }
+      bytesSkipped += skippedNow;
+    }
+    long fullSegments = bytesSkipped / encryptedSegmentSize;
+    long partialSegment = bytesSkipped % encryptedSegmentSize;
+    int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    return fullSegments * UNENCRYPTED_DATA_SEGMENT_SIZE + Math.max(0, partialSegment - overhead);
+  }
+
+  /**
+   * Makes sure that the internal buffer holds unread data, decrypting the next segment if
+   * necessary.
+   *
+   * @return {@code true} if there is data to read in the buffer, {@code false} at the end of the
+   *     stream
+   * @throws IOException if something goes wrong while reading from the stream
+   */
+  private boolean ensureBuffer() throws IOException {
+    ensureOpen();
+    while (bytesRead == bufferLength) {
+      if (endOfStream) {
+        return false;
+      }
+      fillBuffer();
+    }
+    return true;
   }
 
   /**
    * Reads an encrypted segment (data block) from the wrapped input stream, decrypts it and places
-   * the data in the internal buffer.
+   * the data in the internal buffer. With read-ahead enabled, the next segment is instead taken
+   * already decrypted from the read-ahead.
    *
    * @throws IOException if something goes wrong while reading from the stream
    */
-  private synchronized void fillBuffer() throws IOException {
+  private void fillBuffer() throws IOException {
+    ensureOpen();
     try {
-      byte[] encryptedSegmentBytes = in.readNBytes(encryptedSegmentSize);
-      if (encryptedSegmentBytes.length > 0) {
-        decryptSegment(encryptedSegmentBytes);
-      } else if (buffer != null) {
-        Arrays.fill(buffer, -1);
+      if (segmentReadAhead != null) {
+        int length = segmentReadAhead.next(buffer);
+        endOfStream = length == -1;
+        bufferLength = Math.max(length, 0);
+        bytesRead = 0;
+        digestSegment();
+        return;
+      }
+      int encryptedLength = in.readNBytes(encryptedSegmentBuffer, 0, encryptedSegmentSize);
+      if (encryptedLength > 0) {
+        decryptSegment(encryptedLength);
+      } else {
+        bufferLength = 0;
+      }
+      if (encryptedLength < encryptedSegmentSize) {
+        endOfStream = true;
       }
       bytesRead = 0;
+      digestSegment();
     } catch (GeneralSecurityException e) {
       throw new RuntimeException(e);
     }
   }
 
   /**
-   * Decrypts an encrypted segment provided as a byte array. The decrypted data is placed in the
-   * internal buffer and the lastDecryptedSegment counter is incremented.
+   * Decrypts the encrypted segment held in the encrypted segment buffer. The decrypted data is
+   * placed in the internal buffer.
    *
-   * @param encryptedSegmentBytes an encrypted segment
+   * @param encryptedLength the number of encrypted bytes in the encrypted segment buffer
    * @throws GeneralSecurityException if the segment could not be decrypted with any of the known
    *     keys
    */
-  private synchronized void decryptSegment(byte[] encryptedSegmentBytes)
-      throws GeneralSecurityException {
-    Segment segment = Segment.create(encryptedSegmentBytes, dataEncryptionParametersList);
-    byte[] unencryptedData = segment.getUnencryptedData();
-    buffer = new int[unencryptedData.length];
-    for (int i = 0; i < unencryptedData.length; i++) {
-      buffer[i] = unencryptedData[i] & 0xff;
+  private void decryptSegment(int encryptedLength) throws GeneralSecurityException {
+    bufferLength =
+        segmentCryptor.decrypt(
+            encryptedSegmentBuffer, 0, encryptedLength, buffer, 0, dataEncryptionParametersList);
+  }
+
+  /**
+   * Throws an exception if the stream has been closed, since its buffers may be in use by another
+   * stream by then.
+   *
+   * @throws IOException if the stream has been closed
+   */
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /**
+   * Updates the plaintext digests (if requested) with the segment in the internal buffer, and
+   * finishes the digests at the end of the stream.
+   */
+  private void digestSegment() {
+    if (digests != null) {
+      digests.updatePlaintext(buffer, 0, bufferLength);
+      if (endOfStream) {
+        digests.complete();
+      }
     }
-    lastDecryptedSegment++;
   }
 }
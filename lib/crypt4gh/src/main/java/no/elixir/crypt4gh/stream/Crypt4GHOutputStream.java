@@ -5,15 +5,17 @@ import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
 import javax.crypto.SecretKey;
-import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
 import no.elixir.crypt4gh.pojo.header.*;
 import no.elixir.crypt4gh.util.KeyUtils;
 
@@ -21,10 +23,37 @@ import no.elixir.crypt4gh.util.KeyUtils;
 public class Crypt4GHOutputStream extends FilterOutputStream {
 
   private Header header;
-  private byte[] buffer = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+  private byte[] buffer;
   private int bytesCached;
   private DataEncryptionParameters dataEncryptionParameters;
 
+  /** Encrypts segments, reusing the same cipher instance and nonce generator for the stream */
+  private final SegmentCryptor segmentCryptor = new SegmentCryptor();
+
+  /** The pool the segment buffers are borrowed from, and returned to when the stream is closed */
+  private final SegmentBufferPool segmentBufferPool;
+
+  /** The pooled buffer backing {@link #buffer} */
+  private final ByteBuffer pooledBuffer;
+
+  /** The pooled buffer backing {@link #encryptedSegmentBuffer}, once borrowed */
+  private ByteBuffer pooledEncryptedSegmentBuffer;
+
+  /** A buffer to encrypt segments into. Borrowed once and reused for every segment. */
+  private byte[] encryptedSegmentBuffer;
+
+  /** Set to true once the buffers have been returned to the pool */
+  private boolean released;
+
+  /** The number of segments passed on to {@link #writeSegment(byte[], int, int)} so far */
+  private long segmentsWritten;
+
+  /** Set to true when the final segment has been written */
+  private boolean finished;
+
+  /** The running digests of the plaintext and ciphertext, or null if not requested */
+  private final Crypt4GHDigests digests;
+
   /**
    * Constructs the Crypt4GHOutputStream by wrapping an existing OutputStream.
    *
@@ -37,16 +66,7 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
   public Crypt4GHOutputStream(
       OutputStream out, PrivateKey writerPrivateKey, PublicKey readerPublicKey)
       throws IOException, GeneralSecurityException {
-    super(out);
-    KeyUtils keyUtils = KeyUtils.getInstance();
-    SecretKey dataKey = keyUtils.generateSessionKey();
-    this.dataEncryptionParameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
-    HeaderPacket headerPacket =
-        new X25519ChaCha20IETFPoly1305HeaderPacket(
-            this.dataEncryptionParameters, writerPrivateKey, readerPublicKey);
-    List<HeaderPacket> headerPackets = Collections.singletonList(headerPacket);
-    this.header = new Header(headerPackets);
-    out.write(header.serialize());
+    this(out, null, writerPrivateKey, List.of(readerPublicKey));
   }
 
   /**
@@ -66,19 +86,124 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
       PrivateKey writerPrivateKey,
       PublicKey readerPublicKey)
       throws IOException, GeneralSecurityException {
-    super(out);
-    KeyUtils keyUtils = KeyUtils.getInstance();
-    SecretKey dataKey = keyUtils.generateSessionKey();
+    this(out, dataEditList, writerPrivateKey, List.of(readerPublicKey));
+  }
+
+  /**
+   * Constructs the Crypt4GHOutputStream for several recipients by wrapping an existing
+   * OutputStream. A single data key is generated and shared with every recipient through a header
+   * packet of its own, so the data is only encrypted once, however many recipients there are.
+   *
+   * @param out Existing OutputStream.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKeys Recipients' public keys.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed.
+   * @throws IllegalArgumentException If there are no recipients.
+   */
+  public Crypt4GHOutputStream(
+      OutputStream out, PrivateKey writerPrivateKey, Collection<PublicKey> readerPublicKeys)
+      throws IOException, GeneralSecurityException {
+    this(out, null, writerPrivateKey, readerPublicKeys);
+  }
+
+  /**
+   * Constructs the Crypt4GHOutputStream for several recipients by wrapping existing OutputStream,
+   * with DataEditList included to a header. A single data key is generated, and every recipient
+   * gets a header packet with the data key and a header packet with the Data Edit List, so the
+   * data is only encrypted once, however many recipients there are.
+   *
+   * @param out Existing OutputStream.
+   * @param dataEditList Data Edit List, or null to leave it out.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKeys Recipients' public keys.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed.
+   * @throws IllegalArgumentException If there are no recipients.
+   */
+  public Crypt4GHOutputStream(
+      OutputStream out,
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      Collection<PublicKey> readerPublicKeys)
+      throws IOException, GeneralSecurityException {
+    this(out, dataEditList, writerPrivateKey, readerPublicKeys, null, null);
+  }
+
+  /**
+   * Constructs the Crypt4GHOutputStream for several recipients, optionally computing running
+   * digests of the plaintext and the ciphertext, and borrowing its buffers from a given pool. Used
+   * by the {@link Builder}.
+   */
+  private Crypt4GHOutputStream(
+      OutputStream out,
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      Collection<PublicKey> readerPublicKeys,
+      Crypt4GHDigests digests,
+      SegmentBufferPool segmentBufferPool)
+      throws IOException, GeneralSecurityException {
+    super(digests == null ? out : digests.digestCiphertext(out));
+    this.digests = digests;
+    this.segmentBufferPool =
+        segmentBufferPool == null ? BoundedSegmentBufferPool.getInstance() : segmentBufferPool;
+    SecretKey dataKey = KeyUtils.getInstance().generateSessionKey();
     this.dataEncryptionParameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
-    HeaderPacket dataEncryptionParametersHeaderPacket =
-        new X25519ChaCha20IETFPoly1305HeaderPacket(
-            this.dataEncryptionParameters, writerPrivateKey, readerPublicKey);
-    HeaderPacket dataEditListHeaderPacket =
-        new X25519ChaCha20IETFPoly1305HeaderPacket(dataEditList, writerPrivateKey, readerPublicKey);
-    List<HeaderPacket> headerPackets =
-        new ArrayList<>(List.of(dataEncryptionParametersHeaderPacket, dataEditListHeaderPacket));
-    this.header = new Header(headerPackets);
-    out.write(header.serialize());
+    this.header =
+        new Header(
+            createHeaderPackets(
+                dataEncryptionParameters, dataEditList, writerPrivateKey, readerPublicKeys));
+    this.out.write(header.serialize());
+    // borrowed last, so that nothing is left borrowed if the header can't be created or written
+    this.pooledBuffer = this.segmentBufferPool.acquireHeap(UNENCRYPTED_DATA_SEGMENT_SIZE);
+    this.buffer = pooledBuffer.array();
+  }
+
+  /**
+   * Creates the header packets for a file encrypted for several recipients: a Data Encryption
+   * Parameters packet for each recipient, followed by a Data Edit List packet if there is one.
+   *
+   * @param dataEncryptionParameters the parameters the segments are encrypted with
+   * @param dataEditList Data Edit List (or null, if there isn't one).
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKeys Recipients' public keys.
+   * @return the header packets
+   * @throws IOException In case the header packets can't be serialized.
+   * @throws GeneralSecurityException In case the header packets can't be encrypted.
+   */
+  static List<HeaderPacket> createHeaderPackets(
+      DataEncryptionParameters dataEncryptionParameters,
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      Collection<? extends PublicKey> readerPublicKeys)
+      throws IOException, GeneralSecurityException {
+    if (readerPublicKeys.isEmpty()) {
+      throw new IllegalArgumentException("At least one recipient's public key is required");
+    }
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    for (PublicKey readerPublicKey : readerPublicKeys) {
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEncryptionParameters, writerPrivateKey, readerPublicKey));
+      if (dataEditList != null) {
+        headerPackets.add(
+            new X25519ChaCha20IETFPoly1305HeaderPacket(
+                dataEditList, writerPrivateKey, readerPublicKey));
+      }
+    }
+    return headerPackets;
+  }
+
+  /**
+   * Creates a builder for a Crypt4GHOutputStream, which is convenient when the number of
+   * recipients or the presence of a Data Edit List is only known at runtime.
+   *
+   * @return a new builder
+   */
+  public static Builder builder() {
+    return new Builder();
   }
 
   /**
@@ -91,13 +216,35 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
   }
 
   /**
-   * Writes a byte to an internal buffer and flushes this buffer when it get's full.
+   * Gets the running digests of the plaintext and the ciphertext, if they were requested when the
+   * stream was built. The digests are available once the stream has been finished or closed.
+   *
+   * @return an Optional containing the digests, provided that they were requested
+   */
+  public Optional<Crypt4GHDigests> getDigests() {
+    return Optional.ofNullable(digests);
+  }
+
+  /**
+   * Gets the Data Encryption Parameters used to encrypt the segments of this stream.
+   *
+   * @return Data Encryption Parameters (including the data key).
+   */
+  protected DataEncryptionParameters getDataEncryptionParameters() {
+    return dataEncryptionParameters;
+  }
+
+  /**
+   * Writes a byte to an internal buffer and encrypts this buffer as a new segment when it gets
+   * full.
    *
    * @param b A byte to write.
    * @throws IOException In case the byte can't be written or the buffer can't be flushed.
    */
   @Override
   public void write(int b) throws IOException {
+    ensureNotFinished();
+    buffer[bytesCached++] = (byte) b; // it's actually always `byte`, not `int`
     if (bytesCached == buffer.length) {
       try {
         flushBuffer();
@@ -105,35 +252,277 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
         throw new RuntimeException(e);
       }
     }
-    buffer[bytesCached++] = (byte) b; // it's actually always `byte`, not `int`
   }
 
   /**
-   * Writes the bytes cached in the internal buffer to the underlying output stream. Flushing
-   * creates a new segment encrypted with .
+   * Writes len bytes from the specified byte array starting at offset off. Whole segments are
+   * encrypted directly from the supplied array, and only the remainder that does not fill a
+   * complete segment is copied into the internal buffer.
+   *
+   * @param b the data.
+   * @param off the start offset in the data.
+   * @param len the number of bytes to write.
+   * @throws IOException In case the data can't be written to the underlying stream.
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    ensureNotFinished();
+    try {
+      if (bytesCached > 0) {
+        int count = Math.min(len, buffer.length - bytesCached);
+        System.arraycopy(b, off, buffer, bytesCached, count);
+        bytesCached += count;
+        off += count;
+        len -= count;
+        if (bytesCached == buffer.length) {
+          flushBuffer();
+        }
+      }
+      while (len >= UNENCRYPTED_DATA_SEGMENT_SIZE) {
+        digestPlaintext(b, off, UNENCRYPTED_DATA_SEGMENT_SIZE);
+        writeSegment(b, off, UNENCRYPTED_DATA_SEGMENT_SIZE);
+        segmentsWritten++;
+        off += UNENCRYPTED_DATA_SEGMENT_SIZE;
+        len -= UNENCRYPTED_DATA_SEGMENT_SIZE;
+      }
+      if (len > 0) {
+        System.arraycopy(b, off, buffer, bytesCached, len);
+        bytesCached += len;
+      }
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Encrypts the bytes cached in the internal buffer as a new segment and writes it to the
+   * underlying output stream.
    *
    * @throws IOException In case the bytes in the buffer can't be written to the output stream.
    * @throws GeneralSecurityException In case the encryption fails.
    */
   protected void flushBuffer() throws IOException, GeneralSecurityException {
-    Segment segment =
-        Segment.create(Arrays.copyOfRange(buffer, 0, bytesCached), dataEncryptionParameters);
-    out.write(segment.serialize());
+    digestPlaintext(buffer, 0, bytesCached);
+    writeSegment(buffer, 0, bytesCached);
+    segmentsWritten++;
     bytesCached = 0;
   }
 
   /**
-   * Flushes the internal buffer before flushing the underlying stream.
+   * Encrypts a block of data as a single segment and writes it to the underlying output stream.
+   * Subclasses may override this method to encrypt segments elsewhere, as long as the segments end
+   * up in the underlying stream in the order this method is called. The data array may be reused
+   * by the caller as soon as this method returns.
    *
-   * @throws IOException In case if the buffer or underlying stream can't be flushed.
+   * @param data an array holding the data to encrypt
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt (at most one segment)
+   * @throws IOException In case the segment can't be written to the output stream.
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  protected void writeSegment(byte[] data, int offset, int length)
+      throws IOException, GeneralSecurityException {
+    if (encryptedSegmentBuffer == null) {
+      pooledEncryptedSegmentBuffer =
+          segmentBufferPool.acquireHeap(
+              dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize());
+      encryptedSegmentBuffer = pooledEncryptedSegmentBuffer.array();
+    }
+    int encryptedLength =
+        segmentCryptor.encrypt(
+            data, offset, length, encryptedSegmentBuffer, 0, dataEncryptionParameters);
+    out.write(encryptedSegmentBuffer, 0, encryptedLength);
+  }
+
+  /**
+   * Flushes the underlying stream. Data that does not yet fill a complete segment is kept in the
+   * internal buffer, so flushing in the middle of a stream never produces a short segment. Use
+   * {@link #finish()} or {@link #close()} to write the final segment.
+   *
+   * @throws IOException In case the underlying stream can't be flushed.
    */
   @Override
   public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Encrypts and writes the final (possibly short) segment without closing the underlying stream.
+   * A file without any data will still get one empty segment. No more data can be written after
+   * this method has been called. Calling it more than once has no effect.
+   *
+   * @throws IOException In case the final segment can't be written to the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (bytesCached > 0 || segmentsWritten == 0) {
+      try {
+        flushBuffer();
+      } catch (GeneralSecurityException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    flush();
+    if (digests != null) {
+      digests.complete();
+    }
+  }
+
+  /**
+   * Writes the final segment, closes the underlying stream and returns the buffers to the pool.
+   *
+   * @throws IOException In case the final segment can't be written or the stream can't be closed.
+   */
+  @Override
+  public void close() throws IOException {
     try {
-      flushBuffer();
-    } catch (GeneralSecurityException e) {
-      throw new RuntimeException(e);
+      finish();
+    } finally {
+      try {
+        super.close();
+      } finally {
+        releaseBuffers();
+      }
+    }
+  }
+
+  /** Returns the segment buffers to the pool, once. No more data can be written by then. */
+  private void releaseBuffers() {
+    if (released) {
+      return;
+    }
+    released = true;
+    finished = true;
+    segmentBufferPool.release(pooledBuffer);
+    if (pooledEncryptedSegmentBuffer != null) {
+      segmentBufferPool.release(pooledEncryptedSegmentBuffer);
+    }
+  }
+
+  /**
+   * Updates the plaintext digests (if requested) with the data of a segment about to be written.
+   *
+   * @param data an array holding the data of the segment
+   * @param offset the position of the data in the array
+   * @param length the number of bytes in the segment
+   */
+  private void digestPlaintext(byte[] data, int offset, int length) {
+    if (digests != null) {
+      digests.updatePlaintext(data, offset, length);
+    }
+  }
+
+  /**
+   * Throws an exception if the final segment has already been written.
+   *
+   * @throws IOException if {@link #finish()} has been called
+   */
+  private void ensureNotFinished() throws IOException {
+    if (finished) {
+      throw new IOException("Crypt4GH stream is already finished");
+    }
+  }
+
+  /** Builder collecting the keys and the optional Data Edit List for a Crypt4GHOutputStream. */
+  public static class Builder {
+
+    private PrivateKey writerPrivateKey;
+    private final List<PublicKey> readerPublicKeys = new ArrayList<>();
+    private DataEditList dataEditList;
+    private Crypt4GHDigests digests;
+    private SegmentBufferPool segmentBufferPool;
+
+    private Builder() {}
+
+    /**
+     * Sets the sender's private key.
+     *
+     * @param writerPrivateKey Sender's private key.
+     * @return this builder
+     */
+    public Builder writerPrivateKey(PrivateKey writerPrivateKey) {
+      this.writerPrivateKey = writerPrivateKey;
+      return this;
+    }
+
+    /**
+     * Adds a recipient.
+     *
+     * @param readerPublicKey Recipient's public key.
+     * @return this builder
+     */
+    public Builder readerPublicKey(PublicKey readerPublicKey) {
+      this.readerPublicKeys.add(Objects.requireNonNull(readerPublicKey));
+      return this;
+    }
+
+    /**
+     * Adds several recipients.
+     *
+     * @param readerPublicKeys Recipients' public keys.
+     * @return this builder
+     */
+    public Builder readerPublicKeys(Collection<? extends PublicKey> readerPublicKeys) {
+      readerPublicKeys.forEach(this::readerPublicKey);
+      return this;
+    }
+
+    /**
+     * Sets the Data Edit List to include in the header.
+     *
+     * @param dataEditList Data Edit List, or null to leave it out.
+     * @return this builder
+     */
+    public Builder dataEditList(DataEditList dataEditList) {
+      this.dataEditList = dataEditList;
+      return this;
+    }
+
+    /**
+     * Makes the stream compute running digests of the plaintext and the ciphertext while it is
+     * written, available from the given digests once the stream has been finished or closed.
+     *
+     * @param digests The digests to update, or null to compute no digests.
+     * @return this builder
+     */
+    public Builder digests(Crypt4GHDigests digests) {
+      this.digests = digests;
+      return this;
+    }
+
+    /**
+     * Sets the pool the stream borrows its segment buffers from.
+     *
+     * @param segmentBufferPool The pool, or null to use the shared {@link
+     *     BoundedSegmentBufferPool}.
+     * @return this builder
+     */
+    public Builder segmentBufferPool(SegmentBufferPool segmentBufferPool) {
+      this.segmentBufferPool = segmentBufferPool;
+      return this;
+    }
+
+    /**
+     * Creates the Crypt4GHOutputStream, writing the header to the wrapped stream.
+     *
+     * @param out Existing OutputStream.
+     * @return the Crypt4GHOutputStream
+     * @throws IOException In case the Crypt4GH header can't be written to the underlying
+     *     OutputStream.
+     * @throws GeneralSecurityException In case the Crypt4GH header is malformed.
+     * @throws IllegalArgumentException If the sender's private key or the recipients are missing.
+     */
+    public Crypt4GHOutputStream build(OutputStream out)
+        throws IOException, GeneralSecurityException {
+      if (writerPrivateKey == null) {
+        throw new IllegalArgumentException("The sender's private key is required");
+      }
+      return new Crypt4GHOutputStream(
+          out, dataEditList, writerPrivateKey, readerPublicKeys, digests, segmentBufferPool);
     }
-    super.flush();
   }
 }
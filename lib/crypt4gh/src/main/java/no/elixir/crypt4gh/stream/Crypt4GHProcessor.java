@@ -0,0 +1,305 @@
+package no.elixir.crypt4gh.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Flow.Processor} that encrypts or decrypts a Crypt4GH stream, for use with non-blocking
+ * I/O stacks such as the JDK {@code HttpClient}.
+ *
+ * <p>Buffers of any size received from upstream are regrouped into segments, and every item
+ * published downstream holds exactly one encrypted or decrypted segment. A segment is only
+ * processed when there is unmet downstream demand and the previous one has been published, and
+ * upstream buffers are only requested (one at a time) once the previous one has been fully
+ * processed, so the memory used is bounded by a single upstream buffer and a single segment
+ * whatever the size of the upstream buffers. Processing happens on the threads delivering the
+ * upstream and downstream signals.
+ *
+ * <p>The processor supports a single subscriber and a single upstream subscription. Encryption and
+ * decryption failures are reported downstream through {@link Flow.Subscriber#onError(Throwable)}
+ * with the {@link GeneralSecurityException} or {@link IOException} that caused them, after which
+ * the upstream subscription is cancelled. Upstream buffers are not modified.
+ */
+public abstract class Crypt4GHProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+  /** The buffers received from upstream and not processed yet */
+  private final Queue<ByteBuffer> inbound = new ConcurrentLinkedQueue<>();
+
+  /**
+   * A view of the upstream buffer being processed, positioned at the first byte not processed yet,
+   * or null. Only accessed while draining.
+   */
+  private ByteBuffer pending;
+
+  /** The processed segment not published yet, or null. Only accessed while draining. */
+  private ByteBuffer outbound;
+
+  /** The number of segments requested downstream and not published yet */
+  private final AtomicLong requested = new AtomicLong();
+
+  /** Counts the calls to {@link #drain()}, so that only one thread drains at a time */
+  private final AtomicInteger wip = new AtomicInteger();
+
+  /** The subscriber the segments are published to */
+  private final AtomicReference<Flow.Subscriber<? super ByteBuffer>> downstream =
+      new AtomicReference<>();
+
+  /** The subscription the buffers are requested from */
+  private volatile Flow.Subscription upstream;
+
+  /** Set when upstream has completed */
+  private volatile boolean upstreamComplete;
+
+  /** The failure to report downstream */
+  private volatile Throwable error;
+
+  /** Set when the downstream subscriber has cancelled its subscription */
+  private volatile boolean cancelled;
+
+  /** Set while a buffer is requested from upstream and not received. Only used while draining. */
+  private boolean upstreamRequested;
+
+  /** Set once the final segment has been processed. Only used while draining. */
+  private boolean finished;
+
+  /** Set once a terminal signal has been sent downstream. Only used while draining. */
+  private boolean done;
+
+  Crypt4GHProcessor() {}
+
+  /**
+   * Consumes bytes received from upstream until a segment to publish has been processed, or until
+   * the bytes run out.
+   *
+   * @param input the bytes received from upstream, whose position is advanced past the bytes
+   *     consumed (the contents must not be modified)
+   * @return the processed segment, or null if the input ran out first
+   * @throws IOException In case the stream is malformed.
+   * @throws GeneralSecurityException In case a segment can't be encrypted or decrypted.
+   */
+  abstract ByteBuffer process(ByteBuffer input) throws IOException, GeneralSecurityException;
+
+  /**
+   * Processes the final segment once upstream has completed.
+   *
+   * @return the processed segment, or null if there is nothing left to publish
+   * @throws IOException In case the stream is truncated.
+   * @throws GeneralSecurityException In case the segment can't be encrypted or decrypted.
+   */
+  abstract ByteBuffer finish() throws IOException, GeneralSecurityException;
+
+  /**
+   * Subscribes to the processed segments. Only a single subscriber is supported: any further
+   * subscriber is rejected with an {@link IllegalStateException}.
+   *
+   * @param subscriber the subscriber
+   */
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    Objects.requireNonNull(subscriber);
+    if (!downstream.compareAndSet(null, subscriber)) {
+      subscriber.onSubscribe(
+          new Flow.Subscription() {
+            @Override
+            public void request(long n) {}
+
+            @Override
+            public void cancel() {}
+          });
+      subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+      return;
+    }
+    subscriber.onSubscribe(
+        new Flow.Subscription() {
+          @Override
+          public void request(long n) {
+            if (n <= 0) {
+              fail(new IllegalArgumentException("Non-positive request: " + n));
+              return;
+            }
+            requested.accumulateAndGet(n, Crypt4GHProcessor::addCapped);
+            drain();
+          }
+
+          @Override
+          public void cancel() {
+            cancelled = true;
+            cancelUpstream();
+            drain();
+          }
+        });
+    drain();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    Objects.requireNonNull(subscription);
+    if (upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    if (cancelled) {
+      subscription.cancel();
+    }
+    drain();
+  }
+
+  @Override
+  public void onNext(ByteBuffer item) {
+    inbound.add(Objects.requireNonNull(item));
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    error = Objects.requireNonNull(throwable);
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    upstreamComplete = true;
+    drain();
+  }
+
+  /**
+   * Records a failure and cancels the upstream subscription.
+   *
+   * @param throwable the failure to report downstream
+   */
+  private void fail(Throwable throwable) {
+    if (error == null) {
+      error = throwable;
+    }
+    cancelUpstream();
+    drain();
+  }
+
+  /**
+   * Adds two demands, capping the sum at {@link Long#MAX_VALUE} (which stands for unbounded
+   * demand).
+   *
+   * @param current the current demand
+   * @param added the additional demand
+   * @return the total demand
+   */
+  private static long addCapped(long current, long added) {
+    return Long.MAX_VALUE - current < added ? Long.MAX_VALUE : current + added;
+  }
+
+  /** Cancels the upstream subscription, if there is one. */
+  private void cancelUpstream() {
+    Flow.Subscription subscription = upstream;
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  /**
+   * Processes buffers and publishes segments for as long as there is something to do. Calls made
+   * while another thread (or an outer call on the same thread) is draining make that drain loop go
+   * round once more instead.
+   */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      drainLoop();
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  /** Processes buffers and publishes segments until no progress can be made. */
+  private void drainLoop() {
+    Flow.Subscriber<? super ByteBuffer> subscriber = downstream.get();
+    while (!done) {
+      if (cancelled) {
+        done = true;
+        clear();
+        return;
+      }
+      if (subscriber == null) {
+        return;
+      }
+      Throwable throwable = error;
+      if (throwable != null) {
+        done = true;
+        clear();
+        subscriber.onError(throwable);
+        return;
+      }
+      if (outbound != null) {
+        if (requested.get() == 0) {
+          return;
+        }
+        requested.decrementAndGet();
+        ByteBuffer segment = outbound;
+        outbound = null;
+        subscriber.onNext(segment);
+        continue;
+      }
+      // all the buffers have been queued by the time upstream completes
+      boolean complete = upstreamComplete;
+      if (pending == null) {
+        ByteBuffer item = inbound.poll();
+        if (item != null) {
+          upstreamRequested = false;
+          pending = item.duplicate();
+        }
+      }
+      if (pending == null && complete) {
+        if (finished) {
+          done = true;
+          subscriber.onComplete();
+          return;
+        }
+        finished = true;
+        try {
+          outbound = finish();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+          fail(e);
+        }
+        continue;
+      }
+      if (requested.get() == 0) {
+        return;
+      }
+      if (pending != null) {
+        try {
+          outbound = process(pending);
+          if (!pending.hasRemaining()) {
+            pending = null;
+          }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+          fail(e);
+        }
+        continue;
+      }
+      Flow.Subscription subscription = upstream;
+      if (subscription != null && !upstreamRequested) {
+        upstreamRequested = true;
+        subscription.request(1);
+        continue;
+      }
+      return;
+    }
+  }
+
+  /** Drops the buffers not processed or published yet. Only called while draining. */
+  private void clear() {
+    inbound.clear();
+    pending = null;
+    outbound = null;
+  }
+}
@@ -0,0 +1,274 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Objects;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
+
+/**
+ * InputStream returning exactly the bytes of a range of the decrypted content of a Crypt4GH file,
+ * for example to answer HTTP {@code Range} requests on encrypted files.
+ *
+ * <p>Only the encrypted segments covering the range are fetched and decrypted: the segments are
+ * located from the header length and the segment size, the first segment is trimmed to the start
+ * of the range, and the stream ends at the end of the range. If the range extends beyond the end
+ * of the decrypted content, the stream ends with the content.
+ *
+ * <p>Like {@link Crypt4GHSeekableByteChannel}, ranges refer to the full decrypted content. A Data
+ * Edit List in the header is not applied, and can be obtained from {@link #getHeader()}.
+ */
+public class Crypt4GHRangeInputStream extends FilterInputStream {
+
+  /** The number of bytes to fetch at a time while reading the header through a RangeFetcher */
+  static final int HEADER_FETCH_SIZE = 4096;
+
+  /** The header of the Crypt4GH file */
+  private final Header header;
+
+  /** The number of bytes of the range that have not been read yet */
+  private long remaining;
+
+  /**
+   * Fetches byte ranges of a Crypt4GH file, for example with HTTP range requests to an object
+   * store.
+   */
+  @FunctionalInterface
+  public interface RangeFetcher {
+
+    /**
+     * Fetches a range of the (encrypted) file. The returned stream may end before {@code length}
+     * bytes if the end of the file is reached.
+     *
+     * @param offset the offset of the first byte to fetch
+     * @param length the number of bytes to fetch
+     * @return a stream of the bytes in the range
+     * @throws IOException if the range can't be fetched
+     */
+    InputStream fetch(long offset, long length) throws IOException;
+  }
+
+  /**
+   * Opens a range of the decrypted content of a Crypt4GH file read from a SeekableByteChannel. The
+   * channel is closed when this stream is closed.
+   *
+   * @param channel the channel to read the Crypt4GH file from
+   * @param readerPrivateKey Recipient's private key.
+   * @param start the offset of the first byte of the range in the decrypted content (inclusive)
+   * @param end the offset of the end of the range in the decrypted content (exclusive)
+   * @throws IOException In case the Crypt4GH header can't be read from the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHRangeInputStream(
+      SeekableByteChannel channel, PrivateKey readerPrivateKey, long start, long end)
+      throws IOException, GeneralSecurityException {
+    this(openChannel(channel, readerPrivateKey, start, end), end - start);
+  }
+
+  /**
+   * Opens a range of the decrypted content of a Crypt4GH file read with a RangeFetcher. The header
+   * is fetched first, then the segments covering the range are fetched with a single call.
+   *
+   * @param rangeFetcher the fetcher to read the Crypt4GH file with
+   * @param readerPrivateKey Recipient's private key.
+   * @param start the offset of the first byte of the range in the decrypted content (inclusive)
+   * @param end the offset of the end of the range in the decrypted content (exclusive)
+   * @throws IOException In case the Crypt4GH header or the segments can't be fetched.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHRangeInputStream(
+      RangeFetcher rangeFetcher, PrivateKey readerPrivateKey, long start, long end)
+      throws IOException, GeneralSecurityException {
+    this(fetchSegments(rangeFetcher, readerPrivateKey, start, end), end - start);
+  }
+
+  private Crypt4GHRangeInputStream(Crypt4GHSeekableByteChannel channel, long length) {
+    super(Channels.newInputStream(channel));
+    this.header = channel.getHeader();
+    this.remaining = length;
+  }
+
+  private Crypt4GHRangeInputStream(Crypt4GHInputStreamInternal internal, long length) {
+    super(internal);
+    this.header = internal.getHeader();
+    this.remaining = length;
+  }
+
+  /** Opens a Crypt4GHSeekableByteChannel positioned at the start of the range. */
+  private static Crypt4GHSeekableByteChannel openChannel(
+      SeekableByteChannel channel, PrivateKey readerPrivateKey, long start, long end)
+      throws IOException, GeneralSecurityException {
+    checkRange(start, end);
+    Crypt4GHSeekableByteChannel crypt4GHChannel =
+        new Crypt4GHSeekableByteChannel(channel, readerPrivateKey);
+    crypt4GHChannel.position(start);
+    return crypt4GHChannel;
+  }
+
+  /**
+   * Fetches the header and the segments covering the range, and positions the returned stream at
+   * the start of the range.
+   */
+  private static Crypt4GHInputStreamInternal fetchSegments(
+      RangeFetcher rangeFetcher, PrivateKey readerPrivateKey, long start, long end)
+      throws IOException, GeneralSecurityException {
+    checkRange(start, end);
+    HeaderDescriptor headerDescriptor;
+    try (InputStream headerStream = new FetchingInputStream(rangeFetcher, HEADER_FETCH_SIZE)) {
+      headerDescriptor = HeaderDescriptor.read(headerStream);
+    }
+    Header header = new Header(headerDescriptor, readerPrivateKey);
+    int encryptedSegmentSize =
+        header
+            .getDataEncryptionParametersList()
+            .iterator()
+            .next()
+            .getDataEncryptionMethod()
+            .getEncryptedSegmentSize();
+    long firstSegment = start / UNENCRYPTED_DATA_SEGMENT_SIZE;
+    long segments = start == end ? 0 : (end - 1) / UNENCRYPTED_DATA_SEGMENT_SIZE - firstSegment + 1;
+    if (segments == 0) {
+      return new Crypt4GHInputStreamInternal(InputStream.nullInputStream(), header);
+    }
+    InputStream segmentStream =
+        rangeFetcher.fetch(
+            headerDescriptor.getHeaderLength() + firstSegment * encryptedSegmentSize,
+            segments * encryptedSegmentSize);
+    Crypt4GHInputStreamInternal internal = new Crypt4GHInputStreamInternal(segmentStream, header);
+    long offsetInSegment = start - firstSegment * UNENCRYPTED_DATA_SEGMENT_SIZE;
+    try {
+      if (internal.skip(offsetInSegment) < offsetInSegment) {
+        internal.close();
+        return new Crypt4GHInputStreamInternal(InputStream.nullInputStream(), header);
+      }
+    } catch (IOException | RuntimeException e) {
+      internal.close();
+      throw e;
+    }
+    return internal;
+  }
+
+  /**
+   * Checks that the range is valid.
+   *
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  private static void checkRange(long start, long end) {
+    if (start < 0 || end < start) {
+      throw new IllegalArgumentException("Invalid range: [" + start + ", " + end + ")");
+    }
+  }
+
+  /**
+   * Gets header.
+   *
+   * @return Crypt4GH full header.
+   */
+  public Header getHeader() {
+    return header;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized int read() throws IOException {
+    if (remaining == 0) {
+      return -1;
+    }
+    int result = in.read();
+    if (result != -1) {
+      remaining--;
+    }
+    return result;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    if (len == 0) {
+      return 0;
+    }
+    if (remaining == 0) {
+      return -1;
+    }
+    int count = in.read(b, off, (int) Math.min(len, remaining));
+    if (count > 0) {
+      remaining -= count;
+    }
+    return count;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    long skipped = in.skip(Math.min(n, remaining));
+    remaining -= skipped;
+    return skipped;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized int available() throws IOException {
+    return (int) Math.min(in.available(), remaining);
+  }
+
+  /** Marks are not supported. */
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /** InputStream reading a file from the start through a RangeFetcher, one chunk at a time. */
+  private static class FetchingInputStream extends InputStream {
+
+    private final RangeFetcher rangeFetcher;
+    private final int chunkSize;
+    private InputStream chunk = InputStream.nullInputStream();
+    private long chunkEnd;
+    private long position;
+
+    FetchingInputStream(RangeFetcher rangeFetcher, int chunkSize) {
+      this.rangeFetcher = rangeFetcher;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      Objects.checkFromIndexSize(off, len, b.length);
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        int count = chunk.read(b, off, len);
+        if (count > 0) {
+          position += count;
+          return count;
+        }
+        if (position < chunkEnd) {
+          return -1; // the previous chunk ended early, so the end of the file has been reached
+        }
+        chunk.close();
+        chunk = rangeFetcher.fetch(position, chunkSize);
+        chunkEnd = position + chunkSize;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      chunk.close();
+    }
+  }
+}
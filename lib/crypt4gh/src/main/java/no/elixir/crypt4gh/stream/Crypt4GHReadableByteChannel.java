@@ -0,0 +1,205 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Collection;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+
+/**
+ * ReadableByteChannel that decrypts a Crypt4GH stream read from another channel.
+ *
+ * <p>Segments are decrypted with the ByteBuffer API of {@link SegmentCryptor}. When the buffer
+ * passed to {@link #read(ByteBuffer)} has room for a whole segment, the segment is decrypted
+ * straight into it, otherwise it is decrypted into an internal buffer first. The wrapped channel
+ * must be in blocking mode.
+ *
+ * <p>A Data Edit List in the header is applied as by {@link Crypt4GHInputStream}: only the kept
+ * data is returned, and the segments that lie entirely within the excluded ranges are not
+ * decrypted.
+ */
+public class Crypt4GHReadableByteChannel implements ReadableByteChannel {
+
+  /** The channel to read the Crypt4GH stream from */
+  private final ReadableByteChannel channel;
+
+  /** The header read from the channel */
+  private final Header header;
+
+  /** The Data Encryption Parameters read from the header */
+  private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+
+  /** Decrypts segments, reusing the same cipher instance for the whole channel */
+  private final SegmentCryptor segmentCryptor;
+
+  /** A buffer to read encrypted segments into */
+  private final ByteBuffer encryptedSegmentBuffer;
+
+  /** Decrypted data that has not been read yet (in read mode, initially empty) */
+  private final ByteBuffer buffer = ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE).flip();
+
+  /** Set to true when the end of the wrapped channel has been reached */
+  private boolean endOfStream;
+
+  /**
+   * The plaintext ranges kept by the Data Edit List (see {@link
+   * Crypt4GHInputStream#getKeptRanges}), or null if the header has no Data Edit List
+   */
+  private final long[] keptRanges;
+
+  /** The position of the next segment in the decrypted data (before applying the DEL) */
+  private long plaintextPosition;
+
+  /**
+   * Constructs the Crypt4GHReadableByteChannel by wrapping an existing ReadableByteChannel. The
+   * header is read from the wrapped channel right away.
+   *
+   * @param channel Existing ReadableByteChannel.
+   * @param readerPrivateKey Recipient's private key.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHReadableByteChannel(ReadableByteChannel channel, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    this.channel = channel;
+    this.header = new Header(Channels.newInputStream(channel), readerPrivateKey);
+    this.dataEncryptionParametersList = header.getDataEncryptionParametersList();
+    DataEncryptionParameters firstDataEncryptionParameters =
+        dataEncryptionParametersList.iterator().next();
+    for (DataEncryptionParameters encryptionParameters : dataEncryptionParametersList) {
+      if (firstDataEncryptionParameters.getDataEncryptionMethod()
+          != encryptionParameters.getDataEncryptionMethod()) {
+        throw new GeneralSecurityException("Different Data Encryption Methods are not supported");
+      }
+    }
+    this.encryptedSegmentBuffer =
+        ByteBuffer.allocate(
+            firstDataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize());
+    this.segmentCryptor = new SegmentCryptor();
+    this.keptRanges = header.getDataEditList().map(Crypt4GHInputStream::getKeptRanges).orElse(null);
+  }
+
+  /**
+   * Gets header.
+   *
+   * @return Crypt4GH full header.
+   */
+  public Header getHeader() {
+    return header;
+  }
+
+  /**
+   * Reads decrypted data into the buffer, decrypting as many segments as needed to fill it.
+   *
+   * @param dst the buffer to read into
+   * @return the number of bytes read, or -1 at the end of the stream
+   * @throws IOException if the segments can't be read from the wrapped channel
+   */
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+    int total = 0;
+    while (dst.hasRemaining()) {
+      if (buffer.hasRemaining()) {
+        int count = Math.min(dst.remaining(), buffer.remaining());
+        dst.put(buffer.slice(buffer.position(), count));
+        buffer.position(buffer.position() + count);
+        total += count;
+      } else if (endOfStream || !readSegment()) {
+        break;
+      } else if (keptRanges != null) {
+        decryptKeptData();
+      } else if (dst.remaining() >= UNENCRYPTED_DATA_SEGMENT_SIZE) {
+        total += decryptSegment(dst);
+      } else {
+        buffer.clear();
+        decryptSegment(buffer);
+        buffer.flip();
+      }
+    }
+    return total == 0 && endOfStream && dst.hasRemaining() ? -1 : total;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /** Closes this channel and the wrapped channel. */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reads the next encrypted segment from the wrapped channel into the encrypted segment buffer.
+   *
+   * @return {@code true} if a segment was read, {@code false} at the end of the stream
+   * @throws IOException if the segment can't be read from the wrapped channel
+   */
+  private boolean readSegment() throws IOException {
+    encryptedSegmentBuffer.clear();
+    while (encryptedSegmentBuffer.hasRemaining()) {
+      if (channel.read(encryptedSegmentBuffer) == -1) {
+        endOfStream = true;
+        break;
+      }
+    }
+    encryptedSegmentBuffer.flip();
+    return encryptedSegmentBuffer.hasRemaining();
+  }
+
+  /**
+   * Decrypts the segment held in the encrypted segment buffer into the internal buffer, keeping
+   * only the parts of it kept by the Data Edit List. A segment none of which is kept is not
+   * decrypted.
+   */
+  private void decryptKeptData() {
+    int overhead = encryptedSegmentBuffer.capacity() - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    long start = plaintextPosition;
+    long end = start + encryptedSegmentBuffer.remaining() - overhead;
+    plaintextPosition = end;
+    buffer.clear();
+    // a segment too short to hold any data is decrypted anyway, so that it fails
+    if (end <= start || Crypt4GHInputStream.isKept(keptRanges, start, end)) {
+      decryptSegment(buffer);
+      byte[] array = buffer.array();
+      int length = 0;
+      for (int i = 0; i < keptRanges.length; i += 2) {
+        long from = Math.max(start, keptRanges[i]);
+        long to = Math.min(end, keptRanges[i + 1]);
+        if (from < to) {
+          System.arraycopy(array, (int) (from - start), array, length, (int) (to - from));
+          length += (int) (to - from);
+        }
+      }
+      buffer.position(length);
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Decrypts the segment held in the encrypted segment buffer.
+   *
+   * @param output the buffer to write the decrypted data to
+   * @return the number of decrypted bytes
+   */
+  private int decryptSegment(ByteBuffer output) {
+    try {
+      return segmentCryptor.decrypt(encryptedSegmentBuffer, output, dataEncryptionParametersList);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Collection;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+
+/**
+ * Read-only SeekableByteChannel giving random access to the decrypted content of a Crypt4GH file.
+ *
+ * <p>Positions and sizes refer to the decrypted data. A read at a given position works out which
+ * segment holds that position from the header length and the segment size, and fetches and
+ * decrypts only that segment, so seeking costs the same regardless of the distance. When the
+ * wrapped channel is a FileChannel, segments are fetched with positional reads.
+ *
+ * <p>A Data Edit List in the header is not applied by this channel. The full decrypted content is
+ * exposed, and the Data Edit List can be obtained from {@link #getHeader()}.
+ */
+public class Crypt4GHSeekableByteChannel implements SeekableByteChannel {
+
+  /** The channel to read the Crypt4GH file from */
+  private final SeekableByteChannel channel;
+
+  /** The header read from the channel */
+  private final Header header;
+
+  /** The length of the header in the wrapped channel */
+  private final long headerLength;
+
+  /** The Data Encryption Parameters read from the header */
+  private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+
+  /** The size of each encrypted segment (according to the encryption method used in this file) */
+  private final int encryptedSegmentSize;
+
+  /** Decrypts segments, reusing the same cipher instance for the whole channel */
+  private final SegmentCryptor segmentCryptor;
+
+  /** A buffer to read encrypted segments into */
+  private final ByteBuffer encryptedSegmentBuffer;
+
+  /** The decrypted data of the segment last read */
+  private final byte[] buffer = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+
+  /** The index of the segment held in the buffer, or -1 if the buffer is empty */
+  private long bufferedSegment = -1;
+
+  /** The number of valid bytes in the buffer */
+  private int bufferLength;
+
+  /** The current position in the decrypted data */
+  private long position;
+
+  /**
+   * Opens a Crypt4GH file for random access.
+   *
+   * @param path the Crypt4GH file
+   * @param readerPrivateKey Recipient's private key.
+   * @throws IOException In case the Crypt4GH header can't be read from the file.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHSeekableByteChannel(Path path, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    this(FileChannel.open(path, StandardOpenOption.READ), readerPrivateKey);
+  }
+
+  /**
+   * Constructs the Crypt4GHSeekableByteChannel by wrapping an existing SeekableByteChannel. The
+   * header is read from the start of the wrapped channel. The wrapped channel is closed when this
+   * channel is closed, or if the header can't be read.
+   *
+   * @param channel Existing SeekableByteChannel.
+   * @param readerPrivateKey Recipient's private key.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHSeekableByteChannel(SeekableByteChannel channel, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    this.channel = channel;
+    try {
+      channel.position(0);
+      this.header = new Header(Channels.newInputStream(channel), readerPrivateKey);
+      this.headerLength = channel.position();
+      this.dataEncryptionParametersList = header.getDataEncryptionParametersList();
+      DataEncryptionParameters firstDataEncryptionParameters =
+          dataEncryptionParametersList.iterator().next();
+      for (DataEncryptionParameters encryptionParameters : dataEncryptionParametersList) {
+        if (firstDataEncryptionParameters.getDataEncryptionMethod()
+            != encryptionParameters.getDataEncryptionMethod()) {
+          throw new GeneralSecurityException("Different Data Encryption Methods are not supported");
+        }
+      }
+      this.encryptedSegmentSize =
+          firstDataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+      this.encryptedSegmentBuffer = ByteBuffer.allocate(encryptedSegmentSize);
+      this.segmentCryptor = new SegmentCryptor();
+    } catch (IOException | GeneralSecurityException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets header.
+   *
+   * @return Crypt4GH full header.
+   */
+  public Header getHeader() {
+    return header;
+  }
+
+  /**
+   * Reads decrypted data from the current position into the buffer, decrypting one segment at a
+   * time, until the buffer is full or the end of the data is reached.
+   *
+   * @param dst the buffer to read into
+   * @return the number of bytes read, or -1 if the position is at or past the end of the data
+   * @throws IOException if the segments can't be read from the wrapped channel
+   */
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    long size = size();
+    if (position >= size) {
+      return -1;
+    }
+    int total = 0;
+    while (dst.hasRemaining() && position < size) {
+      long segment = position / UNENCRYPTED_DATA_SEGMENT_SIZE;
+      int offsetInSegment = (int) (position % UNENCRYPTED_DATA_SEGMENT_SIZE);
+      if (segment != bufferedSegment) {
+        fillBuffer(segment);
+      }
+      if (offsetInSegment >= bufferLength) {
+        break;
+      }
+      int count = Math.min(dst.remaining(), bufferLength - offsetInSegment);
+      dst.put(buffer, offsetInSegment, count);
+      position += count;
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Not supported, the channel is read-only.
+   *
+   * @param src the buffer to write from
+   * @return never returns
+   * @throws NonWritableChannelException always
+   */
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  /**
+   * Sets the position in the decrypted data. Setting the position beyond the end of the data is
+   * allowed, subsequent reads will then signal the end of the data.
+   *
+   * @param newPosition the new position
+   * @return this channel
+   * @throws IOException if the channel is closed
+   */
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Negative position: " + newPosition);
+    }
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * Returns the size of the decrypted data, calculated from the size of the wrapped channel.
+   *
+   * @return the size of the decrypted data
+   * @throws IOException if the size of the wrapped channel can't be determined
+   */
+  @Override
+  public synchronized long size() throws IOException {
+    ensureOpen();
+    long bodySize = channel.size() - headerLength;
+    long fullSegments = bodySize / encryptedSegmentSize;
+    long lastSegmentSize = bodySize % encryptedSegmentSize;
+    int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    return fullSegments * UNENCRYPTED_DATA_SEGMENT_SIZE + Math.max(0, lastSegmentSize - overhead);
+  }
+
+  /**
+   * Not supported, the channel is read-only.
+   *
+   * @param size the new size
+   * @return never returns
+   * @throws NonWritableChannelException always
+   */
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /** Closes this channel and the wrapped channel. */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reads an encrypted segment from the wrapped channel, decrypts it and places the data in the
+   * internal buffer.
+   *
+   * @param segment the index of the segment to read
+   * @throws IOException if the segment can't be read from the wrapped channel
+   */
+  private void fillBuffer(long segment) throws IOException {
+    long offset = headerLength + segment * encryptedSegmentSize;
+    encryptedSegmentBuffer.clear();
+    if (channel instanceof FileChannel fileChannel) {
+      while (encryptedSegmentBuffer.hasRemaining()) {
+        int read =
+            fileChannel.read(encryptedSegmentBuffer, offset + encryptedSegmentBuffer.position());
+        if (read == -1) {
+          break;
+        }
+      }
+    } else {
+      channel.position(offset);
+      while (encryptedSegmentBuffer.hasRemaining() && channel.read(encryptedSegmentBuffer) != -1) {
+        // keep reading until the segment is complete or the end of the channel is reached
+      }
+    }
+    bufferedSegment = -1;
+    try {
+      bufferLength =
+          segmentCryptor.decrypt(
+              encryptedSegmentBuffer.array(),
+              0,
+              encryptedSegmentBuffer.position(),
+              buffer,
+              0,
+              dataEncryptionParametersList);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    bufferedSegment = segment;
+  }
+
+  /**
+   * Throws an exception if this channel has been closed.
+   *
+   * @throws ClosedChannelException if the channel is closed
+   */
+  private void ensureOpen() throws ClosedChannelException {
+    if (!channel.isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collections;
+import javax.crypto.SecretKey;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderPacket;
+import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
+import no.elixir.crypt4gh.util.KeyUtils;
+
+/**
+ * WritableByteChannel that encrypts the data written to it in Crypt4GH format and writes the
+ * result to another channel.
+ *
+ * <p>Segments are encrypted with the ByteBuffer API of {@link SegmentCryptor}. Whole segments are
+ * encrypted straight from the buffers passed to {@link #write(ByteBuffer)}, and only the remainder
+ * that does not fill a complete segment is copied into an internal buffer. The final segment is
+ * written when the channel is closed. The wrapped channel must be in blocking mode.
+ */
+public class Crypt4GHWritableByteChannel implements WritableByteChannel {
+
+  /** The channel to write the Crypt4GH stream to */
+  private final WritableByteChannel channel;
+
+  /** The header written to the channel */
+  private final Header header;
+
+  /** The Data Encryption Parameters used to encrypt the segments */
+  private final DataEncryptionParameters dataEncryptionParameters;
+
+  /** Encrypts segments, reusing the same cipher instance and nonce generator for the channel */
+  private final SegmentCryptor segmentCryptor = new SegmentCryptor();
+
+  /** Data that does not fill a complete segment yet (in write mode) */
+  private final ByteBuffer buffer = ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE);
+
+  /** A buffer to encrypt segments into */
+  private final ByteBuffer encryptedSegmentBuffer;
+
+  /** The number of segments written to the wrapped channel so far */
+  private long segmentsWritten;
+
+  /** Set to true when the channel has been closed */
+  private boolean closed;
+
+  /**
+   * Constructs the Crypt4GHWritableByteChannel by wrapping an existing WritableByteChannel. The
+   * header is written to the wrapped channel right away.
+   *
+   * @param channel Existing WritableByteChannel.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @throws IOException In case the Crypt4GH header can't be written to the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be created.
+   */
+  public Crypt4GHWritableByteChannel(
+      WritableByteChannel channel, PrivateKey writerPrivateKey, PublicKey readerPublicKey)
+      throws IOException, GeneralSecurityException {
+    this.channel = channel;
+    SecretKey dataKey = KeyUtils.getInstance().generateSessionKey();
+    this.dataEncryptionParameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    HeaderPacket headerPacket =
+        new X25519ChaCha20IETFPoly1305HeaderPacket(
+            dataEncryptionParameters, writerPrivateKey, readerPublicKey);
+    this.header = new Header(Collections.singletonList(headerPacket));
+    this.encryptedSegmentBuffer =
+        ByteBuffer.allocate(
+            dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize());
+    writeFully(ByteBuffer.wrap(header.serialize()));
+  }
+
+  /**
+   * Gets header.
+   *
+   * @return Crypt4GH full header.
+   */
+  public Header getHeader() {
+    return header;
+  }
+
+  /**
+   * Encrypts the remaining bytes of the buffer. Complete segments are written to the wrapped
+   * channel right away, and the remainder is kept until more data is written or the channel is
+   * closed. All the remaining bytes of the buffer are always consumed.
+   *
+   * @param src the buffer to write from
+   * @return the number of bytes written
+   * @throws IOException if the segments can't be written to the wrapped channel
+   */
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+    int written = src.remaining();
+    if (buffer.position() > 0) {
+      int count = Math.min(src.remaining(), buffer.remaining());
+      buffer.put(src.slice(src.position(), count));
+      src.position(src.position() + count);
+      if (!buffer.hasRemaining()) {
+        buffer.flip();
+        writeSegment(buffer);
+        buffer.clear();
+      }
+    }
+    while (src.remaining() >= UNENCRYPTED_DATA_SEGMENT_SIZE) {
+      writeSegment(src.slice(src.position(), UNENCRYPTED_DATA_SEGMENT_SIZE));
+      src.position(src.position() + UNENCRYPTED_DATA_SEGMENT_SIZE);
+    }
+    buffer.put(src);
+    return written;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Encrypts and writes the final (possibly short) segment and closes the wrapped channel. A stream
+   * without any data will still get one empty segment.
+   *
+   * @throws IOException if the final segment can't be written or the channel can't be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (buffer.position() > 0 || segmentsWritten == 0) {
+        buffer.flip();
+        writeSegment(buffer);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer as a single segment and writes it to the wrapped
+   * channel.
+   *
+   * @param unencryptedData the data to encrypt (at most one segment)
+   * @throws IOException if the segment can't be written to the wrapped channel
+   */
+  private void writeSegment(ByteBuffer unencryptedData) throws IOException {
+    encryptedSegmentBuffer.clear();
+    try {
+      segmentCryptor.encrypt(unencryptedData, encryptedSegmentBuffer, dataEncryptionParameters);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    encryptedSegmentBuffer.flip();
+    writeFully(encryptedSegmentBuffer);
+    segmentsWritten++;
+  }
+
+  /**
+   * Writes all the remaining bytes of a buffer to the wrapped channel.
+   *
+   * @param src the buffer to write
+   * @throws IOException if the data can't be written to the wrapped channel
+   */
+  private void writeFully(ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      channel.write(src);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package no.elixir.crypt4gh.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Crypt4GHInputStream that reads segments ahead and decrypts them on several threads at once. A
+ * background thread reads encrypted segments from the wrapped stream while earlier segments are
+ * being decrypted and consumed, so reading and decryption overlap. The decrypted segments are
+ * returned in their original order, and the number of segments read ahead is bounded.
+ *
+ * <p>Once data has been read, the wrapped stream is owned by the background thread and must not be
+ * used directly. Closing this stream stops the background thread and closes the wrapped stream.
+ */
+public class ParallelCrypt4GHInputStream extends Crypt4GHInputStream {
+
+  /**
+   * Constructs the ParallelCrypt4GHInputStream by wrapping an existing InputStream. Segments are
+   * decrypted by a dedicated pool of the given number of threads, and up to twice as many segments
+   * are read ahead.
+   *
+   * @param in Existing InputStream.
+   * @param readerPrivateKey Recipient's private key.
+   * @param parallelism The number of threads decrypting segments.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public ParallelCrypt4GHInputStream(InputStream in, PrivateKey readerPrivateKey, int parallelism)
+      throws IOException, GeneralSecurityException {
+    super(
+        new Crypt4GHInputStreamInternal(
+            in, readerPrivateKey, new ForkJoinPool(parallelism), true, 2 * parallelism));
+  }
+
+  /**
+   * Constructs the ParallelCrypt4GHInputStream by wrapping an existing InputStream. Segments are
+   * decrypted by the given executor, which is not shut down when the stream is closed.
+   *
+   * @param in Existing InputStream.
+   * @param readerPrivateKey Recipient's private key.
+   * @param executor The executor to decrypt segments with.
+   * @param readAheadSegments The maximum number of segments to read ahead.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public ParallelCrypt4GHInputStream(
+      InputStream in, PrivateKey readerPrivateKey, ExecutorService executor, int readAheadSegments)
+      throws IOException, GeneralSecurityException {
+    super(
+        new Crypt4GHInputStreamInternal(in, readerPrivateKey, executor, false, readAheadSegments));
+  }
+}
@@ -0,0 +1,371 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.NonceGenerator;
+
+/**
+ * Crypt4GHOutputStream that encrypts segments on several threads at once. Segments are handed to
+ * an executor as soon as they are complete and are written to the underlying stream in their
+ * original order. The number of segments being encrypted (or waiting to be written) at any time is
+ * bounded, so memory usage does not depend on how fast the underlying stream is.
+ *
+ * <p>The produced stream has exactly the same format as the one produced by {@link
+ * Crypt4GHOutputStream}. Like the other streams in this package, instances must not be written to
+ * from several threads concurrently. Once a segment fails to be encrypted or written, the segments
+ * after it are discarded and every further write, flush or finish fails, so the stream is never
+ * completed with a segment missing.
+ */
+public class ParallelCrypt4GHOutputStream extends Crypt4GHOutputStream {
+
+  /** The executor encrypting the segments */
+  private final ExecutorService executor;
+
+  /** Whether the executor was created by (and should be shut down with) this stream */
+  private final boolean ownsExecutor;
+
+  /** The maximum number of segments being encrypted or waiting to be written */
+  private final int maxSegmentsInFlight;
+
+  /** Shared by the cryptors of this stream, so that the DRBG is only seeded once */
+  private final NonceGenerator nonceGenerator;
+
+  /** The segments submitted for encryption, in the order they should be written */
+  private final Deque<Future<SegmentTask>> segmentsInFlight = new ArrayDeque<>();
+
+  /** Segment tasks that have been written and can be reused */
+  private final Deque<SegmentTask> idleTasks = new ArrayDeque<>();
+
+  /** The reason a segment could not be encrypted or written, after which nothing more is written */
+  private Throwable failure;
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping an existing OutputStream. Segments are
+   * encrypted by a dedicated pool of the given number of threads.
+   *
+   * @param out Existing OutputStream.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param parallelism The number of threads encrypting segments.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be created.
+   * @throws IllegalArgumentException If the parallelism is not positive.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out, PrivateKey writerPrivateKey, PublicKey readerPublicKey, int parallelism)
+      throws IOException, GeneralSecurityException {
+    super(checkParallelism(out, parallelism), writerPrivateKey, readerPublicKey);
+    this.executor = new ForkJoinPool(parallelism);
+    this.ownsExecutor = true;
+    this.maxSegmentsInFlight = 2 * parallelism;
+    this.nonceGenerator = new NonceGenerator();
+  }
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping existing OutputStream with
+   * DataEditList included to a header. Segments are encrypted by a dedicated pool of the given
+   * number of threads.
+   *
+   * @param out Existing OutputStream.
+   * @param dataEditList Data Edit List.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param parallelism The number of threads encrypting segments.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be created.
+   * @throws IllegalArgumentException If the parallelism is not positive.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out,
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey,
+      int parallelism)
+      throws IOException, GeneralSecurityException {
+    super(checkParallelism(out, parallelism), dataEditList, writerPrivateKey, readerPublicKey);
+    this.executor = new ForkJoinPool(parallelism);
+    this.ownsExecutor = true;
+    this.maxSegmentsInFlight = 2 * parallelism;
+    this.nonceGenerator = new NonceGenerator();
+  }
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping an existing OutputStream. Segments are
+   * encrypted by the given executor, which is not shut down when the stream is closed.
+   *
+   * @param out Existing OutputStream.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param executor The executor to encrypt segments with.
+   * @param maxSegmentsInFlight The maximum number of segments being encrypted or waiting to be
+   *     written at any time.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be created.
+   * @throws IllegalArgumentException If the maximum number of segments in flight is not positive.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey,
+      ExecutorService executor,
+      int maxSegmentsInFlight)
+      throws IOException, GeneralSecurityException {
+    super(checkParallelism(out, maxSegmentsInFlight), writerPrivateKey, readerPublicKey);
+    this.executor = executor;
+    this.ownsExecutor = false;
+    this.maxSegmentsInFlight = maxSegmentsInFlight;
+    this.nonceGenerator = new NonceGenerator();
+  }
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping existing OutputStream with
+   * DataEditList included to a header. Segments are encrypted by the given executor, which is not
+   * shut down when the stream is closed.
+   *
+   * @param out Existing OutputStream.
+   * @param dataEditList Data Edit List.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param executor The executor to encrypt segments with.
+   * @param maxSegmentsInFlight The maximum number of segments being encrypted or waiting to be
+   *     written at any time.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be created.
+   * @throws IllegalArgumentException If the maximum number of segments in flight is not positive.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out,
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey,
+      ExecutorService executor,
+      int maxSegmentsInFlight)
+      throws IOException, GeneralSecurityException {
+    super(
+        checkParallelism(out, maxSegmentsInFlight),
+        dataEditList,
+        writerPrivateKey,
+        readerPublicKey);
+    this.executor = executor;
+    this.ownsExecutor = false;
+    this.maxSegmentsInFlight = maxSegmentsInFlight;
+    this.nonceGenerator = new NonceGenerator();
+  }
+
+  /**
+   * Copies the segment data and submits it for encryption. If the maximum number of segments in
+   * flight has been reached, the oldest segment is waited for and written first.
+   *
+   * @param data an array holding the data to encrypt
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt (at most one segment)
+   * @throws IOException In case an encrypted segment can't be written to the output stream.
+   * @throws GeneralSecurityException In case the encryption of a segment fails.
+   */
+  @Override
+  protected void writeSegment(byte[] data, int offset, int length)
+      throws IOException, GeneralSecurityException {
+    checkFailure();
+    while (segmentsInFlight.size() >= maxSegmentsInFlight) {
+      writeNextSegment();
+    }
+    SegmentTask task = idleTasks.poll();
+    if (task == null) {
+      task = new SegmentTask(new SegmentCryptor(nonceGenerator), getDataEncryptionParameters());
+    }
+    System.arraycopy(data, offset, task.unencryptedData, 0, length);
+    task.length = length;
+    segmentsInFlight.add(executor.submit(task));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException If an earlier segment could not be encrypted or written.
+   */
+  @Override
+  public void write(int b) throws IOException {
+    checkFailure();
+    super.write(b);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException If an earlier segment could not be encrypted or written.
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkFailure();
+    super.write(b, off, len);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException If an earlier segment could not be encrypted or written, in which case the
+   *     final segment is not written.
+   */
+  @Override
+  public void finish() throws IOException {
+    checkFailure();
+    super.finish();
+  }
+
+  /**
+   * Waits for all segments in flight to be encrypted, writes them and flushes the underlying
+   * stream. Data that does not yet fill a complete segment is kept in the internal buffer.
+   *
+   * @throws IOException In case the segments can't be written or the stream can't be flushed.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkFailure();
+    try {
+      while (!segmentsInFlight.isEmpty()) {
+        writeNextSegment();
+      }
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    super.flush();
+  }
+
+  /**
+   * Writes the final segment and closes the underlying stream. The thread pool is shut down if it
+   * was created by this stream.
+   *
+   * @throws IOException In case the final segment can't be written or the stream can't be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      for (Future<SegmentTask> future : segmentsInFlight) {
+        future.cancel(false);
+      }
+      segmentsInFlight.clear();
+      if (ownsExecutor) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Waits for the oldest segment in flight and writes it to the underlying stream.
+   *
+   * @throws IOException In case the segment can't be written or the wait is interrupted.
+   * @throws GeneralSecurityException In case the encryption of the segment failed.
+   */
+  private void writeNextSegment() throws IOException, GeneralSecurityException {
+    SegmentTask task;
+    try {
+      task = segmentsInFlight.peek().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for segment encryption");
+    } catch (ExecutionException e) {
+      fail(e.getCause());
+      if (e.getCause() instanceof GeneralSecurityException cause) {
+        throw cause;
+      }
+      throw new IOException("Segment encryption failed", e.getCause());
+    }
+    segmentsInFlight.poll();
+    try {
+      out.write(task.encryptedData, 0, task.encryptedLength);
+    } catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+    idleTasks.push(task);
+  }
+
+  /**
+   * Checks that a thread count or window size is positive. Called on the arguments of the super
+   * constructor, so that nothing is written or borrowed if the value is invalid.
+   *
+   * @param out the output stream to pass on
+   * @param value the value to check
+   * @return the output stream
+   */
+  private static OutputStream checkParallelism(OutputStream out, int value) {
+    if (value < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1: " + value);
+    }
+    return out;
+  }
+
+  /**
+   * Records the failure of a segment, and cancels the segments in flight after it: the stream can't
+   * be completed once a segment is missing.
+   *
+   * @param cause the reason the segment could not be encrypted or written
+   */
+  private void fail(Throwable cause) {
+    failure = cause;
+    for (Future<SegmentTask> future : segmentsInFlight) {
+      future.cancel(false);
+    }
+    segmentsInFlight.clear();
+  }
+
+  /**
+   * Throws if a segment has failed, so that no segment after it is written.
+   *
+   * @throws IOException If a segment has failed.
+   */
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("A segment of the stream could not be encrypted or written", failure);
+    }
+  }
+
+  /** Encryption of a single segment, reused once its result has been written. */
+  private static class SegmentTask implements Callable<SegmentTask> {
+
+    private final SegmentCryptor segmentCryptor;
+    private final DataEncryptionParameters dataEncryptionParameters;
+    private final byte[] unencryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    private final byte[] encryptedData;
+    private int length;
+    private int encryptedLength;
+
+    private SegmentTask(
+        SegmentCryptor segmentCryptor, DataEncryptionParameters dataEncryptionParameters) {
+      this.segmentCryptor = segmentCryptor;
+      this.dataEncryptionParameters = dataEncryptionParameters;
+      this.encryptedData =
+          new byte[dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize()];
+    }
+
+    @Override
+    public SegmentTask call() throws GeneralSecurityException {
+      encryptedLength =
+          segmentCryptor.encrypt(
+              unencryptedData, 0, length, encryptedData, 0, dataEncryptionParameters);
+      return this;
+    }
+  }
+}
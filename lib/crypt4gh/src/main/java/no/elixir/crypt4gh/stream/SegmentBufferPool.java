@@ -0,0 +1,40 @@
+package no.elixir.crypt4gh.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of buffers for plaintext and encrypted segments, shared by concurrent streams so that
+ * opening a stream does not allocate new segment buffers every time.
+ *
+ * <p>Streams borrow their buffers when they are created and return them when they are closed. A
+ * buffer must not be used after it has been released, and must not be released more than once.
+ * Implementations must be thread-safe.
+ */
+public interface SegmentBufferPool {
+
+  /**
+   * Borrows a buffer, preferably a direct one, for segments that are read from or written to
+   * channels. The buffer is cleared, but its content is undefined.
+   *
+   * @param capacity the capacity of the buffer
+   * @return a buffer with the given capacity (direct or not)
+   */
+  ByteBuffer acquire(int capacity);
+
+  /**
+   * Borrows an array-backed buffer, for segments that are read from or written to streams, where
+   * the data has to pass through an array anyway. The buffer is cleared, but its content is
+   * undefined.
+   *
+   * @param capacity the capacity of the buffer
+   * @return a heap buffer with the given capacity and an array offset of 0
+   */
+  ByteBuffer acquireHeap(int capacity);
+
+  /**
+   * Returns a buffer to the pool.
+   *
+   * @param buffer a buffer borrowed from this pool
+   */
+  void release(ByteBuffer buffer);
+}
@@ -0,0 +1,213 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+import no.elixir.crypt4gh.pojo.body.SegmentCryptor;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+
+/**
+ * Reads encrypted segments ahead of the consumer and decrypts them in parallel. Not a public API.
+ *
+ * <p>A dedicated reader thread reads encrypted segments from the wrapped stream and submits each
+ * one for decryption to an executor. The consumer takes the decrypted segments in their original
+ * order from a bounded queue. At most {@code segments} segments are read ahead at any time, so the
+ * reader thread blocks when the consumer falls behind.
+ */
+@Slf4j
+class SegmentReadAhead implements AutoCloseable {
+
+  /** Marks the end of the stream in the queue of decrypted segments */
+  private static final Future<SegmentTask> END_OF_STREAM = CompletableFuture.completedFuture(null);
+
+  /** The stream to read encrypted segments from. Only used by the reader thread. */
+  private final InputStream in;
+
+  /** The executor decrypting the segments */
+  private final ExecutorService executor;
+
+  /** Whether the executor should be shut down when this read-ahead is closed */
+  private final boolean ownsExecutor;
+
+  /** Segment tasks that are not in use and can be filled by the reader thread */
+  private final BlockingQueue<SegmentTask> idleTasks;
+
+  /** The segments being decrypted, in the order they appear in the stream */
+  private final BlockingQueue<Future<SegmentTask>> segmentsInFlight;
+
+  /** The thread reading encrypted segments from the wrapped stream (started on first use) */
+  private Thread readerThread;
+
+  /** Set to true when the end of the stream has been taken from the queue */
+  private boolean endOfStream;
+
+  /** Set to true when this read-ahead is closed */
+  private volatile boolean closed;
+
+  /**
+   * Creates a read-ahead for the segments of a Crypt4GH stream.
+   *
+   * @param in the stream to read encrypted segments from, positioned after the header
+   * @param dataEncryptionParametersList the Data Encryption Parameters to decrypt segments with
+   * @param encryptedSegmentSize the size of a full encrypted segment
+   * @param executor the executor to decrypt segments with
+   * @param ownsExecutor whether the executor should be shut down when this read-ahead is closed
+   * @param segments the maximum number of segments to read ahead
+   * @throws GeneralSecurityException if the ciphers cannot be created
+   */
+  SegmentReadAhead(
+      InputStream in,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList,
+      int encryptedSegmentSize,
+      ExecutorService executor,
+      boolean ownsExecutor,
+      int segments)
+      throws GeneralSecurityException {
+    if (segments < 1) {
+      throw new IllegalArgumentException("Number of segments to read ahead must be at least 1");
+    }
+    this.in = in;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.idleTasks = new ArrayBlockingQueue<>(segments);
+    this.segmentsInFlight = new ArrayBlockingQueue<>(segments + 1);
+    for (int i = 0; i < segments; i++) {
+      idleTasks.add(
+          new SegmentTask(
+              new SegmentCryptor(), dataEncryptionParametersList, encryptedSegmentSize));
+    }
+  }
+
+  /**
+   * Takes the next decrypted segment and copies its data into a buffer. Blocks until the segment
+   * has been read and decrypted.
+   *
+   * @param buffer the buffer to copy the decrypted data into (at least one segment long)
+   * @return the number of bytes copied into the buffer, or -1 at the end of the stream
+   * @throws IOException if the segment couldn't be read from the stream
+   * @throws GeneralSecurityException if the segment couldn't be decrypted
+   */
+  int next(byte[] buffer) throws IOException, GeneralSecurityException {
+    if (endOfStream) {
+      return -1;
+    }
+    if (readerThread == null) {
+      readerThread = new Thread(this::readSegments, "crypt4gh-read-ahead");
+      readerThread.setDaemon(true);
+      readerThread.start();
+    }
+    SegmentTask task;
+    try {
+      Future<SegmentTask> future = segmentsInFlight.take();
+      if (future == END_OF_STREAM) {
+        endOfStream = true;
+        return -1;
+      }
+      task = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for segment decryption");
+    } catch (ExecutionException e) {
+      endOfStream = true;
+      if (e.getCause() instanceof GeneralSecurityException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof IOException cause) {
+        throw cause;
+      }
+      throw new IOException("Segment decryption failed", e.getCause());
+    }
+    int length = task.unencryptedLength;
+    System.arraycopy(task.unencryptedData, 0, buffer, 0, length);
+    idleTasks.add(task);
+    return length;
+  }
+
+  /**
+   * Stops the reader thread and discards the segments read ahead. The executor is shut down if it
+   * is owned by this read-ahead. The wrapped stream is not closed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (readerThread != null) {
+      readerThread.interrupt();
+    }
+    for (Future<SegmentTask> future : segmentsInFlight) {
+      future.cancel(false);
+    }
+    segmentsInFlight.clear();
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Main loop of the reader thread. Reads encrypted segments into idle tasks and submits them for
+   * decryption, until the end of the stream is reached, reading fails or the read-ahead is closed.
+   */
+  private void readSegments() {
+    try {
+      while (!closed) {
+        SegmentTask task = idleTasks.take();
+        int encryptedLength = in.readNBytes(task.encryptedData, 0, task.encryptedData.length);
+        if (encryptedLength > 0) {
+          task.encryptedLength = encryptedLength;
+          segmentsInFlight.put(executor.submit(task));
+        }
+        if (encryptedLength < task.encryptedData.length) {
+          segmentsInFlight.put(END_OF_STREAM);
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      // closed while waiting for the consumer
+    } catch (Exception e) {
+      if (closed) {
+        return;
+      }
+      log.debug(e.getMessage(), e);
+      segmentsInFlight.offer(CompletableFuture.failedFuture(e));
+    }
+  }
+
+  /** Decryption of a single segment, reused once its data has been taken by the consumer. */
+  private static class SegmentTask implements Callable<SegmentTask> {
+
+    private final SegmentCryptor segmentCryptor;
+    private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+    private final byte[] encryptedData;
+    private final byte[] unencryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    private int encryptedLength;
+    private int unencryptedLength;
+
+    private SegmentTask(
+        SegmentCryptor segmentCryptor,
+        Collection<DataEncryptionParameters> dataEncryptionParametersList,
+        int encryptedSegmentSize) {
+      this.segmentCryptor = segmentCryptor;
+      this.dataEncryptionParametersList = dataEncryptionParametersList;
+      this.encryptedData = new byte[encryptedSegmentSize];
+    }
+
+    @Override
+    public SegmentTask call() throws GeneralSecurityException {
+      unencryptedLength =
+          segmentCryptor.decrypt(
+              encryptedData, 0, encryptedLength, unencryptedData, 0, dataEncryptionParametersList);
+      return this;
+    }
+  }
+}
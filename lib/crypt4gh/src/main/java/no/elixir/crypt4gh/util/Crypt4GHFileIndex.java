@@ -0,0 +1,256 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.header.Header.UNENCRYPTED_HEADER_LENGTH;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import no.elixir.crypt4gh.pojo.header.HeaderEncryptionMethod;
+
+/**
+ * A compact index of the {@link Crypt4GHFileInfo} of the Crypt4GH files in a directory, stored in a
+ * sidecar file ({@value #INDEX_FILE_NAME}) in the same directory. Listing the files of a directory
+ * with their plaintext sizes then only means reading the index, instead of opening every file.
+ *
+ * <p>Each entry records the size and modification time the file had when it was indexed, so that
+ * {@link #update(Path)} only has to read the headers of the files that are new or have changed.
+ * Files in the directory that are not Crypt4GH files are left out of the index (and their first
+ * bytes are read again on every update).
+ *
+ * <p>The index file holds, for each file, its name, modification time and size, and the length
+ * and encryption method of each header packet. Everything else is derived from those when the
+ * index is read. Instances are not thread-safe.
+ */
+public class Crypt4GHFileIndex {
+
+  /** The name of the index file in an indexed directory */
+  public static final String INDEX_FILE_NAME = "crypt4gh.idx";
+
+  /** The magic word at the start of an index file */
+  static final String MAGIC_WORD = "c4gh.idx";
+
+  /** The version of the index file format */
+  static final int VERSION = 1;
+
+  /** The indexed files, by file name */
+  private final Map<String, Entry> entries = new TreeMap<>();
+
+  /** Creates an empty index. */
+  public Crypt4GHFileIndex() {}
+
+  /**
+   * Reads the index of a directory from its index file, and updates it with the files that are
+   * new or have changed since. The index file is rewritten if anything has changed. If there is no
+   * index file yet, every file in the directory is read and the index file is created.
+   *
+   * @param directory the indexed directory
+   * @return the up-to-date index
+   * @throws IOException if the directory or the index file can't be read, or the index file can't
+   *     be written
+   */
+  public static Crypt4GHFileIndex refresh(Path directory) throws IOException {
+    Path indexFile = directory.resolve(INDEX_FILE_NAME);
+    Crypt4GHFileIndex index = Files.exists(indexFile) ? read(indexFile) : new Crypt4GHFileIndex();
+    if (index.update(directory) || !Files.exists(indexFile)) {
+      index.write(indexFile);
+    }
+    return index;
+  }
+
+  /**
+   * Gets the info of an indexed file.
+   *
+   * @param fileName the name of the file
+   * @return the info of the file, or an empty Optional if the file is not indexed
+   */
+  public Optional<Crypt4GHFileInfo> get(String fileName) {
+    return Optional.ofNullable(entries.get(fileName)).map(entry -> entry.fileInfo);
+  }
+
+  /**
+   * Returns the infos of all the indexed files.
+   *
+   * @return the file infos, by file name, in the order of the file names
+   */
+  public Map<String, Crypt4GHFileInfo> getFileInfos() {
+    Map<String, Crypt4GHFileInfo> fileInfos = new TreeMap<>();
+    entries.forEach((fileName, entry) -> fileInfos.put(fileName, entry.fileInfo));
+    return Collections.unmodifiableMap(fileInfos);
+  }
+
+  /**
+   * Returns the number of indexed files.
+   *
+   * @return the number of indexed files
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Brings the index up to date with the files in a directory (not including subdirectories).
+   * Files that are new, or whose size or modification time has changed, are read and indexed.
+   * Files that no longer exist, or are no longer Crypt4GH files, are removed from the index.
+   *
+   * @param directory the indexed directory
+   * @return true if the index has changed
+   * @throws IOException if the directory or one of its files can't be read
+   */
+  public boolean update(Path directory) throws IOException {
+    boolean changed = false;
+    Set<String> fileNames = new HashSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        // skips the index file, and temporary files left behind while writing it
+        if (fileName.startsWith(INDEX_FILE_NAME) || !attributes.isRegularFile()) {
+          continue;
+        }
+        fileNames.add(fileName);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry entry = entries.get(fileName);
+        if (entry != null
+            && entry.lastModified == lastModified
+            && entry.fileInfo.getFileSize() == attributes.size()) {
+          continue;
+        }
+        try {
+          entries.put(fileName, new Entry(lastModified, Crypt4GHFileInfo.read(file)));
+          changed = true;
+        } catch (EOFException | GeneralSecurityException | IllegalArgumentException e) {
+          // not a (complete) Crypt4GH file
+          changed |= entries.remove(fileName) != null;
+        }
+      }
+    }
+    changed |= entries.keySet().retainAll(fileNames);
+    return changed;
+  }
+
+  /**
+   * Reads an index file.
+   *
+   * @param indexFile the index file
+   * @return the index
+   * @throws IOException if the file can't be read or is not a valid index file
+   */
+  public static Crypt4GHFileIndex read(Path indexFile) throws IOException {
+    Crypt4GHFileIndex index = new Crypt4GHFileIndex();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      byte[] magicWord = in.readNBytes(MAGIC_WORD.length());
+      if (!Arrays.equals(MAGIC_WORD.getBytes(StandardCharsets.US_ASCII), magicWord)) {
+        throw new IOException("Not a Crypt4GH index file: " + indexFile);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported Crypt4GH index version: " + version);
+      }
+      int entryCount = in.readInt();
+      for (int i = 0; i < entryCount; i++) {
+        String fileName = in.readUTF();
+        long lastModified = in.readLong();
+        long fileSize = in.readLong();
+        int headerPacketCount = in.readInt();
+        if (headerPacketCount < 0) {
+          throw new IOException("Invalid header packet count in " + indexFile);
+        }
+        List<Crypt4GHFileInfo.HeaderPacketInfo> headerPackets =
+            new ArrayList<>(Math.min(headerPacketCount, 16));
+        long offset = UNENCRYPTED_HEADER_LENGTH;
+        for (int j = 0; j < headerPacketCount; j++) {
+          int packetLength = in.readInt();
+          HeaderEncryptionMethod packetEncryption;
+          try {
+            packetEncryption = HeaderEncryptionMethod.getByCode(in.readInt());
+          } catch (RuntimeException e) {
+            throw new IOException("Unknown header encryption method in " + indexFile, e);
+          }
+          headerPackets.add(
+              new Crypt4GHFileInfo.HeaderPacketInfo(offset, packetLength, packetEncryption));
+          offset += packetLength;
+        }
+        try {
+          index.entries.put(
+              fileName, new Entry(lastModified, new Crypt4GHFileInfo(fileSize, headerPackets)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+          throw new IOException("Invalid entry for " + fileName + " in " + indexFile, e);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Writes the index to a file. The index is written to a temporary file first, which then
+   * replaces the index file, so that readers never see a partially written index.
+   *
+   * @param indexFile the index file
+   * @throws IOException if the file can't be written
+   */
+  public void write(Path indexFile) throws IOException {
+    Path directory = indexFile.toAbsolutePath().getParent();
+    Path temporaryFile = Files.createTempFile(directory, INDEX_FILE_NAME, ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+        out.write(MAGIC_WORD.getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          Crypt4GHFileInfo fileInfo = entry.getValue().fileInfo;
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue().lastModified);
+          out.writeLong(fileInfo.getFileSize());
+          out.writeInt(fileInfo.getHeaderPacketCount());
+          for (Crypt4GHFileInfo.HeaderPacketInfo headerPacket : fileInfo.getHeaderPackets()) {
+            out.writeInt(headerPacket.getPacketLength());
+            out.writeInt(headerPacket.getPacketEncryption().getCode());
+          }
+        }
+      }
+      Files.move(
+          temporaryFile,
+          indexFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+
+  /** An indexed file. */
+  private static class Entry {
+
+    /** The modification time of the file when it was indexed, in milliseconds */
+    private final long lastModified;
+
+    /** The info of the file */
+    private final Crypt4GHFileInfo fileInfo;
+
+    Entry(long lastModified, Crypt4GHFileInfo fileInfo) {
+      this.lastModified = lastModified;
+      this.fileInfo = fileInfo;
+    }
+  }
+}
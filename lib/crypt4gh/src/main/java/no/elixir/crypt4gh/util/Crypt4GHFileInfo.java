@@ -0,0 +1,232 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static no.elixir.crypt4gh.pojo.header.Header.UNENCRYPTED_HEADER_LENGTH;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+import lombok.ToString;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
+import no.elixir.crypt4gh.pojo.header.HeaderEncryptionMethod;
+
+/**
+ * The layout of a Crypt4GH file: the length of the header and the offsets of its packets, the
+ * number of data segments and the size of the plaintext, all derived from the unencrypted framing
+ * of the header and the size of the file. No key is needed and nothing is decrypted, so only the
+ * first few hundred bytes of a file are read.
+ *
+ * <p>Since the data encryption method is only known once the header packets have been decrypted,
+ * the segments are assumed to be encrypted with ChaCha20-IETF-Poly1305, the only method defined by
+ * the specification. The plaintext size is the size of the whole decrypted body: a Data Edit List
+ * (which is encrypted) is not taken into account.
+ *
+ * <p>File infos can be cached in a {@link Crypt4GHFileIndex}, so that listing a directory of
+ * Crypt4GH files doesn't require opening any of them.
+ */
+@ToString
+@Getter
+public class Crypt4GHFileInfo {
+
+  /** The size of an encrypted data segment */
+  private static final int ENCRYPTED_SEGMENT_SIZE =
+      DataEncryptionMethod.CHACHA20_IETF_POLY1305.getEncryptedSegmentSize();
+
+  /** The size of the file */
+  private final long fileSize;
+
+  /** The total length of the header, which is also the offset of the first data segment */
+  private final long headerLength;
+
+  /** The header packets, in the order they appear in the header */
+  private final List<HeaderPacketInfo> headerPackets;
+
+  /** The number of data segments */
+  private final long segmentCount;
+
+  /** The size of the plaintext in the last data segment (or 0, if there are no segments) */
+  private final int lastSegmentSize;
+
+  /** The size of the plaintext */
+  private final long plaintextSize;
+
+  /**
+   * Creates the info of a file from the framing of its header packets and its size.
+   *
+   * @param fileSize the size of the file
+   * @param headerPackets the header packets
+   * @throws GeneralSecurityException if the last data segment is too short to hold any data
+   * @throws IllegalArgumentException if the file is shorter than its header
+   */
+  Crypt4GHFileInfo(long fileSize, List<HeaderPacketInfo> headerPackets)
+      throws GeneralSecurityException {
+    long headerLength = UNENCRYPTED_HEADER_LENGTH;
+    for (HeaderPacketInfo headerPacket : headerPackets) {
+      headerLength += headerPacket.getPacketLength();
+    }
+    long bodySize = fileSize - headerLength;
+    if (bodySize < 0) {
+      throw new IllegalArgumentException(
+          "File size " + fileSize + " is less than the header length " + headerLength);
+    }
+    long segmentCount = (bodySize + ENCRYPTED_SEGMENT_SIZE - 1) / ENCRYPTED_SEGMENT_SIZE;
+    int overhead = ENCRYPTED_SEGMENT_SIZE - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    int lastSegmentSize = 0;
+    if (segmentCount > 0) {
+      long lastEncryptedSegmentSize = bodySize - (segmentCount - 1) * ENCRYPTED_SEGMENT_SIZE;
+      if (lastEncryptedSegmentSize < overhead) {
+        throw new GeneralSecurityException(
+            "Encrypted segment is too short: " + lastEncryptedSegmentSize);
+      }
+      lastSegmentSize = (int) (lastEncryptedSegmentSize - overhead);
+    }
+    this.fileSize = fileSize;
+    this.headerLength = headerLength;
+    this.headerPackets = Collections.unmodifiableList(new ArrayList<>(headerPackets));
+    this.segmentCount = segmentCount;
+    this.lastSegmentSize = lastSegmentSize;
+    this.plaintextSize = bodySize - segmentCount * overhead;
+  }
+
+  /**
+   * Creates the info of a file from the framing of its header and its size.
+   *
+   * @param headerDescriptor the framing of the header of the file
+   * @param fileSize the size of the file
+   * @return the file info
+   * @throws GeneralSecurityException if the last data segment is too short to hold any data
+   * @throws IllegalArgumentException if the file is shorter than its header
+   */
+  public static Crypt4GHFileInfo of(HeaderDescriptor headerDescriptor, long fileSize)
+      throws GeneralSecurityException {
+    List<HeaderPacketInfo> headerPackets = new ArrayList<>();
+    for (HeaderDescriptor.PacketDescriptor packetDescriptor :
+        headerDescriptor.getPacketDescriptors()) {
+      headerPackets.add(
+          new HeaderPacketInfo(
+              packetDescriptor.getOffset(),
+              packetDescriptor.getPacketLength(),
+              packetDescriptor.getPacketEncryption()));
+    }
+    return new Crypt4GHFileInfo(fileSize, headerPackets);
+  }
+
+  /**
+   * Reads the info of a Crypt4GH file. Only the header is read from the file.
+   *
+   * @param path the Crypt4GH file
+   * @return the file info
+   * @throws IOException if the file can't be read, or if it ends before the end of the header
+   * @throws GeneralSecurityException if the file is not a valid Crypt4GH file, has an unsupported
+   *     version number or a truncated last segment
+   */
+  public static Crypt4GHFileInfo read(Path path) throws IOException, GeneralSecurityException {
+    try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+      return read(channel);
+    }
+  }
+
+  /**
+   * Reads the info of the Crypt4GH file a channel is connected to. Only the header is read from the
+   * start of the channel, and the channel is left positioned after it.
+   *
+   * @param channel a channel connected to the Crypt4GH file
+   * @return the file info
+   * @throws IOException if the channel can't be read, or if it ends before the end of the header
+   * @throws GeneralSecurityException if the file is not a valid Crypt4GH file, has an unsupported
+   *     version number or a truncated last segment
+   */
+  public static Crypt4GHFileInfo read(SeekableByteChannel channel)
+      throws IOException, GeneralSecurityException {
+    channel.position(0);
+    HeaderDescriptor headerDescriptor =
+        HeaderDescriptor.read(new BufferedInputStream(Channels.newInputStream(channel), 1024));
+    channel.position(headerDescriptor.getHeaderLength());
+    return of(headerDescriptor, channel.size());
+  }
+
+  /**
+   * Returns the offset of the first data segment, which is the same as the length of the header.
+   *
+   * @return the offset of the encrypted body
+   */
+  public long getBodyOffset() {
+    return headerLength;
+  }
+
+  /**
+   * Returns the number of header packets in the header.
+   *
+   * @return the number of header packets
+   */
+  public int getHeaderPacketCount() {
+    return headerPackets.size();
+  }
+
+  /**
+   * Returns the offset in the file of an encrypted data segment.
+   *
+   * @param segment the index of the segment
+   * @return the offset of the segment from the start of the file
+   * @throws IllegalArgumentException if there is no such segment
+   */
+  public long getSegmentOffset(long segment) {
+    checkSegment(segment);
+    return headerLength + segment * ENCRYPTED_SEGMENT_SIZE;
+  }
+
+  /**
+   * Returns the size of the plaintext in a data segment.
+   *
+   * @param segment the index of the segment
+   * @return the size of the plaintext in the segment
+   * @throws IllegalArgumentException if there is no such segment
+   */
+  public int getSegmentSize(long segment) {
+    checkSegment(segment);
+    return segment == segmentCount - 1 ? lastSegmentSize : UNENCRYPTED_DATA_SEGMENT_SIZE;
+  }
+
+  /**
+   * Checks that a segment exists.
+   *
+   * @param segment the index of the segment
+   * @throws IllegalArgumentException if there is no such segment
+   */
+  private void checkSegment(long segment) {
+    if (segment < 0 || segment >= segmentCount) {
+      throw new IllegalArgumentException(
+          "No segment " + segment + " in a file with " + segmentCount + " segments");
+    }
+  }
+
+  /** The framing of a single, still encrypted, header packet. */
+  @ToString
+  @Getter
+  public static class HeaderPacketInfo {
+
+    /** The offset of the header packet from the start of the file */
+    private final long offset;
+
+    /** The total size of the header packet */
+    private final int packetLength;
+
+    /** The encryption method used to encrypt the payload of the header packet */
+    private final HeaderEncryptionMethod packetEncryption;
+
+    HeaderPacketInfo(long offset, int packetLength, HeaderEncryptionMethod packetEncryption) {
+      this.offset = offset;
+      this.packetLength = packetLength;
+      this.packetEncryption = packetEncryption;
+    }
+  }
+}
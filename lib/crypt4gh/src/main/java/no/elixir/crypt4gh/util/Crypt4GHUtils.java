@@ -2,14 +2,26 @@ package no.elixir.crypt4gh.util;
 
 import com.rfksystems.blake2b.security.Blake2bProvider;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
 import no.elixir.crypt4gh.pojo.header.HeaderEncryptionMethod;
 import no.elixir.crypt4gh.pojo.header.HeaderPacket;
 import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
@@ -81,6 +93,208 @@ public class Crypt4GHUtils {
     }
   }
 
+  /**
+   * Re-keys a Crypt4GH file for a new set of recipients, replacing the existing ones. Only the
+   * header is decrypted and rebuilt, the encrypted body is copied as is (see {@link
+   * #setRecipients(FileChannel, WritableByteChannel, PrivateKey, Collection)}).
+   *
+   * @param input Crypt4GH file to re-key.
+   * @param output File to write the re-keyed Crypt4GH file to (created or truncated).
+   * @param privateKeyForDecryption Private key to decrypt the header.
+   * @param newRecipientPublicKeys Public keys of the new recipients.
+   * @return The number of bytes written to the output file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public long setRecipients(
+      Path input,
+      Path output,
+      PrivateKey privateKeyForDecryption,
+      Collection<PublicKey> newRecipientPublicKeys)
+      throws IOException, GeneralSecurityException {
+    try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel outputChannel = openOutput(output)) {
+      return setRecipients(
+          inputChannel, outputChannel, privateKeyForDecryption, newRecipientPublicKeys);
+    }
+  }
+
+  /**
+   * Re-keys a Crypt4GH file for additional recipients, keeping all the existing header packets
+   * unchanged, including those of recipients the given private key can't decrypt. Only the header
+   * is decrypted and extended, the encrypted body is copied as is (see {@link
+   * #addRecipients(FileChannel, WritableByteChannel, PrivateKey, Collection)}).
+   *
+   * @param input Crypt4GH file to re-key.
+   * @param output File to write the re-keyed Crypt4GH file to (created or truncated).
+   * @param privateKeyForDecryption Private key to decrypt the header.
+   * @param newRecipientPublicKeys Public keys of the recipients to add.
+   * @return The number of bytes written to the output file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public long addRecipients(
+      Path input,
+      Path output,
+      PrivateKey privateKeyForDecryption,
+      Collection<PublicKey> newRecipientPublicKeys)
+      throws IOException, GeneralSecurityException {
+    try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel outputChannel = openOutput(output)) {
+      return addRecipients(
+          inputChannel, outputChannel, privateKeyForDecryption, newRecipientPublicKeys);
+    }
+  }
+
+  /**
+   * Re-keys a Crypt4GH stream for a new set of recipients, replacing the existing ones.
+   *
+   * <p>The header is read from the current position of the input channel and rebuilt for the new
+   * recipients, and the encrypted body that follows it is moved to the output channel with {@link
+   * FileChannel#transferTo(long, long, WritableByteChannel)}, without being decrypted or copied
+   * through user space where the platform allows it. Neither channel is closed. The output channel
+   * must be in blocking mode.
+   *
+   * @param input Channel to read the Crypt4GH stream from.
+   * @param output Channel to write the re-keyed Crypt4GH stream to.
+   * @param privateKeyForDecryption Private key to decrypt the header.
+   * @param newRecipientPublicKeys Public keys of the new recipients.
+   * @return The number of bytes written to the output channel.
+   * @throws IOException In case of I/O error, or if the input is truncated while it is copied (an
+   *     {@link EOFException}).
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public long setRecipients(
+      FileChannel input,
+      WritableByteChannel output,
+      PrivateKey privateKeyForDecryption,
+      Collection<PublicKey> newRecipientPublicKeys)
+      throws IOException, GeneralSecurityException {
+    return reheader(input, output, privateKeyForDecryption, newRecipientPublicKeys, false);
+  }
+
+  /**
+   * Re-keys a Crypt4GH stream for additional recipients, keeping all the existing header packets
+   * unchanged, including those of recipients the given private key can't decrypt. Works like {@link
+   * #setRecipients(FileChannel, WritableByteChannel, PrivateKey, Collection)} otherwise.
+   *
+   * @param input Channel to read the Crypt4GH stream from.
+   * @param output Channel to write the re-keyed Crypt4GH stream to.
+   * @param privateKeyForDecryption Private key to decrypt the header.
+   * @param newRecipientPublicKeys Public keys of the recipients to add.
+   * @return The number of bytes written to the output channel.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public long addRecipients(
+      FileChannel input,
+      WritableByteChannel output,
+      PrivateKey privateKeyForDecryption,
+      Collection<PublicKey> newRecipientPublicKeys)
+      throws IOException, GeneralSecurityException {
+    return reheader(input, output, privateKeyForDecryption, newRecipientPublicKeys, true);
+  }
+
+  /**
+   * Reads the header from the input channel, writes a header rebuilt for the new recipients to the
+   * output channel and transfers the encrypted body unchanged.
+   *
+   * @param input channel to read the Crypt4GH stream from.
+   * @param output channel to write the re-keyed Crypt4GH stream to.
+   * @param privateKeyForDecryption private key to decrypt the header.
+   * @param newRecipientPublicKeys public keys of the new recipients.
+   * @param keepRecipients whether to keep the header packets of the existing header (unchanged).
+   * @return the number of bytes written to the output channel.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption-related error.
+   */
+  private long reheader(
+      FileChannel input,
+      WritableByteChannel output,
+      PrivateKey privateKeyForDecryption,
+      Collection<PublicKey> newRecipientPublicKeys,
+      boolean keepRecipients)
+      throws IOException, GeneralSecurityException {
+    if (output instanceof SelectableChannel selectableChannel && !selectableChannel.isBlocking()) {
+      throw new IllegalArgumentException("The output channel must be in blocking mode");
+    }
+    HeaderDescriptor headerDescriptor = HeaderDescriptor.read(Channels.newInputStream(input));
+    long bodyPosition = input.position();
+    Header header = new Header(headerDescriptor, privateKeyForDecryption);
+    header.getDataEncryptionParametersList(); // fails if the header can't be decrypted at all
+    List<byte[]> headerPackets = new ArrayList<>();
+    if (keepRecipients) {
+      // copied as they are, so that the recipients the key can't decrypt for keep their access
+      for (HeaderDescriptor.PacketDescriptor packetDescriptor :
+          headerDescriptor.getPacketDescriptors()) {
+        headerPackets.add(packetDescriptor.serialize());
+      }
+    }
+    for (PublicKey newRecipientPublicKey : newRecipientPublicKeys) {
+      List<HeaderPacket> newHeaderPackets =
+          getHeaderPacketsWithNewRecipient(header, privateKeyForDecryption, newRecipientPublicKey);
+      for (HeaderPacket headerPacket : newHeaderPackets) {
+        headerPackets.add(headerPacket.serialize());
+      }
+    }
+    ByteBuffer newHeader = ByteBuffer.wrap(serializeHeader(headerPackets));
+    long written = newHeader.remaining();
+    while (newHeader.hasRemaining()) {
+      output.write(newHeader);
+    }
+    long bodyLength = input.size() - bodyPosition;
+    long transferred = 0;
+    while (transferred < bodyLength) {
+      long count = input.transferTo(bodyPosition + transferred, bodyLength - transferred, output);
+      if (count <= 0) {
+        if (input.size() <= bodyPosition + transferred) {
+          throw new EOFException("The input was truncated while transferring the encrypted body");
+        }
+        throw new IOException("The encrypted body could not be transferred to the output");
+      }
+      transferred += count;
+    }
+    input.position(bodyPosition + transferred);
+    return written + transferred;
+  }
+
+  /**
+   * Serializes a header from header packets that have already been serialized.
+   *
+   * @param headerPackets the serialized header packets
+   * @return a byte array containing the serialized header
+   * @throws IOException if the header can't be written
+   */
+  private byte[] serializeHeader(List<byte[]> headerPackets) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    byteArrayOutputStream.write(
+        ByteBuffer.allocate(Header.UNENCRYPTED_HEADER_LENGTH)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .put(Header.MAGIC_WORD.getBytes())
+            .putInt(Header.VERSION)
+            .putInt(headerPackets.size())
+            .array());
+    for (byte[] headerPacket : headerPackets) {
+      byteArrayOutputStream.write(headerPacket);
+    }
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  /**
+   * Opens a file for writing, creating it or truncating it if it exists.
+   *
+   * @param path the file to open
+   * @return a FileChannel for writing
+   * @throws IOException In case the file can't be opened.
+   */
+  private FileChannel openOutput(Path path) throws IOException {
+    return FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
   /**
    * Gets the header packets from an existing header and encrypts them for a new recipient.
    *
@@ -0,0 +1,371 @@
+package no.elixir.crypt4gh.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.XECPrivateKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.NamedParameterSpec;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.ArrayUtils;
+
+/**
+ * A thread-safe set of unlocked X25519 private keys, for services that decrypt Crypt4GH files on
+ * behalf of many requests. Keys are read and unlocked once, indexed by the fingerprint of their
+ * public key, and removed from the key ring again when their time-to-live has passed.
+ *
+ * <p>The key ring keeps its own copy of each private key. When a key is removed (because it
+ * expired, was replaced or removed explicitly, or because the key ring was closed), that copy is
+ * zeroed and the keys derived from it are dropped from the caches in {@link KeyUtils}. The private
+ * keys returned by the key ring can't be used after that. The original key passed to {@link
+ * #add(PrivateKey)} is left untouched.
+ *
+ * <p>Expired keys are removed the next time they are looked up, and whenever a key is added. A
+ * service that wants expired keys to be zeroed promptly can also call {@link #evictExpired()}
+ * periodically.
+ */
+public class KeyRing implements AutoCloseable {
+
+  /** The default time-to-live of the keys in a key ring */
+  public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+
+  private final KeyUtils keyUtils = KeyUtils.getInstance();
+
+  /** How long a key stays in the key ring after being added */
+  private final Duration ttl;
+
+  /** The clock used to expire keys */
+  private final Clock clock;
+
+  /** The keys in the key ring, keyed by the fingerprint of their public key */
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * The fingerprint of the key that last decrypted a header packet from each writer, keyed by the
+   * writer's public key. Bounded like the key caches in KeyUtils.
+   */
+  private final Map<ByteBuffer, String> readersByWriter =
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, String> eldest) {
+          return size() > KeyUtils.KEY_CACHE_SIZE;
+        }
+      };
+
+  /** Creates an empty key ring, keeping keys for {@link #DEFAULT_TTL}. */
+  public KeyRing() {
+    this(DEFAULT_TTL);
+  }
+
+  /**
+   * Creates an empty key ring.
+   *
+   * @param ttl how long a key stays in the key ring after being added
+   * @throws IllegalArgumentException if the time-to-live is not positive
+   */
+  public KeyRing(Duration ttl) {
+    this(ttl, Clock.systemUTC());
+  }
+
+  /**
+   * Creates an empty key ring, using the given clock to expire keys.
+   *
+   * @param ttl how long a key stays in the key ring after being added
+   * @param clock the clock to expire the keys by
+   * @throws IllegalArgumentException if the time-to-live is not positive
+   */
+  public KeyRing(Duration ttl, Clock clock) {
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("The time-to-live of the keys must be positive");
+    }
+    this.ttl = ttl;
+    this.clock = clock;
+  }
+
+  /**
+   * Computes the fingerprint identifying a public key in key rings: the hex-encoded SHA-256 digest
+   * of the 32-byte X25519 public key.
+   *
+   * @param publicKey X25519 public key.
+   * @return The fingerprint of the public key.
+   * @throws GeneralSecurityException If the key can't be encoded.
+   */
+  public static String fingerprint(PublicKey publicKey) throws GeneralSecurityException {
+    byte[] encodedKey = KeyUtils.getInstance().encodeKey(publicKey);
+    return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(encodedKey));
+  }
+
+  /**
+   * Adds a private key to the key ring, replacing the key with the same public key (if any).
+   *
+   * @param privateKey X25519 private key to add.
+   * @return The public key of the added private key.
+   * @throws GeneralSecurityException If the public key can't be derived from the private key.
+   */
+  public PublicKey add(PrivateKey privateKey) throws GeneralSecurityException {
+    RingPrivateKey ringPrivateKey = new RingPrivateKey(keyUtils.getScalar(privateKey));
+    PublicKey publicKey = keyUtils.derivePublicKey(ringPrivateKey);
+    String fingerprint = fingerprint(publicKey);
+    Entry entry = new Entry(ringPrivateKey, clock.instant().plus(ttl));
+    Entry previousEntry = entries.put(fingerprint, entry);
+    if (previousEntry != null) {
+      destroy(previousEntry);
+    }
+    evictExpired();
+    return publicKey;
+  }
+
+  /**
+   * Reads a private key (OpenSSL or Crypt4GH format) file, unlocks it and adds it to the key ring.
+   *
+   * @param keyFile Private key file.
+   * @param password Optional password (if private key is password-protected). Can be null for
+   *     unencrypted key.
+   * @return The public key of the added private key.
+   * @throws IOException If the file can't be read.
+   * @throws GeneralSecurityException If the key can't be constructed from the given file.
+   */
+  public PublicKey load(File keyFile, char[] password)
+      throws IOException, GeneralSecurityException {
+    return add(keyUtils.readPrivateKey(keyFile, password));
+  }
+
+  /**
+   * Looks up the private key belonging to a public key, for instance the reader's public key that
+   * a file was encrypted for.
+   *
+   * @param publicKey X25519 public key.
+   * @return An Optional containing the private key, provided that it is in the key ring and has not
+   *     expired.
+   * @throws GeneralSecurityException If the public key can't be encoded.
+   */
+  public Optional<PrivateKey> getPrivateKey(PublicKey publicKey) throws GeneralSecurityException {
+    return Optional.ofNullable(getEntry(fingerprint(publicKey))).map(entry -> entry.privateKey);
+  }
+
+  /**
+   * Returns the private keys to try, in order, to decrypt a header packet written with the given
+   * public key. The private key of the writer comes first (a file encrypted by one of the keys in
+   * the key ring for itself), followed by the key that last decrypted a header packet from the same
+   * writer, and then all the other keys. The first two are found by a hash lookup, so trying the
+   * keys in this order usually succeeds with the first one.
+   *
+   * @param writerPublicKey The writer's X25519 public key, as found in a header packet.
+   * @return The private keys in the key ring that have not expired, most likely reader first.
+   * @throws GeneralSecurityException If the public key can't be encoded.
+   */
+  public List<PrivateKey> getPrivateKeys(PublicKey writerPublicKey)
+      throws GeneralSecurityException {
+    List<PrivateKey> privateKeys = new ArrayList<>(entries.size());
+    Entry writerEntry = getEntry(fingerprint(writerPublicKey));
+    if (writerEntry != null) {
+      privateKeys.add(writerEntry.privateKey);
+    }
+    String readerFingerprint;
+    synchronized (readersByWriter) {
+      readerFingerprint = readersByWriter.get(ByteBuffer.wrap(keyUtils.encodeKey(writerPublicKey)));
+    }
+    Entry readerEntry = readerFingerprint == null ? null : getEntry(readerFingerprint);
+    if (readerEntry != null && readerEntry != writerEntry) {
+      privateKeys.add(readerEntry.privateKey);
+    }
+    Instant now = clock.instant();
+    for (Entry entry : entries.values()) {
+      if (entry != writerEntry && entry != readerEntry && !entry.isExpired(now)) {
+        privateKeys.add(entry.privateKey);
+      }
+    }
+    return privateKeys;
+  }
+
+  /**
+   * Records that a private key in the key ring decrypted a header packet from the given writer, so
+   * that {@link #getPrivateKeys(PublicKey)} returns it first for the next header packets from the
+   * same writer.
+   *
+   * @param writerPublicKey The writer's X25519 public key, as found in a header packet.
+   * @param readerPrivateKey The private key that decrypted the header packet.
+   * @throws GeneralSecurityException If the keys can't be encoded.
+   */
+  public void recordReader(PublicKey writerPublicKey, PrivateKey readerPrivateKey)
+      throws GeneralSecurityException {
+    String readerFingerprint = fingerprint(keyUtils.derivePublicKey(readerPrivateKey));
+    if (entries.containsKey(readerFingerprint)) {
+      ByteBuffer writerKey = ByteBuffer.wrap(keyUtils.encodeKey(writerPublicKey));
+      synchronized (readersByWriter) {
+        readersByWriter.put(writerKey, readerFingerprint);
+      }
+    }
+  }
+
+  /**
+   * Removes a private key from the key ring and zeroes it.
+   *
+   * @param publicKey The X25519 public key of the private key to remove.
+   * @return true if the key ring contained the key.
+   * @throws GeneralSecurityException If the public key can't be encoded.
+   */
+  public boolean remove(PublicKey publicKey) throws GeneralSecurityException {
+    Entry entry = entries.remove(fingerprint(publicKey));
+    if (entry == null) {
+      return false;
+    }
+    destroy(entry);
+    return true;
+  }
+
+  /**
+   * Removes and zeroes all the keys whose time-to-live has passed.
+   *
+   * @return The number of keys removed.
+   */
+  public int evictExpired() {
+    Instant now = clock.instant();
+    int evicted = 0;
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().isExpired(now) && entries.remove(entry.getKey(), entry.getValue())) {
+        destroy(entry.getValue());
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Returns the number of keys in the key ring, including expired keys that have not been removed
+   * yet.
+   *
+   * @return The number of keys.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /** Removes and zeroes all the keys in the key ring. */
+  @Override
+  public void close() {
+    for (String fingerprint : entries.keySet()) {
+      Entry entry = entries.remove(fingerprint);
+      if (entry != null) {
+        destroy(entry);
+      }
+    }
+    synchronized (readersByWriter) {
+      readersByWriter.clear();
+    }
+  }
+
+  /** Returns the entry with the given fingerprint, removing it first if it has expired. */
+  private Entry getEntry(String fingerprint) {
+    Entry entry = entries.get(fingerprint);
+    if (entry != null && entry.isExpired(clock.instant())) {
+      if (entries.remove(fingerprint, entry)) {
+        destroy(entry);
+      }
+      return null;
+    }
+    return entry;
+  }
+
+  /** Drops the keys derived from the private key of an entry, and zeroes the private key. */
+  private void destroy(Entry entry) {
+    try {
+      keyUtils.clearKeyCaches(entry.privateKey);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      entry.privateKey.destroy();
+    }
+  }
+
+  /** A private key in the key ring, with its expiry time. */
+  private static class Entry {
+
+    private final RingPrivateKey privateKey;
+    private final Instant expiry;
+
+    Entry(RingPrivateKey privateKey, Instant expiry) {
+      this.privateKey = privateKey;
+      this.expiry = expiry;
+    }
+
+    boolean isExpired(Instant now) {
+      return !now.isBefore(expiry);
+    }
+  }
+
+  /**
+   * X25519 private key owned by a key ring. Unlike the keys created by the JDK key factories, its
+   * scalar can be zeroed with {@link #destroy()}, after which the key can no longer be used.
+   */
+  private static class RingPrivateKey implements XECPrivateKey {
+
+    @Serial private static final long serialVersionUID = 1L;
+
+    /** The PKCS #8 encoding of an X25519 private key, up to the 32-byte scalar */
+    private static final byte[] PKCS8_PREFIX =
+        HexFormat.of().parseHex("302e020100300506032b656e04220420");
+
+    private final byte[] scalar;
+    private volatile boolean destroyed;
+
+    RingPrivateKey(byte[] scalar) {
+      this.scalar = scalar;
+    }
+
+    @Override
+    public Optional<byte[]> getScalar() {
+      return destroyed ? Optional.empty() : Optional.of(scalar.clone());
+    }
+
+    @Override
+    public AlgorithmParameterSpec getParams() {
+      return NamedParameterSpec.X25519;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return "XDH";
+    }
+
+    @Override
+    public String getFormat() {
+      return "PKCS#8";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      if (destroyed) {
+        throw new IllegalStateException("The private key has been removed from the key ring");
+      }
+      return ArrayUtils.addAll(PKCS8_PREFIX, scalar);
+    }
+
+    @Override
+    public void destroy() {
+      destroyed = true;
+      Arrays.fill(scalar, (byte) 0);
+    }
+
+    @Override
+    public boolean isDestroyed() {
+      return destroyed;
+    }
+  }
+}
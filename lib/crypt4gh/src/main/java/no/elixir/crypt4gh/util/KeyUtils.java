@@ -18,6 +18,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
 import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -70,9 +73,21 @@ public class KeyUtils {
   /** The magic word used at the beginning of Crypt4GH formatted key files */
   public static final String CRYPT4GH_AUTH_MAGIC = "c4gh-v1";
 
+  /** Maximum number of entries kept in each of the key caches */
+  public static final int KEY_CACHE_SIZE = 1024;
+
   /** Singleton instance of this class */
   private static KeyUtils ourInstance = new KeyUtils();
 
+  /** Public keys derived from private keys, keyed by the private key fingerprint */
+  private final KeyCache<PublicKey> derivedPublicKeys = new KeyCache<>(KEY_CACHE_SIZE);
+
+  /** Writer's shared keys, keyed by the writer's private key fingerprint and reader's public key */
+  private final KeyCache<SecretKey> writerSharedKeys = new KeyCache<>(KEY_CACHE_SIZE);
+
+  /** Reader's shared keys, keyed by the reader's private key fingerprint and writer's public key */
+  private final KeyCache<SecretKey> readerSharedKeys = new KeyCache<>(KEY_CACHE_SIZE);
+
   /**
    * Returns a singleton instance of this class.
    *
@@ -191,13 +206,31 @@ public class KeyUtils {
   }
 
   /**
-   * Derives X25519 public key from the given X25519 private key.
+   * Derives X25519 public key from the given X25519 private key. Derived keys are cached, so
+   * deriving the public key of the same private key again is cheap.
    *
    * @param privateKey X25519 private key to derive public key from.
    * @return Derived X25519 public key.
    * @throws GeneralSecurityException In case X25519 public key can't be derived.
    */
   public PublicKey derivePublicKey(PrivateKey privateKey) throws GeneralSecurityException {
+    ByteBuffer cacheKey = ByteBuffer.wrap(fingerprint(privateKey));
+    PublicKey publicKey = derivedPublicKeys.get(cacheKey);
+    if (publicKey == null) {
+      publicKey = computePublicKey(privateKey);
+      derivedPublicKeys.put(cacheKey, publicKey);
+    }
+    return publicKey;
+  }
+
+  /**
+   * Derives X25519 public key from the given X25519 private key, bypassing the cache.
+   *
+   * @param privateKey X25519 private key to derive public key from.
+   * @return Derived X25519 public key.
+   * @throws GeneralSecurityException In case X25519 public key can't be derived.
+   */
+  private PublicKey computePublicKey(PrivateKey privateKey) throws GeneralSecurityException {
     KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(X25519);
     keyPairGenerator.initialize(
         new NamedParameterSpec(X25519), new StaticSecureRandom(getScalar(privateKey)));
@@ -224,7 +257,7 @@ public class KeyUtils {
 
   /**
    * Generates writer's shared key based on sender's X25519 private and recipient's X25519 public
-   * keys.
+   * keys. Shared keys are cached per key pair.
    *
    * @param writerPrivateKey Sender's X25519 private key.
    * @param readerPublicKey Recipient's X25519 public key.
@@ -233,20 +266,22 @@ public class KeyUtils {
    */
   public SecretKey generateWriterSharedKey(PrivateKey writerPrivateKey, PublicKey readerPublicKey)
       throws GeneralSecurityException {
-    PublicKey writerPublicKey = derivePublicKey(writerPrivateKey);
-    byte[] diffieHellmanKey = generateDiffieHellmanSharedKey(writerPrivateKey, readerPublicKey);
-    byte[] digest =
-        MessageDigest.getInstance(Blake2b.BLAKE2_B_512)
-            .digest(
-                ArrayUtils.addAll(
-                    ArrayUtils.addAll(diffieHellmanKey, encodeKey(readerPublicKey)),
-                    encodeKey(writerPublicKey)));
-    return new SecretKeySpec(Arrays.copyOfRange(digest, 0, 32), CHA_CHA_20);
+    ByteBuffer cacheKey =
+        ByteBuffer.wrap(
+            ArrayUtils.addAll(fingerprint(writerPrivateKey), encodeKey(readerPublicKey)));
+    SecretKey sharedKey = writerSharedKeys.get(cacheKey);
+    if (sharedKey == null) {
+      PublicKey writerPublicKey = derivePublicKey(writerPrivateKey);
+      sharedKey =
+          computeSharedKey(writerPrivateKey, readerPublicKey, readerPublicKey, writerPublicKey);
+      writerSharedKeys.put(cacheKey, sharedKey);
+    }
+    return sharedKey;
   }
 
   /**
    * Generates reader's shared key based on recipient's X25519 private and sender's X25519 public
-   * keys.
+   * keys. Shared keys are cached per key pair.
    *
    * @param readerPrivateKey Recipient's X25519 private key.
    * @param writerPublicKey Sender's X25519 public key.
@@ -255,8 +290,36 @@ public class KeyUtils {
    */
   public SecretKey generateReaderSharedKey(PrivateKey readerPrivateKey, PublicKey writerPublicKey)
       throws GeneralSecurityException {
-    PublicKey readerPublicKey = derivePublicKey(readerPrivateKey);
-    byte[] diffieHellmanKey = generateDiffieHellmanSharedKey(readerPrivateKey, writerPublicKey);
+    ByteBuffer cacheKey =
+        ByteBuffer.wrap(
+            ArrayUtils.addAll(fingerprint(readerPrivateKey), encodeKey(writerPublicKey)));
+    SecretKey sharedKey = readerSharedKeys.get(cacheKey);
+    if (sharedKey == null) {
+      PublicKey readerPublicKey = derivePublicKey(readerPrivateKey);
+      sharedKey =
+          computeSharedKey(readerPrivateKey, writerPublicKey, readerPublicKey, writerPublicKey);
+      readerSharedKeys.put(cacheKey, sharedKey);
+    }
+    return sharedKey;
+  }
+
+  /**
+   * Computes the Blake2b-based shared key from the Diffie Hellman shared key and both public keys.
+   *
+   * @param privateKey Own X25519 private key.
+   * @param peerPublicKey The other party's X25519 public key.
+   * @param readerPublicKey Recipient's X25519 public key.
+   * @param writerPublicKey Sender's X25519 public key.
+   * @return Blake2b-based shared key.
+   * @throws GeneralSecurityException In case there's a problem in generating keys.
+   */
+  private SecretKey computeSharedKey(
+      PrivateKey privateKey,
+      PublicKey peerPublicKey,
+      PublicKey readerPublicKey,
+      PublicKey writerPublicKey)
+      throws GeneralSecurityException {
+    byte[] diffieHellmanKey = generateDiffieHellmanSharedKey(privateKey, peerPublicKey);
     byte[] digest =
         MessageDigest.getInstance(Blake2b.BLAKE2_B_512)
             .digest(
@@ -266,6 +329,35 @@ public class KeyUtils {
     return new SecretKeySpec(Arrays.copyOfRange(digest, 0, 32), CHA_CHA_20);
   }
 
+  /**
+   * Clears the caches of derived public keys and shared keys. Cached keys are also evicted when the
+   * caches are full, so calling this method is only needed to drop keys that are no longer used.
+   */
+  public void clearKeyCaches() {
+    derivedPublicKeys.clear();
+    writerSharedKeys.clear();
+    readerSharedKeys.clear();
+  }
+
+  /**
+   * Removes the public key derived from the given private key, and all the shared keys generated
+   * with it, from the key caches. Used to forget a private key that is no longer in use, without
+   * dropping the cached keys of other private keys.
+   *
+   * @param privateKey X25519 private key to forget.
+   * @throws NoSuchAlgorithmException If the SHA-256 algorithm used to identify keys can't be found.
+   */
+  public void clearKeyCaches(PrivateKey privateKey) throws NoSuchAlgorithmException {
+    ByteBuffer prefix = ByteBuffer.wrap(fingerprint(privateKey));
+    Predicate<ByteBuffer> startsWithFingerprint =
+        cacheKey ->
+            cacheKey.remaining() >= prefix.remaining()
+                && cacheKey.slice(0, prefix.remaining()).equals(prefix);
+    derivedPublicKeys.removeIf(startsWithFingerprint);
+    writerSharedKeys.removeIf(startsWithFingerprint);
+    readerSharedKeys.removeIf(startsWithFingerprint);
+  }
+
   /**
    * Generates ChaCha20 secret key.
    *
@@ -558,6 +650,54 @@ public class KeyUtils {
         .array();
   }
 
+  /**
+   * Computes the fingerprint used to identify a private key in the key caches: a SHA-256 digest of
+   * its encoding, so that the caches don't hold on to the private keys themselves.
+   */
+  private byte[] fingerprint(PrivateKey privateKey) throws NoSuchAlgorithmException {
+    byte[] encoded = privateKey.getEncoded();
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(encoded);
+    } finally {
+      Arrays.fill(encoded, (byte) 0);
+    }
+  }
+
+  /**
+   * Bounded, thread-safe cache evicting the least recently used entry when full. Keys are wrapped
+   * byte arrays, which are compared by content.
+   */
+  private static class KeyCache<V> {
+
+    private final Map<ByteBuffer, V> entries;
+
+    KeyCache(int maxSize) {
+      this.entries =
+          new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, V> eldest) {
+              return size() > maxSize;
+            }
+          };
+    }
+
+    synchronized V get(ByteBuffer key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(ByteBuffer key, V value) {
+      entries.put(key, value);
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+
+    synchronized void removeIf(Predicate<ByteBuffer> filter) {
+      entries.keySet().removeIf(filter);
+    }
+  }
+
   private static class StaticSecureRandom extends SecureRandom {
 
     private final byte[] privateKey;
@@ -0,0 +1,89 @@
+package no.elixir.crypt4gh.util;
+
+import java.security.DrbgParameters;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Generator of random nonces for ChaCha20-Poly1305.
+ *
+ * <p>Each generator is backed by its own NIST SP 800-90A DRBG from the JDK (Hash_DRBG by default),
+ * which is seeded once, when the generator is created, with entropy from {@link
+ * SecureRandom#getInstanceStrong()}. Subsequent nonces are drawn from the DRBG without consulting
+ * the (possibly blocking) strong entropy source again and without any provider lookups.
+ *
+ * <p>Nonces are 96 bits and fully random. Random nonces are used rather than counters, since header
+ * packets for the same writer and reader are always encrypted with the same derived X25519 key.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class NonceGenerator {
+
+  /** The size of the seed taken from the strong entropy source (256 bits) */
+  private static final int SEED_SIZE = 32;
+
+  /** The security strength requested from the DRBG (in bits) */
+  private static final int SECURITY_STRENGTH = 256;
+
+  /** A shared generator for code that does not own a generator itself */
+  private static volatile NonceGenerator ourInstance;
+
+  /** The DRBG used to generate nonces */
+  private final SecureRandom random;
+
+  /**
+   * Returns a shared, process-wide nonce generator. Streams should preferably create and own their
+   * own generator instead.
+   *
+   * @return a shared NonceGenerator
+   * @throws GeneralSecurityException if the generator cannot be created
+   */
+  public static NonceGenerator getInstance() throws GeneralSecurityException {
+    NonceGenerator instance = ourInstance;
+    if (instance == null) {
+      synchronized (NonceGenerator.class) {
+        instance = ourInstance;
+        if (instance == null) {
+          instance = new NonceGenerator();
+          ourInstance = instance;
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Creates a new nonce generator seeded once from a strong entropy source.
+   *
+   * @throws GeneralSecurityException if no DRBG or strong entropy source is available
+   */
+  public NonceGenerator() throws GeneralSecurityException {
+    this.random =
+        SecureRandom.getInstance(
+            "DRBG",
+            DrbgParameters.instantiation(
+                SECURITY_STRENGTH, DrbgParameters.Capability.RESEED_ONLY, null));
+    this.random.setSeed(SecureRandom.getInstanceStrong().generateSeed(SEED_SIZE));
+  }
+
+  /**
+   * Fills the provided array with a fresh random nonce.
+   *
+   * @param nonce the array to fill
+   */
+  public void nextNonce(byte[] nonce) {
+    random.nextBytes(nonce);
+  }
+
+  /**
+   * Generates a fresh random nonce of the given size.
+   *
+   * @param size the size of the nonce in bytes
+   * @return a new array containing the nonce
+   */
+  public byte[] nextNonce(int size) {
+    byte[] nonce = new byte[size];
+    random.nextBytes(nonce);
+    return nonce;
+  }
+}
@@ -0,0 +1,346 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.MAC_SIZE;
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.NONCE_SIZE;
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+import org.junit.jupiter.api.Test;
+
+/** Tests for segment encryption/decryption with a reusable SegmentCryptor. */
+public class SegmentCryptorTest {
+
+  private static final int ENCRYPTED_SEGMENT_SIZE =
+      NONCE_SIZE + UNENCRYPTED_DATA_SEGMENT_SIZE + MAC_SIZE;
+
+  /**
+   * Tests that segments encrypted with a reused SegmentCryptor can be decrypted (repeatedly) both
+   * by the SegmentCryptor itself and by the Segment API, and that every segment gets a unique
+   * nonce.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void encryptDecryptRoundTripTest() throws Exception {
+    DataEncryptionParameters parameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    SegmentCryptor segmentCryptor = new SegmentCryptor();
+    byte[] unencryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    byte[] encryptedSegment = new byte[ENCRYPTED_SEGMENT_SIZE];
+    byte[] decryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    Random random = new Random(3);
+    Set<String> nonces = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      int length = i == 99 ? 1234 : UNENCRYPTED_DATA_SEGMENT_SIZE;
+      random.nextBytes(unencryptedData);
+      int encryptedLength =
+          segmentCryptor.encrypt(unencryptedData, 0, length, encryptedSegment, 0, parameters);
+      assertEquals(NONCE_SIZE + length + MAC_SIZE, encryptedLength);
+      assertTrue(nonces.add(Arrays.toString(Arrays.copyOf(encryptedSegment, NONCE_SIZE))));
+      int decryptedLength =
+          segmentCryptor.decrypt(
+              encryptedSegment, 0, encryptedLength, decryptedData, 0, List.of(parameters));
+      assertEquals(length, decryptedLength);
+      assertArrayEquals(
+          Arrays.copyOf(unencryptedData, length), Arrays.copyOf(decryptedData, length));
+      Arrays.fill(decryptedData, (byte) 0);
+      segmentCryptor.decrypt(
+          encryptedSegment, 0, encryptedLength, decryptedData, 0, List.of(parameters));
+      assertArrayEquals(
+          Arrays.copyOf(unencryptedData, length), Arrays.copyOf(decryptedData, length));
+      Segment segment =
+          Segment.create(Arrays.copyOf(encryptedSegment, encryptedLength), List.of(parameters));
+      assertArrayEquals(Arrays.copyOf(unencryptedData, length), segment.getUnencryptedData());
+    }
+  }
+
+  /**
+   * Tests that segments can be encrypted and decrypted between heap and direct ByteBuffers, and
+   * that the result is compatible with the byte array API.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void byteBufferRoundTripTest() throws Exception {
+    DataEncryptionParameters parameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    DataEncryptionParameters otherParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    SegmentCryptor segmentCryptor = new SegmentCryptor();
+    byte[] unencryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new Random(5).nextBytes(unencryptedData);
+    for (boolean direct : new boolean[] {false, true}) {
+      ByteBuffer source =
+          direct
+              ? ByteBuffer.allocateDirect(UNENCRYPTED_DATA_SEGMENT_SIZE)
+              : ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE);
+      source.put(unencryptedData).flip();
+      ByteBuffer encrypted =
+          direct
+              ? ByteBuffer.allocateDirect(ENCRYPTED_SEGMENT_SIZE)
+              : ByteBuffer.allocate(ENCRYPTED_SEGMENT_SIZE);
+      assertEquals(ENCRYPTED_SEGMENT_SIZE, segmentCryptor.encrypt(source, encrypted, parameters));
+      assertFalse(source.hasRemaining());
+      assertFalse(encrypted.hasRemaining());
+      encrypted.flip();
+
+      byte[] encryptedArray = new byte[ENCRYPTED_SEGMENT_SIZE];
+      encrypted.get(encrypted.position(), encryptedArray);
+      byte[] decryptedArray = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+      segmentCryptor.decrypt(
+          encryptedArray, 0, encryptedArray.length, decryptedArray, 0, List.of(parameters));
+      assertArrayEquals(unencryptedData, decryptedArray);
+
+      ByteBuffer decrypted =
+          direct
+              ? ByteBuffer.allocateDirect(UNENCRYPTED_DATA_SEGMENT_SIZE)
+              : ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE);
+      assertEquals(
+          UNENCRYPTED_DATA_SEGMENT_SIZE,
+          segmentCryptor.decrypt(encrypted, decrypted, List.of(otherParameters, parameters)));
+      assertFalse(encrypted.hasRemaining());
+      decrypted.flip();
+      byte[] decryptedData = new byte[decrypted.remaining()];
+      decrypted.get(decryptedData);
+      assertArrayEquals(unencryptedData, decryptedData);
+
+      encrypted.rewind();
+      decrypted.clear();
+      assertThrows(
+          GeneralSecurityException.class,
+          () -> segmentCryptor.decrypt(encrypted, decrypted, List.of(otherParameters)));
+      assertEquals(0, encrypted.position());
+      assertEquals(0, decrypted.position());
+    }
+  }
+
+  /**
+   * Tests Poly1305 against the test vector from RFC 8439 (section 2.5.2), and tests that verifying
+   * segments without decrypting them agrees with decryption for intact, tampered and truncated
+   * segments of various lengths.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void verifyTest() throws Exception {
+    Poly1305 poly1305 = new Poly1305();
+    poly1305.init(
+        HexFormat.of()
+            .parseHex("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b"));
+    poly1305.update(ByteBuffer.wrap("Cryptographic Forum Research Group".getBytes()));
+    assertArrayEquals(
+        HexFormat.of().parseHex("a8061dc1305136c6c22b8baf0c0127a9"), poly1305.finish());
+
+    DataEncryptionParameters parameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    DataEncryptionParameters otherParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    SegmentCryptor segmentCryptor = new SegmentCryptor();
+    byte[] unencryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new Random(7).nextBytes(unencryptedData);
+    for (int length : new int[] {0, 1, 15, 16, 17, 1000, UNENCRYPTED_DATA_SEGMENT_SIZE}) {
+      byte[] encryptedSegment = new byte[NONCE_SIZE + length + MAC_SIZE];
+      segmentCryptor.encrypt(unencryptedData, 0, length, encryptedSegment, 0, parameters);
+      for (boolean direct : new boolean[] {false, true}) {
+        ByteBuffer encrypted =
+            direct
+                ? ByteBuffer.allocateDirect(encryptedSegment.length)
+                : ByteBuffer.allocate(encryptedSegment.length);
+        encrypted.put(encryptedSegment).flip();
+        assertTrue(segmentCryptor.verify(encrypted, List.of(otherParameters, parameters)));
+        assertTrue(segmentCryptor.verify(encrypted, List.of(parameters)));
+        assertEquals(0, encrypted.position());
+        assertFalse(segmentCryptor.verify(encrypted, List.of(otherParameters)));
+        assertFalse(
+            segmentCryptor.verify(encrypted.slice(0, encrypted.limit() - 1), List.of(parameters)));
+        for (int position : new int[] {0, NONCE_SIZE, encryptedSegment.length - 1}) {
+          encrypted.put(position, (byte) (encrypted.get(position) ^ 1));
+          assertFalse(segmentCryptor.verify(encrypted, List.of(parameters)));
+          encrypted.put(position, (byte) (encrypted.get(position) ^ 1));
+        }
+      }
+    }
+    assertFalse(
+        segmentCryptor.verify(ByteBuffer.allocate(NONCE_SIZE + MAC_SIZE - 1), List.of(parameters)));
+  }
+
+  /**
+   * Tests the pure-Java ChaCha20 against the block function, encryption and Poly1305 key generation
+   * test vectors from RFC 8439 (sections 2.3.2, 2.4.2 and 2.6.2), and tests that both segment
+   * ciphers produce the same output as the JCE cipher and can decrypt each other's output, for
+   * messages of various lengths in heap and direct buffers.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void segmentCipherTest() throws Exception {
+    HexFormat hex = HexFormat.of();
+    byte[] key = new byte[32];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = (byte) i;
+    }
+    JavaSegmentCipher javaSegmentCipher = new JavaSegmentCipher();
+    javaSegmentCipher.setState(key, hex.parseHex("000000090000004a00000000"), 1);
+    assertArrayEquals(
+        hex.parseHex(
+            "10f1e7e4d13b5915500fdd1fa32071c4c7d1f4c733c068030422aa9ac3d46c4e"
+                + "d2826446079faa0914c2d705d98b02a2b5129cd1de164eb9cbd083e8a2503c4e"),
+        Arrays.copyOf(javaSegmentCipher.generateKeyStream(), 64));
+
+    byte[] plaintext =
+        ("Ladies and Gentlemen of the class of '99: If I could offer you only one tip for the"
+                + " future, sunscreen would be it.")
+            .getBytes();
+    SecretKey secretKey = new SecretKeySpec(key, "ChaCha20");
+    byte[] nonce = hex.parseHex("000000000000004a00000000");
+    byte[] encrypted = new byte[plaintext.length + MAC_SIZE];
+    // the data is encrypted from the block with counter 1, as in the test vector
+    javaSegmentCipher.encrypt(secretKey, nonce, plaintext, 0, plaintext.length, encrypted, 0);
+    assertArrayEquals(
+        hex.parseHex(
+            "6e2e359a2568f98041ba0728dd0d6981e97e7aec1d4360c20a27afccfd9fae0b"
+                + "f91b65c5524733ab8f593dabcd62b3571639d624e65152ab8f530c359f0861d8"
+                + "07ca0dbf500d6a6156a38e088a22b65e52bc514d16ccf806818ce91ab7793736"
+                + "5af90bbf74a35be6b40b8eedf2785e42874d"),
+        Arrays.copyOf(encrypted, plaintext.length));
+
+    byte[] polyKey = new byte[32];
+    for (int i = 0; i < polyKey.length; i++) {
+      polyKey[i] = (byte) (0x80 + i);
+    }
+    javaSegmentCipher.setState(polyKey, hex.parseHex("000000000001020304050607"), 0);
+    assertArrayEquals(
+        hex.parseHex("8ad5a08b905f81cc815040274ab29471a833b637e3fd0da508dbb8e2fdd1a646"),
+        Arrays.copyOf(javaSegmentCipher.generateKeyStream(), 32));
+
+    SecretKey dataKey = KeyUtils.getInstance().generateSessionKey();
+    SecretKey otherDataKey = KeyUtils.getInstance().generateSessionKey();
+    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+    byte[] data = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new Random(11).nextBytes(data);
+    int[] lengths = {0, 1, 63, 64, 65, 511, 512, 513, 1000, UNENCRYPTED_DATA_SEGMENT_SIZE};
+    for (int length : lengths) {
+      byte[] segmentNonce = NonceGenerator.getInstance().nextNonce(NONCE_SIZE);
+      cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(segmentNonce));
+      byte[] expected = cipher.doFinal(data, 0, length);
+      for (boolean direct : new boolean[] {false, true}) {
+        // a new JDK cipher for every pass, since it refuses to encrypt twice with the same nonce
+        List<SegmentCipher> segmentCiphers = List.of(javaSegmentCipher, new JdkSegmentCipher());
+        for (SegmentCipher segmentCipher : segmentCiphers) {
+          ByteBuffer source = allocate(length, direct).put(data, 0, length).flip();
+          ByteBuffer target = allocate(length + MAC_SIZE, direct);
+          assertEquals(
+              length + MAC_SIZE, segmentCipher.encrypt(dataKey, segmentNonce, source, target));
+          assertFalse(source.hasRemaining());
+          byte[] actual = new byte[length + MAC_SIZE];
+          target.flip().get(0, actual);
+          assertArrayEquals(expected, actual);
+
+          for (SegmentCipher other : segmentCiphers) {
+            assertTrue(other.verify(dataKey, segmentNonce, target));
+            assertFalse(other.verify(otherDataKey, segmentNonce, target));
+            ByteBuffer decrypted = allocate(length, direct);
+            assertEquals(length, other.decrypt(dataKey, segmentNonce, target, decrypted));
+            assertFalse(target.hasRemaining());
+            byte[] decryptedData = new byte[length];
+            decrypted.flip().get(decryptedData);
+            assertArrayEquals(Arrays.copyOf(data, length), decryptedData);
+
+            target.rewind();
+            target.put(0, (byte) (target.get(0) ^ 1));
+            ByteBuffer untouched = allocate(length, direct);
+            assertFalse(other.verify(dataKey, segmentNonce, target));
+            assertThrows(
+                GeneralSecurityException.class,
+                () -> other.decrypt(dataKey, segmentNonce, target, untouched));
+            assertEquals(0, target.position());
+            assertEquals(0, untouched.position());
+            target.put(0, (byte) (target.get(0) ^ 1));
+          }
+        }
+      }
+    }
+    byte[] zeroNonce = new byte[NONCE_SIZE];
+    assertThrows(
+        GeneralSecurityException.class,
+        () ->
+            javaSegmentCipher.decrypt(
+                dataKey, zeroNonce, ByteBuffer.allocate(MAC_SIZE - 1), ByteBuffer.allocate(0)));
+    assertThrows(
+        GeneralSecurityException.class,
+        () ->
+            javaSegmentCipher.encrypt(
+                dataKey, zeroNonce, ByteBuffer.allocate(10), ByteBuffer.allocate(25)));
+
+    // the JDK cipher is re-created to decrypt the same segment twice in a row, but encrypting twice
+    // with the same key and nonce is still refused
+    JdkSegmentCipher jdkSegmentCipher = new JdkSegmentCipher();
+    byte[] reusedNonce = NonceGenerator.getInstance().nextNonce(NONCE_SIZE);
+    byte[] encryptedOnce = new byte[100 + MAC_SIZE];
+    jdkSegmentCipher.encrypt(dataKey, reusedNonce, data, 0, 100, encryptedOnce, 0);
+    assertThrows(
+        InvalidKeyException.class,
+        () ->
+            jdkSegmentCipher.encrypt(
+                dataKey, reusedNonce, data, 0, 100, new byte[100 + MAC_SIZE], 0));
+    for (int i = 0; i < 2; i++) {
+      byte[] decryptedOnce = new byte[100];
+      jdkSegmentCipher.decrypt(
+          dataKey, reusedNonce, encryptedOnce, 0, encryptedOnce.length, decryptedOnce, 0);
+      assertArrayEquals(Arrays.copyOf(data, 100), decryptedOnce);
+      assertTrue(jdkSegmentCipher.verify(dataKey, reusedNonce, ByteBuffer.wrap(encryptedOnce)));
+    }
+
+    DataEncryptionParameters parameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    SegmentCryptor javaSegmentCryptor = new SegmentCryptor(null, new JavaSegmentCipher());
+    SegmentCryptor jdkSegmentCryptor = new SegmentCryptor(null, new JdkSegmentCipher());
+    byte[] encryptedSegment = new byte[ENCRYPTED_SEGMENT_SIZE];
+    byte[] decryptedSegment = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    javaSegmentCryptor.encrypt(data, 0, data.length, encryptedSegment, 0, parameters);
+    jdkSegmentCryptor.decrypt(
+        encryptedSegment, 0, encryptedSegment.length, decryptedSegment, 0, List.of(parameters));
+    assertArrayEquals(data, decryptedSegment);
+
+    String property = System.getProperty(SegmentCipher.SEGMENT_CIPHER_PROPERTY);
+    try {
+      System.setProperty(SegmentCipher.SEGMENT_CIPHER_PROPERTY, SegmentCipher.JAVA);
+      assertTrue(SegmentCipher.newInstance() instanceof JavaSegmentCipher);
+      Segment segment = Segment.create(encryptedSegment, List.of(parameters));
+      assertArrayEquals(data, segment.getUnencryptedData());
+      System.setProperty(SegmentCipher.SEGMENT_CIPHER_PROPERTY, SegmentCipher.JDK);
+      assertTrue(SegmentCipher.newInstance() instanceof JdkSegmentCipher);
+      System.setProperty(SegmentCipher.SEGMENT_CIPHER_PROPERTY, "unknown");
+      assertThrows(NoSuchAlgorithmException.class, SegmentCipher::newInstance);
+    } finally {
+      if (property == null) {
+        System.clearProperty(SegmentCipher.SEGMENT_CIPHER_PROPERTY);
+      } else {
+        System.setProperty(SegmentCipher.SEGMENT_CIPHER_PROPERTY, property);
+      }
+    }
+    assertTrue(SegmentCipher.newInstance() instanceof JdkSegmentCipher);
+  }
+
+  private static ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+}
@@ -2,6 +2,9 @@ package no.elixir.crypt4gh.pojo.key;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.charset.StandardCharsets;
+import no.elixir.crypt4gh.pojo.key.kdf.Bcrypt;
+import no.elixir.crypt4gh.pojo.key.kdf.SCrypt;
 import org.junit.jupiter.api.Test;
 
 /** Testing the supported Key Derivation Functions */
@@ -38,6 +41,84 @@ public class KDFTest {
         "Incorrect PBKDF2 hash");
   }
 
+  @Test
+  public void scryptKnownAnswerTest() throws Exception {
+    // test vectors from RFC 7914, section 12
+    assertArrayEquals(
+        hexToBytes(
+            "fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+                + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"),
+        SCrypt.scrypt(bytes("password"), bytes("NaCl"), 1024, 8, 16, 64),
+        "Incorrect Scrypt hash with p = 16");
+    assertArrayEquals(
+        hexToBytes(
+            "7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+                + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887"),
+        SCrypt.scrypt(bytes("pleaseletmein"), bytes("SodiumChloride"), 16384, 8, 1, 64),
+        "Incorrect Scrypt hash with p = 1");
+    // odd block size, several lanes and a key length that is not a multiple of the hash length
+    assertArrayEquals(
+        hexToBytes(
+            "7dcb7bf3278706d8220d97d1887650cc84287497a2708523"
+                + "d7f2c8c7b84a3af6dd9174cf26e2af5a"),
+        SCrypt.scrypt(bytes("abc"), bytes("salt"), 64, 3, 3, 40),
+        "Incorrect Scrypt hash with r = 3 and p = 3");
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void scryptByteFunctionsTest() throws Exception {
+    // Salsa20/8 test vector from RFC 7914, section 8
+    byte[] block =
+        hexToBytes(
+            "7e879a214f3ec9867ca940e641718f26baee555b8c61c1b50df846116dcd3b1d"
+                + "ee24f319df9b3d8514121e4b5ac5aa3276021d2909c74829edebc68db8b8c25e");
+    SCrypt.salsa20_8(block);
+    assertArrayEquals(
+        hexToBytes(
+            "a41f859c6608cc993b81cacb020cef05044b2181a2fd337dfd7b1c6396682f29"
+                + "b4393168e3c9e6bcfe6bc5b7a06d96bae424cc102c91745c24ad673dc7618f81"),
+        block,
+        "Incorrect Salsa20/8 output");
+    // scrypt with a single lane, mixed through the byte-oriented SMix
+    int N = 16;
+    int r = 2;
+    byte[] B = SCrypt.pbkdf2("HmacSHA256", bytes("password"), bytes("salt"), 1, 128 * r);
+    SCrypt.smix(B, 0, r, N, new byte[128 * r * N], new byte[256 * r]);
+    assertArrayEquals(
+        SCrypt.scrypt(bytes("password"), bytes("salt"), N, r, 1, 32),
+        SCrypt.pbkdf2("HmacSHA256", bytes("password"), B, 1, 32),
+        "Incorrect Scrypt hash with byte-oriented SMix");
+    assertEquals(Integer.rotateLeft(0x12345678, 7), SCrypt.R(0x12345678, 7));
+  }
+
+  @Test
+  public void bcryptKnownAnswerTest() {
+    assertArrayEquals(
+        hexToBytes("5ae16da58d02b3b92454138e163eb04e5943e58fb50de7a4a714143116976f9c"),
+        Bcrypt.bcrypt_pbkdf(bytes("password"), salt, 1, 32),
+        "Incorrect Bcrypt hash with 1 round");
+    assertArrayEquals(
+        hexToBytes("fecd8948d5b75c231c21a0d6a40de554b67eb08181a227518f572d2a465d9838"),
+        Bcrypt.bcrypt_pbkdf(bytes("password"), salt, 16, 32),
+        "Incorrect Bcrypt hash with 16 rounds");
+    // three interleaved output blocks
+    assertArrayEquals(
+        hexToBytes(
+            "f86c2d97bbe195277d080f1f9a2329192508a4f18ff9c24090a9d8a3ef220e1f58a1a039"
+                + "5671bf3ca15fac7d9a4f0be8a720e6e46e6a65a63b5a7aa2ea696f294b7c025e9d192385"),
+        Bcrypt.bcrypt_pbkdf(bytes("password"), salt, 4, 72),
+        "Incorrect Bcrypt hash with 72-byte key");
+    assertArrayEquals(
+        hexToBytes("b614287303a191"),
+        Bcrypt.bcrypt_pbkdf(bytes(""), bytes("x"), 2, 7),
+        "Incorrect Bcrypt hash with empty password");
+  }
+
+  private byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+
   private byte[] hexToBytes(String hex) {
     int length = hex.length();
     if (length % 2 != 0) {
@@ -2,22 +2,55 @@ package no.elixir.crypt4gh.stream;
 
 import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.Pipe;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
 import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderDescriptor;
+import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
+import no.elixir.crypt4gh.util.Crypt4GHFileIndex;
+import no.elixir.crypt4gh.util.Crypt4GHFileInfo;
 import no.elixir.crypt4gh.util.Crypt4GHUtils;
 import no.elixir.crypt4gh.util.KeyUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -704,6 +737,1911 @@ public class Crypt4GHTests {
     }
   }
 
+  /**
+   * Tests re-keying whole files, checking that only the header changes and that the file can be
+   * decrypted by the new recipients (and, when adding recipients, by the old ones, including those
+   * the key used can't decrypt for).
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void fileReheaderTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair anotherReaderKeyPair = keyUtils.generateKeyPair();
+    KeyPair yetAnotherReaderKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[5 * UNENCRYPTED_DATA_SEGMENT_SIZE + 123];
+    new Random(37).nextBytes(unencryptedData);
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    File reheaderedFile = Files.createTempFile("crypt4gh", ".reheadered").toFile();
+    encryptedFile.deleteOnExit();
+    reheaderedFile.deleteOnExit();
+    DataEditList dataEditList = new DataEditList(new long[] {1000, 70000});
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            new FileOutputStream(encryptedFile),
+            dataEditList,
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    byte[] expectedData = Arrays.copyOfRange(unencryptedData, 1000, 71000);
+    byte[] encryptedData = Files.readAllBytes(encryptedFile.toPath());
+    long bodyOffset = HeaderDescriptor.read(encryptedFile.toPath()).getBodyOffset();
+
+    long written =
+        crypt4GHUtils.setRecipients(
+            encryptedFile.toPath(),
+            reheaderedFile.toPath(),
+            readerKeyPair.getPrivate(),
+            List.of(anotherReaderKeyPair.getPublic(), yetAnotherReaderKeyPair.getPublic()));
+    assertEquals(reheaderedFile.length(), written);
+    HeaderDescriptor headerDescriptor = HeaderDescriptor.read(reheaderedFile.toPath());
+    assertEquals(4, headerDescriptor.getHeaderPacketCount());
+    byte[] reheaderedData = Files.readAllBytes(reheaderedFile.toPath());
+    assertArrayEquals(
+        Arrays.copyOfRange(encryptedData, (int) bodyOffset, encryptedData.length),
+        Arrays.copyOfRange(
+            reheaderedData, (int) headerDescriptor.getBodyOffset(), reheaderedData.length));
+    for (KeyPair keyPair : List.of(anotherReaderKeyPair, yetAnotherReaderKeyPair)) {
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(new FileInputStream(reheaderedFile), keyPair.getPrivate())) {
+        assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+      }
+    }
+    assertThrows(
+        GeneralSecurityException.class,
+        () ->
+            new Crypt4GHInputStream(
+                new FileInputStream(reheaderedFile), readerKeyPair.getPrivate()));
+
+    crypt4GHUtils.addRecipients(
+        encryptedFile.toPath(),
+        reheaderedFile.toPath(),
+        readerKeyPair.getPrivate(),
+        List.of(anotherReaderKeyPair.getPublic()));
+    for (KeyPair keyPair : List.of(readerKeyPair, anotherReaderKeyPair)) {
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(new FileInputStream(reheaderedFile), keyPair.getPrivate())) {
+        assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+      }
+    }
+
+    assertThrows(
+        GeneralSecurityException.class,
+        () ->
+            crypt4GHUtils.setRecipients(
+                encryptedFile.toPath(),
+                reheaderedFile.toPath(),
+                anotherReaderKeyPair.getPrivate(),
+                List.of(anotherReaderKeyPair.getPublic())));
+
+    // adding a recipient keeps the header packets of the recipients the key can't decrypt
+    KeyPair bystanderKeyPair = keyUtils.generateKeyPair();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            new FileOutputStream(encryptedFile),
+            dataEditList,
+            writerKeyPair.getPrivate(),
+            List.of(readerKeyPair.getPublic(), bystanderKeyPair.getPublic()))) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    crypt4GHUtils.addRecipients(
+        encryptedFile.toPath(),
+        reheaderedFile.toPath(),
+        readerKeyPair.getPrivate(),
+        List.of(anotherReaderKeyPair.getPublic()));
+    assertEquals(6, HeaderDescriptor.read(reheaderedFile.toPath()).getHeaderPacketCount());
+    for (KeyPair keyPair : List.of(readerKeyPair, bystanderKeyPair, anotherReaderKeyPair)) {
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(new FileInputStream(reheaderedFile), keyPair.getPrivate())) {
+        assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+      }
+    }
+
+    // a non-blocking output channel could make no progress, so it is rejected
+    Pipe pipe = Pipe.open();
+    try (FileChannel inputChannel = FileChannel.open(encryptedFile.toPath());
+        Pipe.SinkChannel sink = pipe.sink();
+        Pipe.SourceChannel source = pipe.source()) {
+      sink.configureBlocking(false);
+      assertThrows(
+          IllegalArgumentException.class,
+          () ->
+              crypt4GHUtils.addRecipients(
+                  inputChannel,
+                  sink,
+                  readerKeyPair.getPrivate(),
+                  List.of(anotherReaderKeyPair.getPublic())));
+    }
+  }
+
+  /**
+   * Tests that the bulk read paths (read into array, readNBytes and transferTo) return exactly the
+   * same data as reading one byte at a time. Their throughput is compared in {@code
+   * StreamBenchmark}.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void bulkReadTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[16 * 1024 * 1024 + 123];
+    new Random(42).nextBytes(unencryptedData);
+    byte[] encryptedData;
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      byte[] head = crypt4GHInputStream.readNBytes(1000);
+      byte[] buffer = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 17];
+      int count = crypt4GHInputStream.read(buffer);
+      ByteArrayOutputStream rest = new ByteArrayOutputStream();
+      crypt4GHInputStream.transferTo(rest);
+      assertEquals(-1, crypt4GHInputStream.read());
+      assertArrayEquals(Arrays.copyOfRange(unencryptedData, 0, 1000), head);
+      assertEquals(buffer.length, count);
+      assertArrayEquals(Arrays.copyOfRange(unencryptedData, 1000, 1000 + count), buffer);
+      assertArrayEquals(
+          Arrays.copyOfRange(unencryptedData, 1000 + count, unencryptedData.length),
+          rest.toByteArray());
+    }
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      byte[] byteByByte = new byte[unencryptedData.length];
+      int position = 0;
+      int b;
+      while ((b = crypt4GHInputStream.read()) != -1) {
+        byteByByte[position++] = (byte) b;
+      }
+      assertEquals(unencryptedData.length, position);
+      assertArrayEquals(unencryptedData, byteByByte);
+    }
+  }
+
+  /**
+   * Tests that mixing single-byte and bulk writes with calls to flush() in the middle of the stream
+   * produces full-sized segments, with only the final segment written on close being short.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void bulkWriteWithIntermediateFlushTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[5 * UNENCRYPTED_DATA_SEGMENT_SIZE + 1000];
+    new Random(7).nextBytes(unencryptedData);
+    int headerLength;
+    byte[] encryptedData;
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+        headerLength = crypt4GHOutputStream.getHeader().serialize().length;
+        crypt4GHOutputStream.write(unencryptedData[0]);
+        crypt4GHOutputStream.flush();
+        crypt4GHOutputStream.write(unencryptedData, 1, 100);
+        crypt4GHOutputStream.flush();
+        crypt4GHOutputStream.write(unencryptedData, 101, 3 * UNENCRYPTED_DATA_SEGMENT_SIZE);
+        crypt4GHOutputStream.flush();
+        int written = 101 + 3 * UNENCRYPTED_DATA_SEGMENT_SIZE;
+        crypt4GHOutputStream.write(unencryptedData, written, unencryptedData.length - written);
+        crypt4GHOutputStream.finish();
+        assertThrows(IOException.class, () -> crypt4GHOutputStream.write(0));
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+    int encryptedSegmentSize = UNENCRYPTED_DATA_SEGMENT_SIZE + 12 + 16;
+    assertEquals(headerLength + 5 * encryptedSegmentSize + 1000 + 12 + 16, encryptedData.length);
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+    }
+  }
+
+  /**
+   * Tests that a stream encrypted on several threads is written in order and can be decrypted, both
+   * when the stream creates its own thread pool and when it is given an executor, and that nothing
+   * is written after a segment fails or when the parallelism is invalid.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void parallelEncryptionTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[40 * UNENCRYPTED_DATA_SEGMENT_SIZE + 777];
+    new Random(11).nextBytes(unencryptedData);
+    byte[] encryptedData;
+    int headerLength;
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (ParallelCrypt4GHOutputStream crypt4GHOutputStream =
+          new ParallelCrypt4GHOutputStream(
+              byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic(), 4)) {
+        headerLength = crypt4GHOutputStream.getHeader().serialize().length;
+        for (int off = 0; off < unencryptedData.length; off += 10000) {
+          crypt4GHOutputStream.write(
+              unencryptedData, off, Math.min(10000, unencryptedData.length - off));
+        }
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+    int encryptedSegmentSize = UNENCRYPTED_DATA_SEGMENT_SIZE + 12 + 16;
+    assertEquals(headerLength + 40 * encryptedSegmentSize + 777 + 12 + 16, encryptedData.length);
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+        try (ParallelCrypt4GHOutputStream crypt4GHOutputStream =
+            new ParallelCrypt4GHOutputStream(
+                byteArrayOutputStream,
+                writerKeyPair.getPrivate(),
+                readerKeyPair.getPublic(),
+                executor,
+                2)) {
+          crypt4GHOutputStream.write(unencryptedData);
+          crypt4GHOutputStream.flush();
+          crypt4GHOutputStream.write(unencryptedData, 0, 5);
+        }
+        encryptedData = byteArrayOutputStream.toByteArray();
+      }
+      assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdown();
+    }
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      byte[] expectedData = Arrays.copyOf(unencryptedData, unencryptedData.length + 5);
+      System.arraycopy(unencryptedData, 0, expectedData, unencryptedData.length, 5);
+      assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+    }
+
+    // an invalid parallelism is rejected before the header is written
+    ByteArrayOutputStream untouched = new ByteArrayOutputStream();
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new ParallelCrypt4GHOutputStream(
+                untouched, writerKeyPair.getPrivate(), readerKeyPair.getPublic(), 0));
+    assertEquals(0, untouched.size());
+
+    // once a segment fails, nothing more is written, so the stream is never completed without it
+    AtomicInteger submitted = new AtomicInteger();
+    ExecutorService failingExecutor =
+        new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+          @Override
+          protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            if (submitted.incrementAndGet() == 2) {
+              return super.newTaskFor(
+                  () -> {
+                    throw new GeneralSecurityException("Segment encryption failed");
+                  });
+            }
+            return super.newTaskFor(callable);
+          }
+        };
+    ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    try {
+      ParallelCrypt4GHOutputStream crypt4GHOutputStream =
+          new ParallelCrypt4GHOutputStream(
+              partial, writerKeyPair.getPrivate(), readerKeyPair.getPublic(), failingExecutor, 8);
+      headerLength = partial.size();
+      crypt4GHOutputStream.write(unencryptedData, 0, 4 * UNENCRYPTED_DATA_SEGMENT_SIZE);
+      RuntimeException failure = assertThrows(RuntimeException.class, crypt4GHOutputStream::flush);
+      assertTrue(failure.getCause() instanceof GeneralSecurityException);
+      assertThrows(IOException.class, crypt4GHOutputStream::flush);
+      assertThrows(IOException.class, () -> crypt4GHOutputStream.write(1));
+      assertThrows(IOException.class, () -> crypt4GHOutputStream.write(unencryptedData));
+      assertThrows(IOException.class, crypt4GHOutputStream::finish);
+      assertThrows(IOException.class, crypt4GHOutputStream::close);
+    } finally {
+      failingExecutor.shutdown();
+    }
+    assertEquals(headerLength + encryptedSegmentSize, partial.size());
+  }
+
+  /**
+   * Tests that a stream decrypted with read-ahead on several threads gives the same result as the
+   * sequential stream, also when skipping, applying a Data Edit List and closing the stream early.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void parallelDecryptionTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[30 * UNENCRYPTED_DATA_SEGMENT_SIZE + 4321];
+    new Random(13).nextBytes(unencryptedData);
+    byte[] encryptedData;
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+
+    try (ParallelCrypt4GHInputStream crypt4GHInputStream =
+        new ParallelCrypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate(), 3)) {
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+      assertEquals(-1, crypt4GHInputStream.read());
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      try (ParallelCrypt4GHInputStream crypt4GHInputStream =
+          new ParallelCrypt4GHInputStream(
+              new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate(), executor, 4)) {
+        assertEquals(unencryptedData[0], (byte) crypt4GHInputStream.read());
+        long toSkip = 3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 100;
+        assertEquals(toSkip, crypt4GHInputStream.skip(toSkip));
+        int position = (int) toSkip + 1;
+        assertArrayEquals(
+            Arrays.copyOfRange(unencryptedData, position, position + 1000),
+            crypt4GHInputStream.readNBytes(1000));
+      }
+      assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdown();
+    }
+
+    DataEditList dataEditList = new DataEditList(new long[] {70000, 100000, 300000});
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              byteArrayOutputStream,
+              dataEditList,
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+    try (ParallelCrypt4GHInputStream crypt4GHInputStream =
+        new ParallelCrypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate(), 2)) {
+      byte[] expectedData = new byte[100000 + unencryptedData.length - 470000];
+      System.arraycopy(unencryptedData, 70000, expectedData, 0, 100000);
+      System.arraycopy(unencryptedData, 470000, expectedData, 100000, expectedData.length - 100000);
+      assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+    }
+  }
+
+  /**
+   * Tests random access to an encrypted file through Crypt4GHSeekableByteChannel, comparing reads
+   * at arbitrary positions (including across segment boundaries and at the end) with the original
+   * data.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void seekableByteChannelTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[20 * UNENCRYPTED_DATA_SEGMENT_SIZE + 2022];
+    new Random(17).nextBytes(unencryptedData);
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    encryptedFile.deleteOnExit();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            new FileOutputStream(encryptedFile),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+
+    try (Crypt4GHSeekableByteChannel channel =
+        new Crypt4GHSeekableByteChannel(encryptedFile.toPath(), readerKeyPair.getPrivate())) {
+      assertEquals(unencryptedData.length, channel.size());
+      Random random = new Random(19);
+      for (int i = 0; i < 50; i++) {
+        int position = random.nextInt(unencryptedData.length);
+        int length = random.nextInt(3 * UNENCRYPTED_DATA_SEGMENT_SIZE);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        int expectedLength = Math.min(length, unencryptedData.length - position);
+        assertEquals(expectedLength, Math.max(0, channel.read(byteBuffer)));
+        assertEquals(position + expectedLength, channel.position());
+        assertArrayEquals(
+            Arrays.copyOfRange(unencryptedData, position, position + expectedLength),
+            Arrays.copyOf(byteBuffer.array(), expectedLength));
+      }
+      channel.position(unencryptedData.length);
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+      channel.position(0);
+      InputStream inputStream = Channels.newInputStream(channel);
+      assertArrayEquals(unencryptedData, inputStream.readAllBytes());
+      assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+    }
+  }
+
+  /**
+   * Tests memory-mapped file encryption and decryption on several threads, including a file large
+   * enough to be split across threads, an empty file and a file with a Data Edit List.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void fileCryptorTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    Crypt4GHFileCryptor fileCryptor = new Crypt4GHFileCryptor(3);
+
+    int segments = 2 * Crypt4GHFileCryptor.WINDOW_SEGMENTS + 10;
+    byte[] unencryptedData = new byte[segments * UNENCRYPTED_DATA_SEGMENT_SIZE + 5555];
+    new Random(23).nextBytes(unencryptedData);
+    for (byte[] data : List.of(unencryptedData, new byte[0])) {
+      File unencryptedFile = Files.createTempFile("crypt4gh", ".raw").toFile();
+      File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+      File decryptedFile = Files.createTempFile("crypt4gh", ".dec").toFile();
+      try {
+        FileUtils.writeByteArrayToFile(unencryptedFile, data);
+        long encryptedSize =
+            fileCryptor.encrypt(
+                unencryptedFile.toPath(),
+                encryptedFile.toPath(),
+                writerKeyPair.getPrivate(),
+                readerKeyPair.getPublic());
+        assertEquals(encryptedFile.length(), encryptedSize);
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new FileInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+          assertArrayEquals(data, crypt4GHInputStream.readAllBytes());
+        }
+        assertEquals(
+            data.length,
+            fileCryptor.decrypt(
+                encryptedFile.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate()));
+        assertArrayEquals(data, FileUtils.readFileToByteArray(decryptedFile));
+      } finally {
+        unencryptedFile.delete();
+        encryptedFile.delete();
+        decryptedFile.delete();
+      }
+    }
+
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    File decryptedFile = Files.createTempFile("crypt4gh", ".dec").toFile();
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile),
+              new DataEditList(new long[] {10, 20}),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData, 0, 100000);
+      }
+      assertEquals(
+          20,
+          fileCryptor.decrypt(
+              encryptedFile.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate()));
+      assertArrayEquals(
+          Arrays.copyOfRange(unencryptedData, 10, 30),
+          FileUtils.readFileToByteArray(decryptedFile));
+    } finally {
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests asynchronous file encryption and decryption with a few segments in flight, including an
+   * empty file, a file with a Data Edit List, a header larger than the first read, several files at
+   * once and files that can't be decrypted.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void asyncFileCryptorTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Crypt4GHAsyncFileCryptor fileCryptor = new Crypt4GHAsyncFileCryptor(executor, 3);
+      byte[] unencryptedData = new byte[10 * UNENCRYPTED_DATA_SEGMENT_SIZE + 777];
+      new Random(29).nextBytes(unencryptedData);
+      for (byte[] data : List.of(unencryptedData, new byte[0])) {
+        File unencryptedFile = Files.createTempFile("crypt4gh", ".raw").toFile();
+        File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+        File decryptedFile = Files.createTempFile("crypt4gh", ".dec").toFile();
+        try {
+          FileUtils.writeByteArrayToFile(unencryptedFile, data);
+          long encryptedSize =
+              fileCryptor
+                  .encrypt(
+                      unencryptedFile.toPath(),
+                      encryptedFile.toPath(),
+                      writerKeyPair.getPrivate(),
+                      readerKeyPair.getPublic())
+                  .get();
+          assertEquals(encryptedFile.length(), encryptedSize);
+          try (Crypt4GHInputStream crypt4GHInputStream =
+              new Crypt4GHInputStream(
+                  new FileInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+            assertArrayEquals(data, crypt4GHInputStream.readAllBytes());
+          }
+          long decryptedSize =
+              fileCryptor
+                  .decrypt(
+                      encryptedFile.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate())
+                  .get();
+          assertEquals(data.length, decryptedSize);
+          assertArrayEquals(data, FileUtils.readFileToByteArray(decryptedFile));
+        } finally {
+          unencryptedFile.delete();
+          encryptedFile.delete();
+          decryptedFile.delete();
+        }
+      }
+
+      // a Data Edit List with ranges across segment boundaries and segments that are skipped
+      File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+      File decryptedFile = Files.createTempFile("crypt4gh", ".dec").toFile();
+      try {
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            new Crypt4GHOutputStream(
+                new FileOutputStream(encryptedFile),
+                new DataEditList(new long[] {10, 70000, 300000, 20, 5}),
+                writerKeyPair.getPrivate(),
+                readerKeyPair.getPublic())) {
+          crypt4GHOutputStream.write(unencryptedData);
+        }
+        byte[] expectedData;
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new FileInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+          expectedData = crypt4GHInputStream.readAllBytes();
+        }
+        assertEquals(70000 + 20 + unencryptedData.length - 370035, expectedData.length);
+        long decryptedSize =
+            fileCryptor
+                .decrypt(encryptedFile.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate())
+                .get();
+        assertEquals(expectedData.length, decryptedSize);
+        assertArrayEquals(expectedData, FileUtils.readFileToByteArray(decryptedFile));
+
+        ExecutionException exception =
+            assertThrows(
+                ExecutionException.class,
+                () ->
+                    fileCryptor
+                        .decrypt(
+                            encryptedFile.toPath(),
+                            decryptedFile.toPath(),
+                            writerKeyPair.getPrivate())
+                        .get());
+        assertTrue(exception.getCause() instanceof GeneralSecurityException);
+
+        // a header larger than the first read, with the reader's packet at the end
+        List<PublicKey> readerPublicKeys = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+          readerPublicKeys.add(keyUtils.generateKeyPair().getPublic());
+        }
+        readerPublicKeys.add(readerKeyPair.getPublic());
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            new Crypt4GHOutputStream(
+                new FileOutputStream(encryptedFile),
+                writerKeyPair.getPrivate(),
+                readerPublicKeys)) {
+          crypt4GHOutputStream.write(unencryptedData);
+        }
+        assertTrue(
+            HeaderDescriptor.read(encryptedFile.toPath()).getHeaderLength()
+                > Crypt4GHAsyncFileCryptor.INITIAL_HEADER_READ_SIZE);
+        fileCryptor
+            .decrypt(encryptedFile.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate())
+            .get();
+        assertArrayEquals(unencryptedData, FileUtils.readFileToByteArray(decryptedFile));
+
+        // a header packet length above the maximum header size fails without reading that much
+        ByteBuffer hugeHeader =
+            ByteBuffer.allocate(2 * Crypt4GHAsyncFileCryptor.INITIAL_HEADER_READ_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        hugeHeader.put(Header.MAGIC_WORD.getBytes()).putInt(Header.VERSION).putInt(2);
+        hugeHeader.putInt(100).putInt(0).position(16 + 100);
+        hugeHeader.putInt(64 * 1024 * 1024).putInt(0);
+        FileUtils.writeByteArrayToFile(encryptedFile, hugeHeader.array());
+        exception =
+            assertThrows(
+                ExecutionException.class,
+                () ->
+                    fileCryptor
+                        .decrypt(
+                            encryptedFile.toPath(),
+                            decryptedFile.toPath(),
+                            readerKeyPair.getPrivate())
+                        .get());
+        assertTrue(exception.getCause() instanceof GeneralSecurityException);
+      } finally {
+        encryptedFile.delete();
+        decryptedFile.delete();
+      }
+
+      // several files at once
+      List<File> files = new ArrayList<>();
+      try {
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+          File unencryptedFile = Files.createTempFile("crypt4gh", ".raw").toFile();
+          File file = Files.createTempFile("crypt4gh", ".enc").toFile();
+          files.add(unencryptedFile);
+          files.add(file);
+          FileUtils.writeByteArrayToFile(
+              unencryptedFile, Arrays.copyOf(unencryptedData, i * 100000));
+          futures.add(
+              fileCryptor.encrypt(
+                  unencryptedFile.toPath(),
+                  file.toPath(),
+                  writerKeyPair.getPrivate(),
+                  readerKeyPair.getPublic()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        for (int i = 0; i < 8; i++) {
+          try (Crypt4GHInputStream crypt4GHInputStream =
+              new Crypt4GHInputStream(
+                  new FileInputStream(files.get(2 * i + 1)), readerKeyPair.getPrivate())) {
+            assertArrayEquals(
+                Arrays.copyOf(unencryptedData, i * 100000), crypt4GHInputStream.readAllBytes());
+          }
+        }
+      } finally {
+        files.forEach(File::delete);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests encryption through Crypt4GHWritableByteChannel and decryption through
+   * Crypt4GHReadableByteChannel with heap and direct buffers of different sizes, and that the
+   * channels are compatible with the streams.
+   *
+   * @throws Exception In case something fails.
+   */
+  /**
+   * Tests verifying files without decrypting them, with intact files, files with damaged segments
+   * in several ranges and a truncated file.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void verifierTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    Crypt4GHFileCryptor fileCryptor = new Crypt4GHFileCryptor(3);
+
+    int segments = Crypt4GHFileCryptor.WINDOW_SEGMENTS + 20;
+    byte[] unencryptedData = new byte[segments * UNENCRYPTED_DATA_SEGMENT_SIZE - 100];
+    new Random(37).nextBytes(unencryptedData);
+    File unencryptedFile = Files.createTempFile("crypt4gh", ".raw").toFile();
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    try {
+      FileUtils.writeByteArrayToFile(unencryptedFile, new byte[0]);
+      fileCryptor.encrypt(
+          unencryptedFile.toPath(),
+          encryptedFile.toPath(),
+          writerKeyPair.getPrivate(),
+          readerKeyPair.getPublic());
+      Crypt4GHFileCryptor.VerificationResult result =
+          fileCryptor.verify(encryptedFile.toPath(), readerKeyPair.getPrivate());
+      assertTrue(result.isValid());
+      assertEquals(1, result.getSegments());
+
+      FileUtils.writeByteArrayToFile(unencryptedFile, unencryptedData);
+      fileCryptor.encrypt(
+          unencryptedFile.toPath(),
+          encryptedFile.toPath(),
+          writerKeyPair.getPrivate(),
+          readerKeyPair.getPublic());
+      result = fileCryptor.verify(encryptedFile.toPath(), readerKeyPair.getPrivate());
+      assertTrue(result.isValid());
+      assertEquals(segments, result.getSegments());
+      assertEquals(-1, result.getFirstBadSegment());
+      assertEquals(-1, result.getFirstBadSegmentOffset());
+      assertThrows(
+          GeneralSecurityException.class,
+          () -> fileCryptor.verify(encryptedFile.toPath(), writerKeyPair.getPrivate()));
+
+      byte[] encryptedData = FileUtils.readFileToByteArray(encryptedFile);
+      long headerLength = HeaderDescriptor.read(encryptedFile.toPath()).getHeaderLength();
+      int badSegment = Crypt4GHFileCryptor.WINDOW_SEGMENTS + 5;
+      encryptedData[(int) (headerLength + badSegment * 65564L + 1000)] ^= 1;
+      FileUtils.writeByteArrayToFile(encryptedFile, encryptedData);
+      result = fileCryptor.verify(encryptedFile.toPath(), readerKeyPair.getPrivate());
+      assertFalse(result.isValid());
+      assertEquals(badSegment, result.getFirstBadSegment());
+      assertEquals(headerLength + badSegment * 65564L, result.getFirstBadSegmentOffset());
+
+      encryptedData[(int) (headerLength + 3 * 65564L + 65563)] ^= 1;
+      FileUtils.writeByteArrayToFile(encryptedFile, encryptedData);
+      result = fileCryptor.verify(encryptedFile.toPath(), readerKeyPair.getPrivate());
+      assertEquals(3, result.getFirstBadSegment());
+      assertEquals(headerLength + 3 * 65564L, result.getFirstBadSegmentOffset());
+
+      encryptedData[(int) (headerLength + 3 * 65564L + 65563)] ^= 1;
+      encryptedData[(int) (headerLength + badSegment * 65564L + 1000)] ^= 1;
+      long lastSegmentOffset = headerLength + (segments - 1) * 65564L;
+      FileUtils.writeByteArrayToFile(
+          encryptedFile, Arrays.copyOf(encryptedData, (int) lastSegmentOffset + 20));
+      result = fileCryptor.verify(encryptedFile.toPath(), readerKeyPair.getPrivate());
+      assertEquals(segments - 1, result.getFirstBadSegment());
+      assertEquals(lastSegmentOffset, result.getFirstBadSegmentOffset());
+    } finally {
+      unencryptedFile.delete();
+      encryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests encrypting, decrypting and verifying from a named pipe, which can't be mapped and is read
+   * through the streams instead.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void fileCryptorPipeTest() throws Exception {
+    File directory = Files.createTempDirectory("crypt4gh").toFile();
+    File pipe = new File(directory, "pipe");
+    try {
+      assumeTrue(
+          new ProcessBuilder("mkfifo", pipe.getAbsolutePath()).start().waitFor() == 0,
+          "Named pipes are not supported");
+    } catch (IOException e) {
+      assumeTrue(false, "Named pipes are not supported");
+    }
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    Crypt4GHFileCryptor fileCryptor = new Crypt4GHFileCryptor(3);
+
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 777];
+    new Random(41).nextBytes(unencryptedData);
+    File encryptedFile = new File(directory, "data.enc");
+    File decryptedFile = new File(directory, "data.dec");
+    try {
+      CompletableFuture<Void> writer =
+          CompletableFuture.runAsync(() -> writeToPipe(pipe, unencryptedData));
+      long encryptedSize =
+          fileCryptor.encrypt(
+              pipe.toPath(),
+              encryptedFile.toPath(),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic());
+      writer.get();
+      assertEquals(encryptedFile.length(), encryptedSize);
+      byte[] encryptedData = FileUtils.readFileToByteArray(encryptedFile);
+
+      writer = CompletableFuture.runAsync(() -> writeToPipe(pipe, encryptedData));
+      assertEquals(
+          unencryptedData.length,
+          fileCryptor.decrypt(pipe.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate()));
+      writer.get();
+      assertArrayEquals(unencryptedData, FileUtils.readFileToByteArray(decryptedFile));
+
+      writer = CompletableFuture.runAsync(() -> writeToPipe(pipe, encryptedData));
+      Crypt4GHFileCryptor.VerificationResult result =
+          fileCryptor.verify(pipe.toPath(), readerKeyPair.getPrivate());
+      writer.get();
+      assertTrue(result.isValid());
+      assertEquals(4, result.getSegments());
+
+      long headerLength = HeaderDescriptor.read(encryptedFile.toPath()).getHeaderLength();
+      encryptedData[(int) (headerLength + 2 * 65564L + 100)] ^= 1;
+      writer = CompletableFuture.runAsync(() -> writeToPipe(pipe, encryptedData));
+      result = fileCryptor.verify(pipe.toPath(), readerKeyPair.getPrivate());
+      writer.get();
+      assertEquals(4, result.getSegments());
+      assertEquals(2, result.getFirstBadSegment());
+      assertEquals(headerLength + 2 * 65564L, result.getFirstBadSegmentOffset());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  /**
+   * Writes data to a named pipe, blocking until it has been opened for reading.
+   *
+   * @param pipe the named pipe
+   * @param data the data to write
+   */
+  private static void writeToPipe(File pipe, byte[] data) {
+    try (OutputStream outputStream = new FileOutputStream(pipe)) {
+      outputStream.write(data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Tests writing through Crypt4GHWritableByteChannel with chunks of various sizes and reading the
+   * result back through Crypt4GHInputStream and Crypt4GHReadableByteChannel, which also applies a
+   * Data Edit List from the header.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void byteChannelTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[7 * UNENCRYPTED_DATA_SEGMENT_SIZE + 999];
+    new Random(29).nextBytes(unencryptedData);
+    byte[] encryptedData;
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHWritableByteChannel channel =
+          new Crypt4GHWritableByteChannel(
+              Channels.newChannel(byteArrayOutputStream),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        int[] chunkSizes = {1, 1000, 2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 5, 77};
+        int off = 0;
+        for (int i = 0; off < unencryptedData.length; i++) {
+          int length = Math.min(chunkSizes[i % chunkSizes.length], unencryptedData.length - off);
+          ByteBuffer src = ByteBuffer.allocateDirect(length).put(unencryptedData, off, length);
+          assertEquals(length, channel.write(src.flip()));
+          off += length;
+        }
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+    }
+
+    for (int bufferSize : new int[] {1000, 3 * UNENCRYPTED_DATA_SEGMENT_SIZE}) {
+      try (Crypt4GHReadableByteChannel channel =
+          new Crypt4GHReadableByteChannel(
+              Channels.newChannel(new ByteArrayInputStream(encryptedData)),
+              readerKeyPair.getPrivate())) {
+        ByteArrayOutputStream decryptedData = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocateDirect(bufferSize);
+        while (channel.read(dst) != -1) {
+          dst.flip();
+          byte[] chunk = new byte[dst.remaining()];
+          dst.get(chunk);
+          decryptedData.write(chunk);
+          dst.clear();
+        }
+        assertArrayEquals(unencryptedData, decryptedData.toByteArray());
+      }
+    }
+
+    // the Data Edit List in the header is applied, skipping the segments that are not kept
+    DataEditList dataEditList =
+        new DataEditList(new long[] {1000, 70000, 3 * UNENCRYPTED_DATA_SEGMENT_SIZE, 500});
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              byteArrayOutputStream,
+              dataEditList,
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      encryptedData = byteArrayOutputStream.toByteArray();
+    }
+    byte[] keptData;
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      keptData = crypt4GHInputStream.readAllBytes();
+    }
+    int secondRangeStart = 71000 + 3 * UNENCRYPTED_DATA_SEGMENT_SIZE;
+    assertArrayEquals(
+        ArrayUtils.addAll(
+            Arrays.copyOfRange(unencryptedData, 1000, 71000),
+            Arrays.copyOfRange(unencryptedData, secondRangeStart, secondRangeStart + 500)),
+        keptData);
+    for (int bufferSize : new int[] {1000, 3 * UNENCRYPTED_DATA_SEGMENT_SIZE}) {
+      try (Crypt4GHReadableByteChannel channel =
+          new Crypt4GHReadableByteChannel(
+              Channels.newChannel(new ByteArrayInputStream(encryptedData)),
+              readerKeyPair.getPrivate())) {
+        ByteArrayOutputStream decryptedData = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(bufferSize);
+        while (channel.read(dst) != -1) {
+          decryptedData.write(dst.array(), 0, dst.position());
+          dst.clear();
+        }
+        assertArrayEquals(keptData, decryptedData.toByteArray());
+      }
+    }
+  }
+
+  /**
+   * Tests reading through a Data Edit List that keeps a few small ranges of a large stream, mixing
+   * reads and skips, and checks that the encrypted segments lying entirely within the excluded
+   * ranges are skipped rather than read from the underlying stream.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void dataEditListSegmentSkippingTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[200 * UNENCRYPTED_DATA_SEGMENT_SIZE + 77];
+    new Random(41).nextBytes(unencryptedData);
+    long[] lengths = {
+      150L * UNENCRYPTED_DATA_SEGMENT_SIZE + 100, 1000, 10L * UNENCRYPTED_DATA_SEGMENT_SIZE, 500
+    };
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream,
+            new DataEditList(lengths),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    byte[] encryptedData = byteArrayOutputStream.toByteArray();
+    int firstRangeStart = (int) lengths[0];
+    int secondRangeStart = (int) (lengths[0] + lengths[1] + lengths[2]);
+    byte[] expectedData = new byte[1500];
+    System.arraycopy(unencryptedData, firstRangeStart, expectedData, 0, 1000);
+    System.arraycopy(unencryptedData, secondRangeStart, expectedData, 1000, 500);
+
+    long[] bytesRead = new long[1];
+    InputStream countingInputStream =
+        new ByteArrayInputStream(encryptedData) {
+          @Override
+          public synchronized int read(byte[] b, int off, int len) {
+            int count = super.read(b, off, len);
+            bytesRead[0] += Math.max(count, 0);
+            return count;
+          }
+        };
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(countingInputStream, readerKeyPair.getPrivate())) {
+      assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+      assertEquals(-1, crypt4GHInputStream.read());
+    }
+    assertTrue(
+        bytesRead[0] < 4 * 65564, "Read " + bytesRead[0] + " bytes of the underlying stream");
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertEquals(expectedData[0], (byte) crypt4GHInputStream.read());
+      assertEquals(998, crypt4GHInputStream.skip(998));
+      assertEquals(expectedData[999], (byte) crypt4GHInputStream.read());
+      assertEquals(expectedData[1000], (byte) crypt4GHInputStream.read());
+      assertEquals(100, crypt4GHInputStream.skip(100));
+      assertArrayEquals(
+          Arrays.copyOfRange(expectedData, 1101, 1500), crypt4GHInputStream.readNBytes(1000));
+      assertEquals(0, crypt4GHInputStream.skip(10));
+    }
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertEquals(1200, crypt4GHInputStream.skip(1200));
+      assertArrayEquals(
+          Arrays.copyOfRange(expectedData, 1200, 1500), crypt4GHInputStream.readAllBytes());
+    }
+  }
+
+  /**
+   * Tests reading plaintext ranges through Crypt4GHRangeInputStream, both from a channel and with
+   * a range fetcher, including empty ranges, ranges across segment boundaries and ranges beyond
+   * the end of the data.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void rangeInputStreamTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[10 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new Random(43).nextBytes(unencryptedData);
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    encryptedFile.deleteOnExit();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            new FileOutputStream(encryptedFile),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    byte[] encryptedData = Files.readAllBytes(encryptedFile.toPath());
+    long[] bytesFetched = new long[1];
+    Crypt4GHRangeInputStream.RangeFetcher rangeFetcher =
+        (offset, length) -> {
+          int from = (int) Math.min(offset, encryptedData.length);
+          int to = (int) Math.min(offset + length, encryptedData.length);
+          bytesFetched[0] += to - from;
+          return new ByteArrayInputStream(encryptedData, from, to - from);
+        };
+
+    int size = unencryptedData.length;
+    long[][] ranges = {
+      {0, 0},
+      {0, 10},
+      {UNENCRYPTED_DATA_SEGMENT_SIZE - 6, UNENCRYPTED_DATA_SEGMENT_SIZE + 70},
+      {3 * UNENCRYPTED_DATA_SEGMENT_SIZE, 4 * UNENCRYPTED_DATA_SEGMENT_SIZE},
+      {size - 10, size},
+      {size - 5, size + 100},
+      {size + 10, size + 20},
+      {0, size}
+    };
+    for (long[] range : ranges) {
+      int start = (int) Math.min(range[0], size);
+      int end = (int) Math.min(range[1], size);
+      byte[] expectedData = Arrays.copyOfRange(unencryptedData, start, end);
+      try (Crypt4GHRangeInputStream rangeInputStream =
+          new Crypt4GHRangeInputStream(
+              Files.newByteChannel(encryptedFile.toPath()),
+              readerKeyPair.getPrivate(),
+              range[0],
+              range[1])) {
+        assertArrayEquals(expectedData, rangeInputStream.readAllBytes());
+        assertEquals(-1, rangeInputStream.read());
+      }
+      bytesFetched[0] = 0;
+      try (Crypt4GHRangeInputStream rangeInputStream =
+          new Crypt4GHRangeInputStream(
+              rangeFetcher, readerKeyPair.getPrivate(), range[0], range[1])) {
+        assertArrayEquals(expectedData, rangeInputStream.readAllBytes());
+      }
+      long firstSegment = range[0] / UNENCRYPTED_DATA_SEGMENT_SIZE;
+      long lastSegment = (range[1] - 1) / UNENCRYPTED_DATA_SEGMENT_SIZE;
+      long segments = range[1] > range[0] ? lastSegment - firstSegment + 1 : 0;
+      assertTrue(
+          bytesFetched[0] <= Crypt4GHRangeInputStream.HEADER_FETCH_SIZE + segments * 65564,
+          "Fetched " + bytesFetched[0] + " bytes for " + segments + " segments");
+    }
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new Crypt4GHRangeInputStream(rangeFetcher, readerKeyPair.getPrivate(), 10, 5));
+  }
+
+  /**
+   * Tests reading the framing of a header with HeaderDescriptor without any key, and decrypting the
+   * header packets lazily afterwards, or when a header that is still encrypted is serialized.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void headerDescriptorTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 10];
+    new Random(31).nextBytes(unencryptedData);
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    encryptedFile.deleteOnExit();
+    DataEditList dataEditList = new DataEditList(new long[] {100, 200});
+    Header header;
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            new FileOutputStream(encryptedFile),
+            dataEditList,
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+      header = crypt4GHOutputStream.getHeader();
+    }
+
+    HeaderDescriptor headerDescriptor = HeaderDescriptor.read(encryptedFile.toPath());
+    assertEquals(Header.VERSION, headerDescriptor.getVersion());
+    assertEquals(2, headerDescriptor.getHeaderPacketCount());
+    assertEquals(header.serialize().length, headerDescriptor.getHeaderLength());
+    assertEquals(
+        Header.UNENCRYPTED_HEADER_LENGTH,
+        headerDescriptor.getPacketDescriptors().get(0).getOffset());
+    assertEquals(
+        encryptedFile.length(),
+        headerDescriptor.getBodyOffset() + 2 * 65564 + (10 + 28),
+        "Body offset does not match the file layout");
+
+    Header lazyHeader = new Header(headerDescriptor, readerKeyPair.getPrivate());
+    assertEquals(1, lazyHeader.getDataEncryptionParametersList().size());
+    assertArrayEquals(
+        dataEditList.getLengths(), lazyHeader.getDataEditList().orElseThrow().getLengths());
+
+    ByteArrayOutputStream serializedHeader = new ByteArrayOutputStream();
+    try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(serializedHeader)) {
+      objectOutputStream.writeObject(new Header(headerDescriptor, readerKeyPair.getPrivate()));
+    }
+    Header deserializedHeader;
+    try (ObjectInputStream objectInputStream =
+        new ObjectInputStream(new ByteArrayInputStream(serializedHeader.toByteArray()))) {
+      deserializedHeader = (Header) objectInputStream.readObject();
+    }
+    assertTrue(deserializedHeader.getHeaderDescriptor().isEmpty());
+    assertEquals(1, deserializedHeader.getDataEncryptionParametersList().size());
+    assertArrayEquals(
+        dataEditList.getLengths(),
+        deserializedHeader.getDataEditList().orElseThrow().getLengths());
+
+    Header otherRecipientHeader = new Header(headerDescriptor, writerKeyPair.getPrivate());
+    assertTrue(otherRecipientHeader.getHeaderPackets().isEmpty());
+    assertThrows(
+        GeneralSecurityException.class,
+        otherRecipientHeader::getDataEncryptionParametersList);
+
+    byte[] notCrypt4GH = "definitely not crypt4gh".getBytes();
+    assertThrows(
+        GeneralSecurityException.class,
+        () -> HeaderDescriptor.read(new ByteArrayInputStream(notCrypt4GH)));
+    byte[] truncated = Arrays.copyOf(header.serialize(), 40);
+    assertThrows(
+        EOFException.class, () -> HeaderDescriptor.read(new ByteArrayInputStream(truncated)));
+    byte[] hugePacketCount = Arrays.copyOf(header.serialize(), Header.UNENCRYPTED_HEADER_LENGTH);
+    ByteBuffer.wrap(hugePacketCount).order(ByteOrder.LITTLE_ENDIAN).putInt(12, Integer.MAX_VALUE);
+    assertThrows(
+        EOFException.class,
+        () -> HeaderDescriptor.read(new ByteArrayInputStream(hugePacketCount)));
+  }
+
+  /**
+   * Tests encryption for several recipients at once: every recipient can decrypt the file and
+   * gets the same Data Edit List, while the body is encrypted only once.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void multipleRecipientsTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    List<KeyPair> readerKeyPairs =
+        List.of(keyUtils.generateKeyPair(), keyUtils.generateKeyPair(), keyUtils.generateKeyPair());
+    List<PublicKey> readerPublicKeys =
+        readerKeyPairs.stream().map(KeyPair::getPublic).collect(Collectors.toList());
+
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 17];
+    new Random(37).nextBytes(unencryptedData);
+    DataEditList dataEditList = new DataEditList(new long[] {1000, 70000, 500});
+
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        Crypt4GHOutputStream.builder()
+            .writerPrivateKey(writerKeyPair.getPrivate())
+            .readerPublicKeys(readerPublicKeys)
+            .dataEditList(dataEditList)
+            .build(encrypted)) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    byte[] encryptedData = encrypted.toByteArray();
+
+    HeaderDescriptor headerDescriptor =
+        HeaderDescriptor.read(new ByteArrayInputStream(encryptedData));
+    assertEquals(2 * readerKeyPairs.size(), headerDescriptor.getHeaderPacketCount());
+    assertEquals(
+        encryptedData.length,
+        headerDescriptor.getBodyOffset() + 3 * 65564 + (17 + 28),
+        "The body should be encrypted exactly once");
+
+    byte[] expectedData =
+        ArrayUtils.addAll(
+            Arrays.copyOfRange(unencryptedData, 1000, 71000),
+            Arrays.copyOfRange(unencryptedData, 71500, unencryptedData.length));
+    for (KeyPair readerKeyPair : readerKeyPairs) {
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(
+              new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+        assertEquals(1, crypt4GHInputStream.getHeader().getDataEncryptionParametersList().size());
+        assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+      }
+    }
+    assertThrows(
+        GeneralSecurityException.class,
+        () ->
+            new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData), writerKeyPair.getPrivate()));
+
+    // the collection constructor without a Data Edit List
+    encrypted.reset();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(encrypted, writerKeyPair.getPrivate(), readerPublicKeys)) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encrypted.toByteArray()),
+            readerKeyPairs.get(2).getPrivate())) {
+      assertEquals(1, crypt4GHInputStream.getHeader().getHeaderPackets().size());
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+    }
+
+    Crypt4GHOutputStream.Builder withoutRecipients =
+        Crypt4GHOutputStream.builder().writerPrivateKey(writerKeyPair.getPrivate());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> withoutRecipients.build(OutputStream.nullOutputStream()));
+    Crypt4GHOutputStream.Builder withoutWriter =
+        Crypt4GHOutputStream.builder().readerPublicKeys(readerPublicKeys);
+    assertThrows(
+        IllegalArgumentException.class, () -> withoutWriter.build(OutputStream.nullOutputStream()));
+  }
+
+  /**
+   * Tests the digests computed inline while writing and reading a Crypt4GH stream: the ciphertext
+   * digests match the encrypted file and the plaintext digests match the original data, also when
+   * the stream is read through a Data Edit List or skipped over, and they are left incomplete when
+   * the stream is closed before the end.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void inlineDigestsTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 4321];
+    new Random(41).nextBytes(unencryptedData);
+    String plaintextSha256 = hex(MessageDigest.getInstance("SHA-256").digest(unencryptedData));
+    String plaintextMd5 = hex(MessageDigest.getInstance("MD5").digest(unencryptedData));
+
+    Crypt4GHDigests writeDigests = new Crypt4GHDigests();
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        Crypt4GHOutputStream.builder()
+            .writerPrivateKey(writerKeyPair.getPrivate())
+            .readerPublicKey(readerKeyPair.getPublic())
+            .dataEditList(new DataEditList(new long[] {100, 70000}))
+            .digests(writeDigests)
+            .build(encrypted)) {
+      assertSame(writeDigests, crypt4GHOutputStream.getDigests().orElseThrow());
+      crypt4GHOutputStream.write(unencryptedData, 0, 1000);
+      assertThrows(IllegalStateException.class, writeDigests::getPlaintextSize);
+      crypt4GHOutputStream.write(unencryptedData, 1000, unencryptedData.length - 1000);
+    }
+    byte[] encryptedData = encrypted.toByteArray();
+    String ciphertextSha256 = hex(MessageDigest.getInstance("SHA-256").digest(encryptedData));
+    assertTrue(writeDigests.isComplete());
+    assertEquals(unencryptedData.length, writeDigests.getPlaintextSize());
+    assertEquals(encryptedData.length, writeDigests.getCiphertextSize());
+    assertEquals(plaintextSha256, writeDigests.getPlaintextDigestHex(Crypt4GHDigests.SHA_256));
+    assertEquals(plaintextMd5, writeDigests.getPlaintextDigestHex(Crypt4GHDigests.MD5));
+    assertEquals(ciphertextSha256, writeDigests.getCiphertextDigestHex(Crypt4GHDigests.SHA_256));
+    assertEquals(
+        hex(MessageDigest.getInstance("MD5").digest(encryptedData)),
+        writeDigests.getCiphertextDigestHex(Crypt4GHDigests.MD5));
+    assertThrows(IllegalArgumentException.class, () -> writeDigests.getPlaintextDigest("SHA-1"));
+
+    // reading through the Data Edit List still digests the complete plaintext
+    Crypt4GHDigests readDigests = new Crypt4GHDigests();
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate(), readDigests)) {
+      assertSame(readDigests, crypt4GHInputStream.getDigests().orElseThrow());
+      assertArrayEquals(
+          Arrays.copyOfRange(unencryptedData, 100, 70100), crypt4GHInputStream.readAllBytes());
+    }
+    assertEquals(unencryptedData.length, readDigests.getPlaintextSize());
+    assertEquals(encryptedData.length, readDigests.getCiphertextSize());
+    assertEquals(plaintextSha256, readDigests.getPlaintextDigestHex(Crypt4GHDigests.SHA_256));
+    assertEquals(ciphertextSha256, readDigests.getCiphertextDigestHex(Crypt4GHDigests.SHA_256));
+
+    // skipped segments are still digested
+    Crypt4GHDigests skippingDigests = new Crypt4GHDigests(Crypt4GHDigests.SHA_256);
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate(), skippingDigests)) {
+      assertEquals(100, crypt4GHInputStream.read(new byte[100]));
+      assertEquals(69000, crypt4GHInputStream.skip(69000));
+      assertFalse(skippingDigests.isComplete());
+      assertEquals(900, crypt4GHInputStream.transferTo(OutputStream.nullOutputStream()));
+    }
+    assertTrue(skippingDigests.isComplete());
+    assertEquals(plaintextSha256, skippingDigests.getPlaintextDigestHex(Crypt4GHDigests.SHA_256));
+    assertEquals(
+        ciphertextSha256, skippingDigests.getCiphertextDigestHex(Crypt4GHDigests.SHA_256));
+
+    // closing early doesn't read the rest of the stream, and leaves the digests incomplete
+    Crypt4GHDigests partialDigests = new Crypt4GHDigests(Crypt4GHDigests.SHA_256);
+    ByteArrayInputStream encryptedStream = new ByteArrayInputStream(encryptedData);
+    Crypt4GHInputStream partialStream =
+        new Crypt4GHInputStream(encryptedStream, readerKeyPair.getPrivate(), partialDigests);
+    assertEquals(100, partialStream.read(new byte[100]));
+    partialStream.close();
+    assertFalse(partialDigests.isComplete());
+    assertThrows(IllegalStateException.class, partialDigests::getPlaintextSize);
+    assertTrue(encryptedStream.available() > 0);
+    partialStream.close();
+    assertThrows(IOException.class, partialStream::read);
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertTrue(crypt4GHInputStream.getDigests().isEmpty());
+    }
+  }
+
+  private static String hex(byte[] digest) {
+    return HexFormat.of().formatHex(digest);
+  }
+
+  /**
+   * Tests the Flow processors: encrypting and decrypting streams published in buffers of random
+   * sizes, one segment per item, with a Data Edit List, an empty stream, a header split into tiny
+   * buffers, a header that is too large, failures and backpressure.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void flowProcessorTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 17];
+    new Random(43).nextBytes(unencryptedData);
+
+    List<ByteBuffer> encryptedItems =
+        publish(
+            new Crypt4GHEncryptingProcessor(writerKeyPair.getPrivate(), readerKeyPair.getPublic()),
+            unencryptedData);
+    assertEquals(4, encryptedItems.size());
+    assertEquals(65564, encryptedItems.get(1).remaining());
+    assertEquals(65564, encryptedItems.get(2).remaining());
+    assertEquals(17 + 28, encryptedItems.get(3).remaining());
+    byte[] encryptedData = concatenate(encryptedItems);
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+    }
+    List<ByteBuffer> decryptedItems =
+        publish(new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate()), encryptedData);
+    assertEquals(4, decryptedItems.size());
+    assertArrayEquals(unencryptedData, concatenate(decryptedItems));
+
+    // a Data Edit List, applied when decrypting
+    byte[] encryptedWithDataEditList =
+        concatenate(
+            publish(
+                new Crypt4GHEncryptingProcessor(
+                    new DataEditList(new long[] {1000, 70000, 500}),
+                    writerKeyPair.getPrivate(),
+                    List.of(readerKeyPair.getPublic(), keyUtils.generateKeyPair().getPublic())),
+                unencryptedData));
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedWithDataEditList), readerKeyPair.getPrivate())) {
+      assertArrayEquals(
+          crypt4GHInputStream.readAllBytes(),
+          concatenate(
+              publish(
+                  new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate()),
+                  encryptedWithDataEditList)));
+    }
+
+    // an empty stream still gets one (empty) segment
+    List<ByteBuffer> emptyItems =
+        publish(
+            new Crypt4GHEncryptingProcessor(writerKeyPair.getPrivate(), readerKeyPair.getPublic()),
+            new byte[0]);
+    assertEquals(1, emptyItems.size());
+    assertTrue(
+        publish(
+                new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate()),
+                concatenate(emptyItems))
+            .isEmpty());
+
+    ExecutionException wrongKey =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                publish(
+                    new Crypt4GHDecryptingProcessor(writerKeyPair.getPrivate()), encryptedData));
+    assertTrue(wrongKey.getCause() instanceof GeneralSecurityException);
+    ExecutionException truncated =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                publish(
+                    new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate()),
+                    Arrays.copyOf(encryptedData, 100)));
+    assertTrue(truncated.getCause() instanceof EOFException);
+
+    // a header packet length above the maximum header size fails before anything is allocated
+    ByteBuffer hugeHeader = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+    hugeHeader.put(Header.MAGIC_WORD.getBytes()).putInt(Header.VERSION).putInt(1);
+    hugeHeader.putInt(64 * 1024 * 1024).putInt(0);
+    ExecutionException tooLarge =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                publish(
+                    new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate()),
+                    hugeHeader.array()));
+    assertTrue(tooLarge.getCause() instanceof GeneralSecurityException);
+
+    // a header arriving in tiny buffers
+    assertArrayEquals(
+        unencryptedData,
+        concatenate(
+            publish(
+                new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate()),
+                Arrays.copyOf(encryptedData, encryptedData.length),
+                7)));
+
+    // segments of a large upstream buffer are only processed as they are requested
+    byte[] corruptedData = Arrays.copyOf(encryptedData, encryptedData.length);
+    corruptedData[corruptedData.length - 1] ^= 1;
+    List<ByteBuffer> decrypted = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Void> oneDecrypted = new CompletableFuture<>();
+    CompletableFuture<Void> failed = new CompletableFuture<>();
+    AtomicReference<Flow.Subscription> decryptedSubscription = new AtomicReference<>();
+    Crypt4GHDecryptingProcessor decryptingProcessor =
+        new Crypt4GHDecryptingProcessor(readerKeyPair.getPrivate());
+    decryptingProcessor.subscribe(
+        new Flow.Subscriber<>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            decryptedSubscription.set(subscription);
+            subscription.request(1);
+          }
+
+          @Override
+          public void onNext(ByteBuffer item) {
+            decrypted.add(item);
+            oneDecrypted.complete(null);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            failed.complete(null);
+          }
+
+          @Override
+          public void onComplete() {}
+        });
+    try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+      publisher.subscribe(decryptingProcessor);
+      publisher.submit(ByteBuffer.wrap(corruptedData));
+    }
+    oneDecrypted.get(30, TimeUnit.SECONDS);
+    Thread.sleep(100);
+    assertEquals(1, decrypted.size());
+    assertFalse(failed.isDone());
+    decryptedSubscription.get().request(Long.MAX_VALUE);
+    failed.get(30, TimeUnit.SECONDS);
+    assertEquals(3, decrypted.size());
+
+    // only as many buffers as needed for the demand are requested from upstream
+    Crypt4GHEncryptingProcessor processor =
+        new Crypt4GHEncryptingProcessor(writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+    List<ByteBuffer> received = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Void> twoReceived = new CompletableFuture<>();
+    processor.subscribe(
+        new Flow.Subscriber<>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(2);
+          }
+
+          @Override
+          public void onNext(ByteBuffer item) {
+            received.add(item);
+            if (received.size() == 2) {
+              twoReceived.complete(null);
+            }
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            twoReceived.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {}
+        });
+    try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+      publisher.subscribe(processor);
+      for (int i = 0; i < 10; i++) {
+        publisher.submit(ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE));
+      }
+      twoReceived.get(30, TimeUnit.SECONDS);
+      Thread.sleep(100);
+      assertEquals(2, received.size());
+      assertTrue(publisher.estimateMaximumLag() >= 7);
+    }
+  }
+
+  /**
+   * Publishes data through a processor in buffers of random sizes, and collects the items the
+   * processor publishes, requesting them one at a time.
+   *
+   * @param processor the processor
+   * @param data the data to publish
+   * @return the items published by the processor
+   * @throws Exception In case the processor fails (with the failure as the cause).
+   */
+  private static List<ByteBuffer> publish(Crypt4GHProcessor processor, byte[] data)
+      throws Exception {
+    return publish(processor, data, 100000);
+  }
+
+  /**
+   * Publishes data through a processor in buffers of random sizes up to a maximum, and collects the
+   * items the processor publishes, requesting them one at a time.
+   *
+   * @param processor the processor
+   * @param data the data to publish
+   * @param maxBufferSize the maximum size of the buffers published
+   * @return the items published by the processor
+   * @throws Exception In case the processor fails (with the failure as the cause).
+   */
+  private static List<ByteBuffer> publish(
+      Crypt4GHProcessor processor, byte[] data, int maxBufferSize) throws Exception {
+    CompletableFuture<List<ByteBuffer>> result = new CompletableFuture<>();
+    processor.subscribe(
+        new Flow.Subscriber<>() {
+          private final List<ByteBuffer> items = new ArrayList<>();
+          private Flow.Subscription subscription;
+
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+          }
+
+          @Override
+          public void onNext(ByteBuffer item) {
+            items.add(item);
+            subscription.request(1);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            result.complete(items);
+          }
+        });
+    Random random = new Random(data.length);
+    try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+      publisher.subscribe(processor);
+      for (int offset = 0; offset < data.length; ) {
+        int length = Math.min(data.length - offset, 1 + random.nextInt(maxBufferSize));
+        publisher.submit(ByteBuffer.wrap(data, offset, length));
+        offset += length;
+      }
+    }
+    return result.get(30, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Concatenates the remaining bytes of a list of buffers.
+   *
+   * @param buffers the buffers
+   * @return the concatenated bytes
+   */
+  private static byte[] concatenate(List<ByteBuffer> buffers) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : buffers) {
+      byte[] array = new byte[buffer.remaining()];
+      buffer.duplicate().get(array);
+      bytes.writeBytes(array);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Tests the segment buffer pool: reuse of released buffers, the fallback to heap buffers once the
+   * direct buffers are exhausted, and streams and the asynchronous file cryptor returning their
+   * buffers to the pool.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void segmentBufferPoolTest() throws Exception {
+    assertThrows(IllegalArgumentException.class, () -> new BoundedSegmentBufferPool(-1, 0));
+    BoundedSegmentBufferPool pool = new BoundedSegmentBufferPool(2, 1);
+    ByteBuffer first = pool.acquire(100);
+    ByteBuffer second = pool.acquire(100);
+    ByteBuffer third = pool.acquire(100);
+    assertTrue(first.isDirect());
+    assertTrue(second.isDirect());
+    assertFalse(third.isDirect());
+    assertEquals(100, third.capacity());
+    first.put((byte) 1);
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+    ByteBuffer reused = pool.acquire(100);
+    assertSame(first, reused);
+    assertEquals(0, reused.position());
+    assertEquals(100, reused.limit());
+    ByteBuffer heap = pool.acquireHeap(100);
+    assertSame(third, heap);
+    assertEquals(0, heap.arrayOffset());
+    assertNotSame(heap, pool.acquireHeap(100));
+    BoundedSegmentBufferPool.Statistics statistics = pool.getStatistics();
+    assertEquals(6, statistics.getAcquisitions());
+    assertEquals(2, statistics.getReuses());
+    assertEquals(4, statistics.getAllocations());
+    assertEquals(1, statistics.getExhaustions());
+    assertEquals(3, statistics.getReleases());
+    assertEquals(2, statistics.getDirectBuffersAllocated());
+
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 12];
+    new Random(31).nextBytes(unencryptedData);
+    BoundedSegmentBufferPool streamPool = new BoundedSegmentBufferPool(0, 4);
+    for (int i = 0; i < 2; i++) {
+      ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          Crypt4GHOutputStream.builder()
+              .writerPrivateKey(writerKeyPair.getPrivate())
+              .readerPublicKey(readerKeyPair.getPublic())
+              .segmentBufferPool(streamPool)
+              .build(encrypted)) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(
+              new ByteArrayInputStream(encrypted.toByteArray()), readerKeyPair.getPrivate());
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+      crypt4GHInputStream.close();
+      crypt4GHInputStream.close();
+      assertThrows(IOException.class, crypt4GHInputStream::read);
+    }
+    statistics = streamPool.getStatistics();
+    assertEquals(4, statistics.getAcquisitions());
+    assertEquals(2, statistics.getReuses());
+    assertEquals(4, statistics.getReleases());
+
+    // more buffers are needed than there are direct buffers, so some lanes get heap buffers
+    BoundedSegmentBufferPool filePool = new BoundedSegmentBufferPool(3, 0);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    File unencryptedFile = Files.createTempFile("crypt4gh", ".raw").toFile();
+    File encryptedFile = Files.createTempFile("crypt4gh", ".enc").toFile();
+    File decryptedFile = Files.createTempFile("crypt4gh", ".dec").toFile();
+    try {
+      Crypt4GHAsyncFileCryptor fileCryptor = new Crypt4GHAsyncFileCryptor(executor, 2, filePool);
+      FileUtils.writeByteArrayToFile(unencryptedFile, unencryptedData);
+      fileCryptor
+          .encrypt(
+              unencryptedFile.toPath(),
+              encryptedFile.toPath(),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())
+          .get();
+      fileCryptor
+          .decrypt(encryptedFile.toPath(), decryptedFile.toPath(), readerKeyPair.getPrivate())
+          .get();
+      assertArrayEquals(unencryptedData, FileUtils.readFileToByteArray(decryptedFile));
+      statistics = filePool.getStatistics();
+      assertEquals(8, statistics.getAcquisitions());
+      assertEquals(8, statistics.getReleases());
+      assertEquals(3, statistics.getDirectBuffersAllocated());
+      assertTrue(statistics.getExhaustions() > 0);
+      assertTrue(statistics.getReuses() > 0);
+    } finally {
+      executor.shutdown();
+      unencryptedFile.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests that streams whose construction fails leave no buffer borrowed from the segment buffer
+   * pool: an output stream without recipients or whose header can't be written, and an input
+   * stream whose header has no Data Encryption Parameters.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void failedConstructionReleasesBuffersTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    BoundedSegmentBufferPool pool = new BoundedSegmentBufferPool(0, 4);
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            Crypt4GHOutputStream.builder()
+                .writerPrivateKey(writerKeyPair.getPrivate())
+                .segmentBufferPool(pool)
+                .build(new ByteArrayOutputStream()));
+    OutputStream failingSink =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw new IOException("Sink failure");
+          }
+        };
+    assertThrows(
+        IOException.class,
+        () ->
+            Crypt4GHOutputStream.builder()
+                .writerPrivateKey(writerKeyPair.getPrivate())
+                .readerPublicKey(readerKeyPair.getPublic())
+                .segmentBufferPool(pool)
+                .build(failingSink));
+    Header headerWithoutParameters =
+        new Header(
+            List.of(
+                new X25519ChaCha20IETFPoly1305HeaderPacket(
+                    new DataEditList(new long[] {10}),
+                    writerKeyPair.getPrivate(),
+                    readerKeyPair.getPublic())));
+    assertThrows(
+        GeneralSecurityException.class,
+        () ->
+            new Crypt4GHInputStreamInternal(
+                InputStream.nullInputStream(), headerWithoutParameters, pool));
+    BoundedSegmentBufferPool.Statistics statistics = pool.getStatistics();
+    assertEquals(statistics.getAcquisitions(), statistics.getReleases());
+
+    // a stream that is constructed and closed returns everything it borrowed
+    Crypt4GHOutputStream crypt4GHOutputStream =
+        Crypt4GHOutputStream.builder()
+            .writerPrivateKey(writerKeyPair.getPrivate())
+            .readerPublicKey(readerKeyPair.getPublic())
+            .segmentBufferPool(pool)
+            .build(new ByteArrayOutputStream());
+    assertEquals(1, pool.getStatistics().getAcquisitions() - statistics.getAcquisitions());
+    crypt4GHOutputStream.close();
+    statistics = pool.getStatistics();
+    assertEquals(statistics.getAcquisitions(), statistics.getReleases());
+  }
+
+  /**
+   * Tests the file infos read from the header framing and the size of Crypt4GH files of various
+   * sizes and numbers of recipients, and the index caching them for a directory.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void fileInfoTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    List<PublicKey> readerPublicKeys =
+        List.of(
+            keyUtils.generateKeyPair().getPublic(),
+            keyUtils.generateKeyPair().getPublic(),
+            keyUtils.generateKeyPair().getPublic());
+    File directory = Files.createTempDirectory("crypt4gh").toFile();
+    try {
+      int[] sizes = {0, 1, UNENCRYPTED_DATA_SEGMENT_SIZE, 3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 100};
+      for (int size : sizes) {
+        for (int recipients : new int[] {1, 3}) {
+          File encryptedFile = new File(directory, size + "-" + recipients + ".c4gh");
+          try (Crypt4GHOutputStream crypt4GHOutputStream =
+              Crypt4GHOutputStream.builder()
+                  .writerPrivateKey(writerKeyPair.getPrivate())
+                  .readerPublicKeys(readerPublicKeys.subList(0, recipients))
+                  .build(new FileOutputStream(encryptedFile))) {
+            crypt4GHOutputStream.write(new byte[size]);
+          }
+          Crypt4GHFileInfo fileInfo = Crypt4GHFileInfo.read(encryptedFile.toPath());
+          HeaderDescriptor headerDescriptor = HeaderDescriptor.read(encryptedFile.toPath());
+          int fullSegments = size / UNENCRYPTED_DATA_SEGMENT_SIZE;
+          long expectedSegments =
+              size % UNENCRYPTED_DATA_SEGMENT_SIZE == 0
+                  ? Math.max(1, fullSegments)
+                  : fullSegments + 1;
+          int expectedLastSegmentSize =
+              size - (int) (expectedSegments - 1) * UNENCRYPTED_DATA_SEGMENT_SIZE;
+          assertEquals(encryptedFile.length(), fileInfo.getFileSize());
+          assertEquals(headerDescriptor.getHeaderLength(), fileInfo.getHeaderLength());
+          assertEquals(headerDescriptor.getBodyOffset(), fileInfo.getBodyOffset());
+          assertEquals(recipients, fileInfo.getHeaderPacketCount());
+          for (int i = 0; i < recipients; i++) {
+            HeaderDescriptor.PacketDescriptor packetDescriptor =
+                headerDescriptor.getPacketDescriptors().get(i);
+            Crypt4GHFileInfo.HeaderPacketInfo headerPacket = fileInfo.getHeaderPackets().get(i);
+            assertEquals(packetDescriptor.getOffset(), headerPacket.getOffset());
+            assertEquals(packetDescriptor.getPacketLength(), headerPacket.getPacketLength());
+          }
+          assertEquals(expectedSegments, fileInfo.getSegmentCount());
+          assertEquals(expectedLastSegmentSize, fileInfo.getLastSegmentSize());
+          assertEquals(size, fileInfo.getPlaintextSize());
+          long lastSegment = expectedSegments - 1;
+          assertEquals(expectedLastSegmentSize, fileInfo.getSegmentSize(lastSegment));
+          assertEquals(
+              encryptedFile.length(),
+              fileInfo.getSegmentOffset(lastSegment) + 28 + expectedLastSegmentSize);
+          if (expectedSegments > 1) {
+            assertEquals(
+                UNENCRYPTED_DATA_SEGMENT_SIZE + 28L,
+                fileInfo.getSegmentOffset(1) - fileInfo.getSegmentOffset(0));
+          }
+          assertThrows(IllegalArgumentException.class, () -> fileInfo.getSegmentOffset(-1));
+          assertThrows(
+              IllegalArgumentException.class, () -> fileInfo.getSegmentSize(expectedSegments));
+        }
+      }
+
+      File goFile =
+          new File(
+              Objects.requireNonNull(getClass().getClassLoader().getResource("empty.go.txt.c4gh"))
+                  .getFile());
+      assertEquals(0, Crypt4GHFileInfo.read(goFile.toPath()).getPlaintextSize());
+
+      File truncatedFile = new File(directory, "truncated.c4gh");
+      byte[] encrypted = Files.readAllBytes(new File(directory, "1-1.c4gh").toPath());
+      Files.write(truncatedFile.toPath(), Arrays.copyOf(encrypted, encrypted.length - 2));
+      assertThrows(
+          GeneralSecurityException.class, () -> Crypt4GHFileInfo.read(truncatedFile.toPath()));
+      File notesFile = new File(directory, "notes.txt");
+      FileUtils.writeStringToFile(notesFile, "not a Crypt4GH file", Charset.defaultCharset());
+      assertThrows(
+          GeneralSecurityException.class, () -> Crypt4GHFileInfo.read(notesFile.toPath()));
+      // a header packet with an unknown encryption method, after a valid magic word
+      File foreignFile = new File(directory, "foreign.c4gh");
+      byte[] foreign = Arrays.copyOf(encrypted, encrypted.length);
+      ByteBuffer.wrap(foreign).order(ByteOrder.LITTLE_ENDIAN).putInt(20, 99);
+      Files.write(foreignFile.toPath(), foreign);
+      assertThrows(
+          GeneralSecurityException.class, () -> Crypt4GHFileInfo.read(foreignFile.toPath()));
+
+      Crypt4GHFileIndex index = Crypt4GHFileIndex.refresh(directory.toPath());
+      File indexFile = new File(directory, Crypt4GHFileIndex.INDEX_FILE_NAME);
+      assertTrue(indexFile.exists());
+      assertEquals(sizes.length * 2, index.size());
+      assertTrue(index.get("notes.txt").isEmpty());
+      assertTrue(index.get("truncated.c4gh").isEmpty());
+      assertTrue(index.get("foreign.c4gh").isEmpty());
+      Crypt4GHFileIndex readIndex = Crypt4GHFileIndex.read(indexFile.toPath());
+      assertEquals(index.getFileInfos().keySet(), readIndex.getFileInfos().keySet());
+      for (String fileName : index.getFileInfos().keySet()) {
+        Crypt4GHFileInfo fileInfo = index.get(fileName).orElseThrow();
+        Crypt4GHFileInfo readFileInfo = readIndex.get(fileName).orElseThrow();
+        assertEquals(fileInfo.getFileSize(), readFileInfo.getFileSize());
+        assertEquals(fileInfo.getHeaderLength(), readFileInfo.getHeaderLength());
+        assertEquals(fileInfo.getHeaderPacketCount(), readFileInfo.getHeaderPacketCount());
+        assertEquals(fileInfo.getPlaintextSize(), readFileInfo.getPlaintextSize());
+      }
+      assertFalse(readIndex.update(directory.toPath()));
+
+      File rewrittenFile = new File(directory, "1-1.c4gh");
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          Crypt4GHOutputStream.builder()
+              .writerPrivateKey(writerKeyPair.getPrivate())
+              .readerPublicKeys(readerPublicKeys.subList(0, 1))
+              .build(new FileOutputStream(rewrittenFile))) {
+        crypt4GHOutputStream.write(new byte[100]);
+      }
+      assertTrue(readIndex.update(directory.toPath()));
+      long rewrittenSize = readIndex.get("1-1.c4gh").orElseThrow().getPlaintextSize();
+      assertEquals(100, rewrittenSize);
+      Files.delete(rewrittenFile.toPath());
+      assertTrue(readIndex.update(directory.toPath()));
+      assertTrue(readIndex.get("1-1.c4gh").isEmpty());
+
+      Files.write(indexFile.toPath(), "corrupt".getBytes());
+      assertThrows(IOException.class, () -> Crypt4GHFileIndex.read(indexFile.toPath()));
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
   /**
    * Tests decryption of empty content created by the <a
    * href="https://github.com/neicnordic/crypt4gh">Go implementation</a> of `crypt4gh` and OpenSSL
@@ -0,0 +1,154 @@
+package no.elixir.crypt4gh.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.SecretKey;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Testing the caching of derived public keys and shared keys in KeyUtils, and the KeyRing */
+public class KeyUtilsTest {
+
+  private final KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void cachedKeysTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    keyUtils.clearKeyCaches();
+
+    PublicKey derivedPublicKey = keyUtils.derivePublicKey(writerKeyPair.getPrivate());
+    assertArrayEquals(
+        keyUtils.encodeKey(writerKeyPair.getPublic()), keyUtils.encodeKey(derivedPublicKey));
+    assertSame(derivedPublicKey, keyUtils.derivePublicKey(writerKeyPair.getPrivate()));
+
+    SecretKey writerSharedKey =
+        keyUtils.generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+    SecretKey readerSharedKey =
+        keyUtils.generateReaderSharedKey(readerKeyPair.getPrivate(), writerKeyPair.getPublic());
+    assertArrayEquals(writerSharedKey.getEncoded(), readerSharedKey.getEncoded());
+    assertSame(
+        writerSharedKey,
+        keyUtils.generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic()));
+
+    // keys are cached by content, and per peer
+    KeyPair otherKeyPair = keyUtils.generateKeyPair();
+    SecretKey otherSharedKey =
+        keyUtils.generateWriterSharedKey(
+            keyUtils.constructPrivateKey(keyUtils.getScalar(writerKeyPair.getPrivate())),
+            otherKeyPair.getPublic());
+    assertFalse(Arrays.equals(writerSharedKey.getEncoded(), otherSharedKey.getEncoded()));
+    assertSame(
+        otherSharedKey,
+        keyUtils.generateWriterSharedKey(writerKeyPair.getPrivate(), otherKeyPair.getPublic()));
+    assertArrayEquals(
+        otherSharedKey.getEncoded(),
+        keyUtils.generateReaderSharedKey(otherKeyPair.getPrivate(), writerKeyPair.getPublic())
+            .getEncoded());
+
+    keyUtils.clearKeyCaches();
+    SecretKey recomputedSharedKey =
+        keyUtils.generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+    assertNotSame(writerSharedKey, recomputedSharedKey);
+    assertArrayEquals(writerSharedKey.getEncoded(), recomputedSharedKey.getEncoded());
+  }
+
+  @Test
+  public void keyRingTest() throws Exception {
+    MutableClock clock = new MutableClock();
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair otherKeyPair = keyUtils.generateKeyPair();
+    byte[] data = "Crypt4GH key ring".getBytes();
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            encrypted, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(data);
+    }
+
+    try (KeyRing keyRing = new KeyRing(Duration.ofMinutes(10), clock)) {
+      assertArrayEquals(
+          keyUtils.encodeKey(otherKeyPair.getPublic()),
+          keyUtils.encodeKey(keyRing.add(otherKeyPair.getPrivate())));
+      keyRing.add(readerKeyPair.getPrivate());
+      assertEquals(2, keyRing.size());
+
+      PrivateKey readerPrivateKey = keyRing.getPrivateKey(readerKeyPair.getPublic()).orElseThrow();
+      assertNotSame(readerKeyPair.getPrivate(), readerPrivateKey);
+      assertArrayEquals(readerKeyPair.getPrivate().getEncoded(), readerPrivateKey.getEncoded());
+      assertFalse(keyRing.getPrivateKey(writerKeyPair.getPublic()).isPresent());
+
+      // the key that decrypted the header comes first for the next file from the same writer
+      try (InputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(new ByteArrayInputStream(encrypted.toByteArray()), keyRing)) {
+        assertArrayEquals(data, crypt4GHInputStream.readAllBytes());
+      }
+      List<PrivateKey> privateKeys = keyRing.getPrivateKeys(writerKeyPair.getPublic());
+      assertEquals(2, privateKeys.size());
+      assertSame(readerPrivateKey, privateKeys.get(0));
+
+      // expired keys are removed and zeroed
+      clock.instant = clock.instant.plus(Duration.ofMinutes(5));
+      keyRing.add(writerKeyPair.getPrivate());
+      clock.instant = clock.instant.plus(Duration.ofMinutes(5));
+      assertFalse(keyRing.getPrivateKey(readerKeyPair.getPublic()).isPresent());
+      assertTrue(readerPrivateKey.isDestroyed());
+      assertThrows(IllegalStateException.class, readerPrivateKey::getEncoded);
+      assertEquals(1, keyRing.evictExpired());
+      assertEquals(1, keyRing.size());
+      byte[] encryptedData = encrypted.toByteArray();
+      assertThrows(
+          GeneralSecurityException.class,
+          () -> new Crypt4GHInputStream(new ByteArrayInputStream(encryptedData), keyRing));
+
+      PrivateKey writerPrivateKey = keyRing.getPrivateKey(writerKeyPair.getPublic()).orElseThrow();
+      assertTrue(keyRing.remove(writerKeyPair.getPublic()));
+      assertFalse(keyRing.remove(writerKeyPair.getPublic()));
+      assertTrue(writerPrivateKey.isDestroyed());
+      assertEquals(0, keyRing.size());
+
+      // the original keys are not affected
+      assertFalse(writerKeyPair.getPrivate().isDestroyed());
+      assertArrayEquals(
+          keyUtils.encodeKey(readerKeyPair.getPublic()),
+          keyUtils.encodeKey(keyUtils.derivePublicKey(readerKeyPair.getPrivate())));
+    }
+  }
+
+  /** A clock that only moves when told to */
+  private static class MutableClock extends Clock {
+
+    private Instant instant = Instant.now();
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return instant;
+    }
+  }
+}